@@ -65,6 +65,9 @@ public abstract class BaseRecorder implements IRecorder {
             VideoCodecInfo[] supportedCodecs = videoEncoderFactory.getSupportedCodecs();
             if (supportedCodecs != null && supportedCodecs.length > 0) {
                 videoCodecInfo = supportedCodecs[0];
+                //HLS分段依赖关键帧间隔，和复用器使用同一个值
+                videoCodecInfo.params.put(VideoCodecInfo.KEY_FRAME_INTERVAL,
+                        String.valueOf(params.getKeyFrameIntervalSec()));
                 ELog.d(TAG, "find a codec :" + videoCodecInfo.name);
             } else {
                 ELog.e(TAG, "can't find a available codec :");
@@ -73,6 +76,18 @@ public abstract class BaseRecorder implements IRecorder {
     }
 
 
+    /**
+     * 修改视频码率，在创建VideoClient之前调用
+     *
+     * @param bitrate 码率(kbps)
+     */
+    void setVideoBitrate(int bitrate) {
+        if (videoSettings != null && videoSettings.startBitrate != bitrate) {
+            videoSettings = new VideoEncoder.Settings(videoSettings.width, videoSettings.height,
+                    bitrate, videoSettings.maxFrameRate);
+        }
+    }
+
     void setEGLShareContext(EGLContext context) {
         shareContext = context;
         if (videoEncoderFactory != null) {
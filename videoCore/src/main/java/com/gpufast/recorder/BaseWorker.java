@@ -3,6 +3,7 @@ package com.gpufast.recorder;
 import android.os.Handler;
 
 import com.gpufast.recorder.audio.AudioProcessor;
+import com.gpufast.recorder.muxer.SpillMuxer;
 
 public abstract class BaseWorker implements IRecorder {
 
@@ -17,6 +18,41 @@ public abstract class BaseWorker implements IRecorder {
         public void setRecordListener(RecordListener listener) {
 
         }
+
+        @Override
+        public void setSplitListener(SplitListener listener) {
+
+        }
+
+        @Override
+        public void setPostProcessListener(PostProcessListener listener) {
+
+        }
+
+        @Override
+        public void setStorageListener(StorageListener listener) {
+
+        }
+
+        @Override
+        public void probeStorage(String dir) {
+
+        }
+
+        @Override
+        public void recoverPending(String dir) {
+
+        }
+
+        @Override
+        public boolean saveReplay(String path) {
+            return false;
+        }
+
+        @Override
+        public SpillMuxer.Stats getSpillStats() {
+            return null;
+        }
         @Override
         public void setAudioProcessor(AudioProcessor callback) {
 
@@ -36,6 +72,36 @@ public abstract class BaseWorker implements IRecorder {
         @Override
         public void setRecordListener(RecordListener listener) {
         }
+
+        @Override
+        public void setSplitListener(SplitListener listener) {
+        }
+
+        @Override
+        public void setPostProcessListener(PostProcessListener listener) {
+        }
+
+        @Override
+        public void setStorageListener(StorageListener listener) {
+        }
+
+        @Override
+        public void probeStorage(String dir) {
+        }
+
+        @Override
+        public void recoverPending(String dir) {
+        }
+
+        @Override
+        public boolean saveReplay(String path) {
+            return false;
+        }
+
+        @Override
+        public SpillMuxer.Stats getSpillStats() {
+            return null;
+        }
         @Override
         public void setAudioProcessor(AudioProcessor callback) {
         }
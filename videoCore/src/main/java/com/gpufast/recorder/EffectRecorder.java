@@ -1,23 +1,61 @@
 package com.gpufast.recorder;
 
 import android.opengl.EGLContext;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.gpufast.logger.ELog;
 import com.gpufast.recorder.audio.AudioClient;
+import com.gpufast.recorder.file.StorageProbe;
 import com.gpufast.recorder.muxer.IMediaMuxer;
 import com.gpufast.recorder.muxer.MediaMuxerFactory;
 import com.gpufast.recorder.muxer.MuxerType;
+import com.gpufast.recorder.muxer.ReplayMuxer;
+import com.gpufast.recorder.muxer.SpillMuxer;
+import com.gpufast.recorder.muxer.SplitMuxer;
 import com.gpufast.recorder.video.VideoClient;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 public class EffectRecorder extends BaseRecorder {
     private static final String TAG = EffectRecorder.class.getSimpleName();
 
     private volatile boolean recordStarting = false;
     private volatile boolean recordStarted = false;
+    //在录制线程上创建，编码线程的错误回到这个线程处理
+    private final Handler mHandler = new Handler(Looper.myLooper());
     private VideoClient mVideoClient;
     private AudioClient mAudioClient;
     private RecordParams mRecordParams;
     private RecordListener mRecordListener;
+    private volatile SplitListener mSplitListener;
+    private PostProcessListener mPostProcessListener;
+    private volatile StorageListener mStorageListener;
+    //最近一次存储探测的结果
+    private volatile StorageProbe.Result mStorageInfo;
+    //即时回放模式下的环形缓冲，停止录制后保留到下次开始录制，仍然可以保存
+    private volatile ReplayMuxer mReplayMuxer;
+    //存储跟不上时的溢出队列，停止录制后保留最后一次的统计信息
+    private volatile SpillMuxer mSpillMuxer;
+    //上次拼接之后录制完成的MP4片段
+    private final List<String> mSegments = new ArrayList<>();
+    //本次录制自动分文件写完的文件，按序号排列
+    private final Map<Integer, String> mSplitFiles = new TreeMap<>();
+    private final SplitMuxer.Listener mSplitMuxerListener = new SplitMuxer.Listener() {
+        @Override
+        public void onFileFinished(String path, int index) {
+            synchronized (mSplitFiles) {
+                mSplitFiles.put(index, path);
+            }
+            SplitListener listener = mSplitListener;
+            if (listener != null) {
+                listener.onRecordFileFinished(path, index);
+            }
+        }
+    };
 
     EffectRecorder() {
     }
@@ -51,9 +89,37 @@ public class EffectRecorder extends BaseRecorder {
         }
         ELog.i(TAG, "startRecorder");
         recordStarting = true;
-        IMediaMuxer mediaMuxer = MediaMuxerFactory.createMediaMuxer(mRecordParams, MuxerType.MP4);
+        RecordParams params = mRecordParams;
+        StorageGuard.Decision decision = StorageGuard.check(params, mStorageInfo);
+        if (!decision.allowed || decision.videoBitrate != params.getVideoBitrate()) {
+            StorageListener listener = mStorageListener;
+            if (listener != null) {
+                listener.onStorageInsufficient(!decision.allowed, decision.videoBitrate, decision.reason);
+            }
+        }
+        if (!decision.allowed) {
+            recordStarting = false;
+            return;
+        }
+        if (decision.videoBitrate != params.getVideoBitrate()) {
+            params = params.withVideoBitrate(decision.videoBitrate);
+        }
+        setVideoBitrate(params.getVideoBitrate());
+        synchronized (mSplitFiles) {
+            mSplitFiles.clear();
+        }
+        IMediaMuxer mediaMuxer;
+        if (params.isReplayEnabled()) {
+            mReplayMuxer = MediaMuxerFactory.createReplayMuxer(params);
+            mediaMuxer = MediaMuxerFactory.createMediaMuxer(params, mReplayMuxer);
+        } else {
+            mReplayMuxer = null;
+            mediaMuxer = MediaMuxerFactory.createMediaMuxer(params, params.getMuxerType(), mSplitMuxerListener);
+        }
+        mSpillMuxer = mediaMuxer instanceof SpillMuxer ? (SpillMuxer) mediaMuxer : null;
         mVideoClient = createVideoClient(mediaMuxer);
         if (mVideoClient != null) {
+            mVideoClient.setCallback(createVideoClientCallback(mVideoClient));
             mVideoClient.start();
         }
         mAudioClient = createAudioClient(mediaMuxer);
@@ -70,6 +136,29 @@ public class EffectRecorder extends BaseRecorder {
     }
 
 
+    /**
+     * 视频编码器出现不可恢复的错误时停止录制，已经写入的数据正常结束成文件
+     */
+    private VideoClient.Callback createVideoClientCallback(final VideoClient client) {
+        return new VideoClient.Callback() {
+            @Override
+            public void onEncoderError() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        //已经停止或者开始了新的录制
+                        if (!recordStarted || mVideoClient != client) {
+                            return;
+                        }
+                        ELog.e(TAG, "video encoder failed, stop recorder");
+                        stopRecorder();
+                    }
+                });
+            }
+        };
+    }
+
+
     @Override
     public void sendVideoFrame(int textureId, int srcWidth, int srcHeight) {
         if (mVideoClient != null && recordStarted) {
@@ -81,6 +170,7 @@ public class EffectRecorder extends BaseRecorder {
     @Override
     public void stopRecorder() {
         ELog.i(TAG, "do stop recorder");
+        boolean wasRecording = recordStarted;
         recordStarted = false;
         if (mVideoClient != null) {
             mVideoClient.stop();
@@ -93,12 +183,70 @@ public class EffectRecorder extends BaseRecorder {
         if (mRecordListener != null) {
             mRecordListener.onRecordStop();
         }
+        if (!wasRecording || mRecordParams == null || mRecordParams.isReplayEnabled()) {
+            //即时回放模式不写savePath，没有需要后处理的文件
+            return;
+        }
+        MuxerType muxerType = mRecordParams.getMuxerType();
+        List<String> files;
+        synchronized (mSplitFiles) {
+            files = new ArrayList<>(mSplitFiles.values());
+            mSplitFiles.clear();
+        }
+        if (files.isEmpty()) {
+            files.add(mRecordParams.getSavePath());
+        }
+        for (String path : files) {
+            //client停止时编码器已经退出，MediaMuxer已写完moov
+            if (mRecordParams.isFastStart() && muxerType == MuxerType.MP4) {
+                PostProcessor.fastStart(path, mPostProcessListener);
+            }
+            if (muxerType == MuxerType.MP4 || muxerType == MuxerType.MP4_FASTSTART) {
+                mSegments.add(path);
+            }
+        }
     }
 
 
     @Override
     public void jointVideo() {
+        if (recordStarted) {
+            ELog.e(TAG, "can't joint video while recording");
+            return;
+        }
+        if (mSegments.isEmpty() || mRecordParams == null || mRecordParams.getJointSavePath() == null) {
+            ELog.e(TAG, "nothing to joint, segments:" + mSegments.size());
+            return;
+        }
+        //在同一个后台线程上排在各段的faststart之后执行
+        PostProcessor.joint(new ArrayList<>(mSegments), mRecordParams.getJointSavePath(), mPostProcessListener);
+        mSegments.clear();
+    }
+
+
+    @Override
+    public boolean saveReplay(String path) {
+        ReplayMuxer replay = mReplayMuxer;
+        if (replay == null) {
+            ELog.e(TAG, "replay is not enabled");
+            return false;
+        }
+        final PostProcessListener listener = mPostProcessListener;
+        return replay.save(path, PostProcessor.wrap(listener), new ReplayMuxer.Callback() {
+            @Override
+            public void onReplaySaved(String path, boolean success) {
+                if (listener != null) {
+                    listener.onPostProcessFinish(path, success);
+                }
+            }
+        });
+    }
 
+
+    @Override
+    public SpillMuxer.Stats getSpillStats() {
+        SpillMuxer spillMuxer = mSpillMuxer;
+        return spillMuxer != null ? spillMuxer.getStats() : null;
     }
 
 
@@ -107,6 +255,54 @@ public class EffectRecorder extends BaseRecorder {
         this.mRecordListener = listener;
     }
 
+    @Override
+    public void setSplitListener(SplitListener listener) {
+        this.mSplitListener = listener;
+    }
+
+    @Override
+    public void setPostProcessListener(PostProcessListener listener) {
+        this.mPostProcessListener = listener;
+    }
+
+
+    @Override
+    public void setStorageListener(StorageListener listener) {
+        this.mStorageListener = listener;
+    }
+
+    @Override
+    public void probeStorage(final String dir) {
+        if (dir == null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                StorageProbe.Result result = StorageProbe.probe(dir);
+                mStorageInfo = result;
+                StorageListener listener = mStorageListener;
+                if (listener != null) {
+                    listener.onStorageProbed(result);
+                }
+            }
+        }, "StorageProbe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void recoverPending(String dir) {
+        if (dir == null) {
+            return;
+        }
+        if (recordStarting || recordStarted) {
+            //正在录制的文件也有日志
+            ELog.e(TAG, "can't recover while recording");
+            return;
+        }
+        PostProcessor.recoverPending(dir, mPostProcessListener);
+    }
 
     @Override
     public void release() {
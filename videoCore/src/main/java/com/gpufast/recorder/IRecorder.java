@@ -3,6 +3,8 @@ package com.gpufast.recorder;
 import android.opengl.EGLContext;
 
 import com.gpufast.recorder.audio.AudioProcessor;
+import com.gpufast.recorder.file.StorageProbe;
+import com.gpufast.recorder.muxer.SpillMuxer;
 
 public interface IRecorder {
 
@@ -51,15 +53,67 @@ public interface IRecorder {
 
     /**
      * 拼接视频
+     * 把上次拼接之后录制的各段MP4按顺序拼接到{@link RecordParams#getJointSavePath()}，
+     * 每段需要使用不同的{@link RecordParams#getSavePath()}。在后台线程执行，
+     * 结果通过{@link PostProcessListener}回调
      */
     void jointVideo();
 
+    /**
+     * 即时回放模式下把缓冲中最近的音视频保存为MP4，录制不中断，录制停止后也可以保存。
+     * 在后台线程执行，结果通过{@link PostProcessListener}回调，
+     * 见{@link RecordParams.Builder#setReplayDurationMs(int)}
+     * @param path 保存路径
+     * @return false:没有开启即时回放、还没有数据或者上一次保存还没有完成
+     */
+    boolean saveReplay(String path);
+
+    /**
+     * 溢出队列的统计信息(溢出的数据量、复用器落后的时长等)，见{@link RecordParams.Builder#setSpillDir(String)}
+     * @return 没有使用溢出队列时返回null
+     */
+    SpillMuxer.Stats getSpillStats();
+
     /**
      * 设置录制监听回调
      * @param listener listener
      */
     void setRecordListener(RecordListener listener);
 
+    /**
+     * 设置自动分文件的监听回调，见{@link RecordParams.Builder#setMaxFileBytes(long)}
+     * @param listener listener
+     */
+    void setSplitListener(SplitListener listener);
+
+    /**
+     * 设置录制结束后的后处理(如faststart)监听回调
+     * @param listener listener
+     */
+    void setPostProcessListener(PostProcessListener listener);
+
+    /**
+     * 设置存储探测和存储检查的监听回调
+     * @param listener listener
+     */
+    void setStorageListener(StorageListener listener);
+
+    /**
+     * 在后台线程测量dir所在存储的剩余空间和持续写入速度(约1秒)，结果通过
+     * {@link StorageListener#onStorageProbed(StorageProbe.Result)}回调，
+     * 并用于之后{@link #startRecorder()}时的存储检查，见{@link RecordParams.StoragePolicy}
+     * @param dir 录制文件所在的目录
+     */
+    void probeStorage(String dir);
+
+    /**
+     * 在后台线程修复dir下上次录制被中断(进程被杀、崩溃)的MP4：录制时开启了sample日志的文件
+     * 旁边会留下日志，根据日志重建moov。每个文件的结果通过{@link PostProcessListener#onPostProcessFinish}回调，
+     * 见{@link RecordParams.Builder#setJournalSyncIntervalMs(int)}。录制中调用时不做处理
+     * @param dir 录制文件所在的目录
+     */
+    void recoverPending(String dir);
+
     /**
      * 设置音频预处理
      * @param processor processor
@@ -85,4 +139,45 @@ public interface IRecorder {
          */
         void onRecordStop();
     }
+
+    interface SplitListener {
+        /**
+         * 自动分文件时一个文件写完(包括最后一个)，在复用器的线程回调
+         * @param path 文件路径
+         * @param index 序号，从0开始，见{@link RecordParams.Builder#setMaxFileBytes(long)}
+         */
+        void onRecordFileFinished(String path, int index);
+    }
+
+    interface StorageListener {
+        /**
+         * 存储探测完成，在后台线程回调
+         * @param result 剩余空间和写入速度
+         */
+        void onStorageProbed(StorageProbe.Result result);
+
+        /**
+         * 开始录制时剩余空间或写入速度不够，在录制线程回调
+         * @param refused true:拒绝录制；false:降低码率后继续录制
+         * @param videoBitrate 实际使用的视频码率(kbps)
+         * @param reason 原因
+         */
+        void onStorageInsufficient(boolean refused, int videoBitrate, String reason);
+    }
+
+    interface PostProcessListener {
+        /**
+         * 后处理进度，在后台线程回调
+         * @param processedBytes 已处理的字节数
+         * @param totalBytes 总字节数
+         */
+        void onPostProcessProgress(long processedBytes, long totalBytes);
+
+        /**
+         * 后处理结束，在后台线程回调
+         * @param path 文件路径
+         * @param success 是否成功
+         */
+        void onPostProcessFinish(String path, boolean success);
+    }
 }
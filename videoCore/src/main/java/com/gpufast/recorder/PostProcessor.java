@@ -0,0 +1,127 @@
+package com.gpufast.recorder;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.muxer.FastStartRelocator;
+import com.gpufast.recorder.muxer.Mp4Concatenator;
+import com.gpufast.recorder.muxer.Mp4Recovery;
+import com.gpufast.recorder.muxer.ProgressListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 录制结束后的文件后处理，在单独的后台线程串行执行，不阻塞录制线程
+ */
+class PostProcessor {
+    private static final String TAG = PostProcessor.class.getSimpleName();
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "RecordPostProcess");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private PostProcessor() {
+    }
+
+    /**
+     * 把MP4的moov移到文件头部
+     *
+     * @param path     文件路径
+     * @param listener 进度和结果回调，可以为null
+     */
+    static void fastStart(final String path, final IRecorder.PostProcessListener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    FastStartRelocator.relocate(path, wrap(listener));
+                    success = true;
+                } catch (IOException e) {
+                    ELog.e(TAG, "fast start failed:" + path + " " + e.getMessage());
+                } catch (RuntimeException e) {
+                    //损坏的输入可能在解析时越界，也要通知失败，否则调用者一直等待结果
+                    ELog.e(TAG, "fast start failed:" + path + " " + e);
+                }
+                if (listener != null) {
+                    listener.onPostProcessFinish(path, success);
+                }
+            }
+        });
+    }
+
+    /**
+     * 按顺序拼接多段MP4
+     *
+     * @param inputs   各段文件路径
+     * @param output   拼接后的文件路径
+     * @param listener 进度和结果回调，可以为null
+     */
+    static void joint(final List<String> inputs, final String output,
+                      final IRecorder.PostProcessListener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    Mp4Concatenator.concat(inputs, output, wrap(listener));
+                    success = true;
+                } catch (IOException e) {
+                    ELog.e(TAG, "joint video failed:" + output + " " + e.getMessage());
+                } catch (RuntimeException e) {
+                    //损坏的输入可能在解析时越界，也要通知失败，否则调用者一直等待结果
+                    ELog.e(TAG, "joint video failed:" + output + " " + e);
+                }
+                if (listener != null) {
+                    listener.onPostProcessFinish(output, success);
+                }
+            }
+        });
+    }
+
+    /**
+     * 修复dir下上次录制中途退出、留有日志的MP4，每个文件回调一次结果
+     *
+     * @param dir      录制文件所在的目录
+     * @param listener 结果回调，可以为null
+     */
+    static void recoverPending(final String dir, final IRecorder.PostProcessListener listener) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (String path : Mp4Recovery.findPending(dir)) {
+                    boolean success = false;
+                    try {
+                        success = Mp4Recovery.recover(path);
+                    } catch (IOException e) {
+                        ELog.e(TAG, "recover failed:" + path + " " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        ELog.e(TAG, "recover failed:" + path + " " + e);
+                    }
+                    if (listener != null) {
+                        listener.onPostProcessFinish(path, success);
+                    }
+                }
+            }
+        });
+    }
+
+    static ProgressListener wrap(final IRecorder.PostProcessListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        return new ProgressListener() {
+            @Override
+            public void onProgress(long processedBytes, long totalBytes) {
+                listener.onPostProcessProgress(processedBytes, totalBytes);
+            }
+        };
+    }
+}
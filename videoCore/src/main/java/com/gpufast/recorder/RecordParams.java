@@ -4,6 +4,13 @@ package com.gpufast.recorder;
 import android.media.AudioFormat;
 
 import com.gpufast.logger.ELog;
+import com.gpufast.recorder.muxer.MuxerSink;
+import com.gpufast.recorder.muxer.MuxerType;
+import com.gpufast.recorder.muxer.SplitMuxer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 public class RecordParams {
 
@@ -21,11 +28,44 @@ public class RecordParams {
     private final static int DEFAULT_AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
     //默认麦克风声音输入声音通道个数
     private final static int DEFAULT_AUDIO_CHANNELS = 1;
+    //视频关键帧间隔(秒)
+    private final static int DEFAULT_KEY_FRAME_INTERVAL_SEC = 20;
 
     public enum SpeedType {
         hyperslow, slow, standard, fast, veryFast
     }
 
+    /**
+     * 开始录制前，按{@link #estimateBytesPerSecond()}和录制时长检查剩余空间和存储写入速度，
+     * 写入速度来自最近一次{@link IRecorder#probeStorage(String)}通过{@link IRecorder.StorageListener}回调的结果
+     */
+    public enum StoragePolicy {
+        //不检查
+        IGNORE,
+        //空间或速度不够时拒绝录制
+        REFUSE,
+        //空间或速度不够时降低视频码率，降到最低码率仍不够时拒绝录制
+        LOWER_BITRATE
+    }
+
+    /**
+     * 除savePath之外的一路输出，和主输出共用同一次编码
+     */
+    public static class Output {
+        public final MuxerType muxerType;
+        public final String savePath;
+
+        public Output(MuxerType muxerType, String savePath) {
+            this.muxerType = muxerType;
+            this.savePath = savePath;
+        }
+
+        @Override
+        public String toString() {
+            return muxerType + ":" + savePath;
+        }
+    }
+
     /**
      * 录制视频的高度
      */
@@ -36,7 +76,7 @@ public class RecordParams {
     private int videoHeight;
 
     /**
-     * 录制的总时长
+     * 录制的总时长(毫秒)
      */
     private int allTime;
 
@@ -45,6 +85,31 @@ public class RecordParams {
      */
     private String savePath;
 
+    /**
+     * 视频码率(Kilobits per second)
+     */
+    private int videoBitrate;
+
+    /**
+     * 是否按码率和预计时长预分配录制文件的空间，需要设置录制总时长或者单个文件的大小、时长上限
+     */
+    private boolean preallocate;
+
+    /**
+     * 存储检查策略
+     */
+    private StoragePolicy storagePolicy;
+
+    /**
+     * 单个文件的大小上限(字节)，达到后在下一个关键帧处换新文件，0表示不限制
+     */
+    private long maxFileBytes;
+
+    /**
+     * 单个文件的时长上限(毫秒)，达到后在下一个关键帧处换新文件，0表示不限制
+     */
+    private int maxFileDurationMs;
+
     /**
      * 是否静音录制
      */
@@ -65,18 +130,138 @@ public class RecordParams {
      */
     private boolean enableHwEncoder;
 
+    /**
+     * 输出文件的封装格式
+     */
+    private MuxerType muxerType;
+
+    /**
+     * 音视频交织窗口(毫秒)，某条轨道落后超过该时长时不再等待它
+     */
+    private int interleaveWindowMs;
+
+    /**
+     * 录制结束后是否把moov移到文件头部(仅对MP4生效)，便于网络播放
+     */
+    private boolean fastStart;
+
+    /**
+     * 多段录制拼接后视频存放的路径，见{@link IRecorder#jointVideo()}
+     */
+    private String jointSavePath;
+
+    /**
+     * 崩溃恢复日志的同步周期(毫秒)，0表示不写日志，仅对{@link MuxerType#MP4_FASTSTART}生效
+     */
+    private int journalSyncIntervalMs;
+
+    /**
+     * HLS分段的目标时长(毫秒)，实际在达到该时长后的第一个关键帧处切分，
+     * 仅对{@link MuxerType#HLS_TS}和{@link MuxerType#HLS_FMP4}生效
+     */
+    private int hlsSegmentDurationMs;
+
+    /**
+     * HLS播放列表保留的分段数，滑出窗口的分段文件会被删除；0表示保留全部分段
+     */
+    private int hlsPlaylistSize;
+
+    /**
+     * 即时回放保留的时长(毫秒)，0表示不开启，见{@link Builder#setReplayDurationMs(int)}
+     */
+    private int replayDurationMs;
+
+    /**
+     * 即时回放环形缓冲的大小，0表示按码率估算
+     */
+    private int replayBufferBytes;
+
+    /**
+     * 溢出文件所在的目录，不为null时在编码器和复用器之间加一个溢出队列，见{@link Builder#setSpillDir(String)}
+     */
+    private String spillDir;
+
+    /**
+     * 溢出队列在内存中最多缓存的数据量
+     */
+    private int spillMemoryBytes;
+
+    /**
+     * 主输出的目标，不为null时代替savePath，见{@link Builder#setOutputSink(MuxerSink)}
+     */
+    private MuxerSink outputSink;
+
+    /**
+     * 额外的输出，见{@link Builder#addOutput(MuxerType, String)}
+     */
+    private List<Output> extraOutputs;
+
     private RecordParams(Builder builder) {
         videoWidth = builder.videoWidth;
         videoHeight = builder.videoHeight;
         allTime = builder.allTime;
         savePath = builder.savePath;
+        videoBitrate = builder.videoBitrate;
+        preallocate = builder.preallocate;
+        storagePolicy = builder.storagePolicy;
+        maxFileBytes = builder.maxFileBytes;
+        maxFileDurationMs = builder.maxFileDurationMs;
         muteMic = builder.muteMic;
         speedType = builder.speedType;
         backgroundMusicUrl = builder.backgroundMusicUrl;
         enableHwEncoder = builder.enableHwEncoder;
+        muxerType = builder.muxerType;
+        interleaveWindowMs = builder.interleaveWindowMs;
+        fastStart = builder.fastStart;
+        jointSavePath = builder.jointSavePath;
+        journalSyncIntervalMs = builder.journalSyncIntervalMs;
+        hlsSegmentDurationMs = builder.hlsSegmentDurationMs;
+        hlsPlaylistSize = builder.hlsPlaylistSize;
+        replayDurationMs = builder.replayDurationMs;
+        replayBufferBytes = builder.replayBufferBytes;
+        spillDir = builder.spillDir;
+        spillMemoryBytes = builder.spillMemoryBytes;
+        outputSink = builder.outputSink;
+        extraOutputs = Collections.unmodifiableList(new ArrayList<>(builder.extraOutputs));
         ELog.i(TAG, builder.toString());
     }
 
+    private RecordParams(RecordParams src, int videoBitrate) {
+        videoWidth = src.videoWidth;
+        videoHeight = src.videoHeight;
+        allTime = src.allTime;
+        savePath = src.savePath;
+        this.videoBitrate = videoBitrate;
+        preallocate = src.preallocate;
+        storagePolicy = src.storagePolicy;
+        maxFileBytes = src.maxFileBytes;
+        maxFileDurationMs = src.maxFileDurationMs;
+        muteMic = src.muteMic;
+        speedType = src.speedType;
+        backgroundMusicUrl = src.backgroundMusicUrl;
+        enableHwEncoder = src.enableHwEncoder;
+        muxerType = src.muxerType;
+        interleaveWindowMs = src.interleaveWindowMs;
+        fastStart = src.fastStart;
+        jointSavePath = src.jointSavePath;
+        journalSyncIntervalMs = src.journalSyncIntervalMs;
+        hlsSegmentDurationMs = src.hlsSegmentDurationMs;
+        hlsPlaylistSize = src.hlsPlaylistSize;
+        replayDurationMs = src.replayDurationMs;
+        replayBufferBytes = src.replayBufferBytes;
+        spillDir = src.spillDir;
+        spillMemoryBytes = src.spillMemoryBytes;
+        outputSink = src.outputSink;
+        extraOutputs = src.extraOutputs;
+    }
+
+    /**
+     * 存储检查降低码率时使用，其他参数不变
+     */
+    RecordParams withVideoBitrate(int videoBitrate) {
+        return new RecordParams(this, videoBitrate);
+    }
+
     public int getVideoWidth() {
         return videoWidth;
     }
@@ -110,8 +295,136 @@ public class RecordParams {
         return enableHwEncoder;
     }
 
+    public MuxerType getMuxerType() {
+        return muxerType;
+    }
+
+    public int getInterleaveWindowMs() {
+        return interleaveWindowMs;
+    }
+
+    public boolean isFastStart() {
+        return fastStart;
+    }
+
+    public String getJointSavePath() {
+        return jointSavePath;
+    }
+
+    public int getJournalSyncIntervalMs() {
+        return journalSyncIntervalMs;
+    }
+
+    public int getHlsSegmentDurationMs() {
+        return hlsSegmentDurationMs;
+    }
+
+    public int getHlsPlaylistSize() {
+        return hlsPlaylistSize;
+    }
+
+    public int getReplayDurationMs() {
+        return replayDurationMs;
+    }
+
+    public int getReplayBufferBytes() {
+        return replayBufferBytes;
+    }
+
+    public String getSpillDir() {
+        return spillDir;
+    }
+
+    public int getSpillMemoryBytes() {
+        return spillMemoryBytes;
+    }
+
+    /**
+     * @return 是否是即时回放模式
+     */
+    public boolean isReplayEnabled() {
+        return replayDurationMs > 0;
+    }
+
+    public MuxerSink getOutputSink() {
+        return outputSink;
+    }
+
+    public List<Output> getExtraOutputs() {
+        return extraOutputs;
+    }
+
     public int getVideoBitrate() {
-        return DEFAULT_VIDEO_BITRATE;
+        return videoBitrate;
+    }
+
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    public StoragePolicy getStoragePolicy() {
+        return storagePolicy;
+    }
+
+    public long getMaxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public int getMaxFileDurationMs() {
+        return maxFileDurationMs;
+    }
+
+    /**
+     * @return 是否按大小或时长自动分文件
+     */
+    public boolean isSplitEnabled() {
+        return maxFileBytes > 0 || maxFileDurationMs > 0;
+    }
+
+    /**
+     * @return 每路输出每秒写入的字节数(按码率估算，不含容器开销)
+     */
+    public long estimateBytesPerSecond() {
+        long bitsPerSecond = videoBitrate * 1000L + (muteMic ? 0 : getAudioBitrate());
+        return bitsPerSecond / 8;
+    }
+
+    /**
+     * @return 按码率和录制总时长估算的每路输出的文件大小，没有设置总时长时返回0
+     */
+    public long estimateFileBytes() {
+        if (allTime <= 0) {
+            return 0;
+        }
+        return estimateBytesPerSecond() * allTime / 1000;
+    }
+
+    /**
+     * @return 视频编码的关键帧间隔(秒)。HLS只在关键帧处切分，有HLS输出时不超过分段时长，
+     * 否则分段会按关键帧间隔切成20秒；MediaCodec只接受整数秒，至少1秒
+     */
+    public int getKeyFrameIntervalSec() {
+        if (!hasHlsOutput()) {
+            return DEFAULT_KEY_FRAME_INTERVAL_SEC;
+        }
+        return Math.max(1, Math.min(DEFAULT_KEY_FRAME_INTERVAL_SEC, hlsSegmentDurationMs / 1000));
+    }
+
+    private boolean hasHlsOutput() {
+        //即时回放模式不创建主输出
+        if (!isReplayEnabled() && isHls(muxerType)) {
+            return true;
+        }
+        for (Output output : extraOutputs) {
+            if (isHls(output.muxerType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHls(MuxerType type) {
+        return type == MuxerType.HLS_TS || type == MuxerType.HLS_FMP4;
     }
 
     public int getVideoFrameRate() {
@@ -139,10 +452,28 @@ public class RecordParams {
         private int videoHeight;
         private int allTime;
         private String savePath;
+        private int videoBitrate = DEFAULT_VIDEO_BITRATE;
+        private boolean preallocate = true;
+        private StoragePolicy storagePolicy = StoragePolicy.LOWER_BITRATE;
+        private long maxFileBytes = 0;
+        private int maxFileDurationMs = 0;
         private boolean muteMic = false;
         private SpeedType speedType;
         private String backgroundMusicUrl;
         private boolean enableHwEncoder = true;
+        private MuxerType muxerType = MuxerType.MP4;
+        private int interleaveWindowMs = 500;
+        private boolean fastStart = false;
+        private String jointSavePath;
+        private int journalSyncIntervalMs = 1000;
+        private int hlsSegmentDurationMs = 4000;
+        private int hlsPlaylistSize = 0;
+        private int replayDurationMs = 0;
+        private int replayBufferBytes = 0;
+        private String spillDir;
+        private int spillMemoryBytes = 8 * 1024 * 1024;
+        private MuxerSink outputSink;
+        private List<Output> extraOutputs = new ArrayList<>();
 
         public Builder setVideoWidth(int videoWidth) {
             this.videoWidth = videoWidth;
@@ -159,6 +490,62 @@ public class RecordParams {
             return this;
         }
 
+        /**
+         * @param videoBitrate 视频码率(Kilobits per second)，默认15000
+         */
+        public Builder setVideoBitrate(int videoBitrate) {
+            if (videoBitrate > 0) {
+                this.videoBitrate = videoBitrate;
+            }
+            return this;
+        }
+
+        /**
+         * 设置了录制总时长或者分文件上限时，是否预分配录制文件的空间，默认开启。
+         * 录制结束时文件截断到实际大小；{@link MuxerType#MP4}由系统MediaMuxer写文件，不支持预分配
+         */
+        public Builder setPreallocate(boolean preallocate) {
+            this.preallocate = preallocate;
+            return this;
+        }
+
+        /**
+         * 剩余空间或存储写入速度不够时的处理方式，默认降低码率
+         */
+        public Builder setStoragePolicy(StoragePolicy storagePolicy) {
+            if (storagePolicy != null) {
+                this.storagePolicy = storagePolicy;
+            }
+            return this;
+        }
+
+        /**
+         * 单个文件的大小上限，达到后在下一个关键帧处换新文件，编码不中断。
+         * 写到FAT32存储卡时可以设置为{@link SplitMuxer#FAT32_MAX_FILE_BYTES}。
+         * 第一个文件是savePath，之后是"文件名_1.扩展名"、"文件名_2.扩展名"……；HLS和输出到sink时不生效
+         * 每个文件写完时回调{@link IRecorder.SplitListener}
+         *
+         * @param maxFileBytes 0表示不限制
+         */
+        public Builder setMaxFileBytes(long maxFileBytes) {
+            if (maxFileBytes >= 0) {
+                this.maxFileBytes = maxFileBytes;
+            }
+            return this;
+        }
+
+        /**
+         * 单个文件的时长上限，达到后在下一个关键帧处换新文件，见{@link #setMaxFileBytes(long)}
+         *
+         * @param maxFileDurationMs 0表示不限制
+         */
+        public Builder setMaxFileDurationMs(int maxFileDurationMs) {
+            if (maxFileDurationMs >= 0) {
+                this.maxFileDurationMs = maxFileDurationMs;
+            }
+            return this;
+        }
+
         public Builder setEnableHwEncoder(boolean hwEncoder) {
             this.enableHwEncoder = hwEncoder;
             return this;
@@ -183,6 +570,118 @@ public class RecordParams {
             return this;
         }
 
+        public Builder setMuxerType(MuxerType muxerType) {
+            if (muxerType != null) {
+                this.muxerType = muxerType;
+            }
+            return this;
+        }
+
+        public Builder setInterleaveWindowMs(int interleaveWindowMs) {
+            if (interleaveWindowMs > 0) {
+                this.interleaveWindowMs = interleaveWindowMs;
+            }
+            return this;
+        }
+
+        public Builder setFastStart(boolean fastStart) {
+            this.fastStart = fastStart;
+            return this;
+        }
+
+        public Builder setJointSavePath(String jointSavePath) {
+            this.jointSavePath = jointSavePath;
+            return this;
+        }
+
+        public Builder setJournalSyncIntervalMs(int journalSyncIntervalMs) {
+            if (journalSyncIntervalMs >= 0) {
+                this.journalSyncIntervalMs = journalSyncIntervalMs;
+            }
+            return this;
+        }
+
+        public Builder setHlsSegmentDurationMs(int hlsSegmentDurationMs) {
+            if (hlsSegmentDurationMs > 0) {
+                this.hlsSegmentDurationMs = hlsSegmentDurationMs;
+            }
+            return this;
+        }
+
+        public Builder setHlsPlaylistSize(int hlsPlaylistSize) {
+            if (hlsPlaylistSize >= 0) {
+                this.hlsPlaylistSize = hlsPlaylistSize;
+            }
+            return this;
+        }
+
+        /**
+         * 即时回放模式：只在内存中保留最近这么久的编码数据，不写savePath，
+         * 调用{@link IRecorder#saveReplay(String)}时才保存为MP4。按GOP淘汰，实际保留的时长会多出不到一个GOP
+         *
+         * @param replayDurationMs 0表示不开启
+         */
+        public Builder setReplayDurationMs(int replayDurationMs) {
+            if (replayDurationMs >= 0) {
+                this.replayDurationMs = replayDurationMs;
+            }
+            return this;
+        }
+
+        /**
+         * 即时回放环形缓冲的大小，录制过程中占用的内存固定为这么多。
+         * 放不下保留时长的数据时提前淘汰最早的GOP
+         *
+         * @param replayBufferBytes 0表示按码率、保留时长和关键帧间隔估算
+         */
+        public Builder setReplayBufferBytes(int replayBufferBytes) {
+            if (replayBufferBytes >= 0) {
+                this.replayBufferBytes = replayBufferBytes;
+            }
+            return this;
+        }
+
+        /**
+         * 存储写入慢的设备上使用：编码器的输出先进有界的内存队列，再由单独的线程交给复用器，
+         * 队列满时顺序写入dir下的临时溢出文件，存储跟上后按顺序读回，编码器不会被写文件阻塞。
+         * 建议使用内部存储的缓存目录(Context.getCacheDir())，统计信息见{@link IRecorder#getSpillStats()}
+         *
+         * @param spillDir null表示不使用溢出队列
+         */
+        public Builder setSpillDir(String spillDir) {
+            this.spillDir = spillDir;
+            return this;
+        }
+
+        /**
+         * @param spillMemoryBytes 溢出队列在内存中最多缓存的数据量，默认8MB
+         */
+        public Builder setSpillMemoryBytes(int spillMemoryBytes) {
+            if (spillMemoryBytes > 0) {
+                this.spillMemoryBytes = spillMemoryBytes;
+            }
+            return this;
+        }
+
+        /**
+         * 主输出写到sink(内存、socket等)而不是savePath，sink由调用者在录制结束后关闭。
+         * MP4(MediaMuxer)和HLS只能输出到文件；MP4_FASTSTART需要可寻址的sink
+         */
+        public Builder setOutputSink(MuxerSink outputSink) {
+            this.outputSink = outputSink;
+            return this;
+        }
+
+        /**
+         * 增加一路输出(如本地MP4之外再输出一路FLV/TS用于上传)，编码只做一次
+         */
+        public Builder addOutput(MuxerType muxerType, String savePath) {
+            if (muxerType != null && savePath != null) {
+                extraOutputs.add(new Output(muxerType, savePath));
+            }
+            return this;
+        }
+
         public RecordParams build() {
             return new RecordParams(this);
         }
@@ -194,10 +693,28 @@ public class RecordParams {
                     ", videoHeight=" + videoHeight +
                     ", allTime=" + allTime +
                     ", savePath='" + savePath + '\'' +
+                    ", videoBitrate=" + videoBitrate +
+                    ", preallocate=" + preallocate +
+                    ", storagePolicy=" + storagePolicy +
+                    ", maxFileBytes=" + maxFileBytes +
+                    ", maxFileDurationMs=" + maxFileDurationMs +
                     ", muteMic=" + muteMic +
                     ", speedType=" + speedType +
                     ", backgroundMusicUrl='" + backgroundMusicUrl + '\'' +
                     ", enableHwEncoder=" + enableHwEncoder +
+                    ", muxerType=" + muxerType +
+                    ", interleaveWindowMs=" + interleaveWindowMs +
+                    ", fastStart=" + fastStart +
+                    ", jointSavePath='" + jointSavePath + '\'' +
+                    ", journalSyncIntervalMs=" + journalSyncIntervalMs +
+                    ", hlsSegmentDurationMs=" + hlsSegmentDurationMs +
+                    ", hlsPlaylistSize=" + hlsPlaylistSize +
+                    ", replayDurationMs=" + replayDurationMs +
+                    ", replayBufferBytes=" + replayBufferBytes +
+                    ", spillDir='" + spillDir + '\'' +
+                    ", spillMemoryBytes=" + spillMemoryBytes +
+                    ", outputSink=" + outputSink +
+                    ", extraOutputs=" + extraOutputs +
                     '}';
         }
     }
@@ -4,6 +4,7 @@ package com.gpufast.recorder;
 import android.opengl.EGLContext;
 
 import com.gpufast.recorder.audio.AudioProcessor;
+import com.gpufast.recorder.muxer.SpillMuxer;
 
 public class RecorderEngine {
     private static IRecorder worker;
@@ -72,10 +73,53 @@ public class RecorderEngine {
         create().stopRecorder();
     }
 
+    /**
+     * 即时回放模式下保存最近的音视频，见{@link RecordParams.Builder#setReplayDurationMs(int)}
+     * @param path 保存路径
+     */
+    public static boolean saveReplay(String path) {
+        return create().saveReplay(path);
+    }
+
+    /**
+     * 溢出队列的统计信息，没有使用溢出队列时返回null
+     */
+    public static SpillMuxer.Stats getSpillStats() {
+        return create().getSpillStats();
+    }
+
     public void setRecorderListener(IRecorder.RecordListener listener) {
         create().setRecordListener(listener);
     }
 
+    public static void setSplitListener(IRecorder.SplitListener listener) {
+        create().setSplitListener(listener);
+    }
+
+    public static void setPostProcessListener(IRecorder.PostProcessListener listener) {
+        create().setPostProcessListener(listener);
+    }
+
+    public static void setStorageListener(IRecorder.StorageListener listener) {
+        create().setStorageListener(listener);
+    }
+
+    /**
+     * 测量录制目录所在存储的剩余空间和写入速度，便于在开始录制前选择码率
+     * @param dir 录制文件所在的目录
+     */
+    public static void probeStorage(String dir) {
+        create().probeStorage(dir);
+    }
+
+    /**
+     * 修复dir下上次录制被中断的MP4，见{@link IRecorder#recoverPending(String)}
+     * @param dir 录制文件所在的目录
+     */
+    public static void recoverPending(String dir) {
+        create().recoverPending(dir);
+    }
+
     public static void release() {
         create().release();
         worker = null;
@@ -0,0 +1,104 @@
+package com.gpufast.recorder;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.file.StorageProbe;
+
+import java.io.File;
+
+/**
+ * 开始录制前检查剩余空间和存储写入速度，按{@link RecordParams.StoragePolicy}决定是否降低码率或拒绝录制
+ */
+class StorageGuard {
+    private static final String TAG = StorageGuard.class.getSimpleName();
+
+    //降码率时的最低视频码率(kbps)
+    private static final int MIN_VIDEO_BITRATE = 1000;
+    //没有设置总时长时，至少要能录这么久(毫秒)
+    private static final int MIN_RECORD_TIME_MS = 60 * 1000;
+    //给系统和其他应用保留的空间
+    private static final long RESERVED_BYTES = 100L * 1024 * 1024;
+    //容器开销(sample表、PES/FLV头等)，按码率的百分比
+    private static final int CONTAINER_OVERHEAD_PERCENT = 5;
+    //测得的写入速度只用这么多，留出余量给码率波动和其他应用的写入
+    private static final int THROUGHPUT_USABLE_PERCENT = 70;
+
+    /**
+     * 检查结果
+     */
+    static final class Decision {
+        //是否可以录制
+        final boolean allowed;
+        //录制使用的视频码率(kbps)，可能低于设置的码率
+        final int videoBitrate;
+        final String reason;
+
+        Decision(boolean allowed, int videoBitrate, String reason) {
+            this.allowed = allowed;
+            this.videoBitrate = videoBitrate;
+            this.reason = reason;
+        }
+    }
+
+    private StorageGuard() {
+    }
+
+    /**
+     * @param probe 最近一次探测结果，为null或者不是savePath所在目录的结果时只检查剩余空间
+     */
+    static Decision check(RecordParams params, StorageProbe.Result probe) {
+        int videoBitrate = params.getVideoBitrate();
+        String savePath = params.getSavePath();
+        if (params.getStoragePolicy() == RecordParams.StoragePolicy.IGNORE
+                || params.getOutputSink() != null || savePath == null) {
+            return new Decision(true, videoBitrate, null);
+        }
+        //每路输出都写一份完整的数据，即时回放的主输出只在保存时写文件
+        int outputs = (params.isReplayEnabled() ? 0 : 1) + params.getExtraOutputs().size();
+        if (outputs == 0) {
+            return new Decision(true, videoBitrate, null);
+        }
+        String dir = dirOf(savePath);
+        if (probe == null || !sameDir(probe.dir, dir)) {
+            probe = StorageProbe.queryFreeSpace(dir);
+        } else {
+            probe = probe.refreshFreeSpace();
+        }
+        long audioBitsPerSecond = params.isMuteMic() ? 0 : params.getAudioBitrate();
+
+        //按剩余空间算出的每路输出的码率上限(bps)
+        int recordTimeMs = params.getAllTime() > 0 ? params.getAllTime() : MIN_RECORD_TIME_MS;
+        long spaceBytes = Math.max(0, probe.freeBytes - RESERVED_BYTES);
+        long maxBitsPerSecond = spaceBytes * 8 * 1000 / recordTimeMs / outputs;
+        String limitedBy = "free space " + probe.freeBytes;
+        if (probe.writeBytesPerSecond > 0) {
+            long throughputBits = probe.writeBytesPerSecond * 8 * THROUGHPUT_USABLE_PERCENT / 100 / outputs;
+            if (throughputBits < maxBitsPerSecond) {
+                maxBitsPerSecond = throughputBits;
+                limitedBy = "write speed " + probe.writeBytesPerSecond + "B/s";
+            }
+        }
+        maxBitsPerSecond = maxBitsPerSecond * 100 / (100 + CONTAINER_OVERHEAD_PERCENT);
+        long maxVideoBitrate = (maxBitsPerSecond - audioBitsPerSecond) / 1000;
+        if (maxVideoBitrate >= videoBitrate) {
+            return new Decision(true, videoBitrate, null);
+        }
+        String reason = "need " + videoBitrate + "kbps x " + outputs + " for " + recordTimeMs
+                + "ms, limited by " + limitedBy + " to " + Math.max(0, maxVideoBitrate) + "kbps";
+        if (params.getStoragePolicy() == RecordParams.StoragePolicy.LOWER_BITRATE
+                && maxVideoBitrate >= MIN_VIDEO_BITRATE) {
+            ELog.w(TAG, "lower video bitrate, " + reason);
+            return new Decision(true, (int) maxVideoBitrate, reason);
+        }
+        ELog.e(TAG, "refuse to record, " + reason);
+        return new Decision(false, videoBitrate, reason);
+    }
+
+    static String dirOf(String savePath) {
+        File parent = new File(savePath).getAbsoluteFile().getParentFile();
+        return parent != null ? parent.getPath() : savePath;
+    }
+
+    private static boolean sameDir(String a, String b) {
+        return a != null && new File(a).getAbsoluteFile().equals(new File(b).getAbsoluteFile());
+    }
+}
@@ -7,6 +7,7 @@ import android.os.Message;
 
 import com.gpufast.logger.ELog;
 import com.gpufast.recorder.audio.AudioProcessor;
+import com.gpufast.recorder.muxer.SpillMuxer;
 
 import java.lang.ref.WeakReference;
 
@@ -73,6 +74,17 @@ class Worker extends BaseWorker {
         }
     }
 
+    @Override
+    public boolean saveReplay(String path) {
+        //保存本身在单独的后台线程执行
+        return recorder != null && recorder.saveReplay(path);
+    }
+
+    @Override
+    public SpillMuxer.Stats getSpillStats() {
+        return recorder != null ? recorder.getSpillStats() : null;
+    }
+
     @Override
     public void setRecordListener(RecordListener listener) {
         //不需要做线程同步
@@ -81,6 +93,46 @@ class Worker extends BaseWorker {
         }
     }
 
+    @Override
+    public void setSplitListener(SplitListener listener) {
+        //不需要做线程同步
+        if (recorder != null) {
+            recorder.setSplitListener(listener);
+        }
+    }
+
+    @Override
+    public void setPostProcessListener(PostProcessListener listener) {
+        //不需要做线程同步
+        if (recorder != null) {
+            recorder.setPostProcessListener(listener);
+        }
+    }
+
+    @Override
+    public void setStorageListener(StorageListener listener) {
+        //不需要做线程同步
+        if (recorder != null) {
+            recorder.setStorageListener(listener);
+        }
+    }
+
+    @Override
+    public void probeStorage(String dir) {
+        //探测本身在单独的后台线程执行
+        if (recorder != null) {
+            recorder.probeStorage(dir);
+        }
+    }
+
+    @Override
+    public void recoverPending(String dir) {
+        //修复本身在单独的后台线程执行
+        if (recorder != null) {
+            recorder.recoverPending(dir);
+        }
+    }
+
     @Override
     public void setAudioProcessor(AudioProcessor processor) {
         if (recorder != null) {
@@ -2,22 +2,87 @@ package com.gpufast.recorder.audio;
 
 import android.media.MediaCodec;
 
+import com.gpufast.recorder.buffer.BufferPool;
+import com.gpufast.recorder.buffer.PooledBuffer;
+
 import java.nio.ByteBuffer;
 
+/**
+ * 编码后的一帧音频，数据在buffer的[bufferInfo.offset, bufferInfo.offset + bufferInfo.size)
+ * 编码器输出的帧只在回调内有效，需要在回调之外使用时调用{@link #retain()}，见{@link com.gpufast.recorder.video.EncodedImage}
+ */
 public class EncodedAudio {
 
     public final ByteBuffer buffer;
     public final MediaCodec.BufferInfo bufferInfo;
 
-    private EncodedAudio(ByteBuffer mBuffer, MediaCodec.BufferInfo mBufferInfo) {
+    //数据所在的池buffer，null表示数据属于创建者，只在回调内有效
+    private final PooledBuffer pooled;
+    private boolean released = false;
+    //回调内第一次retain时拷贝出的数据，之后的retain共用，这一帧自己持有一个引用直到release
+    private PooledBuffer retainedCopy;
+
+    private EncodedAudio(ByteBuffer mBuffer, MediaCodec.BufferInfo mBufferInfo, PooledBuffer pooled) {
         this.buffer = mBuffer;
         this.bufferInfo = mBufferInfo;
+        this.pooled = pooled;
+    }
+
+    /**
+     * 在回调之外继续使用这一帧，用完后调用返回值的{@link #release()}。
+     * 数据不在池中时第一次retain拷贝一次，之后共用；每次返回新的对象，offset为0
+     */
+    public EncodedAudio retain() {
+        PooledBuffer data;
+        ByteBuffer view;
+        synchronized (this) {
+            //编码器的输出buffer在release之后已经还给编码器，不能再拷贝
+            if (released) {
+                throw new IllegalStateException("frame already released");
+            }
+            if (pooled != null) {
+                data = pooled;
+                view = buffer.duplicate();
+                view.limit(bufferInfo.offset + bufferInfo.size);
+                view.position(bufferInfo.offset);
+                view = view.slice();
+            } else {
+                if (retainedCopy == null) {
+                    retainedCopy = BufferPool.getDefault().copyOf(buffer, bufferInfo.offset, bufferInfo.size);
+                }
+                data = retainedCopy;
+                view = data.buffer.duplicate();
+            }
+            data.retain();
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.set(0, view.remaining(), bufferInfo.presentationTimeUs, bufferInfo.flags);
+        return new EncodedAudio(view, info, data);
+    }
+
+    /**
+     * 释放{@link #retain()}得到的帧；编码器在回调返回后对自己输出的帧调用。重复调用没有影响，释放后不能再retain
+     */
+    public void release() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (pooled != null) {
+                pooled.release();
+            } else if (retainedCopy != null) {
+                retainedCopy.release();
+                retainedCopy = null;
+            }
+        }
     }
 
 
     public static class Builder{
         private ByteBuffer buffer;
         private MediaCodec.BufferInfo bufferInfo;
+        private PooledBuffer pooled;
 
         public Builder() {
         }
@@ -34,8 +99,16 @@ public class EncodedAudio {
             return this;
         }
 
+        /**
+         * 数据在data中，创建的帧接管data的一个引用，由帧的{@link EncodedAudio#release()}释放
+         */
+        public Builder setPooledBuffer(PooledBuffer data) {
+            this.pooled = data;
+            return this;
+        }
+
         public EncodedAudio createEncodedAudio() {
-            return new EncodedAudio(buffer,bufferInfo);
+            return new EncodedAudio(buffer,bufferInfo, pooled);
         }
     }
 }
@@ -127,6 +127,8 @@ public class HwAudioEncoder implements AudioEncoder {
                 encoderCallback.onUpdateAudioMediaFormat(codec.getOutputFormat());
                 encoderCallback.onEncodedAudio(encodedAudio);
             }
+            //回调中retain的消费者已经拷贝了数据，输出buffer可以还给编码器
+            encodedAudio.release();
             codec.releaseOutputBuffer(outputBufferIndex, 0);
             outputBufferIndex = codec.dequeueOutputBuffer(mBufferInfo, 0);
         }
@@ -0,0 +1,139 @@
+package com.gpufast.recorder.buffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按大小分级的direct buffer池
+ * 1KB以上每个2的幂之间再均分4级，申请时向上取到等级的大小，浪费不超过25%；
+ * 同一等级的buffer用完后挂在空闲链表上给下一次使用，稳定录制时不再分配新的direct内存。
+ * 空闲buffer的总大小有上限，超过的交给GC；超过最大等级的buffer不回收。
+ */
+public final class BufferPool {
+
+    //最小等级1KB
+    private static final int MIN_SHIFT = 10;
+    //超过64MB不回收
+    private static final int MAX_SHIFT = 26;
+    private static final int STEPS = 4;
+    private static final int CLASS_COUNT = (MAX_SHIFT - MIN_SHIFT) * STEPS + 1;
+    private static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_POOLED_BYTES);
+
+    private final Object lock = new Object();
+    private final PooledBuffer[] free = new PooledBuffer[CLASS_COUNT];
+    private final long maxPooledBytes;
+    private long pooledBytes;
+    //统计信息：累计分配的direct内存
+    private long allocatedBytes;
+    private int allocationCount;
+
+    /**
+     * @param maxPooledBytes 空闲buffer总大小的上限
+     */
+    public BufferPool(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * {@link com.gpufast.recorder.video.EncodedImage#retain()}等使用的共享池
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 取出一个至少size字节的buffer，position为0，limit为size，引用计数为1
+     */
+    public PooledBuffer obtain(int size) {
+        int sizeClass = sizeClass(size);
+        PooledBuffer buffer = null;
+        synchronized (lock) {
+            if (sizeClass >= 0 && free[sizeClass] != null) {
+                buffer = free[sizeClass];
+                free[sizeClass] = buffer.next;
+                buffer.next = null;
+                pooledBytes -= buffer.buffer.capacity();
+            }
+        }
+        if (buffer == null) {
+            int capacity = sizeClass >= 0 ? classSize(sizeClass) : size;
+            buffer = new PooledBuffer(this, sizeClass, capacity);
+            synchronized (lock) {
+                allocatedBytes += capacity;
+                allocationCount++;
+            }
+        }
+        buffer.reset(size);
+        return buffer;
+    }
+
+    /**
+     * 拷贝src中[offset, offset + size)的数据，不改变src的position/limit
+     */
+    public PooledBuffer copyOf(ByteBuffer src, int offset, int size) {
+        PooledBuffer buffer = obtain(size);
+        ByteBuffer source = src.duplicate();
+        source.limit(offset + size);
+        source.position(offset);
+        buffer.buffer.put(source);
+        buffer.buffer.flip();
+        return buffer;
+    }
+
+    void recycle(PooledBuffer buffer) {
+        if (buffer.sizeClass < 0) {
+            return;
+        }
+        int capacity = buffer.buffer.capacity();
+        synchronized (lock) {
+            if (pooledBytes + capacity > maxPooledBytes) {
+                return;
+            }
+            buffer.next = free[buffer.sizeClass];
+            free[buffer.sizeClass] = buffer;
+            pooledBytes += capacity;
+        }
+    }
+
+    /**
+     * @return 累计分配的direct内存(字节)，稳定录制时不再增长
+     */
+    public long getAllocatedBytes() {
+        synchronized (lock) {
+            return allocatedBytes;
+        }
+    }
+
+    public int getAllocationCount() {
+        synchronized (lock) {
+            return allocationCount;
+        }
+    }
+
+    /**
+     * @return 等级下标，超过最大等级返回-1
+     */
+    static int sizeClass(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        //2^shift < size <= 2^(shift + 1)
+        int shift = 31 - Integer.numberOfLeadingZeros(size - 1);
+        if (shift >= MAX_SHIFT) {
+            return -1;
+        }
+        int step = 1 << (shift - 2);
+        int k = (size - (1 << shift) + step - 1) / step;
+        return (shift - MIN_SHIFT) * STEPS + k;
+    }
+
+    static int classSize(int sizeClass) {
+        if (sizeClass == 0) {
+            return 1 << MIN_SHIFT;
+        }
+        int shift = (sizeClass - 1) / STEPS + MIN_SHIFT;
+        int k = (sizeClass - 1) % STEPS + 1;
+        return (1 << shift) + k * (1 << (shift - 2));
+    }
+}
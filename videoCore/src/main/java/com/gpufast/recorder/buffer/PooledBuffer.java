@@ -0,0 +1,54 @@
+package com.gpufast.recorder.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从{@link BufferPool}取出的带引用计数的direct buffer，最后一次{@link #release()}后回到池中
+ */
+public final class PooledBuffer {
+
+    private final BufferPool pool;
+    private final AtomicInteger refCount = new AtomicInteger();
+    //所属的大小等级，-1表示超过最大等级，不回收
+    final int sizeClass;
+    //空闲链表
+    PooledBuffer next;
+
+    /**
+     * 数据在position..limit之间，多个线程读取时各自duplicate()，不要修改这个buffer的position/limit
+     */
+    public final ByteBuffer buffer;
+
+    PooledBuffer(BufferPool pool, int sizeClass, int capacity) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * 取出时引用计数为1
+     */
+    void reset(int size) {
+        refCount.set(1);
+        buffer.clear();
+        buffer.limit(size);
+    }
+
+    public void retain() {
+        refCount.incrementAndGet();
+    }
+
+    public void retain(int count) {
+        refCount.addAndGet(count);
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            pool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("buffer released too many times");
+        }
+    }
+}
@@ -2,9 +2,6 @@ package com.gpufast.recorder.file;
 
 import android.annotation.TargetApi;
 import android.os.Build;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 
 import com.gpufast.logger.ELog;
 
@@ -12,22 +9,114 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 后台写文件
+ * 调用线程把数据拷贝到预分配的环形缓冲区(direct内存)后立即返回，写线程把数据攒成大块
+ * (默认1MB，按文件偏移对齐)再写入文件，慢速存储卡上系统调用次数可以降低几个数量级。
+ * <p>
+ * 多个线程可以同时写入，不加锁：先用CAS预留空间，拷贝完成后按预留顺序提交。
+ * 缓冲区满时{@link #writeToFile(ByteBuffer)}最多等待{@link Builder#setBlockTimeoutMs(long)}，
+ * {@link #offer(ByteBuffer)}不等待，同时通过{@link Callback#onBackpressure(boolean)}通知调用者降码率或丢帧。
+ */
 @SuppressWarnings("unused")
 public class FileWriter extends Thread {
     private static final String TAG = "FileWriter";
-    private WriteHandler mHandler;
+
+    private static final int DEFAULT_RING_CAPACITY = 8 * 1024 * 1024;
+    private static final int DEFAULT_WRITE_CHUNK = 1024 * 1024;
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 200;
+    private static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+    private static final long DEFAULT_BLOCK_TIMEOUT_MS = 500;
+    //生产者等待空间时的轮询间隔
+    private static final long SPACE_POLL_NS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /**
+     * 数据落盘(fsync)的时机
+     */
+    public enum SyncPolicy {
+        //不主动同步，由系统决定
+        NONE,
+        //停止写入时同步一次
+        ON_STOP,
+        //按{@link Builder#setSyncIntervalMs(long)}周期同步，停止时再同步一次
+        PERIODIC,
+        //每次写入后同步，最安全也最慢
+        EVERY_WRITE
+    }
+
+    public interface Callback {
+        /**
+         * 缓冲区状态变化，congested为true表示缓冲区已满，
+         * 为false表示写线程已把积压的数据写到一半以下。在生产者线程或写线程回调，不要做耗时操作
+         */
+        void onBackpressure(boolean congested);
+
+        /**
+         * 写文件失败，之后的数据都会被丢弃，在写线程回调
+         */
+        void onWriteError(IOException e);
+    }
+
     private FileOutputStream os;
     private FileChannel dstChannel;
     //目标路径
-    private String dstPath;
+    private final String dstPath;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int mask;
+    private final int writeChunk;
+    private final long flushIntervalNs;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalNs;
+    private final long blockTimeoutNs;
+    private final Callback callback;
+
+    //生产者已预留的末尾
+    private final AtomicLong reserveTail = new AtomicLong();
+    //生产者已拷贝完成的末尾，写线程只读到这里
+    private final AtomicLong commitTail = new AtomicLong();
+    //写线程已写出的位置，它之前的空间可以重用
+    private volatile long head = 0;
+    //正在append中的生产者数，停止时写线程等它们提交完再退出
+    private final AtomicInteger activeProducers = new AtomicInteger();
+    private final AtomicBoolean congested = new AtomicBoolean(false);
+    private volatile boolean started = false;
+    private volatile boolean stopping = false;
+    private volatile boolean failed = false;
+
+    //统计，只在写线程修改
+    private volatile long writtenBytes = 0;
+    private volatile long writeCount = 0;
+    private volatile long syncCount = 0;
+    private final AtomicLong droppedBytes = new AtomicLong();
 
     public FileWriter(String dstPath) {
-        this.dstPath = dstPath;
+        this(new Builder(dstPath));
+    }
+
+    private FileWriter(Builder builder) {
+        super(TAG);
+        this.dstPath = builder.dstPath;
+        capacity = roundUpToPowerOfTwo(builder.ringCapacity);
+        mask = capacity - 1;
+        writeChunk = Math.min(roundUpToPowerOfTwo(builder.writeChunkSize), capacity / 2);
+        flushIntervalNs = TimeUnit.MILLISECONDS.toNanos(Math.max(1, builder.flushIntervalMs));
+        syncPolicy = builder.syncPolicy;
+        syncIntervalNs = TimeUnit.MILLISECONDS.toNanos(builder.syncIntervalMs);
+        blockTimeoutNs = TimeUnit.MILLISECONDS.toNanos(builder.blockTimeoutMs);
+        callback = builder.callback;
+        ring = ByteBuffer.allocateDirect(capacity);
     }
 
     @SuppressWarnings("unused")
@@ -38,6 +127,7 @@ public class FileWriter extends Thread {
             createChannel_low26(dstPath);
         }
         if (dstChannel != null) {
+            started = true;
             start();
         }
     }
@@ -110,16 +200,113 @@ public class FileWriter extends Thread {
 
     @Override
     public void run() {
-        Looper.prepare();
-        mHandler = new WriteHandler(this);
         ELog.d(TAG, "fileWriter start");
-        Looper.loop();
+        long lastWriteNs = System.nanoTime();
+        long lastSyncNs = lastWriteNs;
+        boolean dirty = false;
+        while (true) {
+            long pending = commitTail.get() - head;
+            long now = System.nanoTime();
+            if (pending >= writeChunk || (pending > 0 && (stopping || now - lastWriteNs >= flushIntervalNs))) {
+                int length = pending >= writeChunk ? alignedLength() : (int) pending;
+                writeRing(length);
+                lastWriteNs = now;
+                dirty = true;
+                if (syncPolicy == SyncPolicy.EVERY_WRITE
+                        || (syncPolicy == SyncPolicy.PERIODIC && now - lastSyncNs >= syncIntervalNs)) {
+                    sync();
+                    lastSyncNs = now;
+                    dirty = false;
+                }
+                if (congested.get() && commitTail.get() - head <= capacity / 2
+                        && congested.compareAndSet(true, false) && callback != null) {
+                    callback.onBackpressure(false);
+                }
+                continue;
+            }
+            //先看没有生产者在append中，再看已预留的都写出了，顺序不能反
+            if (stopping && activeProducers.get() == 0 && reserveTail.get() == head) {
+                break;
+            }
+            long parkNs = flushIntervalNs;
+            if (pending > 0) {
+                parkNs = Math.max(1, flushIntervalNs - (now - lastWriteNs));
+            } else if (stopping) {
+                //有生产者还在拷贝
+                parkNs = SPACE_POLL_NS;
+            }
+            LockSupport.parkNanos(this, parkNs);
+        }
+        if (dirty && syncPolicy != SyncPolicy.NONE) {
+            sync();
+        }
         release();
     }
 
+    /**
+     * 写满一块：第一次写到下一个块边界，之后每次正好一块，文件偏移保持对齐
+     */
+    private int alignedLength() {
+        return writeChunk - (int) (writtenBytes & (writeChunk - 1));
+    }
+
+    /**
+     * 把[head, head + length)写入文件，跨过缓冲区末尾时分两段一次写出
+     */
+    private void writeRing(int length) {
+        long start = head;
+        if (failed) {
+            droppedBytes.addAndGet(length);
+            head = start + length;
+            return;
+        }
+        int index = (int) (start & mask);
+        ByteBuffer first = ring.duplicate();
+        first.position(index);
+        first.limit(Math.min(capacity, index + length));
+        try {
+            if (index + length <= capacity) {
+                while (first.hasRemaining()) {
+                    dstChannel.write(first);
+                }
+            } else {
+                ByteBuffer second = ring.duplicate();
+                second.position(0);
+                second.limit(index + length - capacity);
+                ByteBuffer[] buffers = new ByteBuffer[]{first, second};
+                while (second.hasRemaining()) {
+                    dstChannel.write(buffers);
+                }
+            }
+            writtenBytes += length;
+            writeCount++;
+        } catch (IOException e) {
+            ELog.e(TAG, "write file failed:" + e.getMessage());
+            failed = true;
+            droppedBytes.addAndGet(length);
+            if (callback != null) {
+                callback.onWriteError(e);
+            }
+        }
+        head = start + length;
+    }
+
+    private void sync() {
+        if (failed) {
+            return;
+        }
+        try {
+            dstChannel.force(false);
+            syncCount++;
+        } catch (IOException e) {
+            ELog.e(TAG, "sync file failed:" + e.getMessage());
+        }
+    }
+
     private void release() {
 
-        ELog.i(TAG, "fileWriter stop");
+        ELog.i(TAG, "fileWriter stop, written:" + writtenBytes + " writes:" + writeCount
+                + " syncs:" + syncCount + " dropped:" + droppedBytes.get());
 
         if (dstChannel != null) {
             try {
@@ -137,62 +324,213 @@ public class FileWriter extends Thread {
                 e.printStackTrace();
             }
         }
-
-        mHandler = null;
     }
 
+    /**
+     * 把data的剩余部分拷贝到缓冲区，返回后data可以重用，data的position移到limit。
+     * 缓冲区满时最多等待blockTimeoutMs
+     *
+     * @return false:缓冲区满、写入已停止或写文件失败，数据被丢弃
+     */
     @SuppressWarnings("unused")
-    public void writeToFile(ByteBuffer data) {
-        if (mHandler != null) {
-            mHandler.sendToWriteFile(data);
+    public boolean writeToFile(ByteBuffer data) {
+        return append(data, blockTimeoutNs);
+    }
+
+    /**
+     * 同{@link #writeToFile(ByteBuffer)}，缓冲区满时不等待直接返回false
+     */
+    public boolean offer(ByteBuffer data) {
+        return append(data, 0);
+    }
+
+    private boolean append(ByteBuffer data, long timeoutNs) {
+        int length = data.remaining();
+        if (length == 0) {
+            return true;
+        }
+        //先登记再检查stopping，和写线程退出前的检查配对：要么这里看到stopping丢弃数据，
+        //要么写线程看到这个生产者，等它提交后写完再退出
+        activeProducers.incrementAndGet();
+        try {
+            return reserveAndCopy(data, length, timeoutNs);
+        } finally {
+            activeProducers.decrementAndGet();
+        }
+    }
+
+    private boolean reserveAndCopy(ByteBuffer data, int length, long timeoutNs) {
+        if (stopping || failed || length > capacity) {
+            drop(data, length);
+            return false;
+        }
+        long start;
+        long deadline = 0;
+        while (true) {
+            start = reserveTail.get();
+            if (start + length - head <= capacity) {
+                if (reserveTail.compareAndSet(start, start + length)) {
+                    break;
+                }
+                continue;
+            }
+            //缓冲区满
+            if (congested.compareAndSet(false, true) && callback != null) {
+                callback.onBackpressure(true);
+            }
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + timeoutNs;
+            }
+            if (timeoutNs <= 0 || now >= deadline || stopping || failed) {
+                drop(data, length);
+                return false;
+            }
+            LockSupport.parkNanos(this, SPACE_POLL_NS);
+        }
+
+        int index = (int) (start & mask);
+        int firstLength = Math.min(length, capacity - index);
+        ByteBuffer dst = ring.duplicate();
+        dst.position(index);
+        ByteBuffer src = data.duplicate();
+        src.limit(src.position() + firstLength);
+        dst.put(src);
+        if (firstLength < length) {
+            dst.clear();
+            src.limit(data.limit());
+            dst.put(src);
+        }
+        data.position(data.limit());
+
+        //按预留顺序提交，前面的生产者还在拷贝时等待它完成
+        while (commitTail.get() != start) {
+            Thread.yield();
         }
+        commitTail.set(start + length);
+        if (start - head < writeChunk && start + length - head >= writeChunk && started) {
+            LockSupport.unpark(this);
+        }
+        return true;
+    }
+
+    private void drop(ByteBuffer data, int length) {
+        data.position(data.limit());
+        droppedBytes.addAndGet(length);
     }
+
+    /**
+     * 停止写入，写线程把缓冲区剩余数据写完后关闭文件，可以通过{@link #join()}等待
+     */
     @SuppressWarnings("unused")
     public void stopWrite() {
-        if (mHandler != null) {
-            mHandler.stopWrite();
+        stopping = true;
+        if (started) {
+            LockSupport.unpark(this);
         }
     }
 
-    private static class WriteHandler extends Handler {
+    /**
+     * @return 缓冲区中还没写出的字节数
+     */
+    public long getPendingBytes() {
+        return reserveTail.get() - head;
+    }
 
-        private static final int MSG_WRITE_FILE = 0x001;
-        private static final int MSG_STOP_WRITE = 0x002;
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
 
-        private WeakReference<FileWriter> mWeakFileWriter;
+    /**
+     * @return 写文件的系统调用次数
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
 
-        WriteHandler(FileWriter writer) {
-            mWeakFileWriter = new WeakReference<>(writer);
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        if (value <= 4096) {
+            return 4096;
+        }
+        if (value > (1 << 30)) {
+            return 1 << 30;
         }
+        return Integer.highestOneBit(value - 1) << 1;
+    }
+
+    public static class Builder {
+        private final String dstPath;
+        private int ringCapacity = DEFAULT_RING_CAPACITY;
+        private int writeChunkSize = DEFAULT_WRITE_CHUNK;
+        private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+        private SyncPolicy syncPolicy = SyncPolicy.ON_STOP;
+        private long syncIntervalMs = DEFAULT_SYNC_INTERVAL_MS;
+        private long blockTimeoutMs = DEFAULT_BLOCK_TIMEOUT_MS;
+        private Callback callback;
 
-        void sendToWriteFile(ByteBuffer data) {
-            sendMessage(obtainMessage(MSG_WRITE_FILE, data));
+        public Builder(String dstPath) {
+            this.dstPath = dstPath;
         }
 
-        void stopWrite() {
-            sendMessage(obtainMessage(MSG_STOP_WRITE));
+        /**
+         * 环形缓冲区大小，向上取整到2的幂，默认8MB
+         */
+        public Builder setRingCapacity(int ringCapacity) {
+            this.ringCapacity = ringCapacity;
+            return this;
         }
 
-        @Override
-        public void handleMessage(Message msg) {
+        /**
+         * 每次写文件的块大小，向上取整到2的幂，不超过缓冲区的一半，默认1MB
+         */
+        public Builder setWriteChunkSize(int writeChunkSize) {
+            this.writeChunkSize = writeChunkSize;
+            return this;
+        }
 
-            if (msg.what == MSG_WRITE_FILE) {
-                FileWriter fileWriter = mWeakFileWriter.get();
-                if (fileWriter == null)
-                    return;
-                ByteBuffer data = (ByteBuffer)msg.obj;
-                try {
-                    ELog.d(FileWriter.class, "write data =" + data.limit());
-                    fileWriter.dstChannel.write(data);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        /**
+         * 数据不足一块时，最多等待多久写出，默认200ms
+         */
+        public Builder setFlushIntervalMs(long flushIntervalMs) {
+            this.flushIntervalMs = flushIntervalMs;
+            return this;
+        }
+
+        public Builder setSyncPolicy(SyncPolicy syncPolicy) {
+            this.syncPolicy = syncPolicy;
+            return this;
+        }
+
+        /**
+         * {@link SyncPolicy#PERIODIC}的同步周期，默认1000ms
+         */
+        public Builder setSyncIntervalMs(long syncIntervalMs) {
+            this.syncIntervalMs = syncIntervalMs;
+            return this;
+        }
+
+        /**
+         * 缓冲区满时{@link FileWriter#writeToFile(ByteBuffer)}的最长等待时间，默认500ms
+         */
+        public Builder setBlockTimeoutMs(long blockTimeoutMs) {
+            this.blockTimeoutMs = blockTimeoutMs;
+            return this;
+        }
 
-            if (msg.what == MSG_STOP_WRITE) {
-                getLooper().quit();
+        public Builder setCallback(Callback callback) {
+            this.callback = callback;
+            return this;
+        }
+
+        public FileWriter build() {
+            if (dstPath == null) {
+                throw new IllegalArgumentException("dstPath is null object");
             }
+            return new FileWriter(this);
         }
     }
-
 }
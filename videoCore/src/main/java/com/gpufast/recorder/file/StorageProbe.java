@@ -0,0 +1,152 @@
+package com.gpufast.recorder.file;
+
+import com.gpufast.logger.ELog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 存储探测：目标目录所在分区的剩余空间和持续写入速度
+ * 写入速度通过写一个临时文件测量，计时包含最后的fsync，反映的是数据真正落到存储设备的速度，
+ * 而不是写进page cache的速度。会阻塞约1秒，不要在主线程调用。
+ */
+public final class StorageProbe {
+    private static final String TAG = StorageProbe.class.getSimpleName();
+
+    private static final String PROBE_FILE_NAME = ".storage_probe";
+    private static final int PROBE_CHUNK = 1024 * 1024;
+    //最多写这么多数据
+    private static final long PROBE_MAX_BYTES = 64L * 1024 * 1024;
+    //最多写这么久
+    private static final long PROBE_MAX_NS = 800L * 1000 * 1000;
+
+    private StorageProbe() {
+    }
+
+    public static final class Result {
+        //探测的目录
+        public final String dir;
+        //当前应用可用的剩余空间
+        public final long freeBytes;
+        public final long totalBytes;
+        //持续写入速度(字节/秒)，测量失败时为0
+        public final long writeBytesPerSecond;
+        //测量时写入的字节数
+        public final long probedBytes;
+        //测量完成的时间(System.currentTimeMillis)
+        public final long timestampMs;
+
+        Result(String dir, long freeBytes, long totalBytes, long writeBytesPerSecond, long probedBytes) {
+            this.dir = dir;
+            this.freeBytes = freeBytes;
+            this.totalBytes = totalBytes;
+            this.writeBytesPerSecond = writeBytesPerSecond;
+            this.probedBytes = probedBytes;
+            this.timestampMs = System.currentTimeMillis();
+        }
+
+        /**
+         * @return 重新查询剩余空间，写入速度沿用这次的结果
+         */
+        public Result refreshFreeSpace() {
+            File target = existingDir(dir);
+            return new Result(dir, target.getUsableSpace(), target.getTotalSpace(), writeBytesPerSecond, probedBytes);
+        }
+
+        /**
+         * @return 按测得的写入速度，是否能持续写bitsPerSecond码率的数据，未测速时返回true
+         */
+        public boolean canSustain(long bitsPerSecond) {
+            return writeBytesPerSecond <= 0 || writeBytesPerSecond * 8 >= bitsPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return "StorageProbe.Result{" +
+                    "dir='" + dir + '\'' +
+                    ", freeBytes=" + freeBytes +
+                    ", totalBytes=" + totalBytes +
+                    ", writeBytesPerSecond=" + writeBytesPerSecond +
+                    ", probedBytes=" + probedBytes +
+                    '}';
+        }
+    }
+
+    /**
+     * 只查询剩余空间，不测速
+     */
+    public static Result queryFreeSpace(String dir) {
+        File target = existingDir(dir);
+        return new Result(dir, target.getUsableSpace(), target.getTotalSpace(), 0, 0);
+    }
+
+    /**
+     * 查询剩余空间并测量持续写入速度
+     *
+     * @param dir 录制文件所在的目录，不存在时测量最近的已存在的上级目录
+     */
+    public static Result probe(String dir) {
+        File target = existingDir(dir);
+        long freeBytes = target.getUsableSpace();
+        long totalBytes = target.getTotalSpace();
+        //至少保留两倍的探测数据量，空间不足时只返回剩余空间
+        long limit = Math.min(PROBE_MAX_BYTES, freeBytes / 2);
+        if (limit < PROBE_CHUNK) {
+            ELog.w(TAG, "not enough space to probe:" + freeBytes);
+            return new Result(dir, freeBytes, totalBytes, 0, 0);
+        }
+        File probeFile = new File(target, PROBE_FILE_NAME);
+        long written = 0;
+        long bytesPerSecond = 0;
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(probeFile, "rw");
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            ByteBuffer chunk = ByteBuffer.allocateDirect(PROBE_CHUNK);
+            //随机内容，避免存储控制器对全零数据做压缩
+            long seed = System.nanoTime();
+            while (chunk.remaining() >= 8) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                chunk.putLong(seed);
+            }
+            long start = System.nanoTime();
+            while (written < limit && System.nanoTime() - start < PROBE_MAX_NS) {
+                chunk.clear();
+                while (chunk.hasRemaining()) {
+                    written += channel.write(chunk);
+                }
+            }
+            channel.force(false);
+            long elapsedNs = Math.max(1, System.nanoTime() - start);
+            bytesPerSecond = written * 1000000000L / elapsedNs;
+        } catch (IOException e) {
+            ELog.e(TAG, "probe write failed:" + e.getMessage());
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (probeFile.exists() && !probeFile.delete()) {
+                ELog.w(TAG, "delete probe file failed:" + probeFile);
+            }
+        }
+        Result result = new Result(dir, freeBytes, totalBytes, bytesPerSecond, written);
+        ELog.i(TAG, "probe:" + result);
+        return result;
+    }
+
+    private static File existingDir(String dir) {
+        File target = new File(dir).getAbsoluteFile();
+        while (!target.isDirectory() && target.getParentFile() != null) {
+            target = target.getParentFile();
+        }
+        return target;
+    }
+}
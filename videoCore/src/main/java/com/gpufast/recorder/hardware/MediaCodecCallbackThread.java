@@ -0,0 +1,48 @@
+package com.gpufast.recorder.hardware;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * 异步模式下所有MediaCodec共用的回调线程，编码输出在这个线程上回调，
+ * 不再需要每个编码器一个轮询dequeueOutputBuffer的线程。
+ * 第一次acquire时启动，最后一次release时退出
+ */
+public final class MediaCodecCallbackThread {
+
+    private static final Object lock = new Object();
+    private static HandlerThread thread;
+    private static Handler handler;
+    private static int refCount;
+
+    private MediaCodecCallbackThread() {
+    }
+
+    /**
+     * 获取共用的回调Handler，每次调用都需要对应一次{@link #release()}
+     */
+    public static Handler acquire() {
+        synchronized (lock) {
+            if (refCount++ == 0) {
+                thread = new HandlerThread("MediaCodecCallback");
+                thread.start();
+                handler = new Handler(thread.getLooper());
+            }
+            return handler;
+        }
+    }
+
+    public static void release() {
+        synchronized (lock) {
+            if (refCount == 0) {
+                return;
+            }
+            if (--refCount == 0) {
+                //已经投递的消息(比如编码器的释放)执行完再退出
+                thread.quitSafely();
+                thread = null;
+                handler = null;
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.media.MediaCodec;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 
 import java.nio.ByteBuffer;
@@ -36,4 +37,12 @@ public interface MediaCodecWrapper {
     ByteBuffer getInputBuffer(int inputBufferIndex);
 
     ByteBuffer getOutputBuffer(int outputBufferIndex);
+
+    /**
+     * 切换到异步模式，需要在configure之前调用，之后不能再使用dequeueInputBuffer/dequeueOutputBuffer。
+     * 只有{@link MediaCodecWrapperFactory#isCallbackSupported()}返回true时才能调用
+     *
+     * @param handler 回调所在的线程
+     */
+    void setCallback(MediaCodec.Callback callback, Handler handler);
 }
\ No newline at end of file
@@ -5,4 +5,9 @@ import java.io.IOException;
 
 public interface MediaCodecWrapperFactory {
   MediaCodecWrapper createByCodecName(String name) throws IOException;
+
+  /**
+   * @return true:创建的MediaCodecWrapper支持{@link MediaCodecWrapper#setCallback}异步模式
+   */
+  boolean isCallbackSupported();
 }
\ No newline at end of file
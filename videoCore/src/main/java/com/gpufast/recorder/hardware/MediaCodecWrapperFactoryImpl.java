@@ -1,10 +1,12 @@
 package com.gpufast.recorder.hardware;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaCrypto;
 import android.media.MediaFormat;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 
 import java.io.IOException;
@@ -102,10 +104,24 @@ public class MediaCodecWrapperFactoryImpl implements MediaCodecWrapperFactory {
             }
         }
 
+        @TargetApi(Build.VERSION_CODES.M)
+        @Override
+        public void setCallback(MediaCodec.Callback callback, Handler handler) {
+            mediaCodec.setCallback(callback, handler);
+        }
+
     }
 
     @Override
     public MediaCodecWrapper createByCodecName(String name) throws IOException {
         return new MediaCodecWrapperImpl(MediaCodec.createByCodecName(name));
     }
+
+    /**
+     * 指定回调Handler的setCallback在6.0加入
+     */
+    @Override
+    public boolean isCallbackSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+package com.gpufast.recorder.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 以长度前缀(AVCC)格式零拷贝写出一帧H.264数据
+ * Annex-B的start code被替换成4字节长度头部，NAL数据直接从原buffer写出；
+ * 容器自己的头部和尾部(例如FLV tag头、MKV block头)在同一次gathering write中带出。
+ * 非线程安全，每个复用器持有一个实例。
+ */
+final class AvccChannelWriter {
+
+    private final ByteBuffer nalLength = ByteBuffer.allocateDirect(4);
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[4];
+
+    /**
+     * 写出 header + AVCC(frame) + trailer
+     * header需要的负载长度可以提前用{@link NalUnits#avccSize(ByteBuffer)}计算
+     *
+     * @param header  已flip的容器头部，可以为null
+     * @param frame   一帧数据，返回时position/limit保持不变
+     * @param trailer 已flip的容器尾部，可以为null
+     */
+    void write(GatheringByteChannel channel, ByteBuffer header, ByteBuffer frame, ByteBuffer trailer)
+            throws IOException {
+        int pos = frame.position();
+        int limit = frame.limit();
+        try {
+            if (!NalUnits.isAnnexB(frame)) {
+                int n = 0;
+                if (header != null) gatherBuffers[n++] = header;
+                gatherBuffers[n++] = frame;
+                if (trailer != null) gatherBuffers[n++] = trailer;
+                writeFully(channel, n);
+                return;
+            }
+            //向后多找一个NAL，才能知道当前NAL是否是最后一个，需要带上尾部
+            ByteBuffer pendingHeader = header;
+            int pendingStart = -1;
+            int pendingEnd = -1;
+            int codeStart = NalUnits.findStartCode(frame, pos, limit);
+            while (codeStart < limit) {
+                int nalStart = codeStart + NalUnits.startCodeLength(frame, codeStart);
+                int next = NalUnits.findStartCode(frame, nalStart, limit);
+                if (next > nalStart && !NalUnits.isConfigNal(NalUnits.nalType(frame, nalStart))) {
+                    if (pendingStart >= 0) {
+                        writeNal(channel, pendingHeader, frame, pendingStart, pendingEnd, limit, null);
+                        pendingHeader = null;
+                    }
+                    pendingStart = nalStart;
+                    pendingEnd = next;
+                }
+                codeStart = next;
+            }
+            if (pendingStart >= 0) {
+                writeNal(channel, pendingHeader, frame, pendingStart, pendingEnd, limit, trailer);
+            }
+        } finally {
+            frame.limit(limit);
+            frame.position(pos);
+            for (int i = 0; i < gatherBuffers.length; i++) {
+                gatherBuffers[i] = null;
+            }
+        }
+    }
+
+    private void writeNal(GatheringByteChannel channel, ByteBuffer header, ByteBuffer frame,
+                          int nalStart, int nalEnd, int limit, ByteBuffer trailer) throws IOException {
+        int n = 0;
+        if (header != null) {
+            gatherBuffers[n++] = header;
+        }
+        nalLength.clear();
+        nalLength.putInt(nalEnd - nalStart);
+        nalLength.flip();
+        gatherBuffers[n++] = nalLength;
+        frame.limit(nalEnd);
+        frame.position(nalStart);
+        gatherBuffers[n++] = frame;
+        if (trailer != null) {
+            gatherBuffers[n++] = trailer;
+        }
+        writeFully(channel, n);
+        frame.limit(limit);
+    }
+
+    private void writeFully(GatheringByteChannel channel, int length) throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < length; i++) {
+            remaining += gatherBuffers[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(gatherBuffers, 0, length);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.gpufast.recorder.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * EBML(Matroska/WebM) element 写入工具
+ * 与{@link Mp4BoxWriter}一样在一块可复用的direct buffer中按嵌套顺序写入，
+ * master element预留4字节的size，结束时回填。
+ * 非线程安全，由调用者保证同一时刻只有一个线程使用。
+ */
+final class EbmlWriter {
+
+    private static final int MAX_DEPTH = 8;
+    //预留给master element的size宽度，最大可以表示 2^28-2 字节
+    private static final int RESERVED_SIZE_LENGTH = 4;
+    //长度未知的element，size的所有数据位都是1
+    private static final long UNKNOWN_SIZE = 0x01FFFFFFFFFFFFFFL;
+
+    private ByteBuffer buffer;
+    private final int[] elementStarts = new int[MAX_DEPTH];
+    private int depth = 0;
+
+    EbmlWriter(int initialCapacity) {
+        buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    void reset() {
+        buffer.clear();
+        depth = 0;
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    /**
+     * 开始一个master element，size在{@link #end()}时回填
+     */
+    void begin(int id) {
+        putId(id);
+        ensure(RESERVED_SIZE_LENGTH);
+        elementStarts[depth++] = buffer.position();
+        buffer.putInt(0);
+    }
+
+    void end() {
+        int start = elementStarts[--depth];
+        int size = buffer.position() - start - RESERVED_SIZE_LENGTH;
+        buffer.putInt(start, 0x10000000 | size);
+    }
+
+    /**
+     * 开始一个长度未知的master element(Segment/Cluster)，不需要调用{@link #end()}
+     */
+    void beginUnknownSize(int id) {
+        putId(id);
+        ensure(8);
+        buffer.putLong(UNKNOWN_SIZE);
+    }
+
+    void putUInt(int id, long value) {
+        int length = 1;
+        while (length < 8 && (value >>> (length * 8)) != 0) {
+            length++;
+        }
+        putId(id);
+        putSize(length);
+        ensure(length);
+        for (int i = length - 1; i >= 0; i--) {
+            buffer.put((byte) (value >>> (i * 8)));
+        }
+    }
+
+    /**
+     * 固定写8字节的double
+     *
+     * @return float数据在buffer中的位置，用于事后回填
+     */
+    int putFloat(int id, double value) {
+        putId(id);
+        putSize(8);
+        ensure(8);
+        int position = buffer.position();
+        buffer.putDouble(value);
+        return position;
+    }
+
+    void putString(int id, String value) {
+        int length = value.length();
+        putId(id);
+        putSize(length);
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    void putBytes(int id, byte[] value) {
+        putId(id);
+        putSize(value.length);
+        ensure(value.length);
+        buffer.put(value);
+    }
+
+    /**
+     * 写一个总长度为totalSize(含ID和size)的Void element，用于占位
+     */
+    void putVoid(int totalSize) {
+        if (totalSize < 2) {
+            throw new IllegalArgumentException("void element needs at least 2 bytes");
+        }
+        int dataSize = totalSize - 2;
+        int sizeLength = 1;
+        if (dataSize > 126) {
+            dataSize = totalSize - 9;
+            sizeLength = 8;
+        }
+        putId(MkvIds.VOID);
+        putSize(dataSize, sizeLength);
+        ensure(dataSize);
+        for (int i = 0; i < dataSize; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    void putId(int id) {
+        int length = idLength(id);
+        ensure(length);
+        for (int i = length - 1; i >= 0; i--) {
+            buffer.put((byte) (id >>> (i * 8)));
+        }
+    }
+
+    void putSize(long size) {
+        putSize(size, sizeLength(size));
+    }
+
+    void putSize(long size, int length) {
+        ensure(length);
+        long value = size | (1L << (length * 7));
+        for (int i = length - 1; i >= 0; i--) {
+            buffer.put((byte) (value >>> (i * 8)));
+        }
+    }
+
+    /**
+     * 返回已写入的数据，position=0，limit=已写入长度。
+     * 在下一次{@link #reset()}之前有效
+     */
+    ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    static int idLength(int id) {
+        if ((id & 0xFF000000) != 0) return 4;
+        if ((id & 0x00FF0000) != 0) return 3;
+        if ((id & 0x0000FF00) != 0) return 2;
+        return 1;
+    }
+
+    /**
+     * size的最短vint长度，全1的值保留给unknown size
+     */
+    static int sizeLength(long size) {
+        int length = 1;
+        while (length < 8 && size >= (1L << (length * 7)) - 1) {
+            length++;
+        }
+        return length;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        int newCapacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+}
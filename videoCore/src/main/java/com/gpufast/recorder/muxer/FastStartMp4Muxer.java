@@ -0,0 +1,215 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * moov在文件头部的MP4复用器，录制完成后的文件可以直接边下边播
+ * sample经过{@link SampleInterleaver}按时间戳交织后写入{@link FastStartMp4Writer}。
+ */
+public class FastStartMp4Muxer extends IMediaMuxer {
+    private static final String TAG = FastStartMp4Muxer.class.getSimpleName();
+
+    //音视频编码回调来自不同线程，写文件需要串行
+    private final Object lock = new Object();
+
+    private MuxerSink sink;
+    //sink是自己打开的，release时关闭
+    private boolean ownsSink;
+    private FastStartMp4Writer writer;
+    private SampleInterleaver interleaver;
+    private SampleJournal journal;
+
+    private boolean muteMic;
+    private int trackCount;
+    private boolean released = false;
+
+    FastStartMp4Muxer(Setting setting) {
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        muteMic = setting.muteMic;
+        trackCount = muteMic ? 1 : 2;
+        if (setting.sink != null && !setting.sink.isSeekable()) {
+            ELog.e(TAG, "faststart mp4 needs a seekable sink");
+            return;
+        }
+        try {
+            sink = setting.openSink();
+            ownsSink = setting.sink == null;
+            writer = new FastStartMp4Writer(sink, !muteMic, setting.moovReserveBytes);
+            //日志放在媒体文件旁边，只有输出到savePath时才能写
+            if (setting.journalSyncIntervalMs > 0 && ownsSink) {
+                journal = new SampleJournal(SampleJournal.journalPath(setting.savePath), sink,
+                        setting.journalSyncIntervalMs);
+                writer.setJournal(journal);
+            }
+            interleaver = new SampleInterleaver(trackCount, setting.interleaveWindowUs,
+                    new SampleInterleaver.SampleWriter() {
+                        @Override
+                        public void writeSample(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+                            writeSampleData(track, buffer, info);
+                        }
+                    });
+            //写mdat不依赖轨道格式，可以立即开始
+            interleaver.start();
+        } catch (IOException e) {
+            ELog.e(TAG, "Init FastStartMp4Muxer:" + e.getMessage());
+        }
+        ELog.i(TAG, "init muxer trackCount:" + trackCount + " moovReserve:" + setting.moovReserveBytes);
+    }
+
+    /**
+     * 直接设置视频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setVideoTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (writer != null && format != null) {
+                writer.setVideoFormat(format);
+            }
+        }
+    }
+
+    /**
+     * 直接设置音频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setAudioTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (writer != null && format != null && !muteMic) {
+                writer.setAudioFormat(format);
+            }
+        }
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        ELog.i(TAG, "onUpdateVideoMediaFormat" + mediaFormat);
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported video format");
+            return;
+        }
+        setVideoTrackFormat(format);
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        if (muteMic) return;
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported audio format");
+            return;
+        }
+        setAudioTrackFormat(format);
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        int flags = frame.frameType == EncodedImage.FrameType.VideoFrameKey
+                ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+        synchronized (lock) {
+            if (interleaver == null || released) return;
+            interleaver.writeSample(SampleInterleaver.TRACK_VIDEO, frame.buffer,
+                    info.presentationTimeUs, flags);
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (interleaver == null || released) return;
+            ByteBuffer buffer = frame.buffer;
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            interleaver.writeSample(SampleInterleaver.TRACK_AUDIO, buffer, info.presentationTimeUs, 0);
+        }
+    }
+
+    private void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        try {
+            if (track == SampleInterleaver.TRACK_VIDEO) {
+                writer.writeVideoSample(buffer, info.presentationTimeUs,
+                        (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0);
+            } else {
+                writer.writeAudioSample(buffer, info.presentationTimeUs);
+            }
+        } catch (IOException e) {
+            ELog.e(TAG, "write sample failed, track=" + track + ":" + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        ELog.i(TAG, "onVideoEncoderStop. trackCount=" + trackCount);
+        stopMuxer(SampleInterleaver.TRACK_VIDEO);
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        ELog.i(TAG, "onAudioEncoderStop: trackCount=" + trackCount);
+        stopMuxer(SampleInterleaver.TRACK_AUDIO);
+    }
+
+    private void stopMuxer(int track) {
+        synchronized (lock) {
+            if (interleaver != null) {
+                interleaver.endTrack(track);
+            }
+            trackCount--;
+            ELog.i(TAG, "stopMuxer trackCount:" + trackCount);
+            if (trackCount <= 0) {
+                release();
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            ELog.i(TAG, "start release faststart mp4 muxer");
+            boolean finished = false;
+            try {
+                if (interleaver != null) {
+                    interleaver.flush();
+                }
+                if (writer != null) {
+                    writer.finish();
+                }
+                if (sink != null) {
+                    sink.force();
+                }
+                finished = true;
+            } catch (IOException e) {
+                ELog.e(TAG, "finish faststart mp4 failed:" + e.getMessage());
+            }
+            if (journal != null) {
+                //写moov失败时保留日志，之后可以用Mp4Recovery修复
+                journal.close(finished);
+            }
+            try {
+                if (sink != null && ownsSink) {
+                    sink.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            ELog.i(TAG, "release faststart mp4 muxer success");
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.gpufast.recorder.muxer;
+
+import com.gpufast.logger.ELog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 单遍"faststart" MP4写入器，纯Java实现
+ * 文件布局为 ftyp | free(预留) | mdat，sample边录制边写入mdat，结束时把moov写进预留的free空间，
+ * 剩余部分仍是free box。播放器从文件头就能拿到moov，不需要再整体重写一遍文件。
+ * 预留空间不够时，把mdat整体后移腾出空间(原地搬移，不需要第二个文件)。
+ * <p>
+ * 非线程安全，调用者需要自行同步。
+ */
+public class FastStartMp4Writer {
+    private static final String TAG = FastStartMp4Writer.class.getSimpleName();
+
+    private static final int VIDEO_TRACK_ID = 1;
+    private static final int AUDIO_TRACK_ID = 2;
+
+    //每个sample在moov中占用的字节数上限估计：stsz 4 + stts 8 + stco 4
+    private static final int MOOV_BYTES_PER_SAMPLE = 16;
+    //mvhd/trak/stsd等固定部分
+    private static final int MOOV_FIXED_BYTES = 4096;
+    //时长未知时按10分钟预留
+    private static final long DEFAULT_RESERVE_DURATION_MS = 10 * 60 * 1000L;
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    //free box头部
+    private static final int FREE_HEADER_SIZE = 8;
+    //mdat使用64位largesize
+    private static final int MDAT_HEADER_SIZE = 16;
+    private static final int RELOCATE_BUFFER_SIZE = 1024 * 1024;
+
+    private final MuxerSink sink;
+    private final long reservedBytes;
+    private final Mp4SampleTable videoTable = new Mp4SampleTable(true, TrackFormat.VIDEO_TIMESCALE);
+    private final boolean hasAudio;
+    //音频时间基就是采样率，设置音频格式时创建
+    private Mp4SampleTable audioTable;
+    private TrackFormat videoFormat;
+    private TrackFormat audioFormat;
+
+    private final Mp4BoxWriter boxWriter = new Mp4BoxWriter(64 * 1024);
+    private final AvccChannelWriter avccWriter = new AvccChannelWriter();
+    private SampleJournal journal;
+
+    private boolean headerWritten = false;
+    private boolean finished = false;
+    private long originUs = -1;
+    //free box起始位置
+    private long freePosition;
+    private long mdatPosition;
+    //下一个sample写入的位置
+    private long position;
+
+    /**
+     * @param channel       输出文件，从当前位置开始写入
+     * @param hasAudio      是否包含音频轨道
+     * @param reservedBytes 为moov预留的字节数，见{@link #estimateMoovBytes}
+     */
+    public FastStartMp4Writer(FileChannel channel, boolean hasAudio, long reservedBytes) {
+        this(channel != null ? new FileSink(channel) : null, hasAudio, reservedBytes);
+    }
+
+    /**
+     * @param sink 可寻址的输出，结束时要回填mdat大小和moov
+     */
+    public FastStartMp4Writer(MuxerSink sink, boolean hasAudio, long reservedBytes) {
+        if (sink == null) {
+            throw new IllegalArgumentException("sink is null object");
+        }
+        if (!sink.isSeekable()) {
+            throw new IllegalArgumentException("faststart mp4 needs a seekable sink");
+        }
+        this.sink = sink;
+        this.reservedBytes = Math.max(reservedBytes, FREE_HEADER_SIZE);
+        this.hasAudio = hasAudio;
+    }
+
+    /**
+     * 根据预计的录制时长估算moov大小
+     *
+     * @param durationMs 预计时长(毫秒)，未知时传0
+     */
+    public static long estimateMoovBytes(long durationMs, int videoFrameRate, int audioSampleRate,
+                                         boolean hasAudio) {
+        if (durationMs <= 0) {
+            durationMs = DEFAULT_RESERVE_DURATION_MS;
+        }
+        long samples = durationMs * videoFrameRate / 1000;
+        if (hasAudio) {
+            samples += durationMs * audioSampleRate / AAC_SAMPLES_PER_FRAME / 1000;
+        }
+        return estimateMoovBytes(samples);
+    }
+
+    /**
+     * 按sample总数估算moov大小，用于写入前已经知道全部sample的情况
+     */
+    static long estimateMoovBytes(long samples) {
+        //多留25%余量
+        return (MOOV_FIXED_BYTES + samples * MOOV_BYTES_PER_SAMPLE) * 5 / 4;
+    }
+
+    /**
+     * 设置崩溃恢复日志，需要在写入第一个sample之前调用
+     */
+    void setJournal(SampleJournal journal) {
+        this.journal = journal;
+    }
+
+    public void setVideoFormat(TrackFormat format) {
+        if (videoFormat == null) {
+            videoFormat = format;
+            if (journal != null) {
+                journal.format(SampleInterleaver.TRACK_VIDEO, format);
+            }
+        }
+    }
+
+    public void setAudioFormat(TrackFormat format) {
+        if (hasAudio && audioFormat == null) {
+            audioFormat = format;
+            audioTable = new Mp4SampleTable(false, format.timescale());
+            if (journal != null) {
+                journal.format(SampleInterleaver.TRACK_AUDIO, format);
+            }
+        }
+    }
+
+    /**
+     * 写入一帧H.264数据，Annex-B或长度前缀格式均可，直接写入文件
+     */
+    public void writeVideoSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame)
+            throws IOException {
+        if (finished) {
+            return;
+        }
+        int size = NalUnits.avccSize(data);
+        if (size == 0) {
+            return;
+        }
+        writeHeaderIfNeeded();
+        long timeUs = relativeTimeUs(videoTable, presentationTimeUs);
+        avccWriter.write(sink, null, data, null);
+        videoTable.add(position, size, timeUs, keyFrame);
+        if (journal != null) {
+            journal.sample(SampleInterleaver.TRACK_VIDEO, position, size, timeUs, keyFrame);
+        }
+        position += size;
+    }
+
+    /**
+     * 写入一帧AAC raw数据，直接写入文件。设置音频格式之前的数据丢弃
+     */
+    public void writeAudioSample(ByteBuffer data, long presentationTimeUs) throws IOException {
+        if (finished || audioTable == null || !data.hasRemaining()) {
+            return;
+        }
+        writeHeaderIfNeeded();
+        long timeUs = relativeTimeUs(audioTable, presentationTimeUs);
+        int pos = data.position();
+        int size = data.remaining();
+        try {
+            writeFully(data);
+        } finally {
+            data.position(pos);
+        }
+        audioTable.add(position, size, timeUs, true);
+        if (journal != null) {
+            journal.sample(SampleInterleaver.TRACK_AUDIO, position, size, timeUs, true);
+        }
+        position += size;
+    }
+
+    /**
+     * 回填mdat大小并写入moov，之后不再接受数据。不会关闭输出
+     *
+     * @return moov是否放进了预留空间；false表示进行了mdat搬移
+     */
+    public boolean finish() throws IOException {
+        if (finished) {
+            return true;
+        }
+        finished = true;
+        if (!headerWritten) {
+            return true;
+        }
+        if (videoFormat == null) {
+            ELog.e(TAG, "finish without track format, moov not written");
+            return true;
+        }
+        ByteBuffer largeSize = ByteBuffer.allocate(8);
+        largeSize.putLong(position - mdatPosition);
+        largeSize.flip();
+        writeFully(largeSize, mdatPosition + 8);
+
+        long delta = 0;
+        ByteBuffer moov = buildMoov(delta);
+        while (!fitsReserved(moov.remaining(), delta)) {
+            //预留空间不足(或剩余空间放不下free头部)，mdat后移delta字节；
+            //偏移变大后可能需要co64，moov会变大，所以要重新生成再检查
+            delta = Math.max(delta, moov.remaining() - reservedBytes);
+            long gap = reservedBytes + delta - moov.remaining();
+            if (gap > 0 && gap < FREE_HEADER_SIZE) {
+                delta += FREE_HEADER_SIZE;
+            }
+            moov = buildMoov(delta);
+        }
+        if (delta > 0) {
+            ELog.w(TAG, "reserved moov space too small, relocate mdat by " + delta + " bytes");
+            relocateMdat(delta);
+        }
+        int moovSize = moov.remaining();
+        writeFully(moov, freePosition);
+        long gap = reservedBytes + delta - moovSize;
+        if (gap > 0) {
+            ByteBuffer free = ByteBuffer.allocate(FREE_HEADER_SIZE);
+            free.putInt((int) gap);
+            free.putInt(Mp4Boxes.FREE);
+            free.flip();
+            writeFully(free, freePosition + moovSize);
+        }
+        ELog.i(TAG, "faststart mp4 finished. moov:" + moovSize + " reserved:" + reservedBytes);
+        return delta == 0;
+    }
+
+    private boolean fitsReserved(long moovSize, long delta) {
+        long gap = reservedBytes + delta - moovSize;
+        return gap == 0 || gap >= FREE_HEADER_SIZE;
+    }
+
+    private long relativeTimeUs(Mp4SampleTable table, long presentationTimeUs) {
+        if (originUs < 0) {
+            originUs = presentationTimeUs;
+        }
+        long timeUs = Math.max(0, presentationTimeUs - originUs);
+        //保证同一轨道内解码时间严格递增
+        long last = table.lastTimeUs();
+        if (last >= 0 && timeUs <= last) {
+            timeUs = last + 1;
+        }
+        return timeUs;
+    }
+
+    private void writeHeaderIfNeeded() throws IOException {
+        if (headerWritten) {
+            return;
+        }
+        Mp4BoxWriter w = boxWriter;
+        w.reset();
+        Mp4Boxes.writeFtyp(w, false);
+        int ftypSize = w.position();
+        //预留区只写free头部，其余部分不需要实际写入
+        w.putInt((int) reservedBytes);
+        w.putInt(Mp4Boxes.FREE);
+        ByteBuffer header = w.flip();
+        long start = sink.position();
+        writeFully(header);
+        freePosition = start + ftypSize;
+        mdatPosition = freePosition + reservedBytes;
+
+        ByteBuffer mdat = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+        mdat.putInt(1);
+        mdat.putInt(Mp4Boxes.MDAT);
+        mdat.putLong(0);
+        mdat.flip();
+        writeFully(mdat, mdatPosition);
+        position = mdatPosition + MDAT_HEADER_SIZE;
+        sink.position(position);
+        headerWritten = true;
+        if (journal != null) {
+            journal.layout(freePosition, reservedBytes, mdatPosition);
+        }
+    }
+
+    private ByteBuffer buildMoov(long offsetDelta) {
+        boolean writeAudio = audioTable != null && audioTable.sampleCount() > 0;
+        return buildMoov(boxWriter, videoFormat, videoTable,
+                writeAudio ? audioFormat : null, writeAudio ? audioTable : null, offsetDelta);
+    }
+
+    /**
+     * 根据sample表生成完整的moov
+     *
+     * @param audioFormat 没有音频轨道时为null
+     * @param offsetDelta sample表中的偏移加上该值后为文件中的实际位置
+     * @return w中的数据，在w下一次reset之前有效
+     */
+    static ByteBuffer buildMoov(Mp4BoxWriter w, TrackFormat videoFormat, Mp4SampleTable videoTable,
+                                TrackFormat audioFormat, Mp4SampleTable audioTable, long offsetDelta) {
+        w.reset();
+        boolean hasAudio = audioFormat != null;
+        //轨道时长包括编辑列表中开始前的空白，和stts之和(mdhd)不同
+        long videoMs = videoTable.presentationDurationMs();
+        long audioMs = hasAudio ? audioTable.presentationDurationMs() : 0;
+        w.begin(Mp4Boxes.MOOV);
+        Mp4Boxes.writeMvhd(w, Math.max(videoMs, audioMs), hasAudio ? AUDIO_TRACK_ID + 1 : VIDEO_TRACK_ID + 1);
+        writeTrak(w, VIDEO_TRACK_ID, videoFormat, videoTable, videoMs, offsetDelta);
+        if (hasAudio) {
+            writeTrak(w, AUDIO_TRACK_ID, audioFormat, audioTable, audioMs, offsetDelta);
+        }
+        w.end();
+        return w.flip();
+    }
+
+    private static void writeTrak(Mp4BoxWriter w, int trackId, TrackFormat format, Mp4SampleTable table,
+                                  long durationMs, long offsetDelta) {
+        Mp4Boxes.beginTrak(w, trackId, format, durationMs, table.mediaDuration(),
+                table.emptyEditMs(), table.editMediaTime());
+        table.writeTables(w, offsetDelta);
+        Mp4Boxes.endTrak(w);
+    }
+
+    /**
+     * 把mdat整体后移delta字节，从尾部开始搬移，避免覆盖还没搬的数据
+     */
+    private void relocateMdat(long delta) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(RELOCATE_BUFFER_SIZE);
+        long end = position;
+        while (end > mdatPosition) {
+            int length = (int) Math.min(RELOCATE_BUFFER_SIZE, end - mdatPosition);
+            long start = end - length;
+            buffer.clear();
+            buffer.limit(length);
+            while (buffer.hasRemaining()) {
+                if (sink.read(buffer, start + buffer.position()) < 0) {
+                    throw new IOException("unexpected end of file");
+                }
+            }
+            buffer.flip();
+            writeFully(buffer, start + delta);
+            end = start;
+        }
+        mdatPosition += delta;
+        position += delta;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            sink.write(buffer);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            at += sink.write(buffer, at);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.gpufast.recorder.muxer;
+
+import com.gpufast.logger.ELog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * 把moov在文件尾部的MP4改写成moov在前(faststart)
+ * 只读入moov并改写其中的stco/co64，mdat等其他box用{@link FileChannel#transferTo}在通道间直接拷贝，
+ * 数据不经过Java堆。偏移超过4GB的stco会升级为co64。free/skip/wide等占位box会被丢弃。
+ */
+public final class FastStartRelocator {
+    private static final String TAG = FastStartRelocator.class.getSimpleName();
+
+    private static final long MAX_32BIT_OFFSET = 0xFFFFFFFFL;
+    //每次transferTo的长度，也是进度回调的粒度
+    private static final long TRANSFER_STEP = 8 * 1024 * 1024;
+    private static final String TEMP_SUFFIX = ".faststart";
+
+    private static final int[] CONTAINER_BOXES = {
+            Mp4Boxes.MOOV, Mp4Boxes.TRAK, Mp4Boxes.MDIA, Mp4Boxes.MINF, Mp4Boxes.STBL};
+
+    private FastStartRelocator() {
+    }
+
+    /**
+     * 原地改写：先写到同目录下的临时文件，成功后替换原文件
+     *
+     * @return true表示进行了改写；文件已经是faststart时返回false，不做任何修改
+     */
+    public static boolean relocate(String path, ProgressListener listener) throws IOException {
+        File source = new File(path);
+        File temp = new File(path + TEMP_SUFFIX);
+        boolean relocated = false;
+        try {
+            relocated = relocate(source, temp, listener);
+            if (relocated && !temp.renameTo(source)) {
+                throw new IOException("rename " + temp + " to " + source + " failed");
+            }
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                ELog.w(TAG, "delete temp file failed:" + temp);
+            }
+        }
+        return relocated;
+    }
+
+    /**
+     * 把source改写为moov在前的target
+     *
+     * @return true表示写出了target；source已经是faststart时返回false，不会创建target
+     */
+    public static boolean relocate(File source, File target, ProgressListener listener) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(source, "r");
+        try {
+            FileChannel src = in.getChannel();
+            List<Mp4Box> boxes = Mp4Box.scanTopLevel(src);
+            Mp4Box moov = Mp4Box.find(boxes, Mp4Boxes.MOOV);
+            Mp4Box mdat = Mp4Box.find(boxes, Mp4Boxes.MDAT);
+            if (moov == null || mdat == null) {
+                throw new IOException("not a complete mp4 file:" + source);
+            }
+            if (moov.offset < mdat.offset) {
+                ELog.i(TAG, "moov already at front:" + source);
+                return false;
+            }
+            Layout layout = new Layout(boxes);
+            ByteBuffer oldMoov = Mp4Box.read(src, moov);
+            Mp4BoxWriter w = new Mp4BoxWriter((int) moov.size + 1024);
+            //moov变大(co64)会让后面所有box的位置后移，重新生成直到大小稳定
+            long moovSize = moov.size;
+            while (true) {
+                layout.place(moovSize);
+                w.reset();
+                rewrite(oldMoov, 0, oldMoov.limit(), w, layout);
+                if (w.position() == moovSize) {
+                    break;
+                }
+                moovSize = w.position();
+            }
+            writeTarget(src, target, layout, w.flip(), listener);
+            ELog.i(TAG, "relocate moov finished:" + target + " moov:" + moovSize);
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeTarget(FileChannel src, File target, Layout layout, ByteBuffer moov,
+                                    ProgressListener listener) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try {
+            out.setLength(0);
+            FileChannel dst = out.getChannel();
+            long total = layout.totalBytes(moov.remaining());
+            long done = 0;
+            if (layout.ftyp != null) {
+                done += transfer(src, layout.ftyp.offset, layout.ftyp.size, dst, done, total, listener);
+            }
+            while (moov.hasRemaining()) {
+                done += dst.write(moov);
+            }
+            for (int i = 0; i < layout.boxes.length; i++) {
+                Mp4Box box = layout.boxes[i];
+                done += transfer(src, box.offset, box.size, dst, done, total, listener);
+            }
+            dst.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 通道间拷贝，按{@link #TRANSFER_STEP}分段以便回调进度
+     */
+    private static long transfer(FileChannel src, long offset, long length, FileChannel dst,
+                                 long done, long total, ProgressListener listener) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long step = Math.min(TRANSFER_STEP, length - copied);
+            long n = src.transferTo(offset + copied, step, dst);
+            if (n <= 0) {
+                throw new IOException("transfer stalled at " + (offset + copied));
+            }
+            copied += n;
+            if (listener != null) {
+                listener.onProgress(done + copied, total);
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * 逐层复制moov，容器box重新计算大小，stco/co64按新布局改写
+     */
+    private static void rewrite(ByteBuffer src, int start, int end, Mp4BoxWriter w, Layout layout)
+            throws IOException {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = src.getInt(position);
+            int type = src.getInt(position + 4);
+            if (size < 8 || position + size > end) {
+                throw new IOException("invalid box " + Mp4Box.typeName(type) + " in moov");
+            }
+            if (isContainer(type)) {
+                w.begin(type);
+                rewrite(src, position + 8, position + size, w, layout);
+                w.end();
+            } else if (type == Mp4Boxes.STCO || type == Mp4Boxes.CO64) {
+                rewriteChunkOffsets(src, position, type == Mp4Boxes.CO64, w, layout);
+            } else {
+                src.limit(position + size);
+                src.position(position);
+                w.putBytes(src);
+                src.limit(src.capacity());
+            }
+            position += size;
+        }
+    }
+
+    private static void rewriteChunkOffsets(ByteBuffer src, int position, boolean large, Mp4BoxWriter w,
+                                            Layout layout) throws IOException {
+        int count = src.getInt(position + 12);
+        int entries = position + 16;
+        boolean needLarge = false;
+        for (int i = 0; i < count; i++) {
+            long offset = large ? src.getLong(entries + i * 8) : src.getInt(entries + i * 4) & 0xFFFFFFFFL;
+            if (layout.map(offset) > MAX_32BIT_OFFSET) {
+                needLarge = true;
+                break;
+            }
+        }
+        //已经是co64的保持co64
+        boolean writeLarge = large || needLarge;
+        w.beginFull(writeLarge ? Mp4Boxes.CO64 : Mp4Boxes.STCO, 0, 0);
+        w.putInt(count);
+        for (int i = 0; i < count; i++) {
+            long offset = large ? src.getLong(entries + i * 8) : src.getInt(entries + i * 4) & 0xFFFFFFFFL;
+            long mapped = layout.map(offset);
+            if (writeLarge) {
+                w.putLong(mapped);
+            } else {
+                w.putInt((int) mapped);
+            }
+        }
+        w.end();
+    }
+
+    private static boolean isContainer(int type) {
+        for (int container : CONTAINER_BOXES) {
+            if (container == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 新文件布局：ftyp | moov | 其余box按原顺序(去掉占位box)
+     */
+    private static final class Layout {
+        final Mp4Box ftyp;
+        final Mp4Box[] boxes;
+        final long[] newOffsets;
+
+        Layout(List<Mp4Box> all) {
+            Mp4Box ftypBox = null;
+            int count = 0;
+            Mp4Box[] kept = new Mp4Box[all.size()];
+            for (Mp4Box box : all) {
+                if (box.type == Mp4Boxes.FTYP && ftypBox == null) {
+                    ftypBox = box;
+                } else if (box.type != Mp4Boxes.MOOV && box.type != Mp4Boxes.FREE
+                        && box.type != Mp4Boxes.SKIP && box.type != Mp4Boxes.WIDE) {
+                    kept[count++] = box;
+                }
+            }
+            ftyp = ftypBox;
+            boxes = new Mp4Box[count];
+            System.arraycopy(kept, 0, boxes, 0, count);
+            newOffsets = new long[count];
+        }
+
+        void place(long moovSize) {
+            long position = (ftyp != null ? ftyp.size : 0) + moovSize;
+            for (int i = 0; i < boxes.length; i++) {
+                newOffsets[i] = position;
+                position += boxes[i].size;
+            }
+        }
+
+        long totalBytes(long moovSize) {
+            long total = (ftyp != null ? ftyp.size : 0) + moovSize;
+            for (Mp4Box box : boxes) {
+                total += box.size;
+            }
+            return total;
+        }
+
+        /**
+         * 原文件中的偏移换算到新文件
+         */
+        long map(long offset) throws IOException {
+            for (int i = 0; i < boxes.length; i++) {
+                Mp4Box box = boxes[i];
+                if (offset >= box.offset && offset < box.end()) {
+                    return offset - box.offset + newOffsets[i];
+                }
+            }
+            throw new IOException("chunk offset " + offset + " is outside of any box");
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.gpufast.recorder.muxer;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.gpufast.logger.ELog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 输出到文件，所有操作直接转给{@link FileChannel}
+ * 预分配了空间时记录写到的最远位置，关闭时把文件截断到这里。
+ */
+public final class FileSink implements MuxerSink {
+    private static final String TAG = FileSink.class.getSimpleName();
+    //预分配后至少给系统留下的剩余空间
+    private static final long MIN_FREE_AFTER_PREALLOCATE = 64L * 1024 * 1024;
+
+    private final FileChannel channel;
+    //预分配的长度，0表示没有预分配
+    private long preallocatedBytes = 0;
+    //写到的最远位置，只在预分配时记录
+    private long writtenEnd = 0;
+
+    /**
+     * @param channel 从channel的当前位置开始追加，关闭sink时一起关闭
+     */
+    public FileSink(FileChannel channel) {
+        if (channel == null) {
+            throw new IllegalArgumentException("channel is null object");
+        }
+        this.channel = channel;
+    }
+
+    /**
+     * 创建path(已存在时清空)并打开
+     */
+    public static FileSink open(String path) throws IOException {
+        return open(path, 0);
+    }
+
+    /**
+     * 创建path(已存在时清空)，并预分配preallocateBytes的空间，减少长时间录制产生的文件碎片。
+     * 优先用posix_fallocate分配真实的磁盘块，文件系统不支持时退化为扩展文件长度。
+     * 预分配失败不影响录制
+     */
+    public static FileSink open(String path, long preallocateBytes) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        FileSink sink = new FileSink(file.getChannel());
+        if (preallocateBytes > 0) {
+            long usable = new File(path).getUsableSpace();
+            if (preallocateBytes <= usable - MIN_FREE_AFTER_PREALLOCATE) {
+                sink.preallocatedBytes = preallocate(file, preallocateBytes);
+            } else {
+                ELog.w(TAG, "skip preallocate " + preallocateBytes + " bytes, usable:" + usable);
+            }
+        }
+        return sink;
+    }
+
+    private static long preallocate(RandomAccessFile file, long bytes) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, bytes);
+                return bytes;
+            } catch (ErrnoException | IOException e) {
+                ELog.w(TAG, "fallocate failed:" + e.getMessage() + ", extend file instead");
+            }
+        }
+        try {
+            file.setLength(bytes);
+            return bytes;
+        } catch (IOException e) {
+            ELog.w(TAG, "preallocate " + bytes + " bytes failed:" + e.getMessage());
+            return 0;
+        }
+    }
+
+    public FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * @return 预分配的字节数，没有预分配时为0
+     */
+    public long preallocatedBytes() {
+        return preallocatedBytes;
+    }
+
+    private void wrote(long end) {
+        if (end > writtenEnd) {
+            writtenEnd = end;
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        return channel.position();
+    }
+
+    @Override
+    public MuxerSink position(long newPosition) throws IOException {
+        channel.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int n = channel.write(src);
+        if (preallocatedBytes > 0) {
+            wrote(channel.position());
+        }
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long n = channel.write(srcs, offset, length);
+        if (preallocatedBytes > 0) {
+            wrote(channel.position());
+        }
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        int n = channel.write(src, position);
+        if (preallocatedBytes > 0) {
+            wrote(position + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return channel.read(dst, position);
+    }
+
+    /**
+     * FileChannel本身是线程安全的，可以和写入并发调用
+     */
+    @Override
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            //去掉预分配后没有用到的部分
+            if (preallocatedBytes > 0 && channel.isOpen() && channel.size() > writtenEnd) {
+                channel.truncate(writtenEnd);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -1,6 +1,482 @@
 package com.gpufast.recorder.muxer;
 
-public class FlvMuxer {
+import android.media.MediaCodec;
+import android.media.MediaFormat;
 
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * FLV复用器
+ * tag头部来自预分配的direct buffer，sample数据直接从编码器输出的buffer写出(gathering write)，
+ * 每帧没有数据拷贝，也没有内存分配。输出可以是文件，也可以是任意阻塞模式的{@link GatheringByteChannel}，
+ * 例如直播推流用的socket。
+ */
+public class FlvMuxer extends IMediaMuxer {
+    private static final String TAG = FlvMuxer.class.getSimpleName();
+
+    private static final int TAG_TYPE_AUDIO = 8;
+    private static final int TAG_TYPE_VIDEO = 9;
+    private static final int TAG_TYPE_SCRIPT = 18;
+
+    private static final int TAG_HEADER_SIZE = 11;
+    //FrameType(4bit)|CodecID(4bit), AVCPacketType, CompositionTime(3byte)
+    private static final int VIDEO_HEADER_SIZE = 5;
+    //SoundFormat|SoundRate|SoundSize|SoundType, AACPacketType
+    private static final int AUDIO_HEADER_SIZE = 2;
+
+    private static final int AVC_KEY_FRAME = 0x17;
+    private static final int AVC_INTER_FRAME = 0x27;
+    //AAC, 44kHz, 16bit, stereo；AAC时后三个字段固定为此值，真实参数在AudioSpecificConfig中
+    private static final int AAC_SOUND_FLAGS = 0xAF;
+    private static final int PACKET_TYPE_SEQUENCE_HEADER = 0;
+    private static final int PACKET_TYPE_RAW = 1;
+    //MediaCodec只给出显示时间，出现重排后解码时间取最近几帧中最小的显示时间再减去这么多帧的间隔
+    private static final int MAX_REORDER_FRAMES = 2;
+
+    private final Object lock = new Object();
+
+    //自己打开的输出，release时关闭
+    private MuxerSink ownedSink;
+    private GatheringByteChannel channel;
+
+    // tag头部都从这一块direct内存中切分
+    private final ByteBuffer videoHeader;
+    private final ByteBuffer audioHeader;
+    private final ByteBuffer tagTrailer;
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[3];
+    private final AvccChannelWriter avccWriter = new AvccChannelWriter();
+
+    private boolean muteMic;
+    private int trackCount;
+    //onMetaData要在所有sequence header之前，两个轨道的格式都到了才一起写出
+    private TrackFormat videoFormat;
+    private TrackFormat audioFormat;
+    private boolean videoConfigWritten = false;
+    private boolean audioConfigWritten = false;
+    private boolean released = false;
+    //sequence header之后的第一个视频tag必须是关键帧
+    private boolean waitKeyFrame = true;
+    private long originUs = -1;
+    //按大小排序、还没有用作解码时间的显示时间
+    private final long[] pendingPtsUs = new long[MAX_REORDER_FRAMES + 1];
+    private int pendingPtsCount = 0;
+    //显示时间一直递增就没有B帧，解码时间直接用显示时间
+    private boolean reordered = false;
+    private long lastPtsUs = Long.MIN_VALUE;
+    //相邻显示时间的最小正间隔，作为帧间隔
+    private long frameIntervalUs = Long.MAX_VALUE;
+    private int lastDtsMs = -1;
+
+    FlvMuxer(Setting setting) {
+        this(null, setting != null && setting.muteMic);
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        try {
+            MuxerSink sink = setting.openSink();
+            ownedSink = setting.sink == null ? sink : null;
+            channel = sink;
+            writeFileHeader();
+        } catch (IOException e) {
+            ELog.e(TAG, "Init FlvMuxer:" + e.getMessage());
+            channel = null;
+        }
+    }
+
+    /**
+     * 输出到指定的channel，channel必须是阻塞模式，由调用者负责关闭
+     */
+    public FlvMuxer(GatheringByteChannel channel, boolean muteMic) {
+        this.muteMic = muteMic;
+        trackCount = muteMic ? 1 : 2;
+        ByteBuffer slab = ByteBuffer.allocateDirect(64);
+        videoHeader = sliceOf(slab, 0, TAG_HEADER_SIZE + VIDEO_HEADER_SIZE);
+        audioHeader = sliceOf(slab, 24, TAG_HEADER_SIZE + AUDIO_HEADER_SIZE);
+        tagTrailer = sliceOf(slab, 48, 4);
+        if (channel != null) {
+            this.channel = channel;
+            try {
+                writeFileHeader();
+            } catch (IOException e) {
+                ELog.e(TAG, "write flv header failed:" + e.getMessage());
+                this.channel = null;
+            }
+        }
+        ELog.i(TAG, "init muxer trackCount:" + trackCount);
+    }
+
+    private static ByteBuffer sliceOf(ByteBuffer slab, int offset, int length) {
+        slab.limit(offset + length);
+        slab.position(offset);
+        ByteBuffer slice = slab.slice();
+        slab.clear();
+        return slice;
+    }
+
+    private void writeFileHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(13);
+        header.put((byte) 'F').put((byte) 'L').put((byte) 'V');
+        header.put((byte) 1);
+        header.put((byte) (muteMic ? 0x01 : 0x05));
+        header.putInt(9);
+        //PreviousTagSize0
+        header.putInt(0);
+        header.flip();
+        writeFully(header);
+    }
+
+    /**
+     * 直接设置视频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setVideoTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (videoFormat != null || format == null) return;
+            videoFormat = format;
+            writeHeadersIfReady();
+        }
+    }
+
+    /**
+     * 直接设置音频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setAudioTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (audioFormat != null || muteMic || format == null) return;
+            audioFormat = format;
+            writeHeadersIfReady();
+        }
+    }
+
+    /**
+     * 按onMetaData、AVC sequence header、AAC sequence header的顺序写出，之前到达的帧丢弃，
+     * 之后从第一个视频关键帧开始写
+     */
+    private void writeHeadersIfReady() {
+        if (channel == null || released || videoConfigWritten) return;
+        if (videoFormat == null || (!muteMic && audioFormat == null)) return;
+        try {
+            writeMetadata(videoFormat, audioFormat);
+            writeVideoSequenceHeader(videoFormat);
+            videoConfigWritten = true;
+            if (!muteMic) {
+                writeAudioSequenceHeader(audioFormat);
+                audioConfigWritten = true;
+            }
+        } catch (IOException e) {
+            ELog.e(TAG, "write flv headers failed:" + e.getMessage());
+        }
+    }
+
+    private void writeVideoSequenceHeader(TrackFormat format) throws IOException {
+        byte[] record = format.avcDecoderConfigurationRecord();
+        ByteBuffer tag = ByteBuffer.allocate(TAG_HEADER_SIZE + VIDEO_HEADER_SIZE + record.length + 4);
+        putTagHeader(tag, TAG_TYPE_VIDEO, VIDEO_HEADER_SIZE + record.length, 0);
+        tag.put((byte) AVC_KEY_FRAME);
+        tag.put((byte) PACKET_TYPE_SEQUENCE_HEADER);
+        put24(tag, 0);
+        tag.put(record);
+        tag.putInt(TAG_HEADER_SIZE + VIDEO_HEADER_SIZE + record.length);
+        tag.flip();
+        writeFully(tag);
+    }
+
+    private void writeAudioSequenceHeader(TrackFormat format) throws IOException {
+        byte[] config = format.audioSpecificConfig;
+        ByteBuffer tag = ByteBuffer.allocate(TAG_HEADER_SIZE + AUDIO_HEADER_SIZE + config.length + 4);
+        putTagHeader(tag, TAG_TYPE_AUDIO, AUDIO_HEADER_SIZE + config.length, 0);
+        tag.put((byte) AAC_SOUND_FLAGS);
+        tag.put((byte) PACKET_TYPE_SEQUENCE_HEADER);
+        tag.put(config);
+        tag.putInt(TAG_HEADER_SIZE + AUDIO_HEADER_SIZE + config.length);
+        tag.flip();
+        writeFully(tag);
+    }
+
+    /**
+     * onMetaData脚本tag，只写入编码参数，时长未知写0
+     */
+    private void writeMetadata(TrackFormat video, TrackFormat audio) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(256);
+        body.put((byte) 0x02);
+        putAmfString(body, "onMetaData");
+        body.put((byte) 0x08);
+        body.putInt(audio == null ? 4 : 7);
+        putAmfNumber(body, "duration", 0);
+        putAmfNumber(body, "width", video.width);
+        putAmfNumber(body, "height", video.height);
+        putAmfNumber(body, "videocodecid", 7);
+        if (audio != null) {
+            putAmfNumber(body, "audiocodecid", 10);
+            putAmfNumber(body, "audiosamplerate", audio.sampleRate);
+            putAmfBoolean(body, "stereo", audio.channelCount > 1);
+        }
+        put24(body, 0x000009);
+        body.flip();
+        int dataSize = body.remaining();
+        ByteBuffer header = ByteBuffer.allocate(TAG_HEADER_SIZE);
+        putTagHeader(header, TAG_TYPE_SCRIPT, dataSize, 0);
+        header.flip();
+        ByteBuffer trailer = ByteBuffer.allocate(4);
+        trailer.putInt(TAG_HEADER_SIZE + dataSize);
+        trailer.flip();
+        writeFully(header);
+        writeFully(body);
+        writeFully(trailer);
+    }
+
+    private static void putAmfString(ByteBuffer buffer, String value) {
+        buffer.putShort((short) value.length());
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    private static void putAmfNumber(ByteBuffer buffer, String name, double value) {
+        putAmfString(buffer, name);
+        buffer.put((byte) 0x00);
+        buffer.putDouble(value);
+    }
+
+    private static void putAmfBoolean(ByteBuffer buffer, String name, boolean value) {
+        putAmfString(buffer, name);
+        buffer.put((byte) 0x01);
+        buffer.put((byte) (value ? 1 : 0));
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        if (videoFormat != null) return;
+        ELog.i(TAG, "onUpdateVideoMediaFormat" + mediaFormat);
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported video format");
+            return;
+        }
+        setVideoTrackFormat(format);
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        if (audioFormat != null || muteMic) return;
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported audio format");
+            return;
+        }
+        setAudioTrackFormat(format);
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (info == null || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        boolean keyFrame = frame.frameType == EncodedImage.FrameType.VideoFrameKey;
+        synchronized (lock) {
+            if (channel == null || released || !videoConfigWritten) return;
+            if (waitKeyFrame && !keyFrame) return;
+            if (waitKeyFrame) {
+                waitKeyFrame = false;
+                originUs = info.presentationTimeUs;
+            }
+            long ptsUs = info.presentationTimeUs;
+            int timestampMs = nextDecodeTimeMs(ptsUs);
+            try {
+                writeVideoTag(frame.buffer, timestampMs, toTimestampMs(ptsUs) - timestampMs, keyFrame);
+            } catch (IOException e) {
+                ELog.e(TAG, "write video tag failed:" + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            //时间起点是第一个视频关键帧，之前的音频丢弃
+            if (channel == null || released || !audioConfigWritten || waitKeyFrame) return;
+            ByteBuffer buffer = frame.buffer;
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            try {
+                writeAudioTag(buffer, toTimestampMs(info.presentationTimeUs));
+            } catch (IOException e) {
+                ELog.e(TAG, "write audio tag failed:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 由解码顺序到达的显示时间推算tag时间戳（解码时间）。显示时间递增时直接使用，CompositionTime为0；
+     * 一旦出现回退说明有B帧，之后取排序窗口中最小的显示时间减去固定的重排延迟。
+     * 结果严格递增，切换时的几帧CompositionTime可能为负
+     */
+    private int nextDecodeTimeMs(long ptsUs) {
+        if (lastPtsUs != Long.MIN_VALUE) {
+            if (ptsUs < lastPtsUs) {
+                reordered = true;
+            } else if (ptsUs > lastPtsUs) {
+                frameIntervalUs = Math.min(frameIntervalUs, ptsUs - lastPtsUs);
+            }
+        }
+        lastPtsUs = ptsUs;
+        int i = pendingPtsCount;
+        while (i > 0 && pendingPtsUs[i - 1] > ptsUs) {
+            pendingPtsUs[i] = pendingPtsUs[i - 1];
+            i--;
+        }
+        pendingPtsUs[i] = ptsUs;
+        pendingPtsCount++;
+        long minPtsUs = pendingPtsUs[0];
+        if (pendingPtsCount > MAX_REORDER_FRAMES) {
+            pendingPtsCount--;
+            System.arraycopy(pendingPtsUs, 1, pendingPtsUs, 0, pendingPtsCount);
+        }
+        int dtsMs;
+        if (!reordered) {
+            dtsMs = toTimestampMs(ptsUs);
+        } else {
+            long delayUs = frameIntervalUs == Long.MAX_VALUE ? 0 : MAX_REORDER_FRAMES * frameIntervalUs;
+            dtsMs = toTimestampMs(minPtsUs - delayUs);
+        }
+        dtsMs = Math.max(dtsMs, lastDtsMs + 1);
+        lastDtsMs = dtsMs;
+        return dtsMs;
+    }
+
+    private int toTimestampMs(long timeUs) {
+        return (int) (Math.max(0, timeUs - originUs) / 1000);
+    }
+
+    /**
+     * 写出一个视频tag。Annex-B数据按NAL拆分，start code替换成长度头部，
+     * NAL本身直接从frame写出
+     */
+    private void writeVideoTag(ByteBuffer frame, int timestampMs, int compositionTimeMs, boolean keyFrame)
+            throws IOException {
+        int payloadSize = NalUnits.avccSize(frame);
+        if (payloadSize == 0) {
+            return;
+        }
+        int dataSize = VIDEO_HEADER_SIZE + payloadSize;
+        ByteBuffer header = videoHeader;
+        header.clear();
+        putTagHeader(header, TAG_TYPE_VIDEO, dataSize, timestampMs);
+        header.put((byte) (keyFrame ? AVC_KEY_FRAME : AVC_INTER_FRAME));
+        header.put((byte) PACKET_TYPE_RAW);
+        put24(header, compositionTimeMs);
+        header.flip();
+        tagTrailer.clear();
+        tagTrailer.putInt(TAG_HEADER_SIZE + dataSize);
+        tagTrailer.flip();
+        avccWriter.write(channel, header, frame, tagTrailer);
+    }
+
+    private void writeAudioTag(ByteBuffer data, int timestampMs) throws IOException {
+        int pos = data.position();
+        int dataSize = AUDIO_HEADER_SIZE + data.remaining();
+        ByteBuffer header = audioHeader;
+        header.clear();
+        putTagHeader(header, TAG_TYPE_AUDIO, dataSize, timestampMs);
+        header.put((byte) AAC_SOUND_FLAGS);
+        header.put((byte) PACKET_TYPE_RAW);
+        header.flip();
+        tagTrailer.clear();
+        tagTrailer.putInt(TAG_HEADER_SIZE + dataSize);
+        tagTrailer.flip();
+        gatherBuffers[0] = header;
+        gatherBuffers[1] = data;
+        gatherBuffers[2] = tagTrailer;
+        try {
+            writeFully(gatherBuffers, 3);
+        } finally {
+            data.position(pos);
+            clearGatherBuffers();
+        }
+    }
+
+    private static void putTagHeader(ByteBuffer buffer, int type, int dataSize, int timestampMs) {
+        buffer.put((byte) type);
+        put24(buffer, dataSize);
+        put24(buffer, timestampMs & 0xFFFFFF);
+        buffer.put((byte) (timestampMs >>> 24));
+        //StreamID
+        put24(buffer, 0);
+    }
+
+    private static void put24(ByteBuffer buffer, int value) {
+        buffer.put((byte) (value >> 16));
+        buffer.put((byte) (value >> 8));
+        buffer.put((byte) value);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int length) throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < length; i++) {
+            remaining += buffers[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers, 0, length);
+        }
+    }
+
+    private void clearGatherBuffers() {
+        for (int i = 0; i < gatherBuffers.length; i++) {
+            gatherBuffers[i] = null;
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        ELog.i(TAG, "onVideoEncoderStop. trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        ELog.i(TAG, "onAudioEncoderStop: trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    private void stopMuxer() {
+        synchronized (lock) {
+            trackCount--;
+            ELog.i(TAG, "stopMuxer trackCount:" + trackCount);
+            if (trackCount <= 0) {
+                release();
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            ELog.i(TAG, "start release flv muxer");
+            try {
+                if (ownedSink != null) {
+                    ownedSink.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            ELog.i(TAG, "release flv muxer success");
+        }
+    }
 }
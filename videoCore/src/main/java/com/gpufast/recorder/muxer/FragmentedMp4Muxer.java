@@ -0,0 +1,178 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 分片MP4复用器
+ * 与{@link Mp4Muxer}不同，不依赖系统MediaMuxer，sample表不会随录制时长增长，
+ * 录制中途被杀死时已经写出的分片仍然可以播放。
+ */
+public class FragmentedMp4Muxer extends IMediaMuxer {
+    private static final String TAG = FragmentedMp4Muxer.class.getSimpleName();
+
+    //音视频编码回调来自不同线程，写文件需要串行
+    private final Object lock = new Object();
+
+    private MuxerSink sink;
+    //sink是自己打开的，release时关闭
+    private boolean ownsSink;
+    private FragmentedMp4Writer writer;
+
+    private boolean muteMic;
+    private int trackCount;
+    private boolean released = false;
+
+    FragmentedMp4Muxer(Setting setting) {
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        muteMic = setting.muteMic;
+        trackCount = muteMic ? 1 : 2;
+        try {
+            sink = setting.openSink();
+            ownsSink = setting.sink == null;
+            writer = new FragmentedMp4Writer(sink, !muteMic, FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US);
+        } catch (IOException e) {
+            ELog.e(TAG, "Init FragmentedMp4Muxer:" + e.getMessage());
+        }
+        ELog.i(TAG, "init muxer trackCount:" + trackCount);
+    }
+
+    /**
+     * 直接设置视频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setVideoTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (writer != null && format != null) {
+                writer.setVideoFormat(format);
+            }
+        }
+    }
+
+    /**
+     * 直接设置音频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setAudioTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (writer != null && format != null && !muteMic) {
+                writer.setAudioFormat(format);
+            }
+        }
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        ELog.i(TAG, "onUpdateVideoMediaFormat" + mediaFormat);
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported video format");
+            return;
+        }
+        setVideoTrackFormat(format);
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        if (muteMic) return;
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported audio format");
+            return;
+        }
+        setAudioTrackFormat(format);
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (info == null || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (writer == null || released) return;
+            try {
+                //轨道格式就绪前的数据暂存在writer中，有上限，视频从关键帧开始
+                writer.writeVideoSample(frame.buffer, info.presentationTimeUs,
+                        frame.frameType == EncodedImage.FrameType.VideoFrameKey);
+            } catch (IOException e) {
+                ELog.e(TAG, "write video sample failed:" + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info == null || info.size <= 0
+                || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (writer == null || released) return;
+            ByteBuffer buffer = frame.buffer;
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            try {
+                writer.writeAudioSample(buffer, info.presentationTimeUs);
+            } catch (IOException e) {
+                ELog.e(TAG, "write audio sample failed:" + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        ELog.i(TAG, "onVideoEncoderStop. trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        ELog.i(TAG, "onAudioEncoderStop: trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    private void stopMuxer() {
+        synchronized (lock) {
+            trackCount--;
+            ELog.i(TAG, "stopMuxer trackCount:" + trackCount);
+            if (trackCount <= 0) {
+                release();
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            ELog.i(TAG, "start release fmp4 muxer");
+            try {
+                if (writer != null) {
+                    writer.finish();
+                }
+                if (sink != null) {
+                    sink.force();
+                }
+            } catch (IOException e) {
+                ELog.e(TAG, "finish fmp4 failed:" + e.getMessage());
+            }
+            try {
+                if (sink != null && ownsSink) {
+                    sink.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            ELog.i(TAG, "release fmp4 muxer success");
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package com.gpufast.recorder.muxer;
+
+import com.gpufast.logger.ELog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 分片MP4(fMP4/CMAF)写入器，纯Java实现
+ * 文件头部只写一次ftyp+moov(空sample表+mvex)，之后每隔一段时间输出一个moof+mdat分片。
+ * 每个分片只在内存中暂存自己的数据，暂存区在分片之间复用，因此内存占用与录制时长无关；
+ * 已经写完的分片都可以直接播放，进程被杀也只会丢失最后一个未完成的分片。
+ * <p>
+ * 非线程安全，调用者需要自行同步。
+ */
+public class FragmentedMp4Writer {
+    private static final String TAG = FragmentedMp4Writer.class.getSimpleName();
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+
+    //单个分片的最大字节数，超过后即使时长不够也立即输出，保证内存有界；
+    //轨道格式未就绪时暂存的数据超过它就全部丢弃
+    private static final int MAX_FRAGMENT_BYTES = 8 * 1024 * 1024;
+    //关键帧间隔比分片长时，等到分片时长的这个倍数仍然没有关键帧就不再等待
+    private static final int MAX_UNALIGNED_FRAGMENT_FACTOR = 2;
+
+    private static final int VIDEO_TRACK_ID = 1;
+    private static final int AUDIO_TRACK_ID = 2;
+
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    //sample_depends_on=2
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    //sample_depends_on=1, sample_is_non_sync_sample=1
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private GatheringByteChannel channel;
+    private final long fragmentDurationUs;
+    private final Track videoTrack;
+    private final Track audioTrack;
+
+    private final Mp4BoxWriter boxWriter = new Mp4BoxWriter(4096);
+    private final ByteBuffer mdatHeader = ByteBuffer.allocateDirect(8);
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[4];
+
+    private boolean headerWritten = false;
+    private boolean finished = false;
+    //第一个视频sample必须是关键帧，暂存的数据被丢弃后重新等待
+    private boolean waitKeyFrame = true;
+    private int sequenceNumber = 0;
+    //所有轨道共用的时间零点
+    private long originUs = -1;
+    private long fragmentStartUs = -1;
+
+    /**
+     * @param channel            输出，从当前位置开始顺序写入，如{@link MuxerSink}
+     * @param hasAudio           是否包含音频轨道
+     * @param fragmentDurationUs 分片时长(微秒)
+     */
+    public FragmentedMp4Writer(GatheringByteChannel channel, boolean hasAudio, long fragmentDurationUs) {
+        if (channel == null) {
+            throw new IllegalArgumentException("channel is null object");
+        }
+        this.channel = channel;
+        this.fragmentDurationUs = fragmentDurationUs > 0 ? fragmentDurationUs : DEFAULT_FRAGMENT_DURATION_US;
+        videoTrack = new Track(VIDEO_TRACK_ID, true, 1024 * 1024);
+        audioTrack = hasAudio ? new Track(AUDIO_TRACK_ID, false, 64 * 1024) : null;
+    }
+
+    public void setVideoFormat(TrackFormat format) {
+        if (videoTrack.format == null) {
+            videoTrack.format = format;
+        }
+    }
+
+    public void setAudioFormat(TrackFormat format) {
+        if (audioTrack != null && audioTrack.format == null) {
+            audioTrack.format = format;
+        }
+    }
+
+    /**
+     * 写入一帧H.264数据，Annex-B或长度前缀格式均可。
+     * 数据会被拷贝到分片暂存区，返回后调用者可以立即复用data
+     */
+    public void writeVideoSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame)
+            throws IOException {
+        if (finished) {
+            return;
+        }
+        dropStagedIfNotReady();
+        if (waitKeyFrame && !keyFrame) {
+            return;
+        }
+        waitKeyFrame = false;
+        long timeUs = relativeTimeUs(videoTrack, presentationTimeUs);
+        maybeFlush(presentationTimeUs, keyFrame ? timeUs : -1);
+        videoTrack.append(data, timeUs, keyFrame);
+    }
+
+    /**
+     * 写入一帧AAC raw数据
+     */
+    public void writeAudioSample(ByteBuffer data, long presentationTimeUs) throws IOException {
+        if (finished || audioTrack == null) {
+            return;
+        }
+        dropStagedIfNotReady();
+        maybeFlush(presentationTimeUs, -1);
+        audioTrack.append(data, relativeTimeUs(audioTrack, presentationTimeUs), true);
+    }
+
+    /**
+     * 输出剩余的所有sample，之后不再接受数据。不会关闭channel
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (!isReady()) {
+            ELog.e(TAG, "finish without track format, drop staged samples");
+            return;
+        }
+        writeHeaderIfNeeded();
+        flushFragment(true);
+    }
+
+    /**
+     * 写出所有暂存的sample，之后的数据写到next。头部(ftyp+moov)还没写出时先写到当前channel，
+     * {@link HlsMuxer}用它把初始化段和每个媒体分段分别写到不同文件。不会关闭当前channel
+     */
+    void switchChannel(GatheringByteChannel next) throws IOException {
+        switchChannel(next, -1);
+    }
+
+    /**
+     * 在关键帧前切换输出
+     *
+     * @param keyFrameTimeUs 接下来写入的关键帧的时间戳，作为当前最后一个视频sample的结束时间；小于0表示未知
+     */
+    void switchChannel(GatheringByteChannel next, long keyFrameTimeUs) throws IOException {
+        if (finished || next == null) {
+            return;
+        }
+        if (!isReady()) {
+            throw new IOException("switch channel without track format");
+        }
+        writeHeaderIfNeeded();
+        if (keyFrameTimeUs >= 0 && originUs >= 0) {
+            closeVideo(relativeTimeUs(videoTrack, keyFrameTimeUs));
+        }
+        flushFragment(true);
+        channel = next;
+        fragmentStartUs = -1;
+    }
+
+    private boolean isReady() {
+        return videoTrack.format != null && (audioTrack == null || audioTrack.format != null);
+    }
+
+    private int stagedBytes() {
+        return videoTrack.data.position() + (audioTrack != null ? audioTrack.data.position() : 0);
+    }
+
+    /**
+     * 轨道格式未就绪时不能写出分片，暂存的数据达到上限后全部丢弃，时间零点从之后的数据重新确定
+     */
+    private void dropStagedIfNotReady() {
+        if (isReady()) {
+            return;
+        }
+        int staged = stagedBytes();
+        if (staged < MAX_FRAGMENT_BYTES) {
+            return;
+        }
+        ELog.w(TAG, "track format not ready, drop " + staged + " staged bytes");
+        videoTrack.clear();
+        if (audioTrack != null) {
+            audioTrack.clear();
+        }
+        originUs = -1;
+        fragmentStartUs = -1;
+        waitKeyFrame = true;
+    }
+
+    /**
+     * 下一个视频sample的时间已知时，暂存的最后一个视频sample的时长随之确定，可以和其它sample一起写出
+     */
+    private void closeVideo(long nextTimeUs) {
+        if (videoTrack.count > 0) {
+            videoTrack.endTimeUs = nextTimeUs;
+        }
+    }
+
+    private long relativeTimeUs(Track track, long presentationTimeUs) {
+        if (originUs < 0) {
+            originUs = presentationTimeUs;
+        }
+        long timeUs = Math.max(0, presentationTimeUs - originUs);
+        //保证同一轨道内解码时间严格递增，包括已经写出的sample
+        if (track.lastTimeUs >= 0 && timeUs <= track.lastTimeUs) {
+            timeUs = track.lastTimeUs + 1;
+        }
+        return timeUs;
+    }
+
+    /**
+     * @param keyFrameTimeUs 当前是视频关键帧时为它的相对时间，否则小于0
+     */
+    private void maybeFlush(long presentationTimeUs, long keyFrameTimeUs) throws IOException {
+        if (fragmentStartUs < 0) {
+            fragmentStartUs = presentationTimeUs;
+            return;
+        }
+        //轨道格式未就绪前继续暂存，不能写出分片
+        if (!isReady()) {
+            return;
+        }
+        long elapsed = presentationTimeUs - fragmentStartUs;
+        int stagedBytes = stagedBytes();
+        boolean keyFrame = keyFrameTimeUs >= 0;
+        if (keyFrame && elapsed >= fragmentDurationUs / 2) {
+            //在关键帧前切分：关键帧的时间就是前一个视频sample的结束时间，视频全部写出，新分片从关键帧开始
+            closeVideo(keyFrameTimeUs);
+        } else if (elapsed < fragmentDurationUs * MAX_UNALIGNED_FRAGMENT_FACTOR
+                && stagedBytes < MAX_FRAGMENT_BYTES) {
+            //等待关键帧；关键帧间隔太长或者数据太多时不再等待，分片从非关键帧开始
+            return;
+        }
+        writeHeaderIfNeeded();
+        flushFragment(false);
+        fragmentStartUs = presentationTimeUs;
+    }
+
+    private void writeHeaderIfNeeded() throws IOException {
+        if (headerWritten) {
+            return;
+        }
+        Mp4BoxWriter w = boxWriter;
+        w.reset();
+        Mp4Boxes.writeFtyp(w, true);
+        w.begin(Mp4Boxes.MOOV);
+        Mp4Boxes.writeMvhd(w, 0, audioTrack != null ? AUDIO_TRACK_ID + 1 : VIDEO_TRACK_ID + 1);
+        writeTrak(w, videoTrack);
+        if (audioTrack != null) {
+            writeTrak(w, audioTrack);
+        }
+        w.begin(Mp4Boxes.MVEX);
+        Mp4Boxes.writeTrex(w, videoTrack.trackId);
+        if (audioTrack != null) {
+            Mp4Boxes.writeTrex(w, audioTrack.trackId);
+        }
+        w.end();
+        w.end();
+        writeFully(w.flip());
+        headerWritten = true;
+        ELog.i(TAG, "fmp4 header written. video:" + videoTrack.format
+                + (audioTrack != null ? " audio:" + audioTrack.format : ""));
+    }
+
+    private static void writeTrak(Mp4BoxWriter w, Track track) {
+        Mp4Boxes.beginTrak(w, track.trackId, track.format, 0, 0);
+        Mp4Boxes.writeEmptySampleTables(w);
+        Mp4Boxes.endTrak(w);
+    }
+
+    /**
+     * 输出一个分片
+     *
+     * @param all false时每个轨道保留最后一个sample，它的时长要等下一个sample到来才能确定，
+     *            已经知道结束时间的轨道(见{@link #closeVideo(long)})除外
+     */
+    private void flushFragment(boolean all) throws IOException {
+        int videoCount = videoTrack.completeCount(all);
+        int audioCount = audioTrack != null ? audioTrack.completeCount(all) : 0;
+        if (videoCount == 0 && audioCount == 0) {
+            return;
+        }
+        int videoBytes = videoTrack.bytesOf(videoCount);
+        int audioBytes = audioTrack != null ? audioTrack.bytesOf(audioCount) : 0;
+
+        Mp4BoxWriter w = boxWriter;
+        w.reset();
+        w.begin(Mp4Boxes.MOOF);
+        w.beginFull(Mp4Boxes.MFHD, 0, 0);
+        w.putInt(++sequenceNumber);
+        w.end();
+        int videoOffsetPos = writeTraf(w, videoTrack, videoCount);
+        int audioOffsetPos = audioTrack != null ? writeTraf(w, audioTrack, audioCount) : -1;
+        w.end();
+        int moofSize = w.position();
+        if (videoOffsetPos >= 0) {
+            w.putInt(videoOffsetPos, moofSize + 8);
+        }
+        if (audioOffsetPos >= 0) {
+            w.putInt(audioOffsetPos, moofSize + 8 + videoBytes);
+        }
+
+        mdatHeader.clear();
+        mdatHeader.putInt(8 + videoBytes + audioBytes);
+        mdatHeader.putInt(Mp4Boxes.MDAT);
+        mdatHeader.flip();
+
+        int n = 0;
+        gatherBuffers[n++] = w.flip();
+        gatherBuffers[n++] = mdatHeader;
+        gatherBuffers[n++] = videoTrack.beginRead(videoBytes);
+        if (audioTrack != null) {
+            gatherBuffers[n++] = audioTrack.beginRead(audioBytes);
+        }
+        try {
+            writeFully(gatherBuffers, n);
+        } finally {
+            videoTrack.endRead(videoCount, videoBytes);
+            if (audioTrack != null) {
+                audioTrack.endRead(audioCount, audioBytes);
+            }
+            for (int i = 0; i < n; i++) {
+                gatherBuffers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @return trun中data_offset字段的位置，轨道没有sample时返回-1
+     */
+    private static int writeTraf(Mp4BoxWriter w, Track track, int count) {
+        if (count == 0) {
+            return -1;
+        }
+        w.begin(Mp4Boxes.TRAF);
+        w.beginFull(Mp4Boxes.TFHD, 0, TFHD_DEFAULT_BASE_IS_MOOF);
+        w.putInt(track.trackId);
+        w.end();
+        w.beginFull(Mp4Boxes.TFDT, 1, 0);
+        w.putLong(track.format.toTicks(track.timesUs[0]));
+        w.end();
+        int flags = TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE;
+        if (track.isVideo) {
+            flags |= TRUN_SAMPLE_FLAGS;
+        }
+        w.beginFull(Mp4Boxes.TRUN, 0, flags);
+        w.putInt(count);
+        int dataOffsetPos = w.position();
+        w.putInt(0);
+        for (int i = 0; i < count; i++) {
+            w.putInt((int) track.durationOf(i));
+            w.putInt(track.sizes[i]);
+            if (track.isVideo) {
+                w.putInt(track.keys[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            }
+        }
+        w.end();
+        w.end();
+        return dataOffsetPos;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int length) throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < length; i++) {
+            remaining += buffers[i].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers, 0, length);
+        }
+    }
+
+    /**
+     * 单个轨道的分片暂存区：sample数据连续存放在direct buffer中，元数据放在基本类型数组中
+     */
+    private static final class Track {
+        final int trackId;
+        final boolean isVideo;
+        TrackFormat format;
+
+        ByteBuffer data;
+        int[] offsets = new int[64];
+        int[] sizes = new int[64];
+        //相对时间零点的时间戳(微秒)
+        long[] timesUs = new long[64];
+        boolean[] keys = new boolean[64];
+        int count = 0;
+        long lastDuration = 0;
+        //最后写入的sample的时间，-1表示还没有
+        long lastTimeUs = -1;
+        //最后一个暂存sample的结束时间(下一个sample的时间)，小于0表示还不知道
+        long endTimeUs = -1;
+
+        Track(int trackId, boolean isVideo, int initialCapacity) {
+            this.trackId = trackId;
+            this.isVideo = isVideo;
+            this.data = ByteBuffer.allocateDirect(initialCapacity);
+        }
+
+        void append(ByteBuffer src, long timeUs, boolean key) {
+            int size = isVideo ? NalUnits.avccSize(src) : src.remaining();
+            ensureData(size);
+            ensureSamples();
+            offsets[count] = data.position();
+            if (isVideo) {
+                NalUnits.copyAsAvcc(src, data);
+            } else {
+                int pos = src.position();
+                data.put(src);
+                src.position(pos);
+            }
+            sizes[count] = size;
+            timesUs[count] = timeUs;
+            keys[count] = key;
+            count++;
+            lastTimeUs = timeUs;
+        }
+
+        /**
+         * 丢弃所有暂存的sample，只在还没有写出过数据时使用
+         */
+        void clear() {
+            data.clear();
+            count = 0;
+            lastDuration = 0;
+            lastTimeUs = -1;
+            endTimeUs = -1;
+        }
+
+        int completeCount(boolean all) {
+            return all || endTimeUs >= 0 ? count : Math.max(0, count - 1);
+        }
+
+        int bytesOf(int sampleCount) {
+            return sampleCount < count ? offsets[sampleCount] : data.position();
+        }
+
+        /**
+         * sample时长(轨道时间基)，由相邻两个时间戳分别换算后相减，不会累积误差
+         */
+        long durationOf(int index) {
+            if (index + 1 < count) {
+                lastDuration = format.toTicks(timesUs[index + 1]) - format.toTicks(timesUs[index]);
+            } else if (endTimeUs >= 0) {
+                lastDuration = format.toTicks(endTimeUs) - format.toTicks(timesUs[index]);
+            } else if (lastDuration == 0) {
+                //最后一个sample没有后继，使用默认时长
+                lastDuration = isVideo ? TrackFormat.VIDEO_TIMESCALE / 30 : 1024;
+            }
+            return lastDuration;
+        }
+
+        /**
+         * 返回前bytes字节的只读视图(就是data本身)，写完后必须调用{@link #endRead}
+         */
+        ByteBuffer beginRead(int bytes) {
+            data.flip();
+            data.limit(bytes);
+            return data;
+        }
+
+        /**
+         * 丢弃已经写出的sample，把剩余sample移动到暂存区头部
+         */
+        void endRead(int sampleCount, int bytes) {
+            int end = count > 0 ? offsets[count - 1] + sizes[count - 1] : 0;
+            data.limit(end);
+            data.position(bytes);
+            data.compact();
+            int remain = count - sampleCount;
+            for (int i = 0; i < remain; i++) {
+                offsets[i] = offsets[sampleCount + i] - bytes;
+                sizes[i] = sizes[sampleCount + i];
+                timesUs[i] = timesUs[sampleCount + i];
+                keys[i] = keys[sampleCount + i];
+            }
+            count = remain;
+            endTimeUs = -1;
+        }
+
+        private void ensureData(int bytes) {
+            if (data.remaining() >= bytes) {
+                return;
+            }
+            int newCapacity = Math.max(data.capacity() * 2, data.position() + bytes);
+            ByteBuffer newData = ByteBuffer.allocateDirect(newCapacity);
+            data.flip();
+            newData.put(data);
+            data = newData;
+        }
+
+        private void ensureSamples() {
+            if (count < sizes.length) {
+                return;
+            }
+            int newLength = sizes.length * 2;
+            int[] newOffsets = new int[newLength];
+            int[] newSizes = new int[newLength];
+            long[] newTimes = new long[newLength];
+            boolean[] newKeys = new boolean[newLength];
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            System.arraycopy(sizes, 0, newSizes, 0, count);
+            System.arraycopy(timesUs, 0, newTimes, 0, count);
+            System.arraycopy(keys, 0, newKeys, 0, count);
+            offsets = newOffsets;
+            sizes = newSizes;
+            timesUs = newTimes;
+            keys = newKeys;
+        }
+    }
+}
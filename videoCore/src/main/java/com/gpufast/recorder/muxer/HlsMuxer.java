@@ -0,0 +1,451 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 本地HLS分段器
+ * savePath是媒体播放列表(m3u8)，分段文件写在同一目录下，文件名为"播放列表名_序号.ts/.m4s"，
+ * fMP4分段另有一个初始化段"播放列表名_init.mp4"。
+ * 只在视频关键帧处切分，分段时长达到目标时长后的第一个关键帧开始新分段。
+ * EXT-X-TARGETDURATION在开始时按目标时长向上取整到关键帧间隔确定，之后不再改变(RFC 8216)；
+ * 滑出窗口的分段再保留一个目标时长才删除，拿到上一版播放列表的播放器仍然能下载。
+ * 分段先写到临时文件，写完后fsync并改名，再用同样的方式整体替换播放列表，
+ * 所以播放列表中出现的分段总是完整的，上传程序可以边录边推送。
+ * <p>
+ * 数据直接流式写入当前分段文件，TS只缓存一块TS包，fMP4只缓存一个fragment，内存占用不超过一个分段。
+ */
+public class HlsMuxer extends IMediaMuxer {
+    private static final String TAG = HlsMuxer.class.getSimpleName();
+
+    public static final long DEFAULT_SEGMENT_DURATION_US = 4000000L;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Object lock = new Object();
+
+    private final boolean fragmented;
+    private final long segmentDurationUs;
+    //EXT-X-TARGETDURATION(秒)
+    private final long targetDurationSec;
+    private final int playlistSize;
+    private final File playlistFile;
+    private final File directory;
+    private final String baseName;
+
+    //TS分段使用，整个录制过程共用一个，保证时间戳和连续计数器跨分段连续
+    private TsMuxer tsMuxer;
+    //fMP4分段使用，第一个分段开始时创建
+    private FragmentedMp4Writer fmp4Writer;
+    private TrackFormat videoFormat;
+    private TrackFormat audioFormat;
+
+    private RandomAccessFile segmentFile;
+    private File segmentTempFile;
+    private String segmentName;
+    private long segmentStartUs = -1;
+    private int nextSequence = 0;
+    private long lastVideoUs = -1;
+    private long lastFrameIntervalUs = 0;
+
+    //播放列表中的分段，playlistSize>0时只保留最后playlistSize个
+    private final List<Segment> segments = new ArrayList<>();
+    private int mediaSequence = 0;
+    //滑出窗口等待删除的分段
+    private final List<Segment> retiredSegments = new ArrayList<>();
+    private final StringBuilder playlist = new StringBuilder(1024);
+
+    private boolean muteMic;
+    private int trackCount;
+    private boolean failed = false;
+    private boolean released = false;
+
+    /**
+     * @param fragmented true输出fMP4(CMAF)分段，false输出TS分段
+     */
+    HlsMuxer(Setting setting, boolean fragmented) {
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        this.fragmented = fragmented;
+        muteMic = setting.muteMic;
+        trackCount = muteMic ? 1 : 2;
+        segmentDurationUs = setting.segmentDurationUs > 0 ? setting.segmentDurationUs : DEFAULT_SEGMENT_DURATION_US;
+        playlistSize = Math.max(0, setting.playlistSize);
+        targetDurationSec = targetDurationSec(segmentDurationUs, setting.keyFrameIntervalUs);
+        playlistFile = new File(setting.savePath);
+        File parent = playlistFile.getAbsoluteFile().getParentFile();
+        directory = parent != null ? parent : new File(".");
+        String name = playlistFile.getName();
+        int dot = name.lastIndexOf('.');
+        baseName = dot > 0 ? name.substring(0, dot) : name;
+        if (!fragmented) {
+            tsMuxer = new TsMuxer(null, muteMic);
+        }
+        ELog.i(TAG, "init muxer trackCount:" + trackCount + " fmp4:" + fragmented
+                + " segmentDurationUs:" + segmentDurationUs + " targetDuration:" + targetDurationSec
+                + " playlistSize:" + playlistSize);
+    }
+
+    /**
+     * 只在关键帧处切分，分段时长最长是目标时长向上取整到关键帧间隔
+     */
+    private static long targetDurationSec(long segmentDurationUs, long keyFrameIntervalUs) {
+        long maxSegmentUs = segmentDurationUs;
+        if (keyFrameIntervalUs > 0) {
+            maxSegmentUs = (segmentDurationUs + keyFrameIntervalUs - 1) / keyFrameIntervalUs * keyFrameIntervalUs;
+        }
+        return Math.max(1, (maxSegmentUs + 999999) / 1000000);
+    }
+
+    /**
+     * 直接设置视频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setVideoTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (videoFormat == null && format != null) {
+                videoFormat = format;
+                if (tsMuxer != null) {
+                    tsMuxer.setVideoTrackFormat(format);
+                }
+            }
+        }
+    }
+
+    /**
+     * 直接设置音频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setAudioTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (audioFormat == null && format != null && !muteMic) {
+                audioFormat = format;
+                if (tsMuxer != null) {
+                    tsMuxer.setAudioTrackFormat(format);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        ELog.i(TAG, "onUpdateVideoMediaFormat" + mediaFormat);
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported video format");
+            return;
+        }
+        setVideoTrackFormat(format);
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        if (muteMic) return;
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported audio format");
+            return;
+        }
+        setAudioTrackFormat(format);
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        if (frame.bufferInfo != null
+                && (frame.bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        boolean keyFrame = frame.frameType == EncodedImage.FrameType.VideoFrameKey;
+        long timeUs = frame.bufferInfo.presentationTimeUs;
+        synchronized (lock) {
+            if (released || failed) return;
+            //时间戳按帧间隔取整后可能比目标时长略短，允许半帧的误差
+            if (keyFrame && (segmentStartUs < 0
+                    || timeUs - segmentStartUs + lastFrameIntervalUs / 2 >= segmentDurationUs)) {
+                //所有轨道格式就绪后才开始第一个分段，之前的数据丢弃
+                if (videoFormat == null || (!muteMic && audioFormat == null)) return;
+                startSegment(timeUs);
+            }
+            if (segmentStartUs < 0 || failed) return;
+            if (lastVideoUs >= 0 && timeUs > lastVideoUs) {
+                lastFrameIntervalUs = timeUs - lastVideoUs;
+            }
+            lastVideoUs = timeUs;
+            if (tsMuxer != null) {
+                tsMuxer.onEncodedFrame(frame);
+                return;
+            }
+            try {
+                fmp4Writer.writeVideoSample(frame.buffer, timeUs, keyFrame);
+            } catch (IOException e) {
+                ELog.e(TAG, "write video sample failed:" + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            //第一个分段从视频关键帧开始，之前的音频丢弃
+            if (released || failed || segmentStartUs < 0) return;
+            if (tsMuxer != null) {
+                tsMuxer.onEncodedAudio(frame);
+                return;
+            }
+            frame.buffer.limit(info.offset + info.size);
+            frame.buffer.position(info.offset);
+            try {
+                fmp4Writer.writeAudioSample(frame.buffer, info.presentationTimeUs);
+            } catch (IOException e) {
+                ELog.e(TAG, "write audio sample failed:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 在timeUs处的关键帧前切分：后续数据写到新分段，上一个分段写完后发布到播放列表
+     */
+    private void startSegment(long timeUs) {
+        String name = baseName + "_" + nextSequence + (fragmented ? ".m4s" : ".ts");
+        File tempFile = new File(directory, name + TEMP_SUFFIX);
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(tempFile, "rw");
+            file.setLength(0);
+            if (fragmented) {
+                switchFmp4Segment(file.getChannel(), timeUs);
+            } else {
+                tsMuxer.switchChannel(file.getChannel());
+            }
+        } catch (IOException e) {
+            ELog.e(TAG, "start segment " + name + " failed:" + e.getMessage());
+            closeQuietly(file);
+            tempFile.delete();
+            //后续数据无处可写，已经发布的分段保持不变
+            failed = true;
+            return;
+        }
+        if (segmentFile != null) {
+            publishSegment(segmentStartUs, timeUs - segmentStartUs, false);
+        }
+        segmentFile = file;
+        segmentTempFile = tempFile;
+        segmentName = name;
+        segmentStartUs = timeUs;
+        nextSequence++;
+    }
+
+    private void switchFmp4Segment(FileChannel next, long keyFrameTimeUs) throws IOException {
+        if (fmp4Writer != null) {
+            fmp4Writer.switchChannel(next, keyFrameTimeUs);
+            return;
+        }
+        //第一个分段开始时把ftyp+moov写进初始化段
+        File initFile = new File(directory, initName());
+        File tempFile = new File(directory, initName() + TEMP_SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        try {
+            file.setLength(0);
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(file.getChannel(), !muteMic,
+                    FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US);
+            writer.setVideoFormat(videoFormat);
+            writer.setAudioFormat(audioFormat);
+            writer.switchChannel(next);
+            file.getChannel().force(false);
+            fmp4Writer = writer;
+        } finally {
+            file.close();
+        }
+        rename(tempFile, initFile);
+    }
+
+    /**
+     * 关闭当前分段文件，改为正式文件名后更新播放列表
+     */
+    private void publishSegment(long startUs, long durationUs, boolean endList) {
+        try {
+            segmentFile.getChannel().force(false);
+        } catch (IOException e) {
+            ELog.e(TAG, "sync segment failed:" + e.getMessage());
+        }
+        closeQuietly(segmentFile);
+        segmentFile = null;
+        try {
+            rename(segmentTempFile, new File(directory, segmentName));
+        } catch (IOException e) {
+            ELog.e(TAG, e.getMessage());
+            return;
+        }
+        long endUs = startUs + durationUs;
+        //EXTINF四舍五入后不能超过EXT-X-TARGETDURATION
+        if ((durationUs + 500000) / 1000000 > targetDurationSec) {
+            ELog.w(TAG, "segment " + segmentName + " longer than target duration:" + durationUs);
+        }
+        segments.add(new Segment(segmentName, durationUs));
+        deleteRetiredSegments(endUs);
+        if (playlistSize > 0) {
+            while (segments.size() > playlistSize) {
+                Segment removed = segments.remove(0);
+                removed.retiredUs = endUs;
+                retiredSegments.add(removed);
+                mediaSequence++;
+            }
+        }
+        try {
+            writePlaylist(endList);
+        } catch (IOException e) {
+            ELog.e(TAG, "write playlist failed:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 删除滑出窗口超过一个目标时长的分段，之后不会再有播放器请求，限制磁盘占用
+     */
+    private void deleteRetiredSegments(long nowUs) {
+        while (!retiredSegments.isEmpty()
+                && nowUs - retiredSegments.get(0).retiredUs >= targetDurationSec * 1000000) {
+            deleteSegment(retiredSegments.remove(0));
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        if (!new File(directory, segment.name).delete()) {
+            ELog.w(TAG, "delete segment failed:" + segment.name);
+        }
+    }
+
+    /**
+     * 先写临时文件再改名，读取方看到的播放列表总是完整的
+     */
+    private void writePlaylist(boolean endList) throws IOException {
+        StringBuilder sb = playlist;
+        sb.setLength(0);
+        sb.append("#EXTM3U\n");
+        //EXT-X-MAP用于非I帧列表需要版本7
+        sb.append("#EXT-X-VERSION:").append(fragmented ? 7 : 3).append('\n');
+        sb.append("#EXT-X-TARGETDURATION:").append(targetDurationSec).append('\n');
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(mediaSequence).append('\n');
+        if (playlistSize == 0) {
+            sb.append("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+        }
+        sb.append("#EXT-X-INDEPENDENT-SEGMENTS\n");
+        if (fragmented) {
+            sb.append("#EXT-X-MAP:URI=\"").append(initName()).append("\"\n");
+        }
+        for (Segment segment : segments) {
+            sb.append("#EXTINF:").append(String.format(Locale.US, "%.3f", segment.durationUs / 1000000.0))
+                    .append(",\n");
+            sb.append(segment.name).append('\n');
+        }
+        if (endList) {
+            sb.append("#EXT-X-ENDLIST\n");
+        }
+        File tempFile = new File(playlistFile.getPath() + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(sb.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        rename(tempFile, playlistFile);
+    }
+
+    private String initName() {
+        return baseName + "_init.mp4";
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("rename " + from + " to " + to + " failed");
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file == null) return;
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        ELog.i(TAG, "onVideoEncoderStop. trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        ELog.i(TAG, "onAudioEncoderStop: trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    private void stopMuxer() {
+        synchronized (lock) {
+            trackCount--;
+            ELog.i(TAG, "stopMuxer trackCount:" + trackCount);
+            if (trackCount <= 0) {
+                release();
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            ELog.i(TAG, "start release hls muxer");
+            if (tsMuxer != null) {
+                //只写出暂存的TS包，channel由这里关闭
+                tsMuxer.release();
+            }
+            if (fmp4Writer != null) {
+                try {
+                    fmp4Writer.finish();
+                } catch (IOException e) {
+                    ELog.e(TAG, "finish fmp4 segment failed:" + e.getMessage());
+                }
+            }
+            if (segmentFile != null) {
+                //最后一帧的时长按前一帧间隔估算
+                publishSegment(segmentStartUs, lastVideoUs - segmentStartUs + lastFrameIntervalUs, true);
+            }
+            //录制结束后不会再有删除的时机，等待删除的分段直接删除
+            for (Segment segment : retiredSegments) {
+                deleteSegment(segment);
+            }
+            retiredSegments.clear();
+            ELog.i(TAG, "release hls muxer success. segments:" + nextSequence);
+        }
+    }
+
+    private static final class Segment {
+        final String name;
+        final long durationUs;
+        //滑出播放列表窗口的时间，-1表示还在窗口中
+        long retiredUs = -1;
+
+        Segment(String name, long durationUs) {
+            this.name = name;
+            this.durationUs = durationUs;
+        }
+    }
+}
@@ -4,6 +4,8 @@ package com.gpufast.recorder.muxer;
 import com.gpufast.recorder.audio.encoder.AudioEncoder;
 import com.gpufast.recorder.video.VideoEncoder;
 
+import java.io.IOException;
+
 
 /**
  * 视频复用器
@@ -13,12 +15,41 @@ public abstract class IMediaMuxer implements VideoEncoder.VideoEncoderCallback,
 
     static class Setting {
         String savePath;
+        //不为null时输出到sink而不是savePath，sink由调用者关闭
+        MuxerSink sink;
         boolean muteMic;
+        //音视频交织的最大等待窗口(微秒)
+        long interleaveWindowUs = SampleInterleaver.DEFAULT_WINDOW_US;
+        //faststart MP4为moov预留的字节数
+        long moovReserveBytes;
+        //崩溃恢复日志的同步周期(毫秒)，0表示不写日志
+        long journalSyncIntervalMs;
+        //HLS分段的目标时长(微秒)
+        long segmentDurationUs;
+        //HLS播放列表保留的分段数，0表示保留全部
+        int playlistSize;
+        //视频编码器的关键帧间隔(微秒)，HLS用来确定分段的最大时长，0表示未知
+        long keyFrameIntervalUs;
+        //输出到savePath时预分配的文件大小，0表示不预分配
+        long preallocateBytes;
+        //即时回放保留的时长(微秒)
+        long replayDurationUs;
+        //即时回放环形缓冲的大小
+        int replayBufferBytes;
+        //即时回放缓冲最多保存的sample数
+        int replayMaxSamples;
 
         Setting(String savePath, boolean muteMic) {
             this.savePath = savePath;
             this.muteMic = muteMic;
         }
+
+        /**
+         * 打开输出：设置了sink时直接返回，否则创建savePath文件，由复用器关闭
+         */
+        MuxerSink openSink() throws IOException {
+            return sink != null ? sink : FileSink.open(savePath, preallocateBytes);
+        }
     }
 
     abstract void release();
@@ -1,20 +1,200 @@
 package com.gpufast.recorder.muxer;
 
+import com.gpufast.logger.ELog;
 import com.gpufast.recorder.RecordParams;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class MediaMuxerFactory {
+    private static final String TAG = MediaMuxerFactory.class.getSimpleName();
+
+    //按码率估算即时回放缓冲时的上限
+    private static final long MAX_REPLAY_BUFFER_BYTES = 256L * 1024 * 1024;
 
+    /**
+     * 创建复用器，设置了额外输出时返回把编码数据分发给所有输出的{@link TeeMuxer}
+     */
     public static IMediaMuxer createMediaMuxer(RecordParams params, MuxerType type) {
+        return createMediaMuxer(params, type, null);
+    }
+
+    /**
+     * @param splitListener 自动分文件时主输出每写完一个文件回调一次，可以为null
+     */
+    public static IMediaMuxer createMediaMuxer(RecordParams params, MuxerType type,
+                                               SplitMuxer.Listener splitListener) {
+        return withSpillQueue(params, withExtraOutputs(params,
+                createOutput(params, type, params.getSavePath(), params.getOutputSink(), splitListener)));
+    }
+
+    /**
+     * 即时回放模式：主输出是内存中的replay，不写savePath，额外输出照常创建
+     */
+    public static IMediaMuxer createMediaMuxer(RecordParams params, ReplayMuxer replay) {
+        return withExtraOutputs(params, replay);
+    }
+
+    /**
+     * 创建即时回放的环形缓冲，没有设置{@link RecordParams.Builder#setReplayDurationMs(int)}时返回null
+     */
+    public static ReplayMuxer createReplayMuxer(RecordParams params) {
+        if (params == null || !params.isReplayEnabled()) return null;
+        IMediaMuxer.Setting setting = new IMediaMuxer.Setting(params.getSavePath(), params.isMuteMic());
+        //按GOP淘汰，除了保留时长还要能放下一个GOP
+        long keepMs = params.getReplayDurationMs() + params.getKeyFrameIntervalSec() * 1000L;
+        long bufferBytes = params.getReplayBufferBytes();
+        if (bufferBytes <= 0) {
+            bufferBytes = Math.min(MAX_REPLAY_BUFFER_BYTES, params.estimateBytesPerSecond() * keepMs / 1000 * 5 / 4);
+        }
+        long samplesPerSecond = params.getVideoFrameRate() + 1;
+        if (!params.isMuteMic()) {
+            samplesPerSecond += params.getAudioSampleRate() / 1024 + 1;
+        }
+        setting.replayDurationUs = params.getReplayDurationMs() * 1000L;
+        setting.replayBufferBytes = (int) bufferBytes;
+        setting.replayMaxSamples = (int) (samplesPerSecond * keepMs / 1000 * 5 / 4);
+        return new ReplayMuxer(setting);
+    }
+
+    /**
+     * 设置了溢出目录时在编码器和复用器之间加{@link SpillMuxer}
+     */
+    private static IMediaMuxer withSpillQueue(RecordParams params, IMediaMuxer muxer) {
+        if (muxer == null || params.getSpillDir() == null) {
+            return muxer;
+        }
+        return new SpillMuxer(createMuxerSetting(params, params.getSavePath()), muxer,
+                params.getSpillMemoryBytes(), params.getSpillDir());
+    }
+
+    private static IMediaMuxer withExtraOutputs(RecordParams params, IMediaMuxer main) {
+        List<RecordParams.Output> outputs = params.getExtraOutputs();
+        if (outputs.isEmpty()) {
+            return main;
+        }
+        List<IMediaMuxer> muxers = new ArrayList<>(outputs.size() + 1);
+        if (main != null) {
+            muxers.add(main);
+        }
+        for (RecordParams.Output output : outputs) {
+            IMediaMuxer muxer = createOutput(params, output.muxerType, output.savePath, null, null);
+            if (muxer != null) {
+                muxers.add(muxer);
+            }
+        }
+        if (muxers.size() == 1) {
+            return muxers.get(0);
+        }
+        return muxers.isEmpty() ? null : new TeeMuxer(muxers, params.isMuteMic());
+    }
+
+    /**
+     * 设置了文件大小或时长上限时用{@link SplitMuxer}包装，HLS本身就是分段的，输出到sink时不分文件
+     */
+    private static IMediaMuxer createOutput(final RecordParams params, final MuxerType type, String savePath,
+                                            MuxerSink sink, SplitMuxer.Listener splitListener) {
+        if (!params.isSplitEnabled() || sink != null || type == MuxerType.HLS_TS || type == MuxerType.HLS_FMP4) {
+            return createMediaMuxer(params, type, savePath, sink);
+        }
+        return new SplitMuxer(createMuxerSetting(params, savePath), params.getMaxFileBytes(),
+                params.getMaxFileDurationMs() * 1000L, new SplitMuxer.Creator() {
+            @Override
+            public IMediaMuxer create(String path) {
+                return createMediaMuxer(params, type, path, null);
+            }
+        }, splitListener);
+    }
+
+    /**
+     * @param sink 不为null时输出到sink，MP4(MediaMuxer)和HLS只能输出到文件，忽略sink
+     */
+    private static IMediaMuxer createMediaMuxer(RecordParams params, MuxerType type, String savePath,
+                                                MuxerSink sink) {
+        if (sink != null && (type == MuxerType.MP4 || type == MuxerType.HLS_TS || type == MuxerType.HLS_FMP4)) {
+            ELog.w(TAG, type + " can not write to sink, use savePath:" + savePath);
+            sink = null;
+        }
         switch (type) {
             case MP4:
-                return Mp4MuxerCreator.create(params);
+                return Mp4MuxerCreator.create(params, savePath);
+            case MP4_FASTSTART:
+                return new FastStartMp4Muxer(withSink(createFastStartSetting(params, savePath), sink));
+            case FMP4:
+                return new FragmentedMp4Muxer(withSink(createMuxerSetting(params, savePath), sink));
             case FLV:
+                return new FlvMuxer(withSink(createMuxerSetting(params, savePath), sink));
+            case TS:
+                return new TsMuxer(withSink(createMuxerSetting(params, savePath), sink));
+            case HLS_TS:
+                return new HlsMuxer(createHlsSetting(params, savePath), false);
+            case HLS_FMP4:
+                return new HlsMuxer(createHlsSetting(params, savePath), true);
             case MKV:
+                return new MkvMuxer(withSink(createMuxerSetting(params, savePath), sink));
             case AVI:
                 return null;
         }
         return null;
     }
 
+    private static IMediaMuxer.Setting withSink(IMediaMuxer.Setting setting, MuxerSink sink) {
+        if (setting != null) {
+            setting.sink = sink;
+        }
+        return setting;
+    }
+
+    private static IMediaMuxer.Setting createMuxerSetting(RecordParams params, String savePath) {
+        if (params == null) return null;
+        IMediaMuxer.Setting setting = new IMediaMuxer.Setting(savePath, params.isMuteMic());
+        setting.interleaveWindowUs = params.getInterleaveWindowMs() * 1000L;
+        if (params.isPreallocate() && fileTimeMs(params) > 0) {
+            setting.preallocateBytes = params.estimateBytesPerSecond() * fileTimeMs(params) / 1000;
+            if (params.getMaxFileBytes() > 0) {
+                setting.preallocateBytes = Math.min(setting.preallocateBytes, params.getMaxFileBytes());
+            }
+        }
+        return setting;
+    }
+
+    /**
+     * @return 单个文件的预计时长，自动分文件时不超过时长上限，也不超过按码率写满大小上限的时长
+     */
+    private static int fileTimeMs(RecordParams params) {
+        int timeMs = params.getAllTime();
+        if (params.getMaxFileDurationMs() > 0 && (timeMs <= 0 || timeMs > params.getMaxFileDurationMs())) {
+            timeMs = params.getMaxFileDurationMs();
+        }
+        long bytesPerSecond = params.estimateBytesPerSecond();
+        if (params.getMaxFileBytes() > 0 && bytesPerSecond > 0) {
+            long sizeTimeMs = Math.min(Integer.MAX_VALUE, params.getMaxFileBytes() * 1000 / bytesPerSecond);
+            if (timeMs <= 0 || timeMs > sizeTimeMs) {
+                timeMs = (int) Math.max(1, sizeTimeMs);
+            }
+        }
+        return timeMs;
+    }
+
+    private static IMediaMuxer.Setting createFastStartSetting(RecordParams params, String savePath) {
+        IMediaMuxer.Setting setting = createMuxerSetting(params, savePath);
+        if (setting != null) {
+            setting.moovReserveBytes = FastStartMp4Writer.estimateMoovBytes(fileTimeMs(params),
+                    params.getVideoFrameRate(), params.getAudioSampleRate(), !params.isMuteMic());
+            setting.journalSyncIntervalMs = params.getJournalSyncIntervalMs();
+        }
+        return setting;
+    }
+
+    private static IMediaMuxer.Setting createHlsSetting(RecordParams params, String savePath) {
+        IMediaMuxer.Setting setting = createMuxerSetting(params, savePath);
+        if (setting != null) {
+            setting.segmentDurationUs = params.getHlsSegmentDurationMs() * 1000L;
+            setting.playlistSize = params.getHlsPlaylistSize();
+            //和编码器使用同一个关键帧间隔，见RecordParams#getKeyFrameIntervalSec
+            setting.keyFrameIntervalUs = params.getKeyFrameIntervalSec() * 1000000L;
+        }
+        return setting;
+    }
 
 }
@@ -0,0 +1,169 @@
+package com.gpufast.recorder.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * 输出到内存，数据放在可扩容的direct buffer中，用于应用内上传或预览
+ * 容量不够时按两倍扩容，最大2GB。关闭后数据仍然可以通过{@link #asReadOnlyBuffer()}读取。
+ * 非线程安全，复用器还在写入时读取需要调用者自行同步；{@link #force()}什么都不做，可以在任意线程调用。
+ */
+public final class MemorySink implements MuxerSink {
+
+    private static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private ByteBuffer buffer;
+    //已写入数据的长度
+    private int size = 0;
+    private long position = 0;
+    private boolean open = true;
+
+    public MemorySink() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity 初始容量，预计的输出大小已知时可以避免扩容
+     */
+    public MemorySink(int initialCapacity) {
+        buffer = ByteBuffer.allocateDirect(Math.max(initialCapacity, 64));
+    }
+
+    /**
+     * @return 已写入数据的长度
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return [0, size)的只读视图，和sink共用内存，sink扩容后不再同步
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(size);
+        view.position(0);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public MuxerSink position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int n = write(src, position);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        ensureOpen();
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+        }
+        ensureCapacity(position + total);
+        for (int i = offset; i < offset + length; i++) {
+            put(srcs[i], (int) position);
+            position += srcs[i].remaining();
+            srcs[i].position(srcs[i].limit());
+        }
+        return total;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        ensureOpen();
+        int n = src.remaining();
+        ensureCapacity(position + n);
+        put(src, (int) position);
+        src.position(src.limit());
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int n = (int) Math.min(dst.remaining(), size - position);
+        ByteBuffer view = buffer.duplicate();
+        view.limit((int) position + n);
+        view.position((int) position);
+        dst.put(view);
+        return n;
+    }
+
+    @Override
+    public void force() {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    /**
+     * 把src的剩余部分拷贝到at处，不改变src的position
+     */
+    private void put(ByteBuffer src, int at) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(at);
+        target.put(src.duplicate());
+        size = Math.max(size, at + src.remaining());
+    }
+
+    private void ensureCapacity(long end) throws IOException {
+        if (end <= buffer.capacity()) {
+            return;
+        }
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException("memory sink is full");
+        }
+        long newCapacity = Math.min(Integer.MAX_VALUE, Math.max((long) buffer.capacity() * 2, end));
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect((int) newCapacity);
+        ByteBuffer old = buffer.duplicate();
+        old.limit(size);
+        old.position(0);
+        newBuffer.put(old);
+        newBuffer.clear();
+        buffer = newBuffer;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
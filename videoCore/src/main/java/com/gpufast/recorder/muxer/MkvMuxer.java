@@ -0,0 +1,534 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Matroska(MKV)流式复用器
+ * Segment和Cluster都使用未知长度写出，录制过程中只追加不回写，中途被杀死文件仍然可以播放；
+ * Cluster从视频关键帧开始，关键帧间隔过长时按{@link #MAX_CLUSTER_DURATION_MS}切分。
+ * SimpleBlock头部来自预分配的direct buffer，sample数据直接从编码器输出的buffer写出。
+ * Cues只在结束时写出，输出为文件时再回填时长和SeekHead。
+ */
+public class MkvMuxer extends IMediaMuxer {
+    private static final String TAG = MkvMuxer.class.getSimpleName();
+
+    private static final int VIDEO_TRACK = 1;
+    private static final int AUDIO_TRACK = 2;
+
+    //SimpleBlock的相对时间戳是int16，Cluster时长必须小于32.767秒
+    private static final int MAX_CLUSTER_DURATION_MS = 5000;
+    //ID(1) + size(4) + track(1) + timecode(2) + flags(1)
+    private static final int BLOCK_HEADER_SIZE = 9;
+    private static final int BLOCK_SIZE_LENGTH = 4;
+    private static final int FLAG_KEY_FRAME = 0x80;
+    //为SeekHead预留的空间
+    private static final int SEEK_HEAD_RESERVED = 96;
+
+    //音频格式就绪之前到达的视频帧暂存在这里，超出上限时丢弃并等待下一个关键帧
+    private static final int PENDING_LIMIT_BYTES = 4 * 1024 * 1024;
+    private static final int PENDING_LIMIT_SAMPLES = 256;
+
+    private static final String APP_NAME = "gpufast";
+
+    private final Object lock = new Object();
+
+    //自己打开的输出，release时关闭
+    private MuxerSink ownedSink;
+    private GatheringByteChannel channel;
+
+    private final EbmlWriter ebml = new EbmlWriter(1024);
+    private final ByteBuffer blockHeader = ByteBuffer.allocateDirect(BLOCK_HEADER_SIZE);
+    private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+    private final AvccChannelWriter avccWriter = new AvccChannelWriter();
+
+    private TrackFormat videoFormat;
+    private TrackFormat audioFormat;
+
+    private boolean muteMic;
+    private int trackCount;
+    private boolean headerWritten = false;
+    private boolean waitKeyFrame = true;
+    private boolean released = false;
+    private long originUs = -1;
+
+    //已经写出的字节数，即当前写入位置
+    private long written = 0;
+    private long segmentDataStart;
+    private long durationPosition;
+    private long seekHeadPosition;
+    private long infoPosition;
+    private long tracksPosition;
+
+    private long clusterTimeMs = -1;
+    private long lastTimeMs = 0;
+
+    private long[] cueTimes = new long[64];
+    private long[] cuePositions = new long[64];
+    private int cueCount = 0;
+
+    private ByteBuffer pendingData;
+    private final long[] pendingTimes = new long[PENDING_LIMIT_SAMPLES];
+    private final int[] pendingSizes = new int[PENDING_LIMIT_SAMPLES];
+    private final boolean[] pendingKeys = new boolean[PENDING_LIMIT_SAMPLES];
+    private int pendingCount = 0;
+
+    MkvMuxer(Setting setting) {
+        this(null, setting != null && setting.muteMic);
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        try {
+            MuxerSink sink = setting.openSink();
+            ownedSink = setting.sink == null ? sink : null;
+            channel = sink;
+        } catch (IOException e) {
+            ELog.e(TAG, "Init MkvMuxer:" + e.getMessage());
+            channel = null;
+        }
+    }
+
+    /**
+     * 输出到指定的channel，channel必须是阻塞模式，由调用者负责关闭。
+     * 不是{@link FileChannel}或可寻址的{@link MuxerSink}时结束后不会回填时长和SeekHead
+     */
+    public MkvMuxer(GatheringByteChannel channel, boolean muteMic) {
+        this.channel = channel;
+        this.muteMic = muteMic;
+        trackCount = muteMic ? 1 : 2;
+        ELog.i(TAG, "init muxer trackCount:" + trackCount);
+    }
+
+    /**
+     * 直接设置视频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setVideoTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (videoFormat != null || format == null) return;
+            videoFormat = format;
+            writeHeaderIfReady();
+        }
+    }
+
+    /**
+     * 直接设置音频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setAudioTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (audioFormat != null || format == null || muteMic) return;
+            audioFormat = format;
+            writeHeaderIfReady();
+        }
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        ELog.i(TAG, "onUpdateVideoMediaFormat" + mediaFormat);
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported video format");
+            return;
+        }
+        setVideoTrackFormat(format);
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        if (muteMic) return;
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported audio format");
+            return;
+        }
+        setAudioTrackFormat(format);
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        if (frame.bufferInfo != null
+                && (frame.bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        boolean keyFrame = frame.frameType == EncodedImage.FrameType.VideoFrameKey;
+        synchronized (lock) {
+            if (channel == null || released || videoFormat == null) return;
+            if (waitKeyFrame && !keyFrame) return;
+            waitKeyFrame = false;
+            long timeMs = toTimestampMs(frame.bufferInfo.presentationTimeUs);
+            try {
+                if (headerWritten) {
+                    writeVideoBlock(frame.buffer, timeMs, keyFrame);
+                } else {
+                    stageVideoFrame(frame.buffer, timeMs, keyFrame);
+                }
+            } catch (IOException e) {
+                ELog.e(TAG, "write video block failed:" + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            //音频格式就绪即写出头部，之前不会有音频数据
+            if (channel == null || released || !headerWritten) return;
+            ByteBuffer buffer = frame.buffer;
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            try {
+                writeAudioBlock(buffer, toTimestampMs(info.presentationTimeUs));
+            } catch (IOException e) {
+                ELog.e(TAG, "write audio block failed:" + e.getMessage());
+            }
+        }
+    }
+
+    private long toTimestampMs(long presentationTimeUs) {
+        if (originUs < 0) {
+            originUs = presentationTimeUs;
+        }
+        return Math.max(0, presentationTimeUs - originUs) / 1000;
+    }
+
+    /**
+     * 音频格式就绪之前把视频帧转换成AVCC格式暂存，数据量有上限
+     */
+    private void stageVideoFrame(ByteBuffer frame, long timeMs, boolean keyFrame) {
+        int size = NalUnits.avccSize(frame);
+        if (size == 0) return;
+        if (pendingData == null) {
+            pendingData = ByteBuffer.allocateDirect(PENDING_LIMIT_BYTES);
+        }
+        if (pendingCount == PENDING_LIMIT_SAMPLES || pendingData.remaining() < size) {
+            ELog.w(TAG, "audio format not ready, drop " + pendingCount + " pending video frames");
+            pendingData.clear();
+            pendingCount = 0;
+            if (!keyFrame || size > pendingData.capacity()) {
+                waitKeyFrame = true;
+                return;
+            }
+        }
+        NalUnits.copyAsAvcc(frame, pendingData);
+        pendingTimes[pendingCount] = timeMs;
+        pendingSizes[pendingCount] = size;
+        pendingKeys[pendingCount] = keyFrame;
+        pendingCount++;
+    }
+
+    private void flushPendingFrames() throws IOException {
+        if (pendingData == null) return;
+        pendingData.flip();
+        int offset = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            pendingData.limit(offset + pendingSizes[i]);
+            pendingData.position(offset);
+            writeVideoBlock(pendingData, pendingTimes[i], pendingKeys[i]);
+            offset += pendingSizes[i];
+        }
+        pendingCount = 0;
+        pendingData = null;
+    }
+
+    private void writeHeaderIfReady() {
+        if (channel == null || released || headerWritten) return;
+        if (videoFormat == null || (!muteMic && audioFormat == null)) return;
+        try {
+            writeHeader();
+            headerWritten = true;
+            flushPendingFrames();
+        } catch (IOException e) {
+            ELog.e(TAG, "write mkv header failed:" + e.getMessage());
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        EbmlWriter w = ebml;
+        w.reset();
+        w.begin(MkvIds.EBML);
+        w.putUInt(MkvIds.EBML_VERSION, 1);
+        w.putUInt(MkvIds.EBML_READ_VERSION, 1);
+        w.putUInt(MkvIds.EBML_MAX_ID_LENGTH, 4);
+        w.putUInt(MkvIds.EBML_MAX_SIZE_LENGTH, 8);
+        w.putString(MkvIds.DOC_TYPE, "matroska");
+        w.putUInt(MkvIds.DOC_TYPE_VERSION, 4);
+        w.putUInt(MkvIds.DOC_TYPE_READ_VERSION, 2);
+        w.end();
+
+        w.beginUnknownSize(MkvIds.SEGMENT);
+        int segmentStart = w.position();
+
+        int seekHeadStart = w.position();
+        w.putVoid(SEEK_HEAD_RESERVED);
+
+        int infoStart = w.position();
+        w.begin(MkvIds.INFO);
+        //时间单位为毫秒
+        w.putUInt(MkvIds.TIMECODE_SCALE, 1000000);
+        w.putString(MkvIds.MUXING_APP, APP_NAME);
+        w.putString(MkvIds.WRITING_APP, APP_NAME);
+        int durationStart = w.putFloat(MkvIds.DURATION, 0);
+        w.end();
+
+        int tracksStart = w.position();
+        w.begin(MkvIds.TRACKS);
+        writeTrackEntry(w, VIDEO_TRACK, videoFormat);
+        if (!muteMic) {
+            writeTrackEntry(w, AUDIO_TRACK, audioFormat);
+        }
+        w.end();
+
+        long base = written;
+        segmentDataStart = base + segmentStart;
+        seekHeadPosition = base + seekHeadStart;
+        infoPosition = base + infoStart;
+        durationPosition = base + durationStart;
+        tracksPosition = base + tracksStart;
+        writeFully(w.flip());
+    }
+
+    private static void writeTrackEntry(EbmlWriter w, int trackNumber, TrackFormat format) {
+        w.begin(MkvIds.TRACK_ENTRY);
+        w.putUInt(MkvIds.TRACK_NUMBER, trackNumber);
+        w.putUInt(MkvIds.TRACK_UID, trackNumber);
+        w.putUInt(MkvIds.FLAG_LACING, 0);
+        w.putString(MkvIds.LANGUAGE, "und");
+        if (format.isVideo) {
+            w.putUInt(MkvIds.TRACK_TYPE, MkvIds.TRACK_TYPE_VIDEO);
+            w.putString(MkvIds.CODEC_ID, MkvIds.CODEC_AVC);
+            w.putBytes(MkvIds.CODEC_PRIVATE, format.avcDecoderConfigurationRecord());
+            w.begin(MkvIds.VIDEO);
+            w.putUInt(MkvIds.PIXEL_WIDTH, format.width);
+            w.putUInt(MkvIds.PIXEL_HEIGHT, format.height);
+            w.end();
+        } else {
+            w.putUInt(MkvIds.TRACK_TYPE, MkvIds.TRACK_TYPE_AUDIO);
+            w.putString(MkvIds.CODEC_ID, MkvIds.CODEC_AAC);
+            w.putBytes(MkvIds.CODEC_PRIVATE, format.audioSpecificConfig);
+            w.begin(MkvIds.AUDIO);
+            w.putFloat(MkvIds.SAMPLING_FREQUENCY, format.sampleRate);
+            w.putUInt(MkvIds.CHANNELS, format.channelCount);
+            w.end();
+        }
+        w.end();
+    }
+
+    /**
+     * 视频关键帧、时长超出上限或者相对时间戳溢出时开始新的Cluster
+     */
+    private void startClusterIfNeeded(long timeMs, boolean videoKeyFrame) throws IOException {
+        if (clusterTimeMs >= 0) {
+            long relative = timeMs - clusterTimeMs;
+            boolean overflow = relative < Short.MIN_VALUE || relative >= MAX_CLUSTER_DURATION_MS;
+            if (!videoKeyFrame && !overflow) {
+                return;
+            }
+        }
+        long clusterPosition = written - segmentDataStart;
+        if (videoKeyFrame) {
+            addCue(timeMs, clusterPosition);
+        }
+        EbmlWriter w = ebml;
+        w.reset();
+        w.beginUnknownSize(MkvIds.CLUSTER);
+        w.putUInt(MkvIds.TIMECODE, timeMs);
+        writeFully(w.flip());
+        clusterTimeMs = timeMs;
+    }
+
+    private void addCue(long timeMs, long clusterPosition) {
+        if (cueCount == cueTimes.length) {
+            long[] times = new long[cueCount * 2];
+            long[] positions = new long[cueCount * 2];
+            System.arraycopy(cueTimes, 0, times, 0, cueCount);
+            System.arraycopy(cuePositions, 0, positions, 0, cueCount);
+            cueTimes = times;
+            cuePositions = positions;
+        }
+        cueTimes[cueCount] = timeMs;
+        cuePositions[cueCount] = clusterPosition;
+        cueCount++;
+    }
+
+    private void writeVideoBlock(ByteBuffer frame, long timeMs, boolean keyFrame) throws IOException {
+        int payloadSize = NalUnits.avccSize(frame);
+        if (payloadSize == 0) {
+            return;
+        }
+        startClusterIfNeeded(timeMs, keyFrame);
+        putBlockHeader(VIDEO_TRACK, timeMs, keyFrame, payloadSize);
+        avccWriter.write(channel, blockHeader, frame, null);
+        written += BLOCK_HEADER_SIZE + payloadSize;
+        lastTimeMs = Math.max(lastTimeMs, timeMs);
+    }
+
+    private void writeAudioBlock(ByteBuffer data, long timeMs) throws IOException {
+        int pos = data.position();
+        int payloadSize = data.remaining();
+        startClusterIfNeeded(timeMs, false);
+        putBlockHeader(AUDIO_TRACK, timeMs, true, payloadSize);
+        gatherBuffers[0] = blockHeader;
+        gatherBuffers[1] = data;
+        try {
+            writeFully(gatherBuffers, 2);
+        } finally {
+            data.position(pos);
+            gatherBuffers[0] = null;
+            gatherBuffers[1] = null;
+        }
+        lastTimeMs = Math.max(lastTimeMs, timeMs);
+    }
+
+    private void putBlockHeader(int track, long timeMs, boolean keyFrame, int payloadSize) {
+        ByteBuffer header = blockHeader;
+        header.clear();
+        header.put((byte) MkvIds.SIMPLE_BLOCK);
+        int blockSize = 4 + payloadSize;
+        header.putInt((1 << (BLOCK_SIZE_LENGTH * 7)) | blockSize);
+        header.put((byte) (0x80 | track));
+        header.putShort((short) (timeMs - clusterTimeMs));
+        header.put((byte) (keyFrame ? FLAG_KEY_FRAME : 0));
+        header.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        written += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int length) throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < length; i++) {
+            remaining += buffers[i].remaining();
+        }
+        written += remaining;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers, 0, length);
+        }
+    }
+
+    /**
+     * 结束时写出Cues；输出为文件时回填时长并把占位的Void替换为SeekHead
+     */
+    private void finish() throws IOException {
+        if (!headerWritten) return;
+        long cuesPosition = written;
+        EbmlWriter w = ebml;
+        w.reset();
+        w.begin(MkvIds.CUES);
+        for (int i = 0; i < cueCount; i++) {
+            w.begin(MkvIds.CUE_POINT);
+            w.putUInt(MkvIds.CUE_TIME, cueTimes[i]);
+            w.begin(MkvIds.CUE_TRACK_POSITIONS);
+            w.putUInt(MkvIds.CUE_TRACK, VIDEO_TRACK);
+            w.putUInt(MkvIds.CUE_CLUSTER_POSITION, cuePositions[i]);
+            w.end();
+            w.end();
+        }
+        w.end();
+        writeFully(w.flip());
+
+        MuxerSink sink = seekableSink();
+        if (sink == null) return;
+
+        ByteBuffer duration = ByteBuffer.allocate(8);
+        duration.putDouble(lastTimeMs);
+        duration.flip();
+        writeFully(sink, duration, durationPosition);
+
+        w.reset();
+        w.begin(MkvIds.SEEK_HEAD);
+        putSeek(w, MkvIds.INFO, infoPosition - segmentDataStart);
+        putSeek(w, MkvIds.TRACKS, tracksPosition - segmentDataStart);
+        putSeek(w, MkvIds.CUES, cuesPosition - segmentDataStart);
+        w.end();
+        w.putVoid(SEEK_HEAD_RESERVED - w.position());
+        writeFully(sink, w.flip(), seekHeadPosition);
+    }
+
+    /**
+     * @return 可以回写的输出，不支持时返回null
+     */
+    private MuxerSink seekableSink() {
+        if (channel instanceof MuxerSink) {
+            MuxerSink sink = (MuxerSink) channel;
+            return sink.isSeekable() ? sink : null;
+        }
+        //调用者直接传入的文件，只用来回写，不会被关闭
+        return channel instanceof FileChannel ? new FileSink((FileChannel) channel) : null;
+    }
+
+    private static void putSeek(EbmlWriter w, int id, long position) {
+        w.begin(MkvIds.SEEK);
+        w.putId(MkvIds.SEEK_ID);
+        w.putSize(EbmlWriter.idLength(id));
+        w.putId(id);
+        w.putUInt(MkvIds.SEEK_POSITION, position);
+        w.end();
+    }
+
+    private static void writeFully(MuxerSink sink, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += sink.write(buffer, position);
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        ELog.i(TAG, "onVideoEncoderStop. trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        ELog.i(TAG, "onAudioEncoderStop: trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    private void stopMuxer() {
+        synchronized (lock) {
+            trackCount--;
+            ELog.i(TAG, "stopMuxer trackCount:" + trackCount);
+            if (trackCount <= 0) {
+                release();
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            ELog.i(TAG, "start release mkv muxer");
+            try {
+                if (channel != null) {
+                    finish();
+                }
+            } catch (IOException e) {
+                ELog.e(TAG, "finish mkv failed:" + e.getMessage());
+            }
+            try {
+                if (ownedSink != null) {
+                    ownedSink.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            ELog.i(TAG, "release mkv muxer success");
+        }
+    }
+}
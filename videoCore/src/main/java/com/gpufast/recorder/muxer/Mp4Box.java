@@ -0,0 +1,111 @@
+package com.gpufast.recorder.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 文件中的一个box(位置和大小)，用于在不读入数据的情况下遍历MP4结构
+ */
+final class Mp4Box {
+
+    final int type;
+    //box在文件中的起始位置(含头部)
+    final long offset;
+    //box总大小(含头部)
+    final long size;
+    final int headerSize;
+
+    Mp4Box(int type, long offset, long size, int headerSize) {
+        this.type = type;
+        this.offset = offset;
+        this.size = size;
+        this.headerSize = headerSize;
+    }
+
+    long end() {
+        return offset + size;
+    }
+
+    long dataOffset() {
+        return offset + headerSize;
+    }
+
+    /**
+     * 列出文件顶层的所有box
+     *
+     * @throws IOException box大小不合法或文件被截断
+     */
+    static List<Mp4Box> scanTopLevel(FileChannel channel) throws IOException {
+        List<Mp4Box> boxes = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long fileSize = channel.size();
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            long size = header.getInt() & 0xFFFFFFFFL;
+            int type = header.getInt();
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.remaining() < 8) {
+                    throw new IOException("truncated box header at " + position);
+                }
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                throw new IOException("invalid box " + typeName(type) + " at " + position + " size " + size);
+            }
+            boxes.add(new Mp4Box(type, position, size, headerSize));
+            position += size;
+        }
+        return boxes;
+    }
+
+    static Mp4Box find(List<Mp4Box> boxes, int type) {
+        for (Mp4Box box : boxes) {
+            if (box.type == type) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 读入整个box(含头部)
+     */
+    static ByteBuffer read(FileChannel channel, Mp4Box box) throws IOException {
+        if (box.size > Integer.MAX_VALUE) {
+            throw new IOException("box too large " + typeName(box.type));
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) box.size);
+        readFully(channel, buffer, box.offset);
+        buffer.flip();
+        return buffer;
+    }
+
+    static String typeName(int type) {
+        char[] name = {(char) ((type >> 24) & 0xFF), (char) ((type >> 16) & 0xFF),
+                (char) ((type >> 8) & 0xFF), (char) (type & 0xFF)};
+        return new String(name);
+    }
+
+    /**
+     * 从position开始读满buffer，文件不足时读到结尾为止
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.gpufast.recorder.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MP4 box 写入工具
+ * 在一块可复用的direct buffer中按嵌套顺序写box，box结束时回填size。
+ * 非线程安全，由调用者保证同一时刻只有一个线程使用。
+ */
+final class Mp4BoxWriter {
+
+    private static final int MAX_DEPTH = 16;
+
+    private ByteBuffer buffer;
+    private final int[] boxStarts = new int[MAX_DEPTH];
+    private int depth = 0;
+
+    Mp4BoxWriter(int initialCapacity) {
+        buffer = ByteBuffer.allocateDirect(initialCapacity);
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    void reset() {
+        buffer.clear();
+        depth = 0;
+    }
+
+    int position() {
+        return buffer.position();
+    }
+
+    void begin(int type) {
+        ensure(8);
+        boxStarts[depth++] = buffer.position();
+        buffer.putInt(0);
+        buffer.putInt(type);
+    }
+
+    void beginFull(int type, int version, int flags) {
+        begin(type);
+        putInt((version << 24) | (flags & 0xFFFFFF));
+    }
+
+    void end() {
+        int start = boxStarts[--depth];
+        buffer.putInt(start, buffer.position() - start);
+    }
+
+    void put8(int value) {
+        ensure(1);
+        buffer.put((byte) value);
+    }
+
+    void put16(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+    }
+
+    void put24(int value) {
+        ensure(3);
+        buffer.put((byte) (value >> 16));
+        buffer.putShort((short) value);
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    void putInt(int index, int value) {
+        buffer.putInt(index, value);
+    }
+
+    void putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    void putLong(int index, long value) {
+        buffer.putLong(index, value);
+    }
+
+    void putBytes(byte[] src) {
+        ensure(src.length);
+        buffer.put(src);
+    }
+
+    /**
+     * 写入src中position..limit的数据，src的position保持不变
+     */
+    void putBytes(ByteBuffer src) {
+        ensure(src.remaining());
+        int pos = src.position();
+        buffer.put(src);
+        src.position(pos);
+    }
+
+    void putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    /**
+     * 写入单位矩阵(tkhd/mvhd)
+     */
+    void putUnityMatrix() {
+        putInt(0x00010000);
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putInt(0x00010000);
+        putInt(0);
+        putInt(0);
+        putInt(0);
+        putInt(0x40000000);
+    }
+
+    /**
+     * 返回已写入的数据，position=0，limit=已写入长度。
+     * 在下一次{@link #reset()}之前有效
+     */
+    ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        int newCapacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+}
@@ -0,0 +1,303 @@
+package com.gpufast.recorder.muxer;
+
+import static com.gpufast.recorder.muxer.Mp4BoxWriter.fourcc;
+
+/**
+ * MP4中各种写入方式(普通/分片/faststart)共用的box结构
+ */
+final class Mp4Boxes {
+
+    static final int FTYP = fourcc("ftyp");
+    static final int MOOV = fourcc("moov");
+    static final int MVHD = fourcc("mvhd");
+    static final int TRAK = fourcc("trak");
+    static final int TKHD = fourcc("tkhd");
+    static final int MDIA = fourcc("mdia");
+    static final int MDHD = fourcc("mdhd");
+    static final int HDLR = fourcc("hdlr");
+    static final int MINF = fourcc("minf");
+    static final int VMHD = fourcc("vmhd");
+    static final int SMHD = fourcc("smhd");
+    static final int EDTS = fourcc("edts");
+    static final int ELST = fourcc("elst");
+    static final int DINF = fourcc("dinf");
+    static final int DREF = fourcc("dref");
+    static final int URL = fourcc("url ");
+    static final int STBL = fourcc("stbl");
+    static final int STSD = fourcc("stsd");
+    static final int STTS = fourcc("stts");
+    static final int CTTS = fourcc("ctts");
+    static final int STSS = fourcc("stss");
+    static final int STSC = fourcc("stsc");
+    static final int STSZ = fourcc("stsz");
+    static final int STCO = fourcc("stco");
+    static final int CO64 = fourcc("co64");
+    static final int AVC1 = fourcc("avc1");
+    static final int AVCC = fourcc("avcC");
+    static final int MP4A = fourcc("mp4a");
+    static final int ESDS = fourcc("esds");
+    static final int MVEX = fourcc("mvex");
+    static final int TREX = fourcc("trex");
+    static final int MOOF = fourcc("moof");
+    static final int MFHD = fourcc("mfhd");
+    static final int TRAF = fourcc("traf");
+    static final int TFHD = fourcc("tfhd");
+    static final int TFDT = fourcc("tfdt");
+    static final int TRUN = fourcc("trun");
+    static final int MDAT = fourcc("mdat");
+    static final int FREE = fourcc("free");
+    static final int SKIP = fourcc("skip");
+    static final int WIDE = fourcc("wide");
+
+    static final int VIDE = fourcc("vide");
+    static final int SOUN = fourcc("soun");
+
+    //moov中mvhd使用的时间基(毫秒)
+    static final int MOVIE_TIMESCALE = 1000;
+
+    private Mp4Boxes() {
+    }
+
+    static void writeFtyp(Mp4BoxWriter w, boolean fragmented) {
+        w.begin(FTYP);
+        if (fragmented) {
+            w.putInt(fourcc("iso6"));
+            w.putInt(0);
+            w.putInt(fourcc("iso6"));
+            w.putInt(fourcc("cmfc"));
+            w.putInt(fourcc("mp41"));
+        } else {
+            w.putInt(fourcc("isom"));
+            w.putInt(0x200);
+            w.putInt(fourcc("isom"));
+            w.putInt(fourcc("iso2"));
+            w.putInt(fourcc("avc1"));
+            w.putInt(fourcc("mp41"));
+        }
+        w.end();
+    }
+
+    /**
+     * @param durationMs  影片时长(毫秒)，分片模式下为0
+     * @param nextTrackId 下一个可用的track id
+     */
+    static void writeMvhd(Mp4BoxWriter w, long durationMs, int nextTrackId) {
+        w.beginFull(MVHD, 1, 0);
+        w.putLong(0);
+        w.putLong(0);
+        w.putInt(MOVIE_TIMESCALE);
+        w.putLong(durationMs);
+        w.putInt(0x00010000);
+        w.put16(0x0100);
+        w.putZeros(10);
+        w.putUnityMatrix();
+        w.putZeros(24);
+        w.putInt(nextTrackId);
+        w.end();
+    }
+
+    /**
+     * 写入trak直到stbl中的stsd，调用者接着写入sample表，最后调用{@link #endTrak(Mp4BoxWriter)}
+     *
+     * @param durationMs    轨道时长(毫秒)
+     * @param mediaDuration 轨道时长(轨道时间基)
+     */
+    static void beginTrak(Mp4BoxWriter w, int trackId, TrackFormat format,
+                          long durationMs, long mediaDuration) {
+        beginTrak(w, trackId, format, durationMs, mediaDuration, 0, -1);
+    }
+
+    /**
+     * 同上，并写入编辑列表(edts/elst)
+     *
+     * @param durationMs  轨道在影片时间轴上的时长(毫秒)，包括emptyMs
+     * @param emptyMs     轨道开始显示前的空白(毫秒)，大于0时写一个空编辑
+     * @param mediaTime   开始显示的媒体时间(轨道时间基)，小于0时不写edts
+     */
+    static void beginTrak(Mp4BoxWriter w, int trackId, TrackFormat format,
+                          long durationMs, long mediaDuration, long emptyMs, long mediaTime) {
+        w.begin(TRAK);
+
+        w.beginFull(TKHD, 1, 0x7);
+        w.putLong(0);
+        w.putLong(0);
+        w.putInt(trackId);
+        w.putInt(0);
+        w.putLong(durationMs);
+        w.putZeros(8);
+        w.put16(0);
+        w.put16(format.isVideo ? 0 : 1);
+        w.put16(format.isVideo ? 0 : 0x0100);
+        w.put16(0);
+        w.putUnityMatrix();
+        w.putInt(format.width << 16);
+        w.putInt(format.height << 16);
+        w.end();
+
+        if (mediaTime >= 0) {
+            writeEditList(w, emptyMs, durationMs - emptyMs, mediaTime);
+        }
+
+        w.begin(MDIA);
+        w.beginFull(MDHD, 1, 0);
+        w.putLong(0);
+        w.putLong(0);
+        w.putInt(format.timescale());
+        w.putLong(mediaDuration);
+        //language: und
+        w.put16(0x55C4);
+        w.put16(0);
+        w.end();
+
+        w.beginFull(HDLR, 0, 0);
+        w.putInt(0);
+        w.putInt(format.isVideo ? VIDE : SOUN);
+        w.putZeros(12);
+        w.putBytes(format.isVideo ? "VideoHandler\0".getBytes() : "SoundHandler\0".getBytes());
+        w.end();
+
+        w.begin(MINF);
+        if (format.isVideo) {
+            w.beginFull(VMHD, 0, 1);
+            w.putZeros(8);
+            w.end();
+        } else {
+            w.beginFull(SMHD, 0, 0);
+            w.putInt(0);
+            w.end();
+        }
+        w.begin(DINF);
+        w.beginFull(DREF, 0, 0);
+        w.putInt(1);
+        w.beginFull(URL, 0, 1);
+        w.end();
+        w.end();
+        w.end();
+
+        w.begin(STBL);
+        w.beginFull(STSD, 0, 0);
+        w.putInt(1);
+        writeSampleEntry(w, format);
+        w.end();
+    }
+
+    /**
+     * 空编辑(media_time=-1)让轨道推迟emptyMs开始，各轨道起始时间不同时保持音视频同步
+     */
+    private static void writeEditList(Mp4BoxWriter w, long emptyMs, long durationMs, long mediaTime) {
+        w.begin(EDTS);
+        w.beginFull(ELST, 0, 0);
+        w.putInt(emptyMs > 0 ? 2 : 1);
+        if (emptyMs > 0) {
+            w.putInt((int) emptyMs);
+            w.putInt(-1);
+            w.putInt(0x00010000);
+        }
+        w.putInt((int) Math.max(0, durationMs));
+        w.putInt((int) mediaTime);
+        //media_rate 1.0
+        w.putInt(0x00010000);
+        w.end();
+        w.end();
+    }
+
+    /**
+     * 关闭{@link #beginTrak}打开的stbl/minf/mdia/trak
+     */
+    static void endTrak(Mp4BoxWriter w) {
+        w.end();
+        w.end();
+        w.end();
+        w.end();
+    }
+
+    /**
+     * 分片模式下moov里的sample表都是空的
+     */
+    static void writeEmptySampleTables(Mp4BoxWriter w) {
+        w.beginFull(STTS, 0, 0);
+        w.putInt(0);
+        w.end();
+        w.beginFull(STSC, 0, 0);
+        w.putInt(0);
+        w.end();
+        w.beginFull(STSZ, 0, 0);
+        w.putInt(0);
+        w.putInt(0);
+        w.end();
+        w.beginFull(STCO, 0, 0);
+        w.putInt(0);
+        w.end();
+    }
+
+    static void writeTrex(Mp4BoxWriter w, int trackId) {
+        w.beginFull(TREX, 0, 0);
+        w.putInt(trackId);
+        w.putInt(1);
+        w.putInt(0);
+        w.putInt(0);
+        w.putInt(0);
+        w.end();
+    }
+
+    private static void writeSampleEntry(Mp4BoxWriter w, TrackFormat format) {
+        if (format.isVideo) {
+            w.begin(AVC1);
+            w.putZeros(6);
+            w.put16(1);
+            w.putZeros(16);
+            w.put16(format.width);
+            w.put16(format.height);
+            w.putInt(0x00480000);
+            w.putInt(0x00480000);
+            w.putInt(0);
+            w.put16(1);
+            w.putZeros(32);
+            w.put16(0x0018);
+            w.put16(0xFFFF);
+            w.begin(AVCC);
+            w.putBytes(format.avcDecoderConfigurationRecord());
+            w.end();
+            w.end();
+        } else {
+            w.begin(MP4A);
+            w.putZeros(6);
+            w.put16(1);
+            w.putZeros(8);
+            w.put16(format.channelCount);
+            w.put16(16);
+            w.putInt(0);
+            w.putInt(format.sampleRate << 16);
+            writeEsds(w, format.audioSpecificConfig);
+            w.end();
+        }
+    }
+
+    private static void writeEsds(Mp4BoxWriter w, byte[] asc) {
+        w.beginFull(ESDS, 0, 0);
+        //ES_Descriptor
+        w.put8(0x03);
+        w.put8(23 + asc.length);
+        w.put16(0);
+        w.put8(0);
+        //DecoderConfigDescriptor
+        w.put8(0x04);
+        w.put8(15 + asc.length);
+        //objectTypeIndication: AAC
+        w.put8(0x40);
+        //streamType: audio
+        w.put8(0x15);
+        w.put24(0);
+        w.putInt(0);
+        w.putInt(0);
+        //DecoderSpecificInfo
+        w.put8(0x05);
+        w.put8(asc.length);
+        w.putBytes(asc);
+        //SLConfigDescriptor
+        w.put8(0x06);
+        w.put8(1);
+        w.put8(0x02);
+        w.end();
+    }
+}
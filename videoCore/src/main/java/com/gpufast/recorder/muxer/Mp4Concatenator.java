@@ -0,0 +1,258 @@
+package com.gpufast.recorder.muxer;
+
+import com.gpufast.logger.ELog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 不解码直接拼接多段MP4(stream copy)
+ * 各段的sample表合并到一个moov中，时间戳按段依次平移；各段的mdat数据用
+ * {@link FileChannel#transferTo}直接拷贝进输出文件的mdat。输出文件moov在前。
+ * 所有片段的视频(avcC)和音频(esds)配置必须一致，见{@link TrackFormat#isCompatible}。
+ */
+public final class Mp4Concatenator {
+    private static final String TAG = Mp4Concatenator.class.getSimpleName();
+
+    private static final int MDAT_HEADER_SIZE = 16;
+    //每次transferTo的长度，也是进度回调的粒度
+    private static final long TRANSFER_STEP = 8 * 1024 * 1024;
+
+    private Mp4Concatenator() {
+    }
+
+    /**
+     * 按顺序拼接inputs写到output，失败时删除output
+     *
+     * @param listener 进度回调，可以为null
+     * @throws IOException 读写失败，或片段格式不一致
+     */
+    public static void concat(List<String> inputs, String output, ProgressListener listener) throws IOException {
+        if (inputs == null || inputs.isEmpty()) {
+            throw new IllegalArgumentException("no input");
+        }
+        List<RandomAccessFile> files = new ArrayList<>(inputs.size());
+        boolean success = false;
+        try {
+            Segment[] segments = new Segment[inputs.size()];
+            for (int i = 0; i < segments.length; i++) {
+                RandomAccessFile file = new RandomAccessFile(inputs.get(i), "r");
+                files.add(file);
+                segments[i] = new Segment(inputs.get(i), file.getChannel());
+            }
+            write(segments, output, listener);
+            success = true;
+        } finally {
+            for (RandomAccessFile file : files) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (!success) {
+                File out = new File(output);
+                if (out.exists() && !out.delete()) {
+                    ELog.w(TAG, "delete output failed:" + output);
+                }
+            }
+        }
+    }
+
+    private static void write(Segment[] segments, String output, ProgressListener listener) throws IOException {
+        TrackFormat videoFormat = segments[0].reader.videoTrack().format;
+        Mp4Reader.Track firstAudio = segments[0].reader.audioTrack();
+        TrackFormat audioFormat = firstAudio != null ? firstAudio.format : null;
+        for (Segment segment : segments) {
+            Mp4Reader.Track audio = segment.reader.audioTrack();
+            if (!videoFormat.isCompatible(segment.reader.videoTrack().format)) {
+                throw new IOException("video format mismatch:" + segment.path);
+            }
+            if (audioFormat == null ? audio != null : !audioFormat.isCompatible(audio != null ? audio.format : null)) {
+                throw new IOException("audio format mismatch:" + segment.path);
+            }
+        }
+
+        //sample表中的偏移先相对输出mdat的数据起点，生成moov时再加上mdat之前的长度
+        Mp4SampleTable videoTable = new Mp4SampleTable(true, videoFormat.timescale());
+        Mp4SampleTable audioTable = audioFormat != null ? new Mp4SampleTable(false, audioFormat.timescale()) : null;
+        long dataSize = 0;
+        long baseUs = 0;
+        for (Segment segment : segments) {
+            dataSize = segment.place(dataSize);
+            Mp4Reader.Track video = segment.reader.videoTrack();
+            Mp4Reader.Track audio = segment.reader.audioTrack();
+            //每段从0开始，保留段内音视频之间的起始偏移。MediaMuxer把偏移写在编辑列表的空白编辑中，
+            //按播放时间轴取时间；合并后第一段的偏移由sample表写成输出文件的编辑列表
+            long startUs = video.startUs();
+            if (audio != null) {
+                startUs = Math.min(startUs, audio.startUs());
+            }
+            long endUs = appendTrack(segment, video, videoTable, baseUs - startUs);
+            if (audio != null) {
+                endUs = Math.max(endUs, appendTrack(segment, audio, audioTable, baseUs - startUs));
+            }
+            baseUs = endUs;
+        }
+
+        Mp4BoxWriter w = new Mp4BoxWriter(64 * 1024);
+        w.reset();
+        Mp4Boxes.writeFtyp(w, false);
+        ByteBuffer ftyp = ByteBuffer.allocateDirect(w.position());
+        ftyp.put(w.flip());
+        ftyp.flip();
+        //偏移变大后可能需要co64，moov会变大，重新生成直到大小稳定
+        long headerSize = ftyp.remaining() + MDAT_HEADER_SIZE;
+        long moovSize = 0;
+        ByteBuffer moov;
+        while (true) {
+            moov = FastStartMp4Writer.buildMoov(w, videoFormat, videoTable, audioFormat, audioTable,
+                    headerSize + moovSize);
+            if (moov.remaining() == moovSize) {
+                break;
+            }
+            moovSize = moov.remaining();
+        }
+
+        RandomAccessFile out = new RandomAccessFile(output, "rw");
+        try {
+            out.setLength(0);
+            FileChannel dst = out.getChannel();
+            writeFully(dst, ftyp);
+            writeFully(dst, moov);
+            ByteBuffer mdat = ByteBuffer.allocate(MDAT_HEADER_SIZE);
+            mdat.putInt(1);
+            mdat.putInt(Mp4Boxes.MDAT);
+            mdat.putLong(MDAT_HEADER_SIZE + dataSize);
+            mdat.flip();
+            writeFully(dst, mdat);
+            long done = 0;
+            for (Segment segment : segments) {
+                for (Mp4Box box : segment.mdats) {
+                    done = transfer(segment.channel, box.dataOffset(), box.end() - box.dataOffset(), dst,
+                            done, dataSize, listener);
+                }
+            }
+            dst.force(false);
+        } finally {
+            out.close();
+        }
+        ELog.i(TAG, "concat " + segments.length + " segments to " + output + " video samples:"
+                + videoTable.sampleCount() + " moov:" + moovSize);
+    }
+
+    /**
+     * 把一段中一条轨道的sample追加到合并后的sample表
+     *
+     * @param shiftUs 该段时间戳的平移量
+     * @return 该轨道在合并后时间轴上的结束时间(微秒)
+     */
+    private static long appendTrack(Segment segment, Mp4Reader.Track track, Mp4SampleTable table,
+                                    long shiftUs) throws IOException {
+        for (int i = 0; i < track.sampleCount(); i++) {
+            //编辑列表media_time之前不显示的sample放在时间零点
+            long timeUs = Math.max(0, track.movieTimeUs(track.decodeTime(i)) + shiftUs);
+            //保证合并后的解码时间严格递增
+            long last = table.lastTimeUs();
+            if (last >= 0 && timeUs <= last) {
+                timeUs = last + 1;
+            }
+            int size = track.size(i);
+            table.add(segment.map(track.offset(i), size), size, timeUs, track.isSync(i));
+        }
+        return track.movieTimeUs(track.durationTicks()) + shiftUs;
+    }
+
+    private static long transfer(FileChannel src, long offset, long length, FileChannel dst,
+                                 long done, long total, ProgressListener listener) throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long step = Math.min(TRANSFER_STEP, length - copied);
+            long n = src.transferTo(offset + copied, step, dst);
+            if (n <= 0) {
+                throw new IOException("transfer stalled at " + (offset + copied));
+            }
+            copied += n;
+            if (listener != null) {
+                listener.onProgress(done + copied, total);
+            }
+        }
+        return done + copied;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * 一个输入片段：sample表和mdat在输出文件数据区中的位置
+     */
+    private static final class Segment {
+        final String path;
+        final FileChannel channel;
+        final Mp4Reader reader;
+        final List<Mp4Box> mdats = new ArrayList<>();
+        //每个mdat的数据在输出数据区中的起点
+        long[] targetOffsets;
+
+        Segment(String path, FileChannel channel) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            try {
+                reader = Mp4Reader.read(channel);
+            } catch (IOException e) {
+                throw new IOException(path + ": " + e.getMessage(), e);
+            }
+            if (reader.videoTrack() == null || reader.videoTrack().sampleCount() == 0) {
+                throw new IOException("no video track:" + path);
+            }
+            Mp4Reader.Track audio = reader.audioTrack();
+            if (audio != null && audio.sampleCount() == 0) {
+                throw new IOException("empty audio track:" + path);
+            }
+            //合并后的sample表不带ctts，本库的编码器不输出B帧
+            if (reader.videoTrack().hasCompositionOffsets()) {
+                throw new IOException("ctts is not supported:" + path);
+            }
+            for (Mp4Box box : reader.boxes()) {
+                if (box.type == Mp4Boxes.MDAT) {
+                    mdats.add(box);
+                }
+            }
+        }
+
+        /**
+         * @param position 输出数据区中的当前位置
+         * @return 放入该段后的位置
+         */
+        long place(long position) {
+            targetOffsets = new long[mdats.size()];
+            for (int i = 0; i < targetOffsets.length; i++) {
+                Mp4Box box = mdats.get(i);
+                targetOffsets[i] = position;
+                position += box.end() - box.dataOffset();
+            }
+            return position;
+        }
+
+        /**
+         * 输入文件中的sample偏移换算到输出数据区
+         */
+        long map(long offset, int size) throws IOException {
+            for (int i = 0; i < targetOffsets.length; i++) {
+                Mp4Box box = mdats.get(i);
+                if (offset >= box.dataOffset() && offset + size <= box.end()) {
+                    return offset - box.dataOffset() + targetOffsets[i];
+                }
+            }
+            throw new IOException("sample at " + offset + " is outside of mdat:" + path);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.gpufast.recorder.muxer;
 
+import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 
@@ -8,20 +9,28 @@ import com.gpufast.recorder.audio.EncodedAudio;
 import com.gpufast.recorder.video.EncodedImage;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * 视频合成接口
+ * 两条轨道都添加完成后才能启动MediaMuxer，在此之前到达的sample由{@link SampleInterleaver}暂存，
+ * 启动后按时间戳顺序写出。
  */
 public class Mp4Muxer extends IMediaMuxer {
     private static final String TAG = Mp4Muxer.class.getSimpleName();
 
+    //音视频编码回调来自不同线程，每个实例单独加锁
+    private final Object lock = new Object();
+
     private MediaMuxer mMediaMuxer;
+    private SampleInterleaver interleaver;
     private int audioTrackIndex = -1;
     private int videoTrackIndex = -1;
-    private volatile int trackCount = 0;
+    private int trackCount = 0;
     private boolean muxerStarted = false;
     private boolean videoTrackReady = false;
     private boolean audioTrackReady = false;
+    private boolean released = false;
 
     private boolean muteMic;
 
@@ -43,85 +52,116 @@ public class Mp4Muxer extends IMediaMuxer {
         if (muteMic) {
             trackCount = 1;
         }
+        interleaver = new SampleInterleaver(trackCount, setting.interleaveWindowUs,
+                new SampleInterleaver.SampleWriter() {
+                    @Override
+                    public void writeSample(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+                        writeSampleData(track, buffer, info);
+                    }
+                });
         ELog.i(TAG, "init muxer trackCount:" + trackCount);
     }
 
 
     @Override
     public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
-        if (audioTrackReady || muteMic) return;
-        ELog.i(TAG, "onUpdateAudioMediaFormat" + mediaFormat);
-        audioTrackIndex = mMediaMuxer.addTrack(mediaFormat);
-        if (audioTrackIndex < 0) {
-            ELog.e(TAG, "Add audio track failed");
-            return;
+        synchronized (lock) {
+            if (audioTrackReady || muteMic || mMediaMuxer == null || released) return;
+            ELog.i(TAG, "onUpdateAudioMediaFormat" + mediaFormat);
+            audioTrackIndex = mMediaMuxer.addTrack(mediaFormat);
+            if (audioTrackIndex < 0) {
+                ELog.e(TAG, "Add audio track failed");
+                return;
+            }
+            audioTrackReady = true;
+            ELog.i(TAG, "audio track has ready");
+            startIfReady();
         }
-        audioTrackReady = true;
-        ELog.i(TAG, "audio track has ready");
     }
 
 
     @Override
     public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
-        if (videoTrackReady) return;
-        ELog.i(TAG, "onUpdateAudioMediaFormat" + mediaFormat);
-        videoTrackIndex = mMediaMuxer.addTrack(mediaFormat);
-        if (videoTrackIndex < 0) {
-            ELog.e(TAG, "Add video track failed");
-            return;
-        }
-        if (!muteMic) {
-            while (!audioTrackReady) {
-                Thread.yield();
+        synchronized (lock) {
+            if (videoTrackReady || mMediaMuxer == null || released) return;
+            ELog.i(TAG, "onUpdateVideoMediaFormat" + mediaFormat);
+            videoTrackIndex = mMediaMuxer.addTrack(mediaFormat);
+            if (videoTrackIndex < 0) {
+                ELog.e(TAG, "Add video track failed");
+                return;
             }
+            videoTrackReady = true;
+            ELog.i(TAG, "video track has ready");
+            startIfReady();
         }
-        videoTrackReady = true;
-        ELog.i(TAG, "video track has ready");
     }
 
     @Override
     public void onEncodedFrame(EncodedImage frame) {
-        if ((videoTrackReady && audioTrackReady) || (videoTrackReady && muteMic)) {
-            start();
-            mMediaMuxer.writeSampleData(videoTrackIndex, frame.buffer, frame.bufferInfo);
-            ELog.i(TAG, "mux video data，index=" + frame.index
-                    + " timeStamp:" + frame.bufferInfo.presentationTimeUs);
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (interleaver == null || released) return;
+            //只写帧数据(buffer的position..limit)，参数集在codec配置里
+            interleaver.writeSample(SampleInterleaver.TRACK_VIDEO, frame.buffer,
+                    info.presentationTimeUs, info.flags);
         }
     }
 
 
     @Override
     public void onEncodedAudio(EncodedAudio frame) {
-        if (muxerStarted) {
-            mMediaMuxer.writeSampleData(audioTrackIndex, frame.buffer, frame.bufferInfo);
-            ELog.i(TAG, "mux audio data，timeStamp=" + frame.bufferInfo.presentationTimeUs);
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (interleaver == null || released) return;
+            ByteBuffer buffer = frame.buffer;
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            interleaver.writeSample(SampleInterleaver.TRACK_AUDIO, buffer,
+                    info.presentationTimeUs, info.flags);
         }
     }
 
-    private void start() {
-        if (muxerStarted) return;
-        synchronized (Mp4Muxer.class) {
-            if (!muxerStarted) {
-                mMediaMuxer.start();
-                muxerStarted = true;
-            }
+    private void writeSampleData(int track, ByteBuffer buffer, MediaCodec.BufferInfo info) {
+        int trackIndex = track == SampleInterleaver.TRACK_VIDEO ? videoTrackIndex : audioTrackIndex;
+        try {
+            mMediaMuxer.writeSampleData(trackIndex, buffer, info);
+        } catch (Exception e) {
+            ELog.e(TAG, "write sample failed, track=" + track + ":" + e.getMessage());
         }
     }
 
+    private void startIfReady() {
+        if (muxerStarted) return;
+        if (!videoTrackReady || (!muteMic && !audioTrackReady)) return;
+        mMediaMuxer.start();
+        muxerStarted = true;
+        ELog.i(TAG, "muxer started");
+        interleaver.start();
+    }
+
     @Override
     public void onVideoEncoderStop() {
         ELog.i(TAG, "onVideoEncoderStop. trackCount=" + trackCount);
-        stopMuxer();
+        stopMuxer(SampleInterleaver.TRACK_VIDEO);
     }
 
     @Override
     public void onAudioEncoderStop() {
         ELog.i(TAG, "onAudioEncoderStop: trackCount=" + trackCount);
-        stopMuxer();
+        stopMuxer(SampleInterleaver.TRACK_AUDIO);
     }
 
-    private void stopMuxer() {
-        synchronized (Mp4Muxer.class) {
+    private void stopMuxer(int track) {
+        synchronized (lock) {
+            if (interleaver != null) {
+                interleaver.endTrack(track);
+            }
             trackCount--;
             ELog.i(TAG, "stopMuxer trackCount:" + trackCount);
             if (trackCount <= 0) {
@@ -131,18 +171,25 @@ public class Mp4Muxer extends IMediaMuxer {
     }
 
     void release() {
-        ELog.i(TAG, "start release mp4Muxer");
-        try {
-            if (mMediaMuxer != null) {
-                mMediaMuxer.release();
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            ELog.i(TAG, "start release mp4Muxer");
+            try {
+                if (interleaver != null) {
+                    interleaver.flush();
+                }
+                if (mMediaMuxer != null) {
+                    mMediaMuxer.release();
+                }
+                videoTrackIndex = -1;
+                audioTrackIndex = -1;
+                muxerStarted = false;
+            } catch (Exception e) {
+                e.printStackTrace();
             }
-            videoTrackIndex = -1;
-            audioTrackIndex = -1;
-            muxerStarted = false;
-        } catch (Exception e) {
-            e.printStackTrace();
+            ELog.i(TAG, "release mp4Muxer success");
         }
-        ELog.i(TAG, "release mp4Muxer success");
     }
 
 }
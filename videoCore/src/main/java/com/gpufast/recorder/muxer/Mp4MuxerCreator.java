@@ -5,14 +5,23 @@ import com.gpufast.recorder.RecordParams;
 public class Mp4MuxerCreator {
 
     public static Mp4Muxer create(RecordParams params) {
-        IMediaMuxer.Setting muxerSetting = createMuxerSetting(params);
+        return create(params, params == null ? null : params.getSavePath());
+    }
+
+    /**
+     * 使用params中的参数，输出到savePath
+     */
+    public static Mp4Muxer create(RecordParams params, String savePath) {
+        IMediaMuxer.Setting muxerSetting = createMuxerSetting(params, savePath);
         return new Mp4Muxer(muxerSetting);
     }
 
 
-    private static IMediaMuxer.Setting createMuxerSetting(RecordParams params) {
+    private static IMediaMuxer.Setting createMuxerSetting(RecordParams params, String savePath) {
         if (params == null) return null;
-        return new IMediaMuxer.Setting(params.getSavePath(), params.isMuteMic());
+        IMediaMuxer.Setting setting = new IMediaMuxer.Setting(savePath, params.isMuteMic());
+        setting.interleaveWindowUs = params.getInterleaveWindowMs() * 1000L;
+        return setting;
     }
 
 }
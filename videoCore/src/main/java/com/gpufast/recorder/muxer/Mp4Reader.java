@@ -0,0 +1,688 @@
+package com.gpufast.recorder.muxer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * 读取本库录制的MP4(moov + mdat)中的轨道格式和sample索引
+ * moov通过内存映射读取，sample表在第一次访问时才展开成基本类型数组，不会为每个sample创建对象：
+ * 按序号查偏移/大小/时间戳/关键帧都是O(1)，按时间查找关键帧是O(log n)。
+ * sample数据留在文件中，通过{@link #readSample}按需读取。
+ * 只支持H.264/AAC，每条轨道一个sample description。非线程安全。
+ */
+public final class Mp4Reader implements Closeable {
+
+    //查找最早显示时间时扫描的sample数，覆盖B帧的重排深度
+    private static final int START_SCAN_SAMPLES = 64;
+
+    /**
+     * 一条轨道的sample索引，序号从0开始，时间单位是轨道时间基(mdhd timescale)
+     */
+    public static final class Track {
+        public final TrackFormat format;
+        public final int timescale;
+
+        private final ByteBuffer moov;
+        private final int sampleCount;
+        private final int constantSize;
+        private final int stsz;
+        private final int stts;
+        private final int stsc;
+        private final int chunkOffsets;
+        private final boolean largeOffsets;
+        private final int chunkCount;
+        //没有stss时为-1，表示全部是关键帧
+        private final int stss;
+        private final int ctts;
+        private final long durationTicks;
+        //编辑列表开头的空白时长(微秒)
+        private final long emptyEditUs;
+        //编辑列表第一个有效段的media_time(轨道时间基)，-1表示没有编辑列表
+        private final long editMediaTime;
+
+        //以下数组在第一次访问时才从moov中展开
+        private long[] offsets;
+        private long[] decodeTimes;
+        private int[] compositionOffsets;
+        //关键帧序号(从0开始)，升序
+        private int[] syncSamples;
+        //按位记录每个sample是否为关键帧
+        private long[] syncBits;
+
+        private Track(TrackFormat format, int timescale, ByteBuffer moov, int stsz, int stts, int stsc,
+                      int chunkOffsets, boolean largeOffsets, int stss, int ctts,
+                      long emptyEditUs, long editMediaTime) throws IOException {
+            this.format = format;
+            this.timescale = timescale;
+            this.moov = moov;
+            this.stsz = stsz;
+            this.stts = stts;
+            this.stsc = stsc;
+            this.chunkOffsets = chunkOffsets;
+            this.largeOffsets = largeOffsets;
+            this.stss = stss;
+            this.ctts = ctts;
+            this.emptyEditUs = emptyEditUs;
+            this.editMediaTime = editMediaTime;
+            constantSize = moov.getInt(stsz + 12);
+            sampleCount = moov.getInt(stsz + 16);
+            chunkCount = moov.getInt(chunkOffsets + 12);
+            if (sampleCount < 0 || chunkCount < 0) {
+                throw new IOException("invalid sample count " + sampleCount + " chunk count " + chunkCount);
+            }
+            //打开时只校验表的范围和覆盖的sample数(都只遍历游程项)，保证之后的访问不会越界
+            checkEntries(stsz, 20, constantSize != 0 ? 0 : sampleCount, 4);
+            checkEntries(chunkOffsets, 16, chunkCount, largeOffsets ? 8 : 4);
+            checkEntries(stsc, 16, moov.getInt(stsc + 12), 12);
+            checkEntries(stts, 16, moov.getInt(stts + 12), 8);
+            if (stss >= 0) {
+                checkEntries(stss, 16, moov.getInt(stss + 12), 4);
+            }
+            if (ctts >= 0) {
+                checkEntries(ctts, 16, moov.getInt(ctts + 12), 8);
+                if (countRuns(ctts) < sampleCount) {
+                    throw new IOException("ctts covers less than " + sampleCount + " samples");
+                }
+            }
+            long runs = countRuns(stts);
+            if (runs < sampleCount) {
+                throw new IOException("stts covers " + runs + " of " + sampleCount + " samples");
+            }
+            durationTicks = sttsDuration();
+            long covered = stscSampleCount();
+            if (covered < sampleCount) {
+                throw new IOException("stsc/stco cover " + covered + " of " + sampleCount + " samples");
+            }
+        }
+
+        public int sampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * sample在文件中的位置
+         */
+        public long offset(int index) {
+            if (offsets == null) {
+                decodeOffsets();
+            }
+            return offsets[index];
+        }
+
+        public int size(int index) {
+            return constantSize != 0 ? constantSize : moov.getInt(stsz + 20 + index * 4);
+        }
+
+        /**
+         * 解码时间
+         */
+        public long decodeTime(int index) {
+            if (decodeTimes == null) {
+                decodeTimes();
+            }
+            return decodeTimes[index];
+        }
+
+        /**
+         * 显示时间(解码时间加上ctts偏移)
+         */
+        public long presentationTime(int index) {
+            if (ctts < 0) {
+                return decodeTime(index);
+            }
+            if (compositionOffsets == null) {
+                decodeCompositionOffsets();
+            }
+            return decodeTime(index) + compositionOffsets[index];
+        }
+
+        public boolean hasCompositionOffsets() {
+            return ctts >= 0;
+        }
+
+        /**
+         * 最后一个sample的结束时间
+         */
+        public long durationTicks() {
+            return durationTicks;
+        }
+
+        public boolean isSync(int index) {
+            if (stss < 0) {
+                return true;
+            }
+            if (syncBits == null) {
+                decodeSyncSamples();
+            }
+            return (syncBits[index >> 6] & (1L << index)) != 0;
+        }
+
+        /**
+         * 查找显示时间不晚于timeUs的最后一个关键帧，用于seek
+         *
+         * @return sample序号，timeUs早于第一个关键帧时返回第一个关键帧，没有sample时返回-1
+         */
+        public int syncSampleAt(long timeUs) {
+            if (sampleCount == 0) {
+                return -1;
+            }
+            long ticks = timeUs * timescale / 1000000L;
+            if (stss < 0) {
+                int low = 0;
+                int high = sampleCount - 1;
+                while (low < high) {
+                    int mid = (low + high + 1) >>> 1;
+                    if (presentationTime(mid) <= ticks) {
+                        low = mid;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                return low;
+            }
+            if (syncBits == null) {
+                decodeSyncSamples();
+            }
+            if (syncSamples.length == 0) {
+                return 0;
+            }
+            int low = 0;
+            int high = syncSamples.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (presentationTime(syncSamples[mid]) <= ticks) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return syncSamples[low];
+        }
+
+        /**
+         * 轨道时间换算到播放时间轴(微秒)：加上编辑列表开头的空白，减去media_time。
+         * media_time之前的sample不显示，得到的时间是负数
+         */
+        public long movieTimeUs(long ticks) {
+            return emptyEditUs + toUs(ticks - Math.max(editMediaTime, 0));
+        }
+
+        /**
+         * @return 轨道最早显示的sample在播放时间轴上的开始时间(微秒)，考虑编辑列表，没有sample时返回-1
+         */
+        public long startUs() {
+            if (sampleCount == 0) {
+                return -1;
+            }
+            long first = Long.MAX_VALUE;
+            int scan = Math.min(sampleCount, START_SCAN_SAMPLES);
+            for (int i = 0; i < scan; i++) {
+                first = Math.min(first, presentationTime(i));
+            }
+            return movieTimeUs(Math.max(first, editMediaTime));
+        }
+
+        /**
+         * tick转换为微秒，向上取整，保证再用{@link TrackFormat#toTicks}转换回同一时间基时得到原值
+         */
+        public long toUs(long ticks) {
+            return (ticks * 1000000L + timescale - 1) / timescale;
+        }
+
+        private void decodeOffsets() {
+            long[] result = new long[sampleCount];
+            int entries = moov.getInt(stsc + 12);
+            int sample = 0;
+            for (int i = 0; i < entries && sample < sampleCount; i++) {
+                int entry = stsc + 16 + i * 12;
+                int firstChunk = moov.getInt(entry) - 1;
+                int samplesPerChunk = moov.getInt(entry + 4);
+                int lastChunk = i + 1 < entries ? moov.getInt(entry + 12) - 1 : chunkCount;
+                for (int chunk = Math.max(firstChunk, 0); chunk < lastChunk && sample < sampleCount; chunk++) {
+                    long offset = chunkOffset(chunk);
+                    for (int j = 0; j < samplesPerChunk && sample < sampleCount; j++) {
+                        result[sample] = offset;
+                        offset += size(sample);
+                        sample++;
+                    }
+                }
+            }
+            offsets = result;
+        }
+
+        private void decodeTimes() {
+            long[] result = new long[sampleCount];
+            int entries = moov.getInt(stts + 12);
+            int sample = 0;
+            long time = 0;
+            for (int i = 0; i < entries && sample < sampleCount; i++) {
+                int runCount = moov.getInt(stts + 16 + i * 8);
+                long delta = moov.getInt(stts + 20 + i * 8) & 0xFFFFFFFFL;
+                for (int j = 0; j < runCount && sample < sampleCount; j++) {
+                    result[sample++] = time;
+                    time += delta;
+                }
+            }
+            decodeTimes = result;
+        }
+
+        private void decodeCompositionOffsets() {
+            int[] result = new int[sampleCount];
+            int entries = moov.getInt(ctts + 12);
+            int sample = 0;
+            for (int i = 0; i < entries && sample < sampleCount; i++) {
+                int runCount = moov.getInt(ctts + 16 + i * 8);
+                //version 0的偏移按无符号处理也不会超过int范围，version 1是有符号数
+                int offset = moov.getInt(ctts + 20 + i * 8);
+                for (int j = 0; j < runCount && sample < sampleCount; j++) {
+                    result[sample++] = offset;
+                }
+            }
+            compositionOffsets = result;
+        }
+
+        private void decodeSyncSamples() {
+            int count = moov.getInt(stss + 12);
+            long[] bits = new long[(sampleCount + 63) >> 6];
+            int[] samples = new int[count];
+            int valid = 0;
+            for (int i = 0; i < count; i++) {
+                int index = moov.getInt(stss + 16 + i * 4) - 1;
+                if (index >= 0 && index < sampleCount && (valid == 0 || index > samples[valid - 1])) {
+                    bits[index >> 6] |= 1L << index;
+                    samples[valid++] = index;
+                }
+            }
+            if (valid < count) {
+                int[] trimmed = new int[valid];
+                System.arraycopy(samples, 0, trimmed, 0, valid);
+                samples = trimmed;
+            }
+            syncSamples = samples;
+            syncBits = bits;
+        }
+
+        private long chunkOffset(int chunk) {
+            return largeOffsets ? moov.getLong(chunkOffsets + 16 + chunk * 8)
+                    : moov.getInt(chunkOffsets + 16 + chunk * 4) & 0xFFFFFFFFL;
+        }
+
+        private long countRuns(int box) {
+            int entries = moov.getInt(box + 12);
+            long total = 0;
+            for (int i = 0; i < entries; i++) {
+                total += moov.getInt(box + 16 + i * 8) & 0xFFFFFFFFL;
+            }
+            return total;
+        }
+
+        private long sttsDuration() {
+            int entries = moov.getInt(stts + 12);
+            long remaining = sampleCount;
+            long duration = 0;
+            for (int i = 0; i < entries && remaining > 0; i++) {
+                long runCount = Math.min(moov.getInt(stts + 16 + i * 8) & 0xFFFFFFFFL, remaining);
+                duration += runCount * (moov.getInt(stts + 20 + i * 8) & 0xFFFFFFFFL);
+                remaining -= runCount;
+            }
+            return duration;
+        }
+
+        private long stscSampleCount() throws IOException {
+            int entries = moov.getInt(stsc + 12);
+            long total = 0;
+            for (int i = 0; i < entries; i++) {
+                int entry = stsc + 16 + i * 12;
+                if (moov.getInt(entry + 8) != 1) {
+                    throw new IOException("multiple sample descriptions are not supported");
+                }
+                long firstChunk = moov.getInt(entry) & 0xFFFFFFFFL;
+                long lastChunk = i + 1 < entries ? moov.getInt(entry + 12) & 0xFFFFFFFFL : chunkCount + 1L;
+                if (firstChunk < 1 || lastChunk < firstChunk || lastChunk > chunkCount + 1L) {
+                    throw new IOException("invalid stsc entry " + i);
+                }
+                total += (lastChunk - firstChunk) * (moov.getInt(entry + 4) & 0xFFFFFFFFL);
+            }
+            return total;
+        }
+
+        private void checkEntries(int box, int headerSize, long count, int entrySize) throws IOException {
+            if (count < 0 || headerSize + count * entrySize > moov.getInt(box)) {
+                throw new IOException("truncated " + Mp4Box.typeName(moov.getInt(box + 4)));
+            }
+        }
+    }
+
+    private final FileChannel channel;
+    //open()打开的文件由reader负责关闭，read()传入的channel由调用者负责
+    private final RandomAccessFile file;
+    private final List<Mp4Box> boxes;
+    private Track videoTrack;
+    private Track audioTrack;
+
+    private Mp4Reader(FileChannel channel, RandomAccessFile file, List<Mp4Box> boxes) {
+        this.channel = channel;
+        this.file = file;
+        this.boxes = boxes;
+    }
+
+    /**
+     * 打开文件并读取索引，用完后需要{@link #close()}
+     *
+     * @throws IOException 文件结构不完整或包含不支持的格式
+     */
+    public static Mp4Reader open(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            Mp4Reader reader = new Mp4Reader(file.getChannel(), file, Mp4Box.scanTopLevel(file.getChannel()));
+            reader.parseMoov();
+            return reader;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 从调用者持有的channel读取索引，{@link #close()}不会关闭channel
+     */
+    static Mp4Reader read(FileChannel channel) throws IOException {
+        Mp4Reader reader = new Mp4Reader(channel, null, Mp4Box.scanTopLevel(channel));
+        reader.parseMoov();
+        return reader;
+    }
+
+    public Track videoTrack() {
+        return videoTrack;
+    }
+
+    public Track audioTrack() {
+        return audioTrack;
+    }
+
+    /**
+     * 把一个sample的数据读到dst中(从dst的position开始)
+     *
+     * @return sample大小
+     * @throws IOException dst空间不足或文件被截断
+     */
+    public int readSample(Track track, int index, ByteBuffer dst) throws IOException {
+        int size = track.size(index);
+        if (dst.remaining() < size) {
+            throw new IOException("buffer too small for sample " + index + " size " + size);
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + size);
+        try {
+            long position = track.offset(index);
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, position);
+                if (read < 0) {
+                    throw new IOException("sample " + index + " is beyond end of file");
+                }
+                position += read;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+        return size;
+    }
+
+    /**
+     * 文件顶层的box列表
+     */
+    List<Mp4Box> boxes() {
+        return boxes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+
+    private void parseMoov() throws IOException {
+        Mp4Box moov = Mp4Box.find(boxes, Mp4Boxes.MOOV);
+        if (moov == null) {
+            throw new IOException("moov not found");
+        }
+        if (moov.size > Integer.MAX_VALUE) {
+            throw new IOException("moov too large");
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, moov.offset, moov.size);
+        int position = moov.headerSize;
+        int end = buffer.limit();
+        int movieTimescale = movieTimescale(buffer, position, end);
+        while ((position = findBox(buffer, position, end, Mp4Boxes.TRAK)) >= 0) {
+            int size = buffer.getInt(position);
+            Track track = parseTrak(buffer, position + 8, position + size, movieTimescale);
+            if (track != null) {
+                if (track.format.isVideo && videoTrack == null) {
+                    videoTrack = track;
+                } else if (!track.format.isVideo && audioTrack == null) {
+                    audioTrack = track;
+                }
+            }
+            position += size;
+        }
+    }
+
+    /**
+     * @return 不是音视频轨道时返回null
+     */
+    private static Track parseTrak(ByteBuffer b, int start, int end, int movieTimescale) throws IOException {
+        int mdia = requireBox(b, start, end, Mp4Boxes.MDIA);
+        int mdiaEnd = mdia + b.getInt(mdia);
+        int hdlr = requireBox(b, mdia + 8, mdiaEnd, Mp4Boxes.HDLR);
+        int handler = b.getInt(hdlr + 16);
+        if (handler != Mp4Boxes.VIDE && handler != Mp4Boxes.SOUN) {
+            return null;
+        }
+        int mdhd = requireBox(b, mdia + 8, mdiaEnd, Mp4Boxes.MDHD);
+        int timescale = b.get(mdhd + 8) == 1 ? b.getInt(mdhd + 28) : b.getInt(mdhd + 20);
+        if (timescale <= 0) {
+            throw new IOException("invalid timescale " + timescale);
+        }
+        int minf = requireBox(b, mdia + 8, mdiaEnd, Mp4Boxes.MINF);
+        int stbl = requireBox(b, minf + 8, minf + b.getInt(minf), Mp4Boxes.STBL);
+        int stblEnd = stbl + b.getInt(stbl);
+        int from = stbl + 8;
+
+        TrackFormat format = parseStsd(b, requireBox(b, from, stblEnd, Mp4Boxes.STSD), handler == Mp4Boxes.VIDE);
+        int chunkOffsets = findBox(b, from, stblEnd, Mp4Boxes.STCO);
+        boolean large = false;
+        if (chunkOffsets < 0) {
+            chunkOffsets = requireBox(b, from, stblEnd, Mp4Boxes.CO64);
+            large = true;
+        }
+        //[开头空白的时长(movie timescale), media_time]
+        long[] edit = parseEditList(b, start, end);
+        return new Track(format, timescale, b,
+                requireBox(b, from, stblEnd, Mp4Boxes.STSZ),
+                requireBox(b, from, stblEnd, Mp4Boxes.STTS),
+                requireBox(b, from, stblEnd, Mp4Boxes.STSC),
+                chunkOffsets, large,
+                findBox(b, from, stblEnd, Mp4Boxes.STSS),
+                findBox(b, from, stblEnd, Mp4Boxes.CTTS),
+                edit[0] * 1000000L / movieTimescale, edit[1]);
+    }
+
+    private static int movieTimescale(ByteBuffer b, int start, int end) throws IOException {
+        int mvhd = findBox(b, start, end, Mp4Boxes.MVHD);
+        if (mvhd < 0) {
+            return Mp4Boxes.MOVIE_TIMESCALE;
+        }
+        int timescale = b.get(mvhd + 8) == 1 ? b.getInt(mvhd + 28) : b.getInt(mvhd + 20);
+        return timescale > 0 ? timescale : Mp4Boxes.MOVIE_TIMESCALE;
+    }
+
+    /**
+     * 取编辑列表开头的空白编辑(media_time为-1)和第一个有效段的media_time，
+     * MediaMuxer用空白编辑记录轨道相对时间零点的起始位置
+     *
+     * @return [空白时长(movie timescale), media_time(没有编辑列表时为-1)]
+     */
+    private static long[] parseEditList(ByteBuffer b, int start, int end) throws IOException {
+        long[] result = {0, -1};
+        int edts = findBox(b, start, end, Mp4Boxes.EDTS);
+        int elst = edts < 0 ? -1 : findBox(b, edts + 8, edts + b.getInt(edts), Mp4Boxes.ELST);
+        if (elst < 0) {
+            return result;
+        }
+        boolean v1 = b.get(elst + 8) == 1;
+        int entrySize = v1 ? 20 : 12;
+        int count = b.getInt(elst + 12);
+        if (count < 0 || 16L + (long) count * entrySize > b.getInt(elst)) {
+            throw new IOException("truncated elst");
+        }
+        for (int i = 0; i < count; i++) {
+            int entry = elst + 16 + i * entrySize;
+            long duration = v1 ? b.getLong(entry) : b.getInt(entry) & 0xFFFFFFFFL;
+            long mediaTime = v1 ? b.getLong(entry + 8) : b.getInt(entry + 4);
+            if (mediaTime == -1) {
+                result[0] += duration;
+            } else {
+                result[1] = mediaTime;
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static TrackFormat parseStsd(ByteBuffer b, int stsd, boolean video) throws IOException {
+        if (b.getInt(stsd + 12) != 1) {
+            throw new IOException("multiple sample descriptions are not supported");
+        }
+        int entry = stsd + 16;
+        int entryEnd = entry + b.getInt(entry);
+        int type = b.getInt(entry + 4);
+        if (video) {
+            if (type != Mp4Boxes.AVC1) {
+                throw new IOException("unsupported video codec " + Mp4Box.typeName(type));
+            }
+            int width = b.getShort(entry + 32) & 0xFFFF;
+            int height = b.getShort(entry + 34) & 0xFFFF;
+            int avcC = requireBox(b, entry + 86, entryEnd, Mp4Boxes.AVCC);
+            return parseAvcC(b, avcC + 8, avcC + b.getInt(avcC), width, height);
+        }
+        if (type != Mp4Boxes.MP4A) {
+            throw new IOException("unsupported audio codec " + Mp4Box.typeName(type));
+        }
+        int channelCount = b.getShort(entry + 24) & 0xFFFF;
+        int sampleRate = (b.getInt(entry + 32) >>> 16);
+        int esds = requireBox(b, entry + 36, entryEnd, Mp4Boxes.ESDS);
+        return TrackFormat.createAudio(parseEsds(b, esds + 12, esds + b.getInt(esds)), sampleRate, channelCount);
+    }
+
+    /**
+     * 取AVCDecoderConfigurationRecord中的第一个SPS和PPS
+     */
+    private static TrackFormat parseAvcC(ByteBuffer b, int start, int end, int width, int height)
+            throws IOException {
+        int position = start + 5;
+        byte[] sps = null;
+        byte[] pps = null;
+        for (int set = 0; set < 2; set++) {
+            if (position >= end) {
+                throw new IOException("truncated avcC");
+            }
+            int count = set == 0 ? b.get(position) & 0x1F : b.get(position) & 0xFF;
+            position++;
+            for (int i = 0; i < count; i++) {
+                int length = b.getShort(position) & 0xFFFF;
+                position += 2;
+                if (position + length > end) {
+                    throw new IOException("truncated avcC");
+                }
+                if (i == 0) {
+                    byte[] nal = copy(b, position, length);
+                    if (set == 0) {
+                        sps = nal;
+                    } else {
+                        pps = nal;
+                    }
+                }
+                position += length;
+            }
+        }
+        if (sps == null || sps.length < 4 || pps == null) {
+            throw new IOException("avcC without sps/pps");
+        }
+        return TrackFormat.createVideo(sps, pps, width, height);
+    }
+
+    /**
+     * 从esds的描述符中取出DecoderSpecificInfo(AudioSpecificConfig)
+     *
+     * @return 没有DecoderSpecificInfo时返回null
+     */
+    private static byte[] parseEsds(ByteBuffer b, int position, int end) {
+        while (position + 2 <= end) {
+            int tag = b.get(position++) & 0xFF;
+            int length = 0;
+            for (int i = 0; i < 4 && position < end; i++) {
+                int value = b.get(position++) & 0xFF;
+                length = (length << 7) | (value & 0x7F);
+                if ((value & 0x80) == 0) break;
+            }
+            if (tag == 0x03) {
+                //ES_Descriptor: ES_ID(2) + flags(1)，后面可能跟着可选字段
+                int flags = b.get(position + 2) & 0xFF;
+                position += 3;
+                if ((flags & 0x80) != 0) position += 2;
+                if ((flags & 0x40) != 0) position += 1 + (b.get(position) & 0xFF);
+                if ((flags & 0x20) != 0) position += 2;
+            } else if (tag == 0x04) {
+                //DecoderConfigDescriptor固定部分13字节，后面是DecoderSpecificInfo
+                position += 13;
+            } else if (tag == 0x05) {
+                return position + length <= end ? copy(b, position, length) : null;
+            } else {
+                position += length;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] copy(ByteBuffer b, int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = b.get(position + i);
+        }
+        return bytes;
+    }
+
+    /**
+     * 在[start, end)范围内查找指定类型的子box
+     *
+     * @return box起始下标，找不到返回-1
+     */
+    static int findBox(ByteBuffer b, int start, int end, int type) throws IOException {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = b.getInt(position);
+            if (size < 8 || position + size > end) {
+                throw new IOException("invalid box " + Mp4Box.typeName(b.getInt(position + 4)) + " size " + size);
+            }
+            if (b.getInt(position + 4) == type) {
+                return position;
+            }
+            position += size;
+        }
+        return -1;
+    }
+
+    private static int requireBox(ByteBuffer b, int start, int end, int type) throws IOException {
+        int position = findBox(b, start, end, type);
+        if (position < 0) {
+            throw new IOException(Mp4Box.typeName(type) + " not found");
+        }
+        return position;
+    }
+}
@@ -0,0 +1,228 @@
+package com.gpufast.recorder.muxer;
+
+import com.gpufast.logger.ELog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 修复录制中途被杀掉、没有写入moov的{@link MuxerType#MP4_FASTSTART}文件
+ * 根据{@link SampleJournal}记录的sample表和文件中已有的mdat重建moov：能放进预留的free空间时写在mdat前面，
+ * 否则追加在文件末尾。日志中超出文件实际长度的sample会被丢弃。
+ * 应用启动后通过{@link com.gpufast.recorder.IRecorder#recoverPending(String)}在后台线程调用。
+ */
+public final class Mp4Recovery {
+    private static final String TAG = Mp4Recovery.class.getSimpleName();
+
+    private static final int FREE_HEADER_SIZE = 8;
+
+    private Mp4Recovery() {
+    }
+
+    /**
+     * 媒体文件旁边是否留有未完成录制的日志
+     */
+    public static boolean needsRecovery(String mediaPath) {
+        return new File(SampleJournal.journalPath(mediaPath)).exists();
+    }
+
+    /**
+     * 查找dir下留有未完成录制日志的媒体文件，只找一层，不进入子目录
+     *
+     * @return 媒体文件路径，没有时返回空列表
+     */
+    public static List<String> findPending(String dir) {
+        List<String> result = new ArrayList<>();
+        File[] files = dir != null ? new File(dir).listFiles() : null;
+        if (files == null) {
+            return result;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!file.isFile() || !name.endsWith(SampleJournal.SUFFIX)) {
+                continue;
+            }
+            File media = new File(file.getParentFile(),
+                    name.substring(0, name.length() - SampleJournal.SUFFIX.length()));
+            if (media.isFile()) {
+                result.add(media.getPath());
+            } else {
+                ELog.w(TAG, "journal without media file:" + file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 修复mediaPath，成功后删除日志
+     *
+     * @return 没有日志时返回false
+     * @throws IOException 日志或媒体文件不完整，无法修复
+     */
+    public static boolean recover(String mediaPath) throws IOException {
+        File journalFile = new File(SampleJournal.journalPath(mediaPath));
+        if (!journalFile.exists()) {
+            return false;
+        }
+        RandomAccessFile media = new RandomAccessFile(mediaPath, "rw");
+        try {
+            Journal journal = Journal.read(journalFile, media.length());
+            rebuild(media.getChannel(), journal);
+        } finally {
+            media.close();
+        }
+        if (!journalFile.delete()) {
+            ELog.w(TAG, "delete journal failed:" + journalFile);
+        }
+        return true;
+    }
+
+    private static void rebuild(FileChannel channel, Journal journal) throws IOException {
+        if (journal.mdatPosition < 0) {
+            throw new IOException("journal has no layout record");
+        }
+        if (journal.videoFormat == null || journal.videoTable.sampleCount() == 0) {
+            throw new IOException("journal has no video samples");
+        }
+        boolean hasAudio = journal.audioTable != null && journal.audioTable.sampleCount() > 0;
+        long dataEnd = Math.max(journal.dataEnd, journal.mdatPosition + 16);
+        //丢掉最后一个完整sample之后的残余数据
+        channel.truncate(dataEnd);
+
+        ByteBuffer largeSize = ByteBuffer.allocate(8);
+        largeSize.putLong(dataEnd - journal.mdatPosition);
+        largeSize.flip();
+        writeFully(channel, largeSize, journal.mdatPosition + 8);
+
+        Mp4BoxWriter w = new Mp4BoxWriter(64 * 1024);
+        ByteBuffer moov = FastStartMp4Writer.buildMoov(w, journal.videoFormat, journal.videoTable,
+                hasAudio ? journal.audioFormat : null, hasAudio ? journal.audioTable : null, 0);
+        int moovSize = moov.remaining();
+        long gap = journal.reservedBytes - moovSize;
+        if (gap == 0 || gap >= FREE_HEADER_SIZE) {
+            writeFully(channel, moov, journal.freePosition);
+            if (gap > 0) {
+                ByteBuffer free = ByteBuffer.allocate(FREE_HEADER_SIZE);
+                free.putInt((int) gap);
+                free.putInt(Mp4Boxes.FREE);
+                free.flip();
+                writeFully(channel, free, journal.freePosition + moovSize);
+            }
+        } else {
+            //预留的free box保持原样
+            writeFully(channel, moov, dataEnd);
+        }
+        channel.force(false);
+        ELog.i(TAG, "recovered video samples:" + journal.videoTable.sampleCount()
+                + " audio samples:" + (hasAudio ? journal.audioTable.sampleCount() : 0)
+                + " moov:" + moovSize + (gap == 0 || gap >= FREE_HEADER_SIZE ? " in place" : " appended"));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+    }
+
+    /**
+     * 从日志中读出的布局、格式和sample表
+     */
+    private static final class Journal {
+        long freePosition;
+        long reservedBytes;
+        long mdatPosition = -1;
+        TrackFormat videoFormat;
+        TrackFormat audioFormat;
+        final Mp4SampleTable videoTable = new Mp4SampleTable(true, TrackFormat.VIDEO_TIMESCALE);
+        //音频时间基是采样率，读到格式记录时创建，格式之前的音频不会写入日志
+        Mp4SampleTable audioTable;
+        //最后一个sample的结束位置
+        long dataEnd;
+
+        /**
+         * 读到最后一条完整的记录为止，被截断的记录忽略
+         */
+        static Journal read(File file, long mediaLength) throws IOException {
+            Journal journal = new Journal();
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = in.getChannel();
+                MappedByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (b.remaining() < SampleJournal.FILE_HEADER_SIZE || b.getInt() != SampleJournal.MAGIC
+                        || b.getInt() != SampleJournal.VERSION) {
+                    throw new IOException("invalid journal " + file);
+                }
+                journal.parse(b, mediaLength);
+            } finally {
+                in.close();
+            }
+            return journal;
+        }
+
+        private void parse(ByteBuffer b, long mediaLength) {
+            while (b.hasRemaining()) {
+                int position = b.position();
+                int type = b.get(position) & 0xFF;
+                if (type == SampleJournal.RECORD_SAMPLE) {
+                    if (b.remaining() < SampleJournal.SAMPLE_RECORD_SIZE) return;
+                    int track = b.get(position + 1);
+                    boolean sync = (b.get(position + 2) & SampleJournal.FLAG_SYNC) != 0;
+                    int size = b.getInt(position + 4);
+                    long offset = b.getLong(position + 8);
+                    long timeUs = b.getLong(position + 16);
+                    //sample数据没有完整落盘，之后的记录也不可信
+                    if (size <= 0 || offset < mdatPosition || offset + size > mediaLength) return;
+                    Mp4SampleTable table = track == SampleInterleaver.TRACK_VIDEO ? videoTable : audioTable;
+                    if (table != null) {
+                        long last = table.lastTimeUs();
+                        table.add(offset, size, last >= 0 && timeUs <= last ? last + 1 : timeUs, sync);
+                    }
+                    dataEnd = Math.max(dataEnd, offset + size);
+                    b.position(position + SampleJournal.SAMPLE_RECORD_SIZE);
+                } else if (type == SampleJournal.RECORD_LAYOUT) {
+                    if (b.remaining() < SampleJournal.LAYOUT_RECORD_SIZE) return;
+                    freePosition = b.getLong(position + 8);
+                    reservedBytes = b.getLong(position + 16);
+                    mdatPosition = b.getLong(position + 24);
+                    b.position(position + SampleJournal.LAYOUT_RECORD_SIZE);
+                } else if (type == SampleJournal.RECORD_FORMAT) {
+                    if (b.remaining() < SampleJournal.FORMAT_RECORD_HEADER_SIZE) return;
+                    int track = b.get(position + 1);
+                    int length = b.getInt(position + 4);
+                    if (length < 0 || b.remaining() < SampleJournal.FORMAT_RECORD_HEADER_SIZE + length) return;
+                    b.position(position + SampleJournal.FORMAT_RECORD_HEADER_SIZE);
+                    try {
+                        parseFormat(b, track);
+                    } catch (RuntimeException e) {
+                        ELog.e(TAG, "invalid format record:" + e.getMessage());
+                        return;
+                    }
+                    b.position(position + SampleJournal.FORMAT_RECORD_HEADER_SIZE + length);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private void parseFormat(ByteBuffer b, int track) {
+            int first = b.getInt();
+            int second = b.getInt();
+            byte[] config = new byte[b.getShort() & 0xFFFF];
+            b.get(config);
+            byte[] extra = new byte[b.getShort() & 0xFFFF];
+            b.get(extra);
+            if (track == SampleInterleaver.TRACK_VIDEO) {
+                videoFormat = TrackFormat.createVideo(config, extra, first, second);
+            } else {
+                audioFormat = TrackFormat.createAudio(config, first, second);
+                audioTable = new Mp4SampleTable(false, audioFormat.timescale());
+            }
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package com.gpufast.recorder.muxer;
+
+/**
+ * 单个轨道的sample表，录制过程中逐个追加，结束时写成stbl中的各个box
+ * 连续写入同一轨道的sample属于同一个chunk。
+ * <p>
+ * 不保存逐个sample的时间戳：stts/ctts/stsc在追加时就做游程编码，sample大小和chunk偏移差值
+ * 以varint写入定长的字节页，全部相同的sample大小只记一个值。4小时的录制元数据只占几MB，
+ * 扩容时也不需要拷贝已有数据。生成box时顺序读出即可。
+ * 非线程安全。
+ */
+final class Mp4SampleTable {
+
+    private static final long MAX_32BIT_OFFSET = 0xFFFFFFFFL;
+
+    final boolean isVideo;
+    private final int timescale;
+
+    private int count = 0;
+    private long lastTimeUs = -1;
+    private long lastTicks;
+    //第一个sample的解码时间，相对所有轨道共用的时间零点；stts从这个sample开始计时，差值由编辑列表补偿
+    private long firstTicks;
+    //最早的显示时间(解码时间+合成偏移)
+    private long minCompositionTicks;
+
+    //stts游程：已结束的游程按(sample数, 时长)写入sttsRuns，当前游程放在字段中。
+    //最后一个sample的时长要等下一个sample才能确定，不在游程中
+    private final VarintPages sttsRuns = new VarintPages();
+    private int sttsEntries = 0;
+    private int sttsRunCount = 0;
+    private int sttsRunDelta;
+
+    //ctts游程，第一次出现非0偏移时才创建
+    private VarintPages cttsRuns;
+    private int cttsEntries = 0;
+    private int cttsRunCount = 0;
+    private int cttsRunOffset;
+    //出现过负的合成偏移时ctts必须用version 1(有符号)
+    private boolean negativeCtts = false;
+
+    //所有sample大小相同时只记录该值，否则为-1并把大小写入sizes
+    private int constantSize = -1;
+    private final VarintPages sizes = new VarintPages();
+
+    //关键帧序号(从1开始)
+    private int[] syncSamples = new int[16];
+    private int syncCount = 0;
+
+    //chunk偏移只保存与上一个chunk的差值
+    private final VarintPages chunkDeltas = new VarintPages();
+    private int chunkCount = 0;
+    private long lastChunkOffset = 0;
+    private long maxChunkOffset = 0;
+    private long chunkEnd = -1;
+    private int chunkSamples = 0;
+    //stsc游程：(起始chunk序号(从1开始), 每个chunk的sample数)，当前游程和正在追加的chunk不在其中
+    private final VarintPages stscRuns = new VarintPages();
+    private int stscEntries = 0;
+    private int stscRunFirstChunk = 0;
+    private int stscRunSamples;
+
+    /**
+     * @param timescale 轨道时间基，见{@link TrackFormat#timescale()}
+     */
+    Mp4SampleTable(boolean isVideo, int timescale) {
+        this.isVideo = isVideo;
+        this.timescale = timescale;
+    }
+
+    int sampleCount() {
+        return count;
+    }
+
+    long lastTimeUs() {
+        return lastTimeUs;
+    }
+
+    /**
+     * @param offset sample在文件中的位置
+     * @param timeUs 解码时间，必须递增
+     */
+    void add(long offset, int size, long timeUs, boolean sync) {
+        add(offset, size, timeUs, 0, sync);
+    }
+
+    /**
+     * @param compositionOffsetUs 显示时间减去解码时间，有B帧时使用
+     */
+    void add(long offset, int size, long timeUs, long compositionOffsetUs, boolean sync) {
+        long ticks = toTicks(timeUs);
+        int compositionOffset = (int) toTicks(compositionOffsetUs);
+        if (count > 0) {
+            appendStts((int) (ticks - lastTicks));
+            minCompositionTicks = Math.min(minCompositionTicks, ticks + compositionOffset);
+        } else {
+            firstTicks = ticks;
+            minCompositionTicks = ticks + compositionOffset;
+        }
+        appendCtts(compositionOffset);
+        appendSize(size);
+        lastTicks = ticks;
+        lastTimeUs = timeUs;
+        count++;
+        if (sync && isVideo) {
+            if (syncCount == syncSamples.length) {
+                syncSamples = grow(syncSamples);
+            }
+            syncSamples[syncCount++] = count;
+        }
+        if (offset == chunkEnd) {
+            chunkSamples++;
+        } else {
+            if (chunkCount > 0) {
+                appendStsc(chunkCount, chunkSamples);
+            }
+            chunkDeltas.putZigzag(offset - lastChunkOffset);
+            lastChunkOffset = offset;
+            maxChunkOffset = Math.max(maxChunkOffset, offset);
+            chunkCount++;
+            chunkSamples = 1;
+        }
+        chunkEnd = offset + size;
+    }
+
+    /**
+     * 轨道时长(轨道时间基)，等于stts中所有时长之和，最后一个sample沿用前一个sample的时长
+     */
+    long mediaDuration() {
+        if (count == 0) return 0;
+        return lastTicks - firstTicks + lastDelta();
+    }
+
+    long durationMs() {
+        return mediaDuration() * 1000 / timescale;
+    }
+
+    /**
+     * 编辑列表中开始显示的媒体时间(轨道时间基)：最早的显示时间相对第一个sample解码时间的偏移，
+     * 合成偏移为负时显示时间早于时间零点的部分不显示
+     */
+    long editMediaTime() {
+        if (count == 0) return 0;
+        return Math.max(0, minCompositionTicks - firstTicks);
+    }
+
+    /**
+     * @return 轨道开始显示前的空白(毫秒)，即轨道相对时间零点的起始位置
+     */
+    long emptyEditMs() {
+        if (count == 0) return 0;
+        return (firstTicks + editMediaTime()) * 1000 / timescale;
+    }
+
+    /**
+     * @return 轨道在影片时间轴上的总时长(毫秒)，包括开始前的空白，用于tkhd/mvhd
+     */
+    long presentationDurationMs() {
+        if (count == 0) return 0;
+        return emptyEditMs() + (mediaDuration() - editMediaTime()) * 1000 / timescale;
+    }
+
+    /**
+     * 写入stts/ctts/stss/stsc/stsz/stco(co64)
+     *
+     * @param offsetDelta chunk偏移的修正量，moov前移mdat时使用
+     */
+    void writeTables(Mp4BoxWriter w, long offsetDelta) {
+        writeStts(w);
+        writeCtts(w);
+        if (isVideo && syncCount < count) {
+            w.beginFull(Mp4Boxes.STSS, 0, 0);
+            w.putInt(syncCount);
+            for (int i = 0; i < syncCount; i++) {
+                w.putInt(syncSamples[i]);
+            }
+            w.end();
+        }
+        writeStsc(w);
+
+        w.beginFull(Mp4Boxes.STSZ, 0, 0);
+        if (constantSize >= 0) {
+            w.putInt(constantSize);
+            w.putInt(count);
+        } else {
+            w.putInt(0);
+            w.putInt(count);
+            VarintPages.Reader reader = sizes.reader();
+            for (int i = 0; i < count; i++) {
+                w.putInt((int) reader.next());
+            }
+        }
+        w.end();
+
+        //只有偏移超过4GB时才使用co64
+        boolean large = chunkCount > 0 && maxChunkOffset + offsetDelta > MAX_32BIT_OFFSET;
+        w.beginFull(large ? Mp4Boxes.CO64 : Mp4Boxes.STCO, 0, 0);
+        w.putInt(chunkCount);
+        VarintPages.Reader reader = chunkDeltas.reader();
+        long offset = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            offset += reader.nextZigzag();
+            if (large) {
+                w.putLong(offset + offsetDelta);
+            } else {
+                w.putInt((int) (offset + offsetDelta));
+            }
+        }
+        w.end();
+    }
+
+    private void writeStts(Mp4BoxWriter w) {
+        w.beginFull(Mp4Boxes.STTS, 0, 0);
+        int entryCountPos = w.position();
+        w.putInt(0);
+        if (count == 0) {
+            w.end();
+            return;
+        }
+        int entries = sttsEntries;
+        VarintPages.Reader reader = sttsRuns.reader();
+        for (int i = 0; i < sttsEntries; i++) {
+            w.putInt((int) reader.next());
+            w.putInt((int) reader.next());
+        }
+        //最后一个sample沿用前一个sample的时长，合并进当前游程
+        int last = (int) lastDelta();
+        if (sttsRunCount > 0 && sttsRunDelta == last) {
+            w.putInt(sttsRunCount + 1);
+            w.putInt(last);
+            entries++;
+        } else {
+            if (sttsRunCount > 0) {
+                w.putInt(sttsRunCount);
+                w.putInt(sttsRunDelta);
+                entries++;
+            }
+            w.putInt(1);
+            w.putInt(last);
+            entries++;
+        }
+        w.putInt(entryCountPos, entries);
+        w.end();
+    }
+
+    private void writeCtts(Mp4BoxWriter w) {
+        if (cttsRuns == null) {
+            return;
+        }
+        //version 0的偏移是无符号数，负偏移会被解析成很大的正数
+        w.beginFull(Mp4Boxes.CTTS, negativeCtts ? 1 : 0, 0);
+        w.putInt(cttsEntries + 1);
+        VarintPages.Reader reader = cttsRuns.reader();
+        for (int i = 0; i < cttsEntries; i++) {
+            w.putInt((int) reader.next());
+            w.putInt((int) reader.nextZigzag());
+        }
+        w.putInt(cttsRunCount);
+        w.putInt(cttsRunOffset);
+        w.end();
+    }
+
+    private void writeStsc(Mp4BoxWriter w) {
+        w.beginFull(Mp4Boxes.STSC, 0, 0);
+        int entryCountPos = w.position();
+        w.putInt(0);
+        VarintPages.Reader reader = stscRuns.reader();
+        for (int i = 0; i < stscEntries; i++) {
+            w.putInt((int) reader.next());
+            w.putInt((int) reader.next());
+            //sample_description_index
+            w.putInt(1);
+        }
+        int entries = stscEntries;
+        if (stscRunFirstChunk > 0) {
+            w.putInt(stscRunFirstChunk);
+            w.putInt(stscRunSamples);
+            w.putInt(1);
+            entries++;
+        }
+        //正在追加的最后一个chunk
+        if (chunkCount > 0 && (stscRunFirstChunk == 0 || stscRunSamples != chunkSamples)) {
+            w.putInt(chunkCount);
+            w.putInt(chunkSamples);
+            w.putInt(1);
+            entries++;
+        }
+        w.putInt(entryCountPos, entries);
+        w.end();
+    }
+
+    private void appendStts(int delta) {
+        if (sttsRunCount > 0 && sttsRunDelta == delta) {
+            sttsRunCount++;
+            return;
+        }
+        if (sttsRunCount > 0) {
+            sttsRuns.put(sttsRunCount);
+            sttsRuns.put(sttsRunDelta);
+            sttsEntries++;
+        }
+        sttsRunCount = 1;
+        sttsRunDelta = delta;
+    }
+
+    private void appendCtts(int offset) {
+        if (offset < 0) {
+            negativeCtts = true;
+        }
+        if (cttsRuns == null) {
+            if (offset == 0) {
+                return;
+            }
+            //之前的sample偏移都是0
+            cttsRuns = new VarintPages();
+            cttsRunCount = count;
+            cttsRunOffset = 0;
+        }
+        if (cttsRunOffset == offset) {
+            cttsRunCount++;
+            return;
+        }
+        if (cttsRunCount > 0) {
+            cttsRuns.put(cttsRunCount);
+            cttsRuns.putZigzag(cttsRunOffset);
+            cttsEntries++;
+        }
+        cttsRunCount = 1;
+        cttsRunOffset = offset;
+    }
+
+    private void appendSize(int size) {
+        if (count == 0) {
+            constantSize = size;
+            return;
+        }
+        if (constantSize >= 0) {
+            if (size == constantSize) {
+                return;
+            }
+            //第一次出现不同的大小，补上之前的sample
+            for (int i = 0; i < count; i++) {
+                sizes.put(constantSize);
+            }
+            constantSize = -1;
+        }
+        sizes.put(size);
+    }
+
+    /**
+     * @param chunk   已经结束的chunk序号(从1开始)
+     * @param samples 该chunk的sample数
+     */
+    private void appendStsc(int chunk, int samples) {
+        if (stscRunFirstChunk > 0 && stscRunSamples == samples) {
+            return;
+        }
+        if (stscRunFirstChunk > 0) {
+            stscRuns.put(stscRunFirstChunk);
+            stscRuns.put(stscRunSamples);
+            stscEntries++;
+        }
+        stscRunFirstChunk = chunk;
+        stscRunSamples = samples;
+    }
+
+    private long lastDelta() {
+        if (count >= 2) {
+            return sttsRunDelta;
+        }
+        return isVideo ? TrackFormat.VIDEO_TIMESCALE / 30 : 1024;
+    }
+
+    private long toTicks(long timeUs) {
+        return timeUs * timescale / 1000000L;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] newArray = new int[array.length * 2];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+    /**
+     * 按顺序写入、按顺序读出的varint序列，数据放在定长字节页中，追加时不拷贝已有数据
+     */
+    private static final class VarintPages {
+        private static final int PAGE_SIZE = 16 * 1024;
+
+        private byte[][] pages = new byte[4][];
+        private int pageCount = 0;
+        //当前页的写入位置
+        private int position = PAGE_SIZE;
+
+        void put(long value) {
+            while ((value & ~0x7FL) != 0) {
+                putByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            putByte((int) value);
+        }
+
+        /**
+         * 有符号数用zigzag编码，绝对值小的负数也只占很少的字节
+         */
+        void putZigzag(long value) {
+            put((value << 1) ^ (value >> 63));
+        }
+
+        private void putByte(int b) {
+            if (position == PAGE_SIZE) {
+                if (pageCount == pages.length) {
+                    byte[][] newPages = new byte[pages.length * 2][];
+                    System.arraycopy(pages, 0, newPages, 0, pageCount);
+                    pages = newPages;
+                }
+                pages[pageCount++] = new byte[PAGE_SIZE];
+                position = 0;
+            }
+            pages[pageCount - 1][position++] = (byte) b;
+        }
+
+        Reader reader() {
+            return new Reader();
+        }
+
+        final class Reader {
+            private int page = 0;
+            private int index = 0;
+
+            long next() {
+                long value = 0;
+                int shift = 0;
+                while (true) {
+                    if (index == PAGE_SIZE) {
+                        page++;
+                        index = 0;
+                    }
+                    int b = pages[page][index++];
+                    value |= (long) (b & 0x7F) << shift;
+                    if ((b & 0x80) == 0) {
+                        return value;
+                    }
+                    shift += 7;
+                }
+            }
+
+            long nextZigzag() {
+                long value = next();
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package com.gpufast.recorder.muxer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 检查本库录制的MP4(moov + mdat)是否完整：
+ * box结构、sample的偏移和大小是否落在mdat内且互不重叠、解码时间是否严格递增、
+ * 关键帧是否是IDR并且带内SPS/PPS和avcC一致，以及音视频开始时间的偏差。
+ * <p>
+ * 文件通过内存映射读取，默认只读索引(moov)和每个关键帧开头的几个NAL头，不读sample数据，
+ * 2GB的文件也只需要读索引的时间；deep模式额外检查每个视频sample的NAL长度链。
+ * 不依赖Android，可以在桌面JVM上运行：
+ * <pre>
+ * java -cp videoCore.jar com.gpufast.recorder.muxer.Mp4Verifier [--deep] file.mp4 ...
+ * </pre>
+ */
+public final class Mp4Verifier {
+
+    //每一类问题最多记录的条数，之后只计数
+    private static final int MAX_ISSUES_PER_CHECK = 20;
+    //mdat按窗口映射，窗口不能超过int范围
+    private static final long MAP_WINDOW = 256L * 1024 * 1024;
+    //音视频开始时间相差超过这个值时给出警告
+    private static final long AV_OFFSET_WARN_US = 200 * 1000;
+
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    private static final int[] CONTAINERS = {Mp4Boxes.MOOV, Mp4Boxes.TRAK, Mp4Boxes.MDIA,
+            Mp4Boxes.MINF, Mp4Boxes.STBL, Mp4Boxes.DINF, Mp4Boxes.EDTS, Mp4Boxes.MVEX};
+
+    private Mp4Verifier() {
+    }
+
+    /**
+     * 检查结果
+     */
+    public static final class Report {
+        private final String path;
+        private final List<String> errors = new ArrayList<>();
+        private final List<String> warnings = new ArrayList<>();
+        //每一类问题出现的次数
+        private final Map<String, Integer> counts = new HashMap<>();
+        private long fileSize;
+        private int videoSamples;
+        private int audioSamples;
+        private int keyFrames;
+        private long videoStartUs = -1;
+        private long audioStartUs = -1;
+        private long videoDurationUs;
+        private long audioDurationUs;
+        private long elapsedMs;
+
+        Report(String path) {
+            this.path = path;
+        }
+
+        void error(String check, String message) {
+            add(errors, check, message);
+        }
+
+        void warning(String check, String message) {
+            add(warnings, check, message);
+        }
+
+        private void add(List<String> list, String check, String message) {
+            Integer count = counts.get(check);
+            count = count == null ? 1 : count + 1;
+            counts.put(check, count);
+            if (count <= MAX_ISSUES_PER_CHECK) {
+                list.add(check + ": " + message);
+            }
+        }
+
+        /**
+         * 超过条数上限的问题汇总成一条
+         */
+        void summarize() {
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                if (entry.getValue() > MAX_ISSUES_PER_CHECK) {
+                    String line = entry.getKey() + ": " + (entry.getValue() - MAX_ISSUES_PER_CHECK) + " more";
+                    if (hasPrefix(errors, entry.getKey())) {
+                        errors.add(line);
+                    } else {
+                        warnings.add(line);
+                    }
+                }
+            }
+        }
+
+        private static boolean hasPrefix(List<String> list, String check) {
+            for (String line : list) {
+                if (line.startsWith(check + ": ")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean isValid() {
+            return errors.isEmpty();
+        }
+
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        public List<String> getWarnings() {
+            return Collections.unmodifiableList(warnings);
+        }
+
+        public int getVideoSamples() {
+            return videoSamples;
+        }
+
+        public int getAudioSamples() {
+            return audioSamples;
+        }
+
+        public int getKeyFrames() {
+            return keyFrames;
+        }
+
+        /**
+         * @return 音频开始时间减去视频开始时间(微秒)，缺少某条轨道时返回0
+         */
+        public long getAvOffsetUs() {
+            return videoStartUs >= 0 && audioStartUs >= 0 ? audioStartUs - videoStartUs : 0;
+        }
+
+        public long getVideoDurationUs() {
+            return videoDurationUs;
+        }
+
+        public long getAudioDurationUs() {
+            return audioDurationUs;
+        }
+
+        /**
+         * @return 检查耗时
+         */
+        public long getElapsedMs() {
+            return elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(path).append(": ").append(isValid() ? "OK" : "FAILED")
+                    .append(" (").append(fileSize).append(" bytes, ").append(elapsedMs).append(" ms)\n");
+            sb.append("  video: ").append(videoSamples).append(" samples, ").append(keyFrames)
+                    .append(" key frames, ").append(videoDurationUs / 1000).append(" ms\n");
+            sb.append("  audio: ").append(audioSamples).append(" samples, ")
+                    .append(audioDurationUs / 1000).append(" ms\n");
+            sb.append("  a/v start offset: ").append(getAvOffsetUs() / 1000).append(" ms\n");
+            for (String error : errors) {
+                sb.append("  error   ").append(error).append('\n');
+            }
+            for (String warning : warnings) {
+                sb.append("  warning ").append(warning).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * moov中单条轨道的附加信息，{@link Mp4Reader}不解析的部分
+     */
+    private static final class TrakInfo {
+        //NAL长度字段的字节数(avcC lengthSizeMinusOne + 1)
+        int nalLengthSize = 4;
+    }
+
+    public static Report verify(String path) throws IOException {
+        return verify(path, false);
+    }
+
+    /**
+     * @param deep 是否检查每个视频sample的NAL长度链，会读取全部视频sample的NAL头
+     * @throws IOException 文件无法打开或读取
+     */
+    public static Report verify(String path, boolean deep) throws IOException {
+        long start = System.nanoTime();
+        Report report = new Report(path);
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            verify(file.getChannel(), report, deep);
+        } finally {
+            file.close();
+        }
+        report.summarize();
+        report.elapsedMs = (System.nanoTime() - start) / 1000000;
+        return report;
+    }
+
+    private static void verify(FileChannel channel, Report report, boolean deep) throws IOException {
+        report.fileSize = channel.size();
+        List<Mp4Box> boxes;
+        try {
+            boxes = Mp4Box.scanTopLevel(channel);
+        } catch (IOException e) {
+            report.error("box", e.getMessage());
+            return;
+        }
+        if (boxes.isEmpty() || boxes.get(0).type != Mp4Boxes.FTYP) {
+            report.error("box", "file does not start with ftyp");
+        }
+        long scanned = boxes.isEmpty() ? 0 : boxes.get(boxes.size() - 1).end();
+        if (scanned < report.fileSize) {
+            report.warning("box", (report.fileSize - scanned) + " trailing bytes after last box");
+        }
+        Mp4Box moov = null;
+        List<Mp4Box> mdats = new ArrayList<>();
+        for (Mp4Box box : boxes) {
+            if (box.type == Mp4Boxes.MOOV) {
+                if (moov != null) {
+                    report.error("box", "multiple moov boxes");
+                } else {
+                    moov = box;
+                }
+            } else if (box.type == Mp4Boxes.MDAT) {
+                mdats.add(box);
+            } else if (box.type == Mp4Boxes.MOOF) {
+                report.error("box", "fragmented mp4 is not supported");
+                return;
+            }
+        }
+        if (moov == null) {
+            report.error("box", "moov not found");
+            return;
+        }
+        if (mdats.isEmpty()) {
+            report.error("box", "mdat not found");
+        }
+        if (moov.size > Integer.MAX_VALUE) {
+            report.error("box", "moov too large " + moov.size);
+            return;
+        }
+        MappedByteBuffer moovBuffer = channel.map(FileChannel.MapMode.READ_ONLY, moov.offset, moov.size);
+        if (!checkBoxTree(moovBuffer, moov.headerSize, moovBuffer.limit(), "moov", report)) {
+            return;
+        }
+        TrakInfo[] traks = parseTraks(moovBuffer, moov.headerSize);
+
+        Mp4Reader reader;
+        try {
+            reader = Mp4Reader.read(channel);
+        } catch (IOException e) {
+            report.error("sample table", e.getMessage());
+            return;
+        }
+        Mp4Reader.Track video = reader.videoTrack();
+        Mp4Reader.Track audio = reader.audioTrack();
+        if (video == null) {
+            report.error("track", "no video track");
+        }
+        MappedFile mapped = new MappedFile(channel, report.fileSize);
+        if (video != null) {
+            report.videoSamples = video.sampleCount();
+            report.videoDurationUs = video.toUs(video.durationTicks());
+            checkSamples(video, "video", mdats, report);
+            checkKeyFrames(video, traks[0], mapped, deep, report);
+            report.videoStartUs = video.startUs();
+        }
+        if (audio != null) {
+            report.audioSamples = audio.sampleCount();
+            report.audioDurationUs = audio.toUs(audio.durationTicks());
+            checkSamples(audio, "audio", mdats, report);
+            report.audioStartUs = audio.startUs();
+        }
+        if (video != null && audio != null) {
+            checkOverlap(video, audio, report);
+        }
+        long offsetUs = report.getAvOffsetUs();
+        if (Math.abs(offsetUs) > AV_OFFSET_WARN_US) {
+            report.warning("a/v", "audio starts " + offsetUs / 1000 + " ms after video");
+        }
+    }
+
+    /**
+     * 递归检查容器box的子box都在父box范围内
+     *
+     * @return false表示结构损坏，不再继续检查
+     */
+    private static boolean checkBoxTree(ByteBuffer b, int start, int end, String parent, Report report) {
+        int position = start;
+        while (position + 8 <= end) {
+            long size = b.getInt(position) & 0xFFFFFFFFL;
+            int type = b.getInt(position + 4);
+            if (size < 8 || position + size > end) {
+                report.error("box", Mp4Box.typeName(type) + " in " + parent + " at " + position
+                        + " has invalid size " + size);
+                return false;
+            }
+            if (isContainer(type) && !checkBoxTree(b, position + 8, position + (int) size,
+                    Mp4Box.typeName(type), report)) {
+                return false;
+            }
+            position += (int) size;
+        }
+        if (position != end) {
+            report.warning("box", (end - position) + " stray bytes at end of " + parent);
+        }
+        return true;
+    }
+
+    private static boolean isContainer(int type) {
+        for (int container : CONTAINERS) {
+            if (container == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按{@link Mp4Reader}相同的规则取第一条视频和第一条音频轨道的附加信息
+     *
+     * @return [视频, 音频]，不会为null
+     */
+    private static TrakInfo[] parseTraks(ByteBuffer b, int start) throws IOException {
+        TrakInfo[] result = {new TrakInfo(), new TrakInfo()};
+        boolean[] found = new boolean[2];
+        int end = b.limit();
+        int trak = start;
+        while ((trak = Mp4Reader.findBox(b, trak, end, Mp4Boxes.TRAK)) >= 0) {
+            int trakEnd = trak + b.getInt(trak);
+            int mdia = Mp4Reader.findBox(b, trak + 8, trakEnd, Mp4Boxes.MDIA);
+            int hdlr = mdia < 0 ? -1 : Mp4Reader.findBox(b, mdia + 8, mdia + b.getInt(mdia), Mp4Boxes.HDLR);
+            int handler = hdlr < 0 ? 0 : b.getInt(hdlr + 16);
+            int index = handler == Mp4Boxes.VIDE ? 0 : handler == Mp4Boxes.SOUN ? 1 : -1;
+            if (index >= 0 && !found[index]) {
+                found[index] = true;
+                if (index == 0) {
+                    result[index].nalLengthSize = nalLengthSize(b, mdia);
+                }
+            }
+            trak = trakEnd;
+        }
+        return result;
+    }
+
+    private static int nalLengthSize(ByteBuffer b, int mdia) throws IOException {
+        int mdiaEnd = mdia + b.getInt(mdia);
+        int minf = Mp4Reader.findBox(b, mdia + 8, mdiaEnd, Mp4Boxes.MINF);
+        int stbl = minf < 0 ? -1 : Mp4Reader.findBox(b, minf + 8, minf + b.getInt(minf), Mp4Boxes.STBL);
+        int stsd = stbl < 0 ? -1 : Mp4Reader.findBox(b, stbl + 8, stbl + b.getInt(stbl), Mp4Boxes.STSD);
+        if (stsd < 0) {
+            return 4;
+        }
+        int entry = stsd + 16;
+        int avcC = Mp4Reader.findBox(b, entry + 86, entry + b.getInt(entry), Mp4Boxes.AVCC);
+        return avcC < 0 ? 4 : (b.get(avcC + 12) & 0x03) + 1;
+    }
+
+    /**
+     * sample在mdat内、偏移递增，解码时间严格递增
+     */
+    private static void checkSamples(Mp4Reader.Track track, String name, List<Mp4Box> mdats, Report report) {
+        int count = track.sampleCount();
+        if (count == 0) {
+            report.warning(name, "no samples");
+            return;
+        }
+        //通常只有一个mdat，先和上一个sample所在的mdat比较
+        Mp4Box mdat = mdats.isEmpty() ? null : mdats.get(0);
+        long lastEnd = -1;
+        long lastTime = -1;
+        for (int i = 0; i < count; i++) {
+            long offset = track.offset(i);
+            int size = track.size(i);
+            if (size <= 0) {
+                report.error(name + " sample", "sample " + i + " has size " + size);
+            }
+            if (mdat == null || offset < mdat.dataOffset() || offset + size > mdat.end()) {
+                mdat = findMdat(mdats, offset, size);
+                if (mdat == null) {
+                    report.error(name + " sample", "sample " + i + " [" + offset + ", " + (offset + size)
+                            + ") is outside mdat");
+                }
+            }
+            if (offset < lastEnd) {
+                report.warning(name + " order", "sample " + i + " at " + offset + " is before the end of sample "
+                        + (i - 1));
+            }
+            lastEnd = offset + size;
+            long time = track.decodeTime(i);
+            if (time <= lastTime) {
+                report.error(name + " timestamp", "decode time of sample " + i + " (" + time
+                        + ") is not after sample " + (i - 1) + " (" + lastTime + ")");
+            }
+            lastTime = time;
+            if (track.presentationTime(i) < 0) {
+                report.error(name + " timestamp", "negative presentation time at sample " + i);
+            }
+        }
+    }
+
+    private static Mp4Box findMdat(List<Mp4Box> mdats, long offset, int size) {
+        for (Mp4Box mdat : mdats) {
+            if (offset >= mdat.dataOffset() && offset + size <= mdat.end()) {
+                return mdat;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 音视频sample互不重叠，两条轨道的偏移都是递增时按归并的方式检查
+     */
+    private static void checkOverlap(Mp4Reader.Track video, Mp4Reader.Track audio, Report report) {
+        int v = 0;
+        int a = 0;
+        long lastEnd = -1;
+        String last = null;
+        while (v < video.sampleCount() || a < audio.sampleCount()) {
+            boolean takeVideo = a >= audio.sampleCount()
+                    || (v < video.sampleCount() && video.offset(v) <= audio.offset(a));
+            Mp4Reader.Track track = takeVideo ? video : audio;
+            int index = takeVideo ? v++ : a++;
+            long offset = track.offset(index);
+            String current = (takeVideo ? "video " : "audio ") + index;
+            if (offset < lastEnd) {
+                report.error("overlap", current + " at " + offset + " overlaps " + last);
+            }
+            if (offset + track.size(index) > lastEnd) {
+                lastEnd = offset + track.size(index);
+                last = current;
+            }
+        }
+    }
+
+    /**
+     * 第一个sample是关键帧；关键帧包含IDR，带内的SPS/PPS和avcC一致。deep模式检查所有sample的NAL长度链
+     */
+    private static void checkKeyFrames(Mp4Reader.Track video, TrakInfo info, MappedFile mapped, boolean deep,
+                                       Report report) throws IOException {
+        int count = video.sampleCount();
+        if (count == 0) {
+            return;
+        }
+        if (!video.isSync(0)) {
+            report.error("key frame", "first video sample is not a sync sample");
+        }
+        byte[] sps = video.format.sps;
+        byte[] pps = video.format.pps;
+        for (int i = 0; i < count; i++) {
+            boolean sync = video.isSync(i);
+            if (sync) {
+                report.keyFrames++;
+            } else if (!deep) {
+                continue;
+            }
+            long position = video.offset(i);
+            long end = position + video.size(i);
+            if (end > mapped.size) {
+                //已经报告过不在mdat内
+                continue;
+            }
+            boolean idr = false;
+            while (position < end) {
+                if (position + info.nalLengthSize > end) {
+                    report.error("nal", "sample " + i + " has a truncated NAL length at " + position);
+                    break;
+                }
+                long length = mapped.readUnsigned(position, info.nalLengthSize);
+                position += info.nalLengthSize;
+                if (length <= 0 || position + length > end) {
+                    report.error("nal", "sample " + i + " has invalid NAL length " + length);
+                    break;
+                }
+                int type = mapped.get(position) & 0x1F;
+                if (type == NAL_IDR) {
+                    idr = true;
+                    if (!deep) {
+                        //只看IDR之前的参数集
+                        break;
+                    }
+                } else if (type == NAL_SPS && !mapped.equals(position, length, sps)) {
+                    report.error("key frame", "in-band SPS of sample " + i + " differs from avcC");
+                } else if (type == NAL_PPS && !mapped.equals(position, length, pps)) {
+                    report.error("key frame", "in-band PPS of sample " + i + " differs from avcC");
+                }
+                position += length;
+            }
+            if (sync && !idr) {
+                report.error("key frame", "sync sample " + i + " has no IDR slice");
+            } else if (!sync && idr) {
+                report.warning("key frame", "sample " + i + " contains an IDR slice but is not marked sync");
+            }
+        }
+    }
+
+    /**
+     * 按窗口映射整个文件，只有访问到的页才会从存储读入
+     */
+    private static final class MappedFile {
+        private final FileChannel channel;
+        final long size;
+        private final MappedByteBuffer[] windows;
+
+        MappedFile(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+            windows = new MappedByteBuffer[(int) ((size + MAP_WINDOW - 1) / MAP_WINDOW)];
+        }
+
+        byte get(long position) throws IOException {
+            int index = (int) (position / MAP_WINDOW);
+            MappedByteBuffer window = windows[index];
+            if (window == null) {
+                long start = index * MAP_WINDOW;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_WINDOW, size - start));
+                windows[index] = window;
+            }
+            return window.get((int) (position - index * MAP_WINDOW));
+        }
+
+        long readUnsigned(long position, int bytes) throws IOException {
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | (get(position + i) & 0xFF);
+            }
+            return value;
+        }
+
+        boolean equals(long position, long length, byte[] expected) throws IOException {
+            if (expected == null || length != expected.length) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (get(position + i) != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 命令行入口，全部文件通过时退出码为0
+     */
+    public static void main(String[] args) {
+        boolean deep = false;
+        List<String> paths = new ArrayList<>();
+        for (String arg : args) {
+            if ("--deep".equals(arg)) {
+                deep = true;
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (paths.isEmpty()) {
+            System.err.println("usage: Mp4Verifier [--deep] file.mp4 ...");
+            System.exit(2);
+        }
+        boolean allValid = true;
+        for (String path : paths) {
+            try {
+                Report report = verify(path, deep);
+                System.out.print(report);
+                allValid &= report.isValid();
+            } catch (IOException e) {
+                System.out.println(path + ": " + e.getMessage());
+                allValid = false;
+            }
+        }
+        System.exit(allValid ? 0 : 1);
+    }
+}
@@ -0,0 +1,56 @@
+package com.gpufast.recorder.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * 复用器的输出目标
+ * 顺序写沿用{@link GatheringByteChannel}：从追加位置写入并后移追加位置，支持gathering write，
+ * 复用器把头部和编码器输出的buffer一起写出，不经过中间的堆内存拷贝。
+ * 可寻址的sink还支持指定位置读写，用来回填文件头部(MP4的moov、MKV的时长和SeekHead)。
+ * <p>
+ * 已有实现：{@link FileSink}、{@link MemorySink}、{@link SocketSink}，新的输出目标只需要实现这个接口。
+ * 写入必须是阻塞的，返回前写完所有数据。除{@link #force()}外非线程安全，由复用器保证串行调用。
+ */
+public interface MuxerSink extends GatheringByteChannel {
+
+    /**
+     * @return 追加位置
+     */
+    long position() throws IOException;
+
+    /**
+     * 修改追加位置，仅可寻址的sink支持。超过末尾时中间的空洞内容不确定
+     *
+     * @throws UnsupportedOperationException 不可寻址
+     */
+    MuxerSink position(long newPosition) throws IOException;
+
+    /**
+     * @return 是否支持{@link #position(long)}和指定位置读写
+     */
+    boolean isSeekable();
+
+    /**
+     * 在position处写入src，不改变追加位置
+     *
+     * @throws UnsupportedOperationException 不可寻址
+     */
+    int write(ByteBuffer src, long position) throws IOException;
+
+    /**
+     * 从position处读入dst，不改变追加位置
+     *
+     * @return 读到的字节数，position在末尾之后时返回-1
+     * @throws UnsupportedOperationException 不可寻址
+     */
+    int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * 把已经写入的数据落到存储设备，没有持久化概念的sink直接返回。
+     * 可能在其它线程和写入并发调用({@link SampleJournal}在日志线程上先对媒体文件fsync)，
+     * 实现必须允许这种调用；关闭之后调用可以抛出异常
+     */
+    void force() throws IOException;
+}
@@ -3,6 +3,16 @@ package com.gpufast.recorder.muxer;
 public enum MuxerType {
     FLV,
     MP4,
+    //moov在文件头部的MP4，可以边下边播
+    MP4_FASTSTART,
+    //分片MP4(fMP4/CMAF)
+    FMP4,
+    //MPEG-TS，截断后仍可播放
+    TS,
+    //HLS，TS分段+m3u8播放列表
+    HLS_TS,
+    //HLS，fMP4(CMAF)分段+m3u8播放列表
+    HLS_FMP4,
     AVI,
     MKV
 }
@@ -0,0 +1,146 @@
+package com.gpufast.recorder.muxer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 Annex-B 码流工具
+ * 扫描只通过绝对下标读取，拷贝时临时调整src的position/limit并在返回前恢复，不分配内存。
+ */
+final class NalUnits {
+
+    static final int NAL_SLICE = 1;
+    static final int NAL_IDR = 5;
+    static final int NAL_SEI = 6;
+    static final int NAL_SPS = 7;
+    static final int NAL_PPS = 8;
+    static final int NAL_AUD = 9;
+
+    private NalUnits() {
+    }
+
+    /**
+     * buffer在position处是否以start code开头
+     */
+    static boolean isAnnexB(ByteBuffer buffer) {
+        int pos = buffer.position();
+        int remaining = buffer.remaining();
+        if (remaining >= 3 && buffer.get(pos) == 0 && buffer.get(pos + 1) == 0) {
+            if (buffer.get(pos + 2) == 1) {
+                return true;
+            }
+            return remaining >= 4 && buffer.get(pos + 2) == 0 && buffer.get(pos + 3) == 1;
+        }
+        return false;
+    }
+
+    /**
+     * 从from开始查找下一个start code
+     *
+     * @return start code第一个字节的下标(4字节start code时指向首个0)，找不到返回limit
+     */
+    static int findStartCode(ByteBuffer buffer, int from, int limit) {
+        for (int i = from; i + 2 < limit; i++) {
+            if ((buffer.get(i + 2) & 0xFF) > 1) {
+                //第三个字节大于1，可以直接跳过
+                i += 2;
+                continue;
+            }
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1) {
+                if (i > from && buffer.get(i - 1) == 0) {
+                    return i - 1;
+                }
+                return i;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * index处start code的长度(3或4)
+     */
+    static int startCodeLength(ByteBuffer buffer, int index) {
+        return buffer.get(index + 2) == 1 ? 3 : 4;
+    }
+
+    static int nalType(ByteBuffer buffer, int nalStart) {
+        return buffer.get(nalStart) & 0x1F;
+    }
+
+    /**
+     * 是否是参数集或分隔符，这些NAL在MP4/FLV/MKV中放在codec配置里，不需要重复写入sample
+     */
+    static boolean isConfigNal(int type) {
+        return type == NAL_SPS || type == NAL_PPS || type == NAL_AUD;
+    }
+
+    /**
+     * Annex-B数据中是否包含指定类型的NAL，找到即返回
+     */
+    static boolean containsNal(ByteBuffer buffer, int type) {
+        int limit = buffer.limit();
+        int codeStart = findStartCode(buffer, buffer.position(), limit);
+        while (codeStart < limit) {
+            int nalStart = codeStart + startCodeLength(buffer, codeStart);
+            if (nalStart < limit && nalType(buffer, nalStart) == type) {
+                return true;
+            }
+            codeStart = findStartCode(buffer, nalStart, limit);
+        }
+        return false;
+    }
+
+    /**
+     * 将一帧Annex-B数据转换为4字节长度前缀(AVCC)格式写入dst，跳过SPS/PPS/AUD。
+     * 如果src本身已是长度前缀格式，则原样拷贝
+     *
+     * @return 写入dst的字节数
+     */
+    static int copyAsAvcc(ByteBuffer src, ByteBuffer dst) {
+        int start = dst.position();
+        int pos = src.position();
+        int limit = src.limit();
+        if (!isAnnexB(src)) {
+            dst.put(src);
+            src.position(pos);
+            return dst.position() - start;
+        }
+        int codeStart = findStartCode(src, pos, limit);
+        while (codeStart < limit) {
+            int nalStart = codeStart + startCodeLength(src, codeStart);
+            int next = findStartCode(src, nalStart, limit);
+            int nalSize = next - nalStart;
+            if (nalSize > 0 && !isConfigNal(nalType(src, nalStart))) {
+                dst.putInt(nalSize);
+                src.limit(next);
+                src.position(nalStart);
+                dst.put(src);
+                src.limit(limit);
+            }
+            codeStart = next;
+        }
+        src.position(pos);
+        return dst.position() - start;
+    }
+
+    /**
+     * 计算{@link #copyAsAvcc(ByteBuffer, ByteBuffer)}输出的字节数，用于提前预留空间
+     */
+    static int avccSize(ByteBuffer src) {
+        int pos = src.position();
+        int limit = src.limit();
+        if (!isAnnexB(src)) {
+            return limit - pos;
+        }
+        int size = 0;
+        int codeStart = findStartCode(src, pos, limit);
+        while (codeStart < limit) {
+            int nalStart = codeStart + startCodeLength(src, codeStart);
+            int next = findStartCode(src, nalStart, limit);
+            if (next > nalStart && !isConfigNal(nalType(src, nalStart))) {
+                size += 4 + next - nalStart;
+            }
+            codeStart = next;
+        }
+        return size;
+    }
+}
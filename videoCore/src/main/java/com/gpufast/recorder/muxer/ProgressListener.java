@@ -0,0 +1,8 @@
+package com.gpufast.recorder.muxer;
+
+/**
+ * 文件后处理(faststart/拼接等)的进度回调，在执行处理的线程上调用
+ */
+public interface ProgressListener {
+    void onProgress(long processedBytes, long totalBytes);
+}
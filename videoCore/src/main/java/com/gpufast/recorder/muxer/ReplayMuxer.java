@@ -0,0 +1,427 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 即时回放：只在内存中保留最近一段时间的编码数据，调用{@link #save}时才写成MP4文件
+ * <p>
+ * 数据拷贝进固定大小的direct buffer环形缓冲，sample信息存在固定长度的数组里，录制过程中不再分配内存。
+ * 空间不够或者超过保留时长时按GOP从最早的数据开始淘汰，缓冲中的数据总是从视频关键帧开始。
+ * 保存在单独的线程上进行，录制继续：保存线程直接从环形缓冲读取，还没写完的数据不会被淘汰，
+ * 这期间新数据放不下时丢弃新数据(视频丢到下一个关键帧)，保证保存的文件完整。
+ */
+public class ReplayMuxer extends IMediaMuxer {
+    private static final String TAG = ReplayMuxer.class.getSimpleName();
+
+    //保存时每写这么多数据回调一次进度
+    private static final long PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
+    public interface Callback {
+        /**
+         * 保存结束，在保存线程回调
+         *
+         * @param path    文件路径
+         * @param success 是否成功
+         */
+        void onReplaySaved(String path, boolean success);
+    }
+
+    private final Object lock = new Object();
+    private final boolean muteMic;
+    private final long durationUs;
+
+    //环形缓冲，只在持有lock时由编码器线程写入
+    private final ByteBuffer ring;
+    private final int capacity;
+    //下一个sample写入的位置(从0开始累加，对capacity取模得到在ring中的位置)
+    private long writePosition = 0;
+
+    //sample信息，下标是序号对maxSamples取模
+    private final int maxSamples;
+    private final long[] sampleStarts;
+    private final int[] sampleSizes;
+    private final long[] sampleTimes;
+    private final int[] sampleTracks;
+    private final boolean[] sampleKeys;
+    //缓冲中的sample序号范围[headSeq, tailSeq)
+    private long headSeq = 0;
+    private long tailSeq = 0;
+    //缓冲中视频关键帧的序号，按顺序排列
+    private final long[] keySeqs;
+    private int keyHead = 0;
+    private int keyCount = 0;
+
+    private TrackFormat videoFormat;
+    private TrackFormat audioFormat;
+    private boolean waitKeyFrame = true;
+    private long droppedFrames = 0;
+    private boolean stopped = false;
+
+    //保存线程还没写完的第一个关键帧，淘汰不能越过它，-1表示没有在保存
+    private long pinSeq = -1;
+    private Thread saver;
+
+    ReplayMuxer(Setting setting) {
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        if (setting.replayBufferBytes <= 0 || setting.replayMaxSamples <= 0) {
+            throw new IllegalArgumentException("invalid replay buffer:" + setting.replayBufferBytes
+                    + " samples:" + setting.replayMaxSamples);
+        }
+        muteMic = setting.muteMic;
+        durationUs = setting.replayDurationUs;
+        capacity = setting.replayBufferBytes;
+        ring = ByteBuffer.allocateDirect(capacity);
+        maxSamples = setting.replayMaxSamples;
+        sampleStarts = new long[maxSamples];
+        sampleSizes = new int[maxSamples];
+        sampleTimes = new long[maxSamples];
+        sampleTracks = new int[maxSamples];
+        sampleKeys = new boolean[maxSamples];
+        keySeqs = new long[maxSamples];
+        ELog.i(TAG, "init replay muxer durationUs:" + durationUs + " buffer:" + capacity
+                + " maxSamples:" + maxSamples);
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported video format");
+            return;
+        }
+        synchronized (lock) {
+            videoFormat = format;
+        }
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        if (muteMic) return;
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported audio format");
+            return;
+        }
+        synchronized (lock) {
+            audioFormat = format;
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || !frame.buffer.hasRemaining()) {
+            return;
+        }
+        boolean keyFrame = frame.frameType == EncodedImage.FrameType.VideoFrameKey;
+        synchronized (lock) {
+            if (stopped) return;
+            if (waitKeyFrame && !keyFrame) {
+                droppedFrames++;
+                return;
+            }
+            //只写帧数据(buffer的position..limit)，参数集由复用器从格式中取得
+            if (append(SampleInterleaver.TRACK_VIDEO, frame.buffer, info.presentationTimeUs, keyFrame)) {
+                waitKeyFrame = false;
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            //缓冲必须从关键帧开始，之前的音频没有用
+            if (stopped || headSeq == tailSeq) return;
+            ByteBuffer buffer = frame.buffer;
+            int position = buffer.position();
+            int limit = buffer.limit();
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            append(SampleInterleaver.TRACK_AUDIO, buffer, info.presentationTimeUs, false);
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * 把src的position..limit拷贝进环形缓冲，需要持有lock
+     *
+     * @return false表示放不下，数据被丢弃
+     */
+    private boolean append(int track, ByteBuffer src, long timeUs, boolean keyFrame) {
+        int size = src.remaining();
+        if (size > capacity) {
+            ELog.w(TAG, "frame larger than replay buffer:" + size);
+            return drop(track);
+        }
+        if (track == SampleInterleaver.TRACK_VIDEO) {
+            evictExpired(timeUs);
+        }
+        //一帧数据不跨越缓冲末尾，末尾放不下时从头开始
+        long start = writePosition;
+        int offset = (int) (start % capacity);
+        if (offset + size > capacity) {
+            start += capacity - offset;
+            offset = 0;
+        }
+        while (tailSeq - headSeq >= maxSamples
+                || (headSeq < tailSeq && start + size - sampleStarts[slot(headSeq)] > capacity)) {
+            if (keyCount > 1) {
+                if (!evictTo(keySeqs[(keyHead + 1) % maxSamples])) {
+                    return drop(track);
+                }
+            } else if (keyFrame) {
+                //新的关键帧之前只有一个GOP，全部丢掉
+                if (!evictTo(tailSeq)) {
+                    return drop(track);
+                }
+            } else {
+                //一个GOP比整个缓冲还大，只能丢掉并从下一个关键帧重新开始
+                ELog.w(TAG, "gop larger than replay buffer, reset");
+                evictTo(tailSeq);
+                return drop(track);
+            }
+        }
+        ring.limit(offset + size);
+        ring.position(offset);
+        int position = src.position();
+        ring.put(src);
+        src.position(position);
+
+        int slot = slot(tailSeq);
+        sampleStarts[slot] = start;
+        sampleSizes[slot] = size;
+        sampleTimes[slot] = timeUs;
+        sampleTracks[slot] = track;
+        sampleKeys[slot] = keyFrame;
+        if (keyFrame) {
+            keySeqs[(keyHead + keyCount) % maxSamples] = tailSeq;
+            keyCount++;
+        }
+        tailSeq++;
+        writePosition = start + size;
+        return true;
+    }
+
+    /**
+     * 第二个关键帧已经早于保留时长时，淘汰第一个GOP
+     */
+    private void evictExpired(long timeUs) {
+        while (keyCount > 1) {
+            long secondKey = keySeqs[(keyHead + 1) % maxSamples];
+            if (sampleTimes[slot(secondKey)] > timeUs - durationUs || !evictTo(secondKey)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 淘汰序号小于seq的sample，seq必须是关键帧或者tailSeq
+     *
+     * @return false表示这些数据正在保存，不能淘汰
+     */
+    private boolean evictTo(long seq) {
+        if (pinSeq >= 0 && seq > pinSeq) {
+            return false;
+        }
+        while (keyCount > 0 && keySeqs[keyHead] < seq) {
+            keyHead = (keyHead + 1) % maxSamples;
+            keyCount--;
+        }
+        headSeq = seq;
+        if (headSeq == tailSeq) {
+            //缓冲空了，要从关键帧重新开始
+            waitKeyFrame = true;
+        }
+        return true;
+    }
+
+    private boolean drop(int track) {
+        droppedFrames++;
+        if (track == SampleInterleaver.TRACK_VIDEO) {
+            //后面的P帧依赖丢掉的帧
+            waitKeyFrame = true;
+        }
+        return false;
+    }
+
+    private int slot(long seq) {
+        return (int) (seq % maxSamples);
+    }
+
+    /**
+     * 在后台线程把缓冲中的数据保存为MP4，录制继续进行，同一时间只能有一个保存
+     *
+     * @param path     文件路径
+     * @param progress 进度回调，可以为null
+     * @param callback 结果回调，可以为null
+     * @return false表示没有数据或者正在保存，不会回调
+     */
+    public boolean save(final String path, final ProgressListener progress, final Callback callback) {
+        if (path == null) {
+            return false;
+        }
+        synchronized (lock) {
+            if (saver != null) {
+                ELog.w(TAG, "replay is being saved");
+                return false;
+            }
+            if (videoFormat == null || keyCount == 0) {
+                ELog.w(TAG, "nothing to save");
+                return false;
+            }
+            final long from = headSeq;
+            final long to = tailSeq;
+            final long totalBytes = writePosition - sampleStarts[slot(from)];
+            final TrackFormat video = videoFormat;
+            final TrackFormat audio = audioFormat;
+            pinSeq = from;
+            ELog.i(TAG, "save replay samples:" + (to - from) + " bytes:" + totalBytes
+                    + " dropped:" + droppedFrames + " -> " + path);
+            saver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    boolean success = writeReplay(path, from, to, totalBytes, video, audio, progress);
+                    synchronized (lock) {
+                        pinSeq = -1;
+                        saver = null;
+                    }
+                    if (callback != null) {
+                        callback.onReplaySaved(path, success);
+                    }
+                }
+            }, "ReplaySaver");
+            saver.start();
+        }
+        return true;
+    }
+
+    /**
+     * 在保存线程上执行。[from, to)在save时已经写入，淘汰不会越过pinSeq，可以不加锁读取
+     */
+    private boolean writeReplay(String path, long from, long to, long totalBytes,
+                                TrackFormat video, TrackFormat audio, ProgressListener progress) {
+        boolean hasAudio = audio != null && !muteMic;
+        long moovBytes = FastStartMp4Writer.estimateMoovBytes(to - from);
+        FileSink sink = null;
+        boolean success = false;
+        try {
+            sink = FileSink.open(path, totalBytes + moovBytes);
+            FastStartMp4Writer writer = new FastStartMp4Writer(sink, hasAudio, moovBytes);
+            writer.setVideoFormat(video);
+            if (hasAudio) {
+                writer.setAudioFormat(audio);
+            }
+            //保存线程自己的视图，不影响编码器线程使用ring的position/limit
+            ByteBuffer data = ring.duplicate();
+            long firstVideoUs = sampleTimes[slot(from)];
+            long written = 0;
+            long reported = 0;
+            for (long seq = from; seq < to; seq++) {
+                int slot = slot(seq);
+                boolean keyFrame = sampleKeys[slot];
+                if (keyFrame && seq > from) {
+                    //之前的GOP已经写完，可以淘汰了
+                    synchronized (lock) {
+                        pinSeq = seq;
+                    }
+                }
+                int offset = (int) (sampleStarts[slot] % capacity);
+                int size = sampleSizes[slot];
+                data.limit(offset + size);
+                data.position(offset);
+                if (sampleTracks[slot] == SampleInterleaver.TRACK_VIDEO) {
+                    writer.writeVideoSample(data, sampleTimes[slot], keyFrame);
+                } else if (hasAudio && sampleTimes[slot] >= firstVideoUs) {
+                    //早于第一个关键帧的音频会挤在文件开头，丢掉
+                    writer.writeAudioSample(data, sampleTimes[slot]);
+                }
+                written += size;
+                if (progress != null && written - reported >= PROGRESS_INTERVAL_BYTES) {
+                    reported = written;
+                    progress.onProgress(written, totalBytes);
+                }
+            }
+            writer.finish();
+            sink.force();
+            if (progress != null) {
+                progress.onProgress(totalBytes, totalBytes);
+            }
+            success = true;
+            ELog.i(TAG, "save replay success:" + path);
+        } catch (IOException e) {
+            ELog.e(TAG, "save replay failed:" + path + " " + e.getMessage());
+        } finally {
+            if (sink != null) {
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return success;
+    }
+
+    /**
+     * @return 缓冲中数据的时长(微秒)
+     */
+    public long getBufferedDurationUs() {
+        synchronized (lock) {
+            if (keyCount == 0) {
+                return 0;
+            }
+            long first = sampleTimes[slot(keySeqs[keyHead])];
+            long last = first;
+            //最后一帧视频的时间，音频可能略早或略晚
+            for (long seq = tailSeq - 1; seq >= headSeq; seq--) {
+                if (sampleTracks[slot(seq)] == SampleInterleaver.TRACK_VIDEO) {
+                    last = sampleTimes[slot(seq)];
+                    break;
+                }
+            }
+            return last - first;
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        ELog.i(TAG, "onVideoEncoderStop");
+        stop();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        ELog.i(TAG, "onAudioEncoderStop");
+        stop();
+    }
+
+    /**
+     * 停止接收数据，缓冲保留，录制结束后仍然可以保存
+     */
+    private void stop() {
+        synchronized (lock) {
+            if (stopped) return;
+            stopped = true;
+            ELog.i(TAG, "replay stopped, samples:" + (tailSeq - headSeq) + " dropped:" + droppedFrames);
+        }
+    }
+
+    @Override
+    void release() {
+        stop();
+    }
+}
@@ -0,0 +1,267 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+
+import com.gpufast.logger.ELog;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 音视频交织器
+ * 按时间戳顺序把各轨道的sample交给{@link SampleWriter}。输出还没开始、或者其他轨道的数据还没追上时，
+ * sample被拷贝到该轨道的环形direct内存中暂存；可以立即写出的sample直接透传，不拷贝。
+ * 某条轨道落后超过交织窗口或暂存区满时，不再等待它。
+ * 非线程安全，由调用者加锁。
+ */
+final class SampleInterleaver {
+    private static final String TAG = SampleInterleaver.class.getSimpleName();
+
+    static final int TRACK_VIDEO = 0;
+    static final int TRACK_AUDIO = 1;
+
+    static final long DEFAULT_WINDOW_US = 500 * 1000L;
+    static final int DEFAULT_VIDEO_POOL_BYTES = 4 * 1024 * 1024;
+    static final int DEFAULT_AUDIO_POOL_BYTES = 256 * 1024;
+    private static final int MAX_QUEUED_SAMPLES = 512;
+
+    interface SampleWriter {
+        /**
+         * @param buffer position..limit为sample数据，info.offset/size与之一致
+         */
+        void writeSample(int track, ByteBuffer buffer, MediaCodec.BufferInfo info);
+    }
+
+    private final SampleWriter writer;
+    private final long windowUs;
+    private final TrackQueue[] queues;
+    private final MediaCodec.BufferInfo outInfo = new MediaCodec.BufferInfo();
+    private boolean started = false;
+
+    /**
+     * @param trackCount 1为只有视频，2为视频+音频
+     */
+    SampleInterleaver(int trackCount, long windowUs, SampleWriter writer) {
+        this.writer = writer;
+        this.windowUs = windowUs;
+        queues = new TrackQueue[trackCount];
+        queues[TRACK_VIDEO] = new TrackQueue(DEFAULT_VIDEO_POOL_BYTES);
+        if (trackCount > 1) {
+            queues[TRACK_AUDIO] = new TrackQueue(DEFAULT_AUDIO_POOL_BYTES);
+        }
+    }
+
+    /**
+     * 输出已就绪，开始按顺序写出暂存的sample
+     */
+    void start() {
+        started = true;
+        drain(false);
+    }
+
+    /**
+     * @param data position..limit为sample数据，返回时保持不变
+     */
+    void writeSample(int track, ByteBuffer data, long ptsUs, int flags) {
+        if (track >= queues.length) return;
+        TrackQueue queue = queues[track];
+        if (queue == null || queue.ended) return;
+        boolean sync = track != TRACK_VIDEO || (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (queue.waitSync) {
+            if (!sync) return;
+            queue.waitSync = false;
+        }
+        if (queue.lastPtsUs != Long.MIN_VALUE && ptsUs < queue.lastPtsUs) {
+            //同一轨道时间戳必须递增
+            ptsUs = queue.lastPtsUs;
+        }
+        queue.lastPtsUs = ptsUs;
+
+        if (started) {
+            drain(false);
+            if (queue.count == 0 && canWrite(track, ptsUs)) {
+                int pos = data.position();
+                outInfo.set(pos, data.remaining(), ptsUs, flags);
+                writer.writeSample(track, data, outInfo);
+                data.position(pos);
+                return;
+            }
+        }
+        while (!queue.offer(data, ptsUs, flags)) {
+            if (!started || queue.count == 0) {
+                ELog.w(TAG, "interleave pool full, drop sample of track " + track);
+                //视频丢帧后需要等到下一个关键帧
+                queue.waitSync = track == TRACK_VIDEO;
+                return;
+            }
+            //暂存区满，不再等待其他轨道
+            writeHead(queue, track);
+        }
+        if (started) {
+            drain(false);
+        }
+    }
+
+    /**
+     * 轨道结束，后续排序不再等待它
+     */
+    void endTrack(int track) {
+        if (track >= queues.length) return;
+        TrackQueue queue = queues[track];
+        if (queue == null) return;
+        queue.ended = true;
+        if (started) {
+            drain(false);
+        }
+    }
+
+    /**
+     * 写出全部暂存的sample
+     */
+    void flush() {
+        if (started) {
+            drain(true);
+        }
+        for (TrackQueue queue : queues) {
+            if (queue != null) {
+                queue.clear();
+            }
+        }
+    }
+
+    private void drain(boolean force) {
+        while (true) {
+            int track = -1;
+            long minPts = Long.MAX_VALUE;
+            for (int i = 0; i < queues.length; i++) {
+                TrackQueue queue = queues[i];
+                if (queue != null && queue.count > 0 && queue.headPts() < minPts) {
+                    minPts = queue.headPts();
+                    track = i;
+                }
+            }
+            if (track < 0) {
+                return;
+            }
+            TrackQueue queue = queues[track];
+            if (!force && !canWrite(track, minPts)
+                    && queue.lastPtsUs - minPts < windowUs) {
+                return;
+            }
+            writeHead(queue, track);
+        }
+    }
+
+    /**
+     * 其他未结束的轨道都已经收到不早于ptsUs的数据时，ptsUs可以安全写出
+     */
+    private boolean canWrite(int track, long ptsUs) {
+        for (int i = 0; i < queues.length; i++) {
+            TrackQueue other = queues[i];
+            if (i == track || other == null || other.ended) continue;
+            if (other.count > 0 && other.headPts() < ptsUs) return false;
+            if (other.lastPtsUs < ptsUs) return false;
+        }
+        return true;
+    }
+
+    private void writeHead(TrackQueue queue, int track) {
+        ByteBuffer data = queue.head();
+        outInfo.set(data.position(), data.remaining(), queue.headPts(), queue.headFlags());
+        writer.writeSample(track, data, outInfo);
+        queue.poll();
+    }
+
+    /**
+     * 单条轨道的暂存区：sample按到达顺序连续存放在环形direct内存中，
+     * 放不下尾部时回绕到开头
+     */
+    private static final class TrackQueue {
+        private final ByteBuffer pool;
+        private final int[] offsets = new int[MAX_QUEUED_SAMPLES];
+        private final int[] sizes = new int[MAX_QUEUED_SAMPLES];
+        private final long[] times = new long[MAX_QUEUED_SAMPLES];
+        private final int[] flags = new int[MAX_QUEUED_SAMPLES];
+        private int first = 0;
+        private int count = 0;
+        //pool中最早和下一个可用的位置
+        private int headOffset = 0;
+        private int tailOffset = 0;
+
+        long lastPtsUs = Long.MIN_VALUE;
+        boolean ended = false;
+        boolean waitSync = false;
+
+        TrackQueue(int capacity) {
+            pool = ByteBuffer.allocateDirect(capacity);
+        }
+
+        boolean offer(ByteBuffer data, long ptsUs, int sampleFlags) {
+            int size = data.remaining();
+            if (count == MAX_QUEUED_SAMPLES) return false;
+            int offset;
+            if (count == 0) {
+                headOffset = 0;
+                offset = 0;
+                if (size > pool.capacity()) return false;
+            } else if (tailOffset >= headOffset) {
+                if (tailOffset + size <= pool.capacity()) {
+                    offset = tailOffset;
+                } else if (size < headOffset) {
+                    offset = 0;
+                } else {
+                    return false;
+                }
+            } else if (tailOffset + size < headOffset) {
+                offset = tailOffset;
+            } else {
+                return false;
+            }
+            int pos = data.position();
+            pool.limit(offset + size);
+            pool.position(offset);
+            pool.put(data);
+            data.position(pos);
+            tailOffset = offset + size;
+
+            int index = (first + count) % MAX_QUEUED_SAMPLES;
+            offsets[index] = offset;
+            sizes[index] = size;
+            times[index] = ptsUs;
+            flags[index] = sampleFlags;
+            count++;
+            return true;
+        }
+
+        long headPts() {
+            return times[first];
+        }
+
+        int headFlags() {
+            return flags[first];
+        }
+
+        ByteBuffer head() {
+            pool.limit(offsets[first] + sizes[first]);
+            pool.position(offsets[first]);
+            return pool;
+        }
+
+        void poll() {
+            first = (first + 1) % MAX_QUEUED_SAMPLES;
+            count--;
+            if (count == 0) {
+                headOffset = 0;
+                tailOffset = 0;
+            } else {
+                headOffset = offsets[first];
+            }
+        }
+
+        void clear() {
+            first = 0;
+            count = 0;
+            headOffset = 0;
+            tailOffset = 0;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.gpufast.recorder.muxer;
+
+import com.gpufast.logger.ELog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * 录制过程中的sample日志，和媒体文件放在一起(文件名加{@link #SUFFIX})
+ * 每个写入mdat的sample追加一条定长记录(偏移、大小、时间戳、关键帧、轨道)，进程被杀后
+ * 可以用{@link Mp4Recovery}根据日志和残缺的mdat重建moov。
+ * <p>
+ * 记录先写进预分配的direct buffer，写满或到达同步周期时交给后台线程写盘并fsync
+ * (先同步媒体文件再同步日志，保证日志里的sample数据已经落盘)，调用线程上不做IO，也不等待fsync：
+ * 到达同步周期时后台线程还在同步就推迟到下一个周期；写满时换一块空闲buffer，
+ * 后台线程一次写完排队的所有buffer再fsync。
+ * 非线程安全，由调用者保证同一时刻只有一个线程写入。
+ */
+final class SampleJournal {
+    private static final String TAG = SampleJournal.class.getSimpleName();
+
+    static final String SUFFIX = ".journal";
+
+    static final int MAGIC = Mp4BoxWriter.fourcc("GFJL");
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 8;
+
+    //记录类型，每条记录的第一个字节
+    static final int RECORD_SAMPLE = 1;
+    static final int RECORD_FORMAT = 2;
+    static final int RECORD_LAYOUT = 3;
+
+    //type(1) track(1) flags(1) 0(1) size(4) offset(8) timeUs(8)
+    static final int SAMPLE_RECORD_SIZE = 24;
+    //type(1) 0(3) 0(4) freePosition(8) reservedBytes(8) mdatPosition(8)
+    static final int LAYOUT_RECORD_SIZE = 32;
+    //type(1) track(1) 0(2) length(4) 后面跟着length字节的格式描述
+    static final int FORMAT_RECORD_HEADER_SIZE = 8;
+
+    static final int FLAG_SYNC = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    //预分配的buffer数，fsync期间可以继续写满BUFFER_COUNT - 1块
+    private static final int BUFFER_COUNT = 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MuxerSink media;
+    private final String path;
+    private final long syncIntervalNs;
+
+    //调用线程写active；写满或到达同步周期的buffer放进pending等后台线程写盘，写完放回free
+    private ByteBuffer active;
+    private long lastHandOffNs;
+
+    private final Object syncLock = new Object();
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    //后台线程正在写盘和fsync
+    private boolean syncing = false;
+    private final Thread syncThread;
+    private boolean closed = false;
+    private volatile IOException error;
+
+    /**
+     * @param path           日志文件路径
+     * @param media          媒体文件，每次同步日志前先对它fsync
+     * @param syncIntervalMs 最长多久同步一次
+     */
+    SampleJournal(String path, MuxerSink media, long syncIntervalMs) throws IOException {
+        this.path = path;
+        this.media = media;
+        this.syncIntervalNs = syncIntervalMs * 1000000L;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        for (int i = 1; i < BUFFER_COUNT; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        active = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        active.putInt(MAGIC);
+        active.putInt(VERSION);
+        lastHandOffNs = System.nanoTime();
+        syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "SampleJournal");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    static String journalPath(String mediaPath) {
+        return mediaPath + SUFFIX;
+    }
+
+    /**
+     * 记录文件布局，见{@link FastStartMp4Writer}
+     */
+    void layout(long freePosition, long reservedBytes, long mdatPosition) {
+        ByteBuffer buffer = reserve(LAYOUT_RECORD_SIZE);
+        buffer.putInt(RECORD_LAYOUT << 24);
+        buffer.putInt(0);
+        buffer.putLong(freePosition);
+        buffer.putLong(reservedBytes);
+        buffer.putLong(mdatPosition);
+    }
+
+    /**
+     * 记录轨道格式，每条轨道只在设置格式时调用一次
+     */
+    void format(int track, TrackFormat format) {
+        byte[] first = format.isVideo ? format.sps : format.audioSpecificConfig;
+        byte[] second = format.isVideo ? format.pps : new byte[0];
+        int length = 8 + 2 + first.length + 2 + second.length;
+        ByteBuffer buffer = reserve(FORMAT_RECORD_HEADER_SIZE + length);
+        buffer.put((byte) RECORD_FORMAT);
+        buffer.put((byte) track);
+        buffer.putShort((short) 0);
+        buffer.putInt(length);
+        buffer.putInt(format.isVideo ? format.width : format.sampleRate);
+        buffer.putInt(format.isVideo ? format.height : format.channelCount);
+        buffer.putShort((short) first.length);
+        buffer.put(first);
+        buffer.putShort((short) second.length);
+        buffer.put(second);
+    }
+
+    /**
+     * 记录一个已经写入媒体文件的sample，不分配内存
+     *
+     * @param timeUs 相对时间零点的时间戳
+     */
+    void sample(int track, long offset, int size, long timeUs, boolean sync) {
+        ByteBuffer buffer = reserve(SAMPLE_RECORD_SIZE);
+        buffer.put((byte) RECORD_SAMPLE);
+        buffer.put((byte) track);
+        buffer.put((byte) (sync ? FLAG_SYNC : 0));
+        buffer.put((byte) 0);
+        buffer.putInt(size);
+        buffer.putLong(offset);
+        buffer.putLong(timeUs);
+        if (System.nanoTime() - lastHandOffNs >= syncIntervalNs) {
+            handOff(false);
+        }
+    }
+
+    /**
+     * 写完剩余记录并停止后台线程
+     *
+     * @param delete 录制正常结束时删除日志
+     */
+    void close(boolean delete) {
+        handOff(true);
+        synchronized (syncLock) {
+            closed = true;
+            syncLock.notifyAll();
+        }
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            ELog.e(TAG, "close journal failed:" + e.getMessage());
+        }
+        if (error != null) {
+            ELog.e(TAG, "journal write failed:" + error.getMessage());
+        }
+        if (delete && !new File(path).delete()) {
+            ELog.w(TAG, "delete journal failed:" + path);
+        }
+    }
+
+    private ByteBuffer reserve(int size) {
+        if (active.remaining() < size) {
+            handOff(true);
+        }
+        return active;
+    }
+
+    /**
+     * 把active交给后台线程，换一块空闲buffer继续写，不等待后台线程
+     *
+     * @param full true:active已经写满或者要关闭，必须交出；false:同步周期到了，后台线程正忙时推迟到下一个周期
+     */
+    private void handOff(boolean full) {
+        lastHandOffNs = System.nanoTime();
+        if (active.position() == 0) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (!full && (syncing || !pending.isEmpty())) {
+                return;
+            }
+            active.flip();
+            pending.addLast(active);
+            active = free.pollFirst();
+            syncLock.notifyAll();
+        }
+        if (active == null) {
+            //存储长时间写不进去，不阻塞录制，多用一块内存
+            ELog.w(TAG, "journal sync is falling behind");
+            active = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            ByteBuffer[] buffers;
+            synchronized (syncLock) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                buffers = pending.toArray(new ByteBuffer[pending.size()]);
+                pending.clear();
+                syncing = true;
+            }
+            try {
+                media.force();
+                for (ByteBuffer buffer : buffers) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (syncLock) {
+                for (ByteBuffer buffer : buffers) {
+                    buffer.clear();
+                    free.addLast(buffer);
+                }
+                syncing = false;
+            }
+        }
+    }
+}
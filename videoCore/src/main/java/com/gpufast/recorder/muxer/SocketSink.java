@@ -0,0 +1,96 @@
+package com.gpufast.recorder.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 输出到socket，只能顺序写，适合FLV/TS/fMP4/MKV这类不需要回写的格式
+ * socket必须是阻塞模式，数据直接从编码器的buffer发出(gathering write)。
+ */
+public final class SocketSink implements MuxerSink {
+
+    private final SocketChannel channel;
+    //已经发出的字节数
+    private long position = 0;
+
+    /**
+     * @param channel 已连接的阻塞socket，关闭sink时一起关闭
+     */
+    public SocketSink(SocketChannel channel) {
+        if (channel == null) {
+            throw new IllegalArgumentException("channel is null object");
+        }
+        if (!channel.isBlocking()) {
+            throw new IllegalArgumentException("socket channel must be blocking");
+        }
+        this.channel = channel;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public MuxerSink position(long newPosition) {
+        if (newPosition != position) {
+            throw new UnsupportedOperationException("socket sink is not seekable");
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return false;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int n = 0;
+        while (src.hasRemaining()) {
+            n += channel.write(src);
+        }
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long n = channel.write(srcs, offset, length);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new UnsupportedOperationException("socket sink is not seekable");
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) {
+        throw new UnsupportedOperationException("socket sink is not seekable");
+    }
+
+    /**
+     * 没有持久化概念，什么都不做，可以和写入并发调用
+     */
+    @Override
+    public void force() {
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
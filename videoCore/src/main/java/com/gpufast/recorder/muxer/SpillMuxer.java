@@ -0,0 +1,755 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.buffer.BufferPool;
+import com.gpufast.recorder.buffer.PooledBuffer;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * 编码器和复用器之间的溢出队列，存储写入跟不上时编码器的输出线程不会被复用器的写文件阻塞
+ * <p>
+ * 编码数据先拷贝进有界的内存队列，由单独的线程按顺序交给复用器。内存队列满了之后，新的数据交给溢出线程
+ * 顺序追加到临时的溢出文件，队列里只放一个标记；复用器线程处理到标记时等溢出线程写完，再从溢出文件按顺序
+ * 读回来，所以输出的顺序和编码器的输出顺序完全一致。编码器线程不做文件读写，持有lock时也不做文件读写。溢出期间内存队列降到一半以下时恢复写内存，溢出文件读完后从头复用。
+ * 溢出文件是纯顺序追加，比复用器的写入(随机回填、fsync)快得多，建议放在内部存储的缓存目录。
+ */
+public class SpillMuxer extends IMediaMuxer {
+    private static final String TAG = SpillMuxer.class.getSimpleName();
+
+    //内存队列的最大项数，格式、结束事件和溢出标记也占用一项
+    static final int QUEUE_CAPACITY = 1024;
+
+    private static final int VIDEO_FORMAT = 1;
+    private static final int AUDIO_FORMAT = 2;
+    private static final int VIDEO_FRAME = 3;
+    private static final int AUDIO_FRAME = 4;
+    private static final int VIDEO_STOP = 5;
+    private static final int AUDIO_STOP = 6;
+    private static final int RELEASE = 7;
+    //一段连续写进溢出文件的帧
+    private static final int SPILL_RUN = 8;
+
+    //溢出记录头：type 4 + flags 4 + pts 8 + size 4
+    private static final int SPILL_HEADER_SIZE = 20;
+
+    /**
+     * 溢出队列的统计信息
+     */
+    public static final class Stats {
+        //是否正在写溢出文件
+        public final boolean spilling;
+        //内存队列中的字节数
+        public final long queuedBytes;
+        //累计写入溢出文件的字节数
+        public final long spilledBytes;
+        //累计写入溢出文件的帧数
+        public final long spilledFrames;
+        //溢出文件中还没有读回的字节数
+        public final long spillPendingBytes;
+        public final long maxSpillPendingBytes;
+        //最新收到的视频帧和最新交给复用器的视频帧之间的时间差(微秒)
+        public final long lagUs;
+        public final long maxLagUs;
+        //溢出文件写失败时丢弃的帧数
+        public final long droppedFrames;
+
+        Stats(boolean spilling, long queuedBytes, long spilledBytes, long spilledFrames,
+              long spillPendingBytes, long maxSpillPendingBytes, long lagUs, long maxLagUs,
+              long droppedFrames) {
+            this.spilling = spilling;
+            this.queuedBytes = queuedBytes;
+            this.spilledBytes = spilledBytes;
+            this.spilledFrames = spilledFrames;
+            this.spillPendingBytes = spillPendingBytes;
+            this.maxSpillPendingBytes = maxSpillPendingBytes;
+            this.lagUs = lagUs;
+            this.maxLagUs = maxLagUs;
+            this.droppedFrames = droppedFrames;
+        }
+
+        @Override
+        public String toString() {
+            return "SpillMuxer.Stats{" +
+                    "spilling=" + spilling +
+                    ", queuedBytes=" + queuedBytes +
+                    ", spilledBytes=" + spilledBytes +
+                    ", spilledFrames=" + spilledFrames +
+                    ", spillPendingBytes=" + spillPendingBytes +
+                    ", maxSpillPendingBytes=" + maxSpillPendingBytes +
+                    ", lagUs=" + lagUs +
+                    ", maxLagUs=" + maxLagUs +
+                    ", droppedFrames=" + droppedFrames +
+                    '}';
+        }
+    }
+
+    private final Object lock = new Object();
+    private final IMediaMuxer muxer;
+    private final long memoryBytes;
+    private final File spillDir;
+    private final String spillPrefix;
+    private final BufferPool pool = BufferPool.getDefault();
+    private final Thread thread;
+    private final Thread spillThread;
+
+    //内存队列，只在持有lock时访问
+    private final int[] types = new int[QUEUE_CAPACITY];
+    private final PooledBuffer[] payloads = new PooledBuffer[QUEUE_CAPACITY];
+    private final long[] ptsUs = new long[QUEUE_CAPACITY];
+    private final int[] flags = new int[QUEUE_CAPACITY];
+    private final MediaFormat[] formats = new MediaFormat[QUEUE_CAPACITY];
+    //SPILL_RUN项中还没有读回的帧数
+    private final int[] runFrames = new int[QUEUE_CAPACITY];
+    private int head = 0;
+    private int count = 0;
+    private long queuedBytes = 0;
+
+    //溢出文件，溢出线程追加，复用器线程按位置读取，两个线程都不在持有lock时读写
+    private File spillFile;
+    private RandomAccessFile spillRandomAccessFile;
+    private FileChannel spillChannel;
+    //已经写完的位置，溢出线程写完一帧后在持有lock时更新
+    private long spillWritePosition = 0;
+    private long spillReadPosition = 0;
+    private boolean spilling = false;
+
+    //等待溢出线程写入的帧，只在持有lock时访问
+    private final ArrayDeque<SpillItem> spillQueue = new ArrayDeque<>();
+    private long spillQueueBytes = 0;
+    //进入溢出队列、溢出线程处理完、复用器线程读回的帧数，三者都按编码器的输出顺序递增
+    private long spillQueuedFrames = 0;
+    private long spillDoneFrames = 0;
+    private long spillReadFrames = 0;
+    //写失败的帧的序号，复用器线程读到时跳过
+    private final ArrayDeque<Long> lostSpills = new ArrayDeque<>();
+
+    //溢出线程使用
+    private final ByteBuffer spillHeader = ByteBuffer.allocateDirect(SPILL_HEADER_SIZE);
+    private final ByteBuffer[] spillSources = new ByteBuffer[2];
+
+    //统计
+    private long spilledBytes = 0;
+    private long spilledFrames = 0;
+    private long maxSpillPendingBytes = 0;
+    private long lastQueuedVideoUs = -1;
+    private long lastDeliveredVideoUs = -1;
+    private long maxLagUs = 0;
+    private long droppedFrames = 0;
+
+    private boolean waitKeyFrame = false;
+    private int trackCount;
+    private boolean finished = false;
+    private boolean released = false;
+
+    //复用器线程使用
+    private final ByteBuffer readHeader = ByteBuffer.allocateDirect(SPILL_HEADER_SIZE);
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(256 * 1024);
+    private final MediaCodec.BufferInfo videoInfo = new MediaCodec.BufferInfo();
+    private final MediaCodec.BufferInfo audioInfo = new MediaCodec.BufferInfo();
+    private int pendingStops;
+    //溢出文件读失败后，视频丢到下一个关键帧
+    private boolean skipToKeyFrame = false;
+
+    /**
+     * @param muxer       实际的复用器，在单独的线程上调用
+     * @param memoryBytes 内存队列最多缓存的数据量
+     * @param spillDir    溢出文件所在的目录
+     */
+    SpillMuxer(Setting setting, IMediaMuxer muxer, long memoryBytes, String spillDir) {
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        if (muxer == null)
+            throw new IllegalArgumentException("muxer is null object");
+        this.muxer = muxer;
+        this.memoryBytes = Math.max(memoryBytes, 1024 * 1024);
+        this.spillDir = new File(spillDir);
+        String name = setting.savePath != null ? new File(setting.savePath).getName() : "record";
+        spillPrefix = name.length() >= 3 ? name : name + "___";
+        trackCount = setting.muteMic ? 1 : 2;
+        pendingStops = trackCount;
+        try {
+            //提前创建，第一次溢出时不用等创建文件
+            openSpillFile();
+        } catch (IOException e) {
+            ELog.w(TAG, "create spill file failed:" + e.getMessage());
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, "SpillMuxer");
+        spillThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeSpills();
+            }
+        }, "SpillMuxer-spill");
+        thread.start();
+        spillThread.start();
+        ELog.i(TAG, "init spill muxer memoryBytes:" + this.memoryBytes + " spillDir:" + spillDir);
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        putControl(VIDEO_FORMAT, mediaFormat);
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        putControl(AUDIO_FORMAT, mediaFormat);
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || !frame.buffer.hasRemaining()) {
+            return;
+        }
+        boolean keyFrame = frame.frameType == EncodedImage.FrameType.VideoFrameKey;
+        synchronized (lock) {
+            if (finished) return;
+            if (waitKeyFrame && !keyFrame) {
+                droppedFrames++;
+                return;
+            }
+            //只排队帧数据(buffer的position..limit)，参数集由复用器从格式中取得
+            if (offerFrame(VIDEO_FRAME, frame.buffer, info.presentationTimeUs,
+                    keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0)) {
+                waitKeyFrame = false;
+                lastQueuedVideoUs = info.presentationTimeUs;
+            } else {
+                //后面的P帧依赖丢掉的帧
+                waitKeyFrame = true;
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (finished) return;
+            ByteBuffer buffer = frame.buffer;
+            int position = buffer.position();
+            int limit = buffer.limit();
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            offerFrame(AUDIO_FRAME, buffer, info.presentationTimeUs, info.flags);
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * 放进内存队列，放不下时写入溢出文件，需要持有lock
+     *
+     * @return false表示写溢出文件失败，数据被丢弃
+     */
+    private boolean offerFrame(int type, ByteBuffer data, long pts, int flag) {
+        int size = data.remaining();
+        if (spilling && queuedBytes <= memoryBytes / 2) {
+            spilling = false;
+            ELog.i(TAG, "stop spilling, pending:" + (spillWritePosition - spillReadPosition));
+        }
+        //留一项给溢出标记
+        if (!spilling && queuedBytes + size <= memoryBytes && count < QUEUE_CAPACITY - 1) {
+            PooledBuffer payload = pool.copyOf(data, data.position(), size);
+            queuedBytes += size;
+            enqueue(type, payload, pts, flag, null);
+            return true;
+        }
+        if (!spilling) {
+            spilling = true;
+            ELog.w(TAG, "memory queue full, start spilling, queuedBytes:" + queuedBytes + " count:" + count);
+        }
+        return spill(type, data, pts, flag);
+    }
+
+    /**
+     * 拷贝后交给溢出线程，在队列里占住顺序，需要持有lock
+     */
+    private boolean spill(int type, ByteBuffer data, long pts, int flag) {
+        int tail = (head + count - 1 + QUEUE_CAPACITY) % QUEUE_CAPACITY;
+        boolean extendRun = count > 0 && types[tail] == SPILL_RUN;
+        if (!extendRun && count == QUEUE_CAPACITY) {
+            droppedFrames++;
+            return false;
+        }
+        int size = data.remaining();
+        //溢出线程跟不上时丢弃，等待写入的数据最多占内存队列的1/4
+        if (spillQueueBytes + size > memoryBytes / 4) {
+            droppedFrames++;
+            return false;
+        }
+        spillQueue.addLast(new SpillItem(type, pool.copyOf(data, data.position(), size), pts, flag));
+        spillQueueBytes += size;
+        spillQueuedFrames++;
+        if (extendRun) {
+            runFrames[tail]++;
+            lock.notifyAll();
+        } else {
+            enqueue(SPILL_RUN, null, 0, 0, null);
+            runFrames[(head + count - 1) % QUEUE_CAPACITY] = 1;
+        }
+        return true;
+    }
+
+    /**
+     * 溢出线程：按顺序把溢出队列写进溢出文件，复用器线程结束时退出
+     */
+    private void writeSpills() {
+        while (true) {
+            SpillItem item;
+            long position;
+            synchronized (lock) {
+                while (spillQueue.isEmpty() && !finished) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        releaseSpillQueue();
+                        return;
+                    }
+                }
+                if (finished) {
+                    releaseSpillQueue();
+                    return;
+                }
+                item = spillQueue.peekFirst();
+                position = spillWritePosition;
+            }
+            int size = item.payload.buffer.remaining();
+            boolean written = writeSpill(item, position);
+            synchronized (lock) {
+                spillQueue.pollFirst();
+                spillQueueBytes -= size;
+                if (written) {
+                    spillWritePosition = position + SPILL_HEADER_SIZE + size;
+                    spilledBytes += size;
+                    spilledFrames++;
+                    maxSpillPendingBytes = Math.max(maxSpillPendingBytes, spillWritePosition - spillReadPosition);
+                } else {
+                    droppedFrames++;
+                    lostSpills.addLast(spillDoneFrames);
+                }
+                spillDoneFrames++;
+                lock.notifyAll();
+            }
+            item.payload.release();
+        }
+    }
+
+    /**
+     * 溢出线程上调用，不持有lock
+     *
+     * @return false表示写失败
+     */
+    private boolean writeSpill(SpillItem item, long position) {
+        ByteBuffer data = item.payload.buffer.duplicate();
+        try {
+            if (spillChannel == null) {
+                openSpillFile();
+            }
+            spillHeader.clear();
+            spillHeader.putInt(item.type);
+            spillHeader.putInt(item.flag);
+            spillHeader.putLong(item.pts);
+            spillHeader.putInt(data.remaining());
+            spillHeader.flip();
+            spillSources[0] = spillHeader;
+            spillSources[1] = data;
+            spillChannel.position(position);
+            while (spillHeader.hasRemaining() || data.hasRemaining()) {
+                spillChannel.write(spillSources);
+            }
+            return true;
+        } catch (IOException e) {
+            ELog.e(TAG, "write spill file failed:" + e.getMessage());
+            return false;
+        } finally {
+            spillSources[1] = null;
+        }
+    }
+
+    /**
+     * 溢出线程退出时归还还没写入的帧，需要持有lock
+     */
+    private void releaseSpillQueue() {
+        while (!spillQueue.isEmpty()) {
+            spillQueue.pollFirst().payload.release();
+        }
+        spillQueueBytes = 0;
+    }
+
+    private void openSpillFile() throws IOException {
+        spillFile = File.createTempFile(spillPrefix, ".spill", spillDir);
+        spillRandomAccessFile = new RandomAccessFile(spillFile, "rw");
+        spillChannel = spillRandomAccessFile.getChannel();
+        ELog.i(TAG, "create spill file:" + spillFile);
+    }
+
+    /**
+     * 格式和结束事件不能丢，队列满时等待
+     */
+    private void putControl(int type, MediaFormat format) {
+        synchronized (lock) {
+            while (count == QUEUE_CAPACITY && !finished) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (!finished) {
+                enqueue(type, null, 0, 0, format);
+            }
+        }
+    }
+
+    private void enqueue(int type, PooledBuffer payload, long pts, int flag, MediaFormat format) {
+        int tail = (head + count) % QUEUE_CAPACITY;
+        types[tail] = type;
+        payloads[tail] = payload;
+        ptsUs[tail] = pts;
+        flags[tail] = flag;
+        formats[tail] = format;
+        runFrames[tail] = 0;
+        count++;
+        lock.notifyAll();
+    }
+
+    /**
+     * 复用器线程：按顺序处理内存队列，遇到溢出标记时从溢出文件读回
+     */
+    private void consume() {
+        while (true) {
+            int type;
+            PooledBuffer payload;
+            long pts;
+            int flag;
+            MediaFormat format;
+            long readPosition = -1;
+            boolean lost = false;
+            synchronized (lock) {
+                //溢出标记要等溢出线程写完下一帧
+                while (count == 0 || (types[head] == SPILL_RUN && spillReadFrames == spillDoneFrames)) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        shutdown();
+                        return;
+                    }
+                }
+                type = types[head];
+                payload = payloads[head];
+                pts = ptsUs[head];
+                flag = flags[head];
+                format = formats[head];
+                if (type == SPILL_RUN) {
+                    //一次读回一帧，标记留在队列里，编码器线程可能还在往这一段追加
+                    readPosition = spillReadPosition;
+                    if (!lostSpills.isEmpty() && lostSpills.peekFirst() == spillReadFrames) {
+                        lostSpills.pollFirst();
+                        lost = true;
+                    }
+                    spillReadFrames++;
+                    if (lost) {
+                        reuseSpillFile();
+                    }
+                    if (--runFrames[head] == 0) {
+                        removeHead();
+                    }
+                } else {
+                    if (payload != null) {
+                        queuedBytes -= payload.buffer.remaining();
+                    }
+                    removeHead();
+                }
+            }
+            if (type == SPILL_RUN) {
+                type = lost ? 0 : readSpilled(readPosition);
+                if (type == 0) {
+                    //溢出文件读失败，丢到下一个关键帧
+                    skipToKeyFrame = true;
+                    continue;
+                }
+                pts = readHeader.getLong(8);
+                flag = readHeader.getInt(4);
+            }
+            if (type == VIDEO_FRAME && skipToKeyFrame) {
+                if ((flag & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                    if (payload != null) {
+                        payload.release();
+                    }
+                    continue;
+                }
+                skipToKeyFrame = false;
+            }
+            if (!deliver(type, payload, pts, flag, format)) {
+                shutdown();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 复用器线程退出：停止溢出线程，等它不再写文件后删除溢出文件
+     */
+    private void shutdown() {
+        synchronized (lock) {
+            finished = true;
+            releaseQueued();
+            lock.notifyAll();
+        }
+        try {
+            spillThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeSpillFile();
+    }
+
+    private void removeHead() {
+        payloads[head] = null;
+        formats[head] = null;
+        head = (head + 1) % QUEUE_CAPACITY;
+        count--;
+        lock.notifyAll();
+    }
+
+    /**
+     * 从溢出文件读回一帧到readBuffer
+     *
+     * @return 帧类型，读失败时返回0
+     */
+    private int readSpilled(long position) {
+        int type = 0;
+        int size = 0;
+        try {
+            readHeader.clear();
+            readFully(readHeader, position);
+            type = readHeader.getInt(0);
+            size = readHeader.getInt(16);
+            if (readBuffer.capacity() < size) {
+                readBuffer = ByteBuffer.allocateDirect(size * 5 / 4);
+            }
+            readBuffer.clear();
+            readBuffer.limit(size);
+            readFully(readBuffer, position + SPILL_HEADER_SIZE);
+            readBuffer.flip();
+        } catch (IOException e) {
+            ELog.e(TAG, "read spill file failed:" + e.getMessage());
+            type = 0;
+        }
+        synchronized (lock) {
+            spillReadPosition = position + SPILL_HEADER_SIZE + size;
+            if (type == 0) {
+                droppedFrames++;
+            }
+            reuseSpillFile();
+        }
+        return type;
+    }
+
+    /**
+     * 溢出的数据已经全部读回，溢出线程也没有要写的帧时，从头复用溢出文件，需要持有lock
+     */
+    private void reuseSpillFile() {
+        if (!spilling && spillReadFrames == spillQueuedFrames) {
+            spillReadPosition = 0;
+            spillWritePosition = 0;
+        }
+    }
+
+    private void readFully(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = spillChannel.read(dst, position);
+            if (read < 0) {
+                throw new EOFException("spill file truncated at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * @return false表示复用器已经结束，线程退出
+     */
+    private boolean deliver(int type, PooledBuffer payload, long pts, int flag, MediaFormat format) {
+        switch (type) {
+            case VIDEO_FORMAT:
+                muxer.onUpdateVideoMediaFormat(format);
+                return true;
+            case AUDIO_FORMAT:
+                muxer.onUpdateAudioMediaFormat(format);
+                return true;
+            case VIDEO_FRAME: {
+                ByteBuffer buffer = payload != null ? payload.buffer.duplicate() : readBuffer;
+                videoInfo.set(0, buffer.remaining(), pts, flag);
+                //帧接管payload的引用，复用器retain时不需要再拷贝
+                EncodedImage image = EncodedImage.builder()
+                        .setBuffer(buffer)
+                        .setBufferInfo(videoInfo)
+                        .setPooledBuffer(payload)
+                        .setFrameType((flag & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0
+                                ? EncodedImage.FrameType.VideoFrameKey
+                                : EncodedImage.FrameType.VideoFrameDelta)
+                        .createEncodedImage();
+                try {
+                    muxer.onEncodedFrame(image);
+                } finally {
+                    image.release();
+                }
+                synchronized (lock) {
+                    lastDeliveredVideoUs = pts;
+                    maxLagUs = Math.max(maxLagUs, lastQueuedVideoUs - pts);
+                }
+                return true;
+            }
+            case AUDIO_FRAME: {
+                ByteBuffer buffer = payload != null ? payload.buffer.duplicate() : readBuffer;
+                audioInfo.set(0, buffer.remaining(), pts, flag);
+                EncodedAudio audio = new EncodedAudio.Builder()
+                        .setBuffer(buffer)
+                        .setBufferInfo(audioInfo)
+                        .setPooledBuffer(payload)
+                        .createEncodedAudio();
+                try {
+                    muxer.onEncodedAudio(audio);
+                } finally {
+                    audio.release();
+                }
+                return true;
+            }
+            case VIDEO_STOP:
+                muxer.onVideoEncoderStop();
+                return --pendingStops > 0;
+            case AUDIO_STOP:
+                muxer.onAudioEncoderStop();
+                return --pendingStops > 0;
+            case RELEASE:
+                muxer.release();
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 线程退出时归还队列中剩余的帧，需要持有lock
+     */
+    private void releaseQueued() {
+        while (count > 0) {
+            if (payloads[head] != null) {
+                payloads[head].release();
+            }
+            removeHead();
+        }
+        queuedBytes = 0;
+    }
+
+    /**
+     * 溢出线程退出后调用
+     */
+    private void closeSpillFile() {
+        if (spillChannel == null) {
+            return;
+        }
+        try {
+            spillRandomAccessFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spillChannel = null;
+        if (!spillFile.delete()) {
+            ELog.w(TAG, "delete spill file failed:" + spillFile);
+        }
+    }
+
+    /**
+     * @return 当前的统计信息，可以在任意线程调用
+     */
+    public Stats getStats() {
+        synchronized (lock) {
+            long lagUs = lastQueuedVideoUs >= 0 && lastDeliveredVideoUs >= 0
+                    ? lastQueuedVideoUs - lastDeliveredVideoUs : 0;
+            return new Stats(spilling, queuedBytes, spilledBytes, spilledFrames,
+                    spillWritePosition - spillReadPosition, maxSpillPendingBytes, lagUs, maxLagUs,
+                    droppedFrames);
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        putControl(VIDEO_STOP, null);
+        trackStopped();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        putControl(AUDIO_STOP, null);
+        trackStopped();
+    }
+
+    /**
+     * 最后一条轨道结束时等复用器把内存队列和溢出文件都处理完，保证录制停止时输出文件已经完整
+     */
+    private void trackStopped() {
+        synchronized (lock) {
+            trackCount--;
+            if (trackCount > 0 || released) {
+                return;
+            }
+            released = true;
+        }
+        join();
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+        }
+        putControl(RELEASE, null);
+        join();
+    }
+
+    private void join() {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        ELog.i(TAG, "release spill muxer, " + getStats());
+    }
+
+    private static final class SpillItem {
+        final int type;
+        final PooledBuffer payload;
+        final long pts;
+        final int flag;
+
+        SpillItem(int type, PooledBuffer payload, long pts, int flag) {
+            this.type = type;
+            this.payload = payload;
+            this.pts = pts;
+            this.flag = flag;
+        }
+    }
+}
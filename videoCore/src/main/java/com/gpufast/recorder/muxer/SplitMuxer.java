@@ -0,0 +1,439 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按大小或时长自动分文件
+ * 达到上限后在下一个视频关键帧处换一个新的子复用器，编码器不停。第一个文件是savePath，
+ * 之后依次是"文件名_1.扩展名"、"文件名_2.扩展名"……
+ * <p>
+ * 以切分关键帧的时间T为界：视频从T开始写入新文件；音频时间戳小于T的写入旧文件，其余写入新文件，
+ * 每一帧只写入一个文件，不丢也不重复。新文件先收到保存的音视频格式，再收到带SPS/PPS的关键帧。
+ * 旧文件收到最后一个早于T的音频之后，在单独的线程上结束，不阻塞编码器的输出线程。
+ */
+public class SplitMuxer extends IMediaMuxer {
+    private static final String TAG = SplitMuxer.class.getSimpleName();
+
+    //FAT32单个文件的上限
+    public static final long FAT32_MAX_FILE_BYTES = 0xFFFFFFFFL;
+
+    //按历史最大的GOP预留两个GOP的空间，保证下一个关键帧到来之前不会超过大小上限
+    private static final int RESERVED_GOPS = 2;
+    //容器开销(sample表、包头等)，按数据量的百分比预留
+    private static final int OVERHEAD_PERCENT = 2;
+    //等待切分点时最多暂存的音频帧数，超过后先写入当前文件
+    private static final int MAX_HELD_AUDIO = 256;
+
+    /**
+     * 为每个分段文件创建子复用器
+     */
+    interface Creator {
+        IMediaMuxer create(String path);
+    }
+
+    public interface Listener {
+        /**
+         * 一个文件写完，包括录制结束时的最后一个文件。在结束该文件的线程上回调
+         *
+         * @param path  文件路径
+         * @param index 序号，从0开始
+         */
+        void onFileFinished(String path, int index);
+    }
+
+    private final Object lock = new Object();
+    private final Creator creator;
+    private final Listener listener;
+    private final String savePath;
+    private final long maxBytes;
+    private final long maxDurationUs;
+    private final boolean muteMic;
+
+    private MediaFormat videoFormat;
+    private MediaFormat audioFormat;
+
+    private IMediaMuxer current;
+    private String currentPath;
+    private int index = 0;
+    //已经切分、还在等待早于切分点的音频的文件
+    private Part previous;
+    private final List<Thread> finishers = new ArrayList<>();
+
+    //当前文件第一帧视频的时间
+    private long fileStartUs = -1;
+    //当前文件已写入的数据量
+    private long fileBytes = 0;
+    private long gopBytes = 0;
+    private long maxGopBytes = 0;
+    private long lastVideoUs = -1;
+    private long lastFrameIntervalUs = 0;
+    private boolean videoStopped = false;
+    private boolean audioStopped = false;
+
+    //可能属于下一个文件的音频，等到切分点确定后再写入
+    private final ArrayDeque<HeldAudio> heldAudio = new ArrayDeque<>();
+
+    private int trackCount;
+    private boolean released = false;
+
+    /**
+     * @param maxBytes      单个文件的大小上限，0表示不限制
+     * @param maxDurationUs 单个文件的时长上限，0表示不限制
+     */
+    SplitMuxer(Setting setting, long maxBytes, long maxDurationUs, Creator creator, Listener listener) {
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        if (creator == null)
+            throw new IllegalArgumentException("creator is null object");
+        this.creator = creator;
+        this.listener = listener;
+        savePath = setting.savePath;
+        muteMic = setting.muteMic;
+        trackCount = muteMic ? 1 : 2;
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxDurationUs = Math.max(0, maxDurationUs);
+        currentPath = savePath;
+        current = creator.create(currentPath);
+        ELog.i(TAG, "init split muxer maxBytes:" + this.maxBytes + " maxDurationUs:" + this.maxDurationUs);
+    }
+
+    /**
+     * @return 第index个文件的路径
+     */
+    public static String partPath(String savePath, int index) {
+        if (index == 0) {
+            return savePath;
+        }
+        File file = new File(savePath);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String partName = dot > 0
+                ? name.substring(0, dot) + "_" + index + name.substring(dot)
+                : name + "_" + index;
+        File parent = file.getParentFile();
+        return parent != null ? new File(parent, partName).getPath() : partName;
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        synchronized (lock) {
+            videoFormat = mediaFormat;
+            if (current != null) {
+                current.onUpdateVideoMediaFormat(mediaFormat);
+            }
+        }
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        synchronized (lock) {
+            audioFormat = mediaFormat;
+            if (current != null) {
+                current.onUpdateAudioMediaFormat(mediaFormat);
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        synchronized (lock) {
+            if (released || current == null) return;
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                current.onEncodedFrame(frame);
+                return;
+            }
+            long timeUs = info.presentationTimeUs;
+            boolean keyFrame = frame.frameType == EncodedImage.FrameType.VideoFrameKey;
+            if (keyFrame && shouldSplit(timeUs)) {
+                split(timeUs);
+            } else {
+                //早于这一帧的音频不会晚于之后的切分点
+                writeHeldAudio(timeUs, true);
+            }
+            if (fileStartUs < 0) {
+                fileStartUs = timeUs;
+            }
+            if (lastVideoUs >= 0 && timeUs > lastVideoUs) {
+                lastFrameIntervalUs = timeUs - lastVideoUs;
+            }
+            lastVideoUs = timeUs;
+            if (keyFrame) {
+                maxGopBytes = Math.max(maxGopBytes, gopBytes);
+                gopBytes = 0;
+            }
+            int size = frame.buffer.remaining();
+            gopBytes += size;
+            fileBytes += size;
+            current.onEncodedFrame(frame);
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        long timeUs = info.presentationTimeUs;
+        synchronized (lock) {
+            if (released || current == null) return;
+            if (previous != null) {
+                if (timeUs < previous.splitUs) {
+                    previous.muxer.onEncodedAudio(frame);
+                    return;
+                }
+                //音频已经越过切分点，旧文件可以结束了
+                finishPrevious();
+            }
+            if (!heldAudio.isEmpty() || mayBelongToNextFile(timeUs)) {
+                heldAudio.addLast(new HeldAudio(frame.retain(), timeUs));
+                if (heldAudio.size() > MAX_HELD_AUDIO) {
+                    writeHeldAudio(heldAudio.peekFirst().timeUs, true);
+                }
+                return;
+            }
+            fileBytes += info.size;
+            current.onEncodedAudio(frame);
+        }
+    }
+
+    /**
+     * 在timeUs处的关键帧是否应该开始新文件
+     */
+    private boolean shouldSplit(long timeUs) {
+        if (fileStartUs < 0 || timeUs <= fileStartUs) {
+            return false;
+        }
+        //时间戳按帧间隔取整后可能比上限略短，允许半帧的误差
+        return (maxDurationUs > 0 && timeUs - fileStartUs + lastFrameIntervalUs / 2 >= maxDurationUs)
+                || sizeReached();
+    }
+
+    private boolean sizeReached() {
+        return maxBytes > 0 && fileBytes * (100 + OVERHEAD_PERCENT) / 100
+                + RESERVED_GOPS * Math.max(maxGopBytes, gopBytes) >= maxBytes;
+    }
+
+    /**
+     * 音频比视频超前、并且已经接近上限时，它可能在下一个关键帧之后，暂时不能确定写入哪个文件
+     */
+    private boolean mayBelongToNextFile(long timeUs) {
+        if (videoStopped || fileStartUs < 0 || timeUs <= lastVideoUs) {
+            return false;
+        }
+        return (maxDurationUs > 0 && timeUs - fileStartUs + lastFrameIntervalUs / 2 >= maxDurationUs)
+                || sizeReached();
+    }
+
+    private void split(long splitUs) {
+        writeHeldAudio(splitUs, false);
+        String nextPath = partPath(savePath, index + 1);
+        IMediaMuxer next = creator.create(nextPath);
+        if (next == null) {
+            ELog.e(TAG, "create muxer failed:" + nextPath + ", keep writing " + currentPath);
+            return;
+        }
+        if (previous != null) {
+            //音频停滞了整个文件，旧文件不会再收到数据
+            finishPrevious();
+        }
+        previous = new Part(current, currentPath, index, splitUs, audioStopped);
+        ELog.i(TAG, "split at " + splitUs + "us, " + currentPath + " bytes:" + fileBytes + " -> " + nextPath);
+        index++;
+        current = next;
+        currentPath = nextPath;
+        fileStartUs = -1;
+        fileBytes = 0;
+        gopBytes = 0;
+        if (videoFormat != null) {
+            current.onUpdateVideoMediaFormat(videoFormat);
+        }
+        if (audioFormat != null && !muteMic) {
+            current.onUpdateAudioMediaFormat(audioFormat);
+        }
+        if (audioStopped && !muteMic) {
+            //音频编码器已经停止，新文件不会再收到音频
+            current.onAudioEncoderStop();
+        }
+        if (muteMic || audioStopped || !heldAudio.isEmpty()) {
+            //没有音频，或者已经收到了切分点之后的音频
+            finishPrevious();
+        }
+        writeHeldAudio(Long.MAX_VALUE, true);
+    }
+
+    /**
+     * 把时间戳小于(或等于)limitUs的暂存音频写入当前文件
+     */
+    private void writeHeldAudio(long limitUs, boolean inclusive) {
+        while (!heldAudio.isEmpty()) {
+            HeldAudio held = heldAudio.peekFirst();
+            if (held.timeUs > limitUs || (!inclusive && held.timeUs == limitUs)) {
+                return;
+            }
+            heldAudio.pollFirst();
+            try {
+                fileBytes += held.frame.bufferInfo.size;
+                current.onEncodedAudio(held.frame);
+            } finally {
+                held.frame.release();
+            }
+        }
+    }
+
+    /**
+     * 在单独的线程上结束旧文件
+     */
+    private void finishPrevious() {
+        final Part part = previous;
+        previous = null;
+        if (part == null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                finish(part);
+                ELog.i(TAG, "file finished:" + part.path);
+                if (listener != null) {
+                    listener.onFileFinished(part.path, part.index);
+                }
+            }
+        }, "SplitMuxer-" + part.index);
+        finishers.add(thread);
+        thread.start();
+    }
+
+    private void finish(Part part) {
+        part.muxer.onVideoEncoderStop();
+        //切分前音频已经停止时，旧文件已经收到过音频结束
+        if (!muteMic && !part.audioStopped) {
+            part.muxer.onAudioEncoderStop();
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        synchronized (lock) {
+            if (released) return;
+            videoStopped = true;
+            //不会再有切分点，暂存的音频都属于当前文件
+            writeHeldAudio(Long.MAX_VALUE, true);
+            if (current != null) {
+                current.onVideoEncoderStop();
+            }
+        }
+        trackStopped();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        synchronized (lock) {
+            if (released) return;
+            audioStopped = true;
+            finishPrevious();
+            writeHeldAudio(Long.MAX_VALUE, true);
+            if (current != null) {
+                current.onAudioEncoderStop();
+            }
+        }
+        trackStopped();
+    }
+
+    /**
+     * 最后一条轨道结束时等旧文件都写完，保证录制停止时所有文件已经完整
+     */
+    private void trackStopped() {
+        String path;
+        int lastIndex;
+        synchronized (lock) {
+            trackCount--;
+            if (trackCount > 0 || released) {
+                return;
+            }
+            released = true;
+            path = currentPath;
+            lastIndex = index;
+        }
+        joinFinishers();
+        if (listener != null && current != null) {
+            listener.onFileFinished(path, lastIndex);
+        }
+        ELog.i(TAG, "release split muxer, files:" + (lastIndex + 1));
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            if (previous != null) {
+                previous.muxer.release();
+                previous = null;
+            }
+            while (!heldAudio.isEmpty()) {
+                heldAudio.pollFirst().frame.release();
+            }
+            if (current != null) {
+                current.release();
+            }
+        }
+        joinFinishers();
+    }
+
+    private void joinFinishers() {
+        List<Thread> threads;
+        synchronized (lock) {
+            threads = new ArrayList<>(finishers);
+            finishers.clear();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static final class Part {
+        final IMediaMuxer muxer;
+        final String path;
+        final int index;
+        //新文件第一个关键帧的时间
+        final long splitUs;
+        //切分时音频编码器已经停止
+        final boolean audioStopped;
+
+        Part(IMediaMuxer muxer, String path, int index, long splitUs, boolean audioStopped) {
+            this.muxer = muxer;
+            this.path = path;
+            this.index = index;
+            this.splitUs = splitUs;
+            this.audioStopped = audioStopped;
+        }
+    }
+
+    private static final class HeldAudio {
+        //retain得到的帧
+        final EncodedAudio frame;
+        final long timeUs;
+
+        HeldAudio(EncodedAudio frame, long timeUs) {
+            this.frame = frame;
+            this.timeUs = timeUs;
+        }
+    }
+}
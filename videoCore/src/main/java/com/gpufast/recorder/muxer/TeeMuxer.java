@@ -0,0 +1,327 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.util.List;
+
+/**
+ * 一路编码同时输出到多个复用器(如本地MP4 + 上传用的FLV/TS)
+ * 每帧通过{@link EncodedImage#retain()}只拷贝一次到带引用计数的共享buffer，每个子复用器在自己的线程上
+ * 按顺序消费自己的有界队列，最后一个子复用器用完后buffer回到池中。某个子复用器处理不过来、队列满时只丢它自己的帧
+ * (视频丢到下一个关键帧为止)，不会阻塞编码器的输出线程。格式和结束事件不会被丢弃。
+ */
+public class TeeMuxer extends IMediaMuxer {
+    private static final String TAG = TeeMuxer.class.getSimpleName();
+
+    //每个子复用器最多积压的帧数
+    static final int QUEUE_CAPACITY = 128;
+
+    private static final int VIDEO_FORMAT = 1;
+    private static final int AUDIO_FORMAT = 2;
+    private static final int VIDEO_FRAME = 3;
+    private static final int AUDIO_FRAME = 4;
+    private static final int VIDEO_STOP = 5;
+    private static final int AUDIO_STOP = 6;
+    private static final int RELEASE = 7;
+
+    private final Branch[] branches;
+    private final Object lock = new Object();
+    private int trackCount;
+    private boolean released = false;
+
+    /**
+     * @param muxers  子复用器，按顺序各自启动一个线程
+     * @param muteMic 是否没有音频轨道
+     */
+    public TeeMuxer(List<IMediaMuxer> muxers, boolean muteMic) {
+        if (muxers == null || muxers.isEmpty()) {
+            throw new IllegalArgumentException("muxers is empty");
+        }
+        trackCount = muteMic ? 1 : 2;
+        branches = new Branch[muxers.size()];
+        for (int i = 0; i < branches.length; i++) {
+            branches[i] = new Branch(muxers.get(i), trackCount, "TeeMuxer-" + i);
+        }
+        ELog.i(TAG, "init tee muxer outputs:" + branches.length + " trackCount:" + trackCount);
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        for (Branch branch : branches) {
+            branch.putControl(VIDEO_FORMAT, mediaFormat);
+        }
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        for (Branch branch : branches) {
+            branch.putControl(AUDIO_FORMAT, mediaFormat);
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || !frame.buffer.hasRemaining()) {
+            return;
+        }
+        boolean keyFrame = frame.frameType == EncodedImage.FrameType.VideoFrameKey;
+        for (Branch branch : branches) {
+            branch.offerFrame(VIDEO_FRAME, frame, null, keyFrame);
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        for (Branch branch : branches) {
+            branch.offerFrame(AUDIO_FRAME, null, frame, true);
+        }
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        for (Branch branch : branches) {
+            branch.putControl(VIDEO_STOP, null);
+        }
+        trackStopped();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        for (Branch branch : branches) {
+            branch.putControl(AUDIO_STOP, null);
+        }
+        trackStopped();
+    }
+
+    /**
+     * 最后一条轨道结束时等所有子复用器写完，保证录制停止时输出文件已经完整
+     */
+    private void trackStopped() {
+        synchronized (lock) {
+            trackCount--;
+            if (trackCount > 0) {
+                return;
+            }
+            released = true;
+        }
+        joinBranches();
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+        }
+        for (Branch branch : branches) {
+            branch.putControl(RELEASE, null);
+        }
+        joinBranches();
+    }
+
+    private void joinBranches() {
+        for (Branch branch : branches) {
+            try {
+                branch.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (branch.dropped > 0) {
+                ELog.w(TAG, branch.thread.getName() + " dropped frames:" + branch.dropped);
+            }
+        }
+        ELog.i(TAG, "release tee muxer success");
+    }
+
+    /**
+     * 一个子复用器：有界环形队列 + 消费线程
+     */
+    private static final class Branch implements Runnable {
+        private final IMediaMuxer muxer;
+        final Thread thread;
+
+        private final int[] types = new int[QUEUE_CAPACITY];
+        //retain得到的帧，出队交给子复用器后release
+        private final EncodedImage[] videoFrames = new EncodedImage[QUEUE_CAPACITY];
+        private final EncodedAudio[] audioFrames = new EncodedAudio[QUEUE_CAPACITY];
+        private final MediaFormat[] formats = new MediaFormat[QUEUE_CAPACITY];
+        private int head = 0;
+        private int count = 0;
+
+        //只在生产者线程上访问
+        private boolean waitKeyFrame = false;
+        volatile int dropped = 0;
+
+        private int pendingStops;
+        //消费线程已经退出
+        private boolean finished = false;
+
+        Branch(IMediaMuxer muxer, int trackCount, String name) {
+            this.muxer = muxer;
+            this.pendingStops = trackCount;
+            thread = new Thread(this, name);
+            thread.start();
+        }
+
+        /**
+         * 放进队列时retain，在编码器的回调内调用。队列满时返回false，视频从这里开始丢到下一个关键帧
+         */
+        boolean offerFrame(int type, EncodedImage video, EncodedAudio audio, boolean keyFrame) {
+            if (type == VIDEO_FRAME) {
+                if (waitKeyFrame && !keyFrame) {
+                    dropped++;
+                    return false;
+                }
+                waitKeyFrame = false;
+            }
+            synchronized (this) {
+                if (finished) {
+                    return false;
+                }
+                if (count == QUEUE_CAPACITY) {
+                    if (type == VIDEO_FRAME) {
+                        waitKeyFrame = true;
+                    }
+                    dropped++;
+                    return false;
+                }
+                enqueue(type, video != null ? video.retain() : null, audio != null ? audio.retain() : null, null);
+            }
+            return true;
+        }
+
+        /**
+         * 格式和结束事件不能丢，队列满时等待
+         */
+        void putControl(int type, MediaFormat format) {
+            synchronized (this) {
+                while (count == QUEUE_CAPACITY && !finished) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (!finished) {
+                    enqueue(type, null, null, format);
+                }
+            }
+        }
+
+        private void enqueue(int type, EncodedImage video, EncodedAudio audio, MediaFormat format) {
+            int tail = (head + count) % QUEUE_CAPACITY;
+            types[tail] = type;
+            videoFrames[tail] = video;
+            audioFrames[tail] = audio;
+            formats[tail] = format;
+            count++;
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int type;
+                EncodedImage video;
+                EncodedAudio audio;
+                MediaFormat format;
+                synchronized (this) {
+                    while (count == 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    type = types[head];
+                    video = videoFrames[head];
+                    audio = audioFrames[head];
+                    format = formats[head];
+                    videoFrames[head] = null;
+                    audioFrames[head] = null;
+                    formats[head] = null;
+                    head = (head + 1) % QUEUE_CAPACITY;
+                    count--;
+                    notifyAll();
+                }
+                if (!deliver(type, video, audio, format)) {
+                    synchronized (this) {
+                        finished = true;
+                    }
+                    releaseQueued();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return false表示子复用器已经结束，线程退出
+         */
+        private boolean deliver(int type, EncodedImage video, EncodedAudio audio, MediaFormat format) {
+            switch (type) {
+                case VIDEO_FORMAT:
+                    muxer.onUpdateVideoMediaFormat(format);
+                    return true;
+                case AUDIO_FORMAT:
+                    muxer.onUpdateAudioMediaFormat(format);
+                    return true;
+                case VIDEO_FRAME:
+                    try {
+                        muxer.onEncodedFrame(video);
+                    } finally {
+                        video.release();
+                    }
+                    return true;
+                case AUDIO_FRAME:
+                    try {
+                        muxer.onEncodedAudio(audio);
+                    } finally {
+                        audio.release();
+                    }
+                    return true;
+                case VIDEO_STOP:
+                    muxer.onVideoEncoderStop();
+                    return --pendingStops > 0;
+                case AUDIO_STOP:
+                    muxer.onAudioEncoderStop();
+                    return --pendingStops > 0;
+                case RELEASE:
+                    muxer.release();
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * 线程退出时归还队列中剩余的帧
+         */
+        private synchronized void releaseQueued() {
+            while (count > 0) {
+                if (videoFrames[head] != null) {
+                    videoFrames[head].release();
+                    videoFrames[head] = null;
+                }
+                if (audioFrames[head] != null) {
+                    audioFrames[head].release();
+                    audioFrames[head] = null;
+                }
+                formats[head] = null;
+                head = (head + 1) % QUEUE_CAPACITY;
+                count--;
+            }
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 与Android无关的轨道格式描述
+ * 由编码器输出的{@link MediaFormat}转换而来，纯Java的复用器只依赖这个类，
+ * 因此可以在普通JVM上直接构造并测试。
+ */
+public final class TrackFormat {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    //视频轨道统一使用90kHz时间基
+    static final int VIDEO_TIMESCALE = 90000;
+
+    private static final int[] SAMPLING_FREQUENCIES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    public final boolean isVideo;
+
+    public final int width;
+    public final int height;
+    //不带start code的SPS/PPS
+    public final byte[] sps;
+    public final byte[] pps;
+
+    public final int sampleRate;
+    public final int channelCount;
+    public final byte[] audioSpecificConfig;
+
+    private TrackFormat(boolean isVideo, int width, int height, byte[] sps, byte[] pps,
+                        int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        this.isVideo = isVideo;
+        this.width = width;
+        this.height = height;
+        this.sps = sps;
+        this.pps = pps;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.audioSpecificConfig = audioSpecificConfig;
+    }
+
+    public static TrackFormat createVideo(byte[] sps, byte[] pps, int width, int height) {
+        if (sps == null || sps.length < 4 || pps == null || pps.length == 0) {
+            throw new IllegalArgumentException("invalid sps/pps");
+        }
+        return new TrackFormat(true, width, height, sps, pps, 0, 0, null);
+    }
+
+    public static TrackFormat createAudio(byte[] audioSpecificConfig, int sampleRate, int channelCount) {
+        if (audioSpecificConfig == null) {
+            audioSpecificConfig = buildAacLcConfig(sampleRate, channelCount);
+        }
+        return new TrackFormat(false, 0, 0, null, null, sampleRate, channelCount, audioSpecificConfig);
+    }
+
+    /**
+     * 从编码器输出格式转换
+     *
+     * @return 不支持的格式或缺少codec配置时返回null
+     */
+    public static TrackFormat fromMediaFormat(MediaFormat format) {
+        if (format == null) {
+            return null;
+        }
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MIME_AVC.equals(mime)) {
+            byte[][] parameterSets = new byte[2][];
+            collectParameterSets(format.getByteBuffer("csd-0"), parameterSets);
+            collectParameterSets(format.getByteBuffer("csd-1"), parameterSets);
+            if (parameterSets[0] == null || parameterSets[1] == null) {
+                return null;
+            }
+            return createVideo(parameterSets[0], parameterSets[1],
+                    format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT));
+        }
+        if (MIME_AAC.equals(mime)) {
+            ByteBuffer csd = format.getByteBuffer("csd-0");
+            byte[] config = null;
+            if (csd != null && csd.remaining() > 0) {
+                config = new byte[csd.remaining()];
+                csd.duplicate().get(config);
+            }
+            return createAudio(config, format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        }
+        return null;
+    }
+
+    /**
+     * 从csd buffer中取出SPS(下标0)和PPS(下标1)，兼容带/不带start code两种形式
+     */
+    private static void collectParameterSets(ByteBuffer csd, byte[][] out) {
+        if (csd == null || !csd.hasRemaining()) {
+            return;
+        }
+        csd = csd.duplicate();
+        int limit = csd.limit();
+        if (!NalUnits.isAnnexB(csd)) {
+            byte[] nal = new byte[csd.remaining()];
+            csd.get(nal);
+            storeParameterSet(nal, out);
+            return;
+        }
+        int codeStart = NalUnits.findStartCode(csd, csd.position(), limit);
+        while (codeStart < limit) {
+            int nalStart = codeStart + NalUnits.startCodeLength(csd, codeStart);
+            int next = NalUnits.findStartCode(csd, nalStart, limit);
+            if (next > nalStart) {
+                byte[] nal = new byte[next - nalStart];
+                for (int i = 0; i < nal.length; i++) {
+                    nal[i] = csd.get(nalStart + i);
+                }
+                storeParameterSet(nal, out);
+            }
+            codeStart = next;
+        }
+    }
+
+    private static void storeParameterSet(byte[] nal, byte[][] out) {
+        int type = nal[0] & 0x1F;
+        if (type == NalUnits.NAL_SPS && out[0] == null) {
+            out[0] = nal;
+        } else if (type == NalUnits.NAL_PPS && out[1] == null) {
+            out[1] = nal;
+        }
+    }
+
+    public String mimeType() {
+        return isVideo ? MIME_AVC : MIME_AAC;
+    }
+
+    /**
+     * 轨道时间基：视频90kHz，音频使用采样率
+     */
+    public int timescale() {
+        return isVideo ? VIDEO_TIMESCALE : sampleRate;
+    }
+
+    /**
+     * 时间戳(微秒)转换为轨道时间基下的tick
+     */
+    long toTicks(long timeUs) {
+        return timeUs * timescale() / 1000000L;
+    }
+
+    /**
+     * 构造AVCDecoderConfigurationRecord(avcC/FLV sequence header/MKV CodecPrivate共用)
+     */
+    public byte[] avcDecoderConfigurationRecord() {
+        byte[] record = new byte[11 + sps.length + pps.length];
+        int i = 0;
+        record[i++] = 1;
+        record[i++] = sps[1];
+        record[i++] = sps[2];
+        record[i++] = sps[3];
+        //lengthSizeMinusOne = 3
+        record[i++] = (byte) 0xFF;
+        record[i++] = (byte) 0xE1;
+        record[i++] = (byte) (sps.length >> 8);
+        record[i++] = (byte) sps.length;
+        System.arraycopy(sps, 0, record, i, sps.length);
+        i += sps.length;
+        record[i++] = 1;
+        record[i++] = (byte) (pps.length >> 8);
+        record[i++] = (byte) pps.length;
+        System.arraycopy(pps, 0, record, i, pps.length);
+        return record;
+    }
+
+    /**
+     * 两个格式是否可以直接拼接在同一条轨道里
+     */
+    public boolean isCompatible(TrackFormat other) {
+        if (other == null || other.isVideo != isVideo) {
+            return false;
+        }
+        if (isVideo) {
+            return width == other.width && height == other.height
+                    && Arrays.equals(sps, other.sps) && Arrays.equals(pps, other.pps);
+        }
+        return sampleRate == other.sampleRate && channelCount == other.channelCount
+                && Arrays.equals(audioSpecificConfig, other.audioSpecificConfig);
+    }
+
+    /**
+     * AAC采样率索引，不在标准表中时返回-1
+     */
+    static int samplingFrequencyIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLING_FREQUENCIES.length; i++) {
+            if (SAMPLING_FREQUENCIES[i] == sampleRate) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] buildAacLcConfig(int sampleRate, int channelCount) {
+        int index = samplingFrequencyIndex(sampleRate);
+        if (index < 0) {
+            throw new IllegalArgumentException("unsupported sample rate:" + sampleRate);
+        }
+        //audioObjectType = 2 (AAC LC)
+        return new byte[]{
+                (byte) ((2 << 3) | (index >> 1)),
+                (byte) (((index & 1) << 7) | (channelCount << 3))};
+    }
+
+    @Override
+    public String toString() {
+        if (isVideo) {
+            return "TrackFormat{video " + width + "x" + height
+                    + ", sps=" + sps.length + "B, pps=" + pps.length + "B}";
+        }
+        return "TrackFormat{audio " + sampleRate + "Hz, channels=" + channelCount + "}";
+    }
+}
@@ -0,0 +1,522 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.gpufast.logger.ELog;
+import com.gpufast.recorder.audio.EncodedAudio;
+import com.gpufast.recorder.video.EncodedImage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * MPEG-TS复用器
+ * H.264保持Annex-B格式，AAC加上ADTS头部，按PES打包切分成188字节的TS包。
+ * TS包直接组装在一块可复用的direct内存中，攒满后一次写出，每个sample没有内存分配。
+ * TS没有全局索引，文件在任意位置被截断都可以正常播放，适合长时间录制。
+ */
+public class TsMuxer extends IMediaMuxer {
+    private static final String TAG = TsMuxer.class.getSimpleName();
+
+    private static final int PACKET_SIZE = 188;
+    private static final int PACKET_PAYLOAD_SIZE = 184;
+    private static final int SYNC_BYTE = 0x47;
+    //一次写出的包数，约376KB
+    private static final int SLAB_PACKETS = 2048;
+
+    private static final int PAT_PID = 0x0000;
+    private static final int PMT_PID = 0x1000;
+    private static final int VIDEO_PID = 0x0100;
+    private static final int AUDIO_PID = 0x0101;
+    private static final int PROGRAM_NUMBER = 1;
+
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_AAC = 0x0F;
+    private static final int STREAM_ID_VIDEO = 0xE0;
+    private static final int STREAM_ID_AUDIO = 0xC0;
+
+    //PCR比PTS提前的量(90kHz)，给解码器留出缓冲时间
+    private static final long PTS_OFFSET = 63000;
+    //PAT/PMT最长插入间隔(90kHz)，关键帧前总是插入
+    private static final long PSI_INTERVAL = 45000;
+
+    private static final int ADTS_HEADER_SIZE = 7;
+    private static final byte[] AUD_NAL = {0, 0, 0, 1, 0x09, (byte) 0xF0};
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final Object lock = new Object();
+
+    //自己打开的输出，release时关闭
+    private MuxerSink ownedSink;
+    private WritableByteChannel channel;
+
+    private final ByteBuffer slab = ByteBuffer.allocateDirect(PACKET_SIZE * SLAB_PACKETS);
+    //PES头部以及需要插在sample前面的数据(AUD/SPS/PPS/ADTS)
+    private final ByteBuffer pesPrefix = ByteBuffer.allocateDirect(1024);
+
+    private TrackFormat videoFormat;
+    private TrackFormat audioFormat;
+
+    private boolean muteMic;
+    private int trackCount;
+    private boolean waitKeyFrame = true;
+    private boolean released = false;
+    private long originUs = -1;
+    private long lastPsiTime = -1;
+
+    private int patCounter = 0;
+    private int pmtCounter = 0;
+    private int videoCounter = 0;
+    private int audioCounter = 0;
+
+    TsMuxer(Setting setting) {
+        this(null, setting != null && setting.muteMic);
+        if (setting == null)
+            throw new IllegalArgumentException("setting is null object");
+        try {
+            MuxerSink sink = setting.openSink();
+            ownedSink = setting.sink == null ? sink : null;
+            channel = sink;
+        } catch (IOException e) {
+            ELog.e(TAG, "Init TsMuxer:" + e.getMessage());
+            channel = null;
+        }
+    }
+
+    /**
+     * 输出到指定的channel，channel必须是阻塞模式，由调用者负责关闭
+     */
+    public TsMuxer(WritableByteChannel channel, boolean muteMic) {
+        this.channel = channel;
+        this.muteMic = muteMic;
+        trackCount = muteMic ? 1 : 2;
+        ELog.i(TAG, "init muxer trackCount:" + trackCount);
+    }
+
+    /**
+     * 直接设置视频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setVideoTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (videoFormat == null && format != null) {
+                videoFormat = format;
+            }
+        }
+    }
+
+    /**
+     * 直接设置音频格式，不依赖{@link MediaFormat}，便于在JVM上使用
+     */
+    public void setAudioTrackFormat(TrackFormat format) {
+        synchronized (lock) {
+            if (audioFormat == null && format != null && !muteMic) {
+                audioFormat = format;
+            }
+        }
+    }
+
+    /**
+     * 写出暂存的TS包，之后的数据写到next，{@link HlsMuxer}在关键帧前调用来切分片。
+     * 关键帧前总是插入PAT/PMT，所以每个分片都可以独立解码。不会关闭当前channel
+     */
+    void switchChannel(WritableByteChannel next) throws IOException {
+        synchronized (lock) {
+            if (released) return;
+            if (channel != null) {
+                flush();
+            }
+            channel = next;
+        }
+    }
+
+    @Override
+    public void onUpdateVideoMediaFormat(MediaFormat mediaFormat) {
+        ELog.i(TAG, "onUpdateVideoMediaFormat" + mediaFormat);
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported video format");
+            return;
+        }
+        setVideoTrackFormat(format);
+    }
+
+    @Override
+    public void onUpdateAudioMediaFormat(MediaFormat mediaFormat) {
+        if (muteMic) return;
+        TrackFormat format = TrackFormat.fromMediaFormat(mediaFormat);
+        if (format == null) {
+            ELog.e(TAG, "unsupported audio format");
+            return;
+        }
+        setAudioTrackFormat(format);
+    }
+
+    @Override
+    public void onEncodedFrame(EncodedImage frame) {
+        if (frame.bufferInfo != null
+                && (frame.bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        boolean keyFrame = frame.frameType == EncodedImage.FrameType.VideoFrameKey;
+        synchronized (lock) {
+            if (channel == null || released || videoFormat == null) return;
+            if (waitKeyFrame && !keyFrame) return;
+            if (!NalUnits.isAnnexB(frame.buffer)) {
+                ELog.e(TAG, "ts muxer needs annex-b video");
+                return;
+            }
+            waitKeyFrame = false;
+            try {
+                writeVideoPes(frame.getSegments(), toTimestamp(frame.bufferInfo.presentationTimeUs), keyFrame);
+            } catch (IOException e) {
+                ELog.e(TAG, "write video pes failed:" + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void onEncodedAudio(EncodedAudio frame) {
+        MediaCodec.BufferInfo info = frame.bufferInfo;
+        if (muteMic || info.size <= 0 || (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            return;
+        }
+        synchronized (lock) {
+            //PAT/PMT随第一个视频关键帧写出，之前的音频丢弃
+            if (channel == null || released || audioFormat == null || lastPsiTime < 0) return;
+            ByteBuffer buffer = frame.buffer;
+            buffer.limit(info.offset + info.size);
+            buffer.position(info.offset);
+            try {
+                writeAudioPes(buffer, toTimestamp(info.presentationTimeUs));
+            } catch (IOException e) {
+                ELog.e(TAG, "write audio pes failed:" + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 时间戳(微秒)转换为相对起点的90kHz时钟
+     */
+    private long toTimestamp(long presentationTimeUs) {
+        if (originUs < 0) {
+            originUs = presentationTimeUs;
+        }
+        return Math.max(0, presentationTimeUs - originUs) * 9 / 100;
+    }
+
+    /**
+     * @param segments {@link EncodedImage#getSegments()}，最后一段是帧数据，前面的参数集写入PES前缀，帧数据不拷贝
+     */
+    private void writeVideoPes(ByteBuffer[] segments, long time, boolean keyFrame) throws IOException {
+        ByteBuffer frame = segments[segments.length - 1];
+        if (keyFrame || time - lastPsiTime >= PSI_INTERVAL) {
+            writePsi();
+            lastPsiTime = time;
+        }
+        ByteBuffer prefix = pesPrefix;
+        prefix.clear();
+        //视频PES长度可以为0(不限长度)
+        putPesHeader(prefix, STREAM_ID_VIDEO, 0, time + PTS_OFFSET);
+        //AUD必须是接入单元的第一个NAL，帧自带AUD时把它移到参数集前面，帧数据从AUD之后写出
+        int framePosition = frame.position();
+        int payloadStart = framePosition;
+        int nalStart = framePosition + NalUnits.startCodeLength(frame, framePosition);
+        if (NalUnits.nalType(frame, nalStart) == NalUnits.NAL_AUD) {
+            payloadStart = NalUnits.findStartCode(frame, nalStart, frame.limit());
+        }
+        //AUD只有两个字节，后面找不到下一个NAL说明数据有误，按普通数据处理
+        if (payloadStart > framePosition && payloadStart - framePosition <= AUD_NAL.length + 1) {
+            for (int i = framePosition; i < payloadStart; i++) {
+                prefix.put(frame.get(i));
+            }
+        } else {
+            payloadStart = framePosition;
+            prefix.put(AUD_NAL);
+        }
+        if (segments.length > 1) {
+            for (int i = 0; i < segments.length - 1; i++) {
+                ByteBuffer segment = segments[i];
+                int position = segment.position();
+                prefix.put(segment);
+                segment.position(position);
+            }
+        } else if (keyFrame && !NalUnits.containsNal(frame, NalUnits.NAL_SPS)) {
+            prefix.put(START_CODE);
+            prefix.put(videoFormat.sps);
+            prefix.put(START_CODE);
+            prefix.put(videoFormat.pps);
+        }
+        prefix.flip();
+        frame.position(payloadStart);
+        try {
+            writePes(VIDEO_PID, prefix, frame, time, keyFrame);
+        } finally {
+            frame.position(framePosition);
+        }
+    }
+
+    private void writeAudioPes(ByteBuffer data, long time) throws IOException {
+        int frameLength = ADTS_HEADER_SIZE + data.remaining();
+        ByteBuffer prefix = pesPrefix;
+        prefix.clear();
+        //PES_packet_length包含header中flags之后的部分：2字节flags + 1字节长度 + 5字节PTS
+        putPesHeader(prefix, STREAM_ID_AUDIO, 8 + frameLength, time + PTS_OFFSET);
+        putAdtsHeader(prefix, audioFormat.audioSpecificConfig, frameLength);
+        prefix.flip();
+        writePes(AUDIO_PID, prefix, data, -1, false);
+    }
+
+    private static void putPesHeader(ByteBuffer buffer, int streamId, int packetLength, long pts) {
+        buffer.put((byte) 0).put((byte) 0).put((byte) 1);
+        buffer.put((byte) streamId);
+        buffer.putShort((short) (packetLength > 0xFFFF ? 0 : packetLength));
+        //marker '10', data_alignment_indicator
+        buffer.put((byte) 0x84);
+        //PTS only
+        buffer.put((byte) 0x80);
+        buffer.put((byte) 5);
+        buffer.put((byte) (0x21 | ((pts >> 29) & 0x0E)));
+        buffer.putShort((short) (((pts >> 14) & 0xFFFE) | 1));
+        buffer.putShort((short) (((pts << 1) & 0xFFFE) | 1));
+    }
+
+    /**
+     * 根据AudioSpecificConfig生成ADTS头部(无CRC)
+     */
+    private static void putAdtsHeader(ByteBuffer buffer, byte[] asc, int frameLength) {
+        int objectType = (asc[0] & 0xFF) >> 3;
+        int frequencyIndex = ((asc[0] & 0x07) << 1) | ((asc[1] & 0xFF) >> 7);
+        int channelConfig = (asc[1] >> 3) & 0x0F;
+        buffer.put((byte) 0xFF);
+        buffer.put((byte) 0xF1);
+        buffer.put((byte) (((objectType - 1) << 6) | (frequencyIndex << 2) | (channelConfig >> 2)));
+        buffer.put((byte) (((channelConfig & 3) << 6) | (frameLength >> 11)));
+        buffer.put((byte) (frameLength >> 3));
+        buffer.put((byte) (((frameLength & 7) << 5) | 0x1F));
+        buffer.put((byte) 0xFC);
+    }
+
+    /**
+     * 把prefix + data切分成TS包写入slab
+     *
+     * @param pcr 大于等于0时在第一个包中写入PCR
+     */
+    private void writePes(int pid, ByteBuffer prefix, ByteBuffer data, long pcr, boolean randomAccess)
+            throws IOException {
+        int dataPos = data.position();
+        int dataLimit = data.limit();
+        int remaining = prefix.remaining() + data.remaining();
+        boolean first = true;
+        try {
+            while (remaining > 0) {
+                if (slab.remaining() < PACKET_SIZE) {
+                    flush();
+                }
+                //adaptation field内容长度(不含长度字节本身)，-1表示没有adaptation field
+                int adaptationLength = -1;
+                if (first && (pcr >= 0 || randomAccess)) {
+                    adaptationLength = 1 + (pcr >= 0 ? 6 : 0);
+                }
+                int capacity = PACKET_PAYLOAD_SIZE - (adaptationLength >= 0 ? adaptationLength + 1 : 0);
+                if (remaining < capacity) {
+                    //数据不足一个包，用adaptation field填充
+                    int stuffing = capacity - remaining;
+                    adaptationLength = adaptationLength >= 0 ? adaptationLength + stuffing : stuffing - 1;
+                }
+                int counter = pid == VIDEO_PID ? videoCounter : audioCounter;
+                putPacketHeader(pid, first, adaptationLength >= 0, counter);
+                if (pid == VIDEO_PID) {
+                    videoCounter = (counter + 1) & 0x0F;
+                } else {
+                    audioCounter = (counter + 1) & 0x0F;
+                }
+                if (adaptationLength >= 0) {
+                    putAdaptationField(adaptationLength, first ? pcr : -1, first && randomAccess);
+                }
+                int payload = PACKET_PAYLOAD_SIZE - (adaptationLength >= 0 ? adaptationLength + 1 : 0);
+                remaining -= payload;
+                int fromPrefix = Math.min(payload, prefix.remaining());
+                if (fromPrefix > 0) {
+                    int prefixLimit = prefix.limit();
+                    prefix.limit(prefix.position() + fromPrefix);
+                    slab.put(prefix);
+                    prefix.limit(prefixLimit);
+                    payload -= fromPrefix;
+                }
+                if (payload > 0) {
+                    data.limit(data.position() + payload);
+                    slab.put(data);
+                    data.limit(dataLimit);
+                }
+                first = false;
+            }
+        } finally {
+            data.limit(dataLimit);
+            data.position(dataPos);
+        }
+    }
+
+    private void putPacketHeader(int pid, boolean unitStart, boolean adaptation, int counter) {
+        slab.put((byte) SYNC_BYTE);
+        slab.put((byte) ((unitStart ? 0x40 : 0) | (pid >> 8)));
+        slab.put((byte) pid);
+        slab.put((byte) ((adaptation ? 0x30 : 0x10) | counter));
+    }
+
+    /**
+     * @param length adaptation_field_length，为0时只有长度字节
+     */
+    private void putAdaptationField(int length, long pcr, boolean randomAccess) {
+        slab.put((byte) length);
+        if (length == 0) {
+            return;
+        }
+        int flags = (randomAccess ? 0x40 : 0) | (pcr >= 0 ? 0x10 : 0);
+        slab.put((byte) flags);
+        int stuffing = length - 1;
+        if (pcr >= 0) {
+            //PCR base 33bit + reserved 6bit + extension 9bit(0)
+            slab.putInt((int) (pcr >> 1));
+            slab.putShort((short) (((pcr & 1) << 15) | 0x7E00));
+            stuffing -= 6;
+        }
+        for (int i = 0; i < stuffing; i++) {
+            slab.put((byte) 0xFF);
+        }
+    }
+
+    private void writePsi() throws IOException {
+        if (slab.remaining() < PACKET_SIZE * 2) {
+            flush();
+        }
+        //PAT
+        int start = beginSection(PAT_PID, patCounter);
+        patCounter = (patCounter + 1) & 0x0F;
+        slab.put((byte) 0x00);
+        slab.putShort((short) (0xB000 | 13));
+        slab.putShort((short) 1);
+        slab.put((byte) 0xC1);
+        slab.put((byte) 0);
+        slab.put((byte) 0);
+        slab.putShort((short) PROGRAM_NUMBER);
+        slab.putShort((short) (0xE000 | PMT_PID));
+        endSection(start);
+
+        //PMT
+        int streams = muteMic ? 1 : 2;
+        start = beginSection(PMT_PID, pmtCounter);
+        pmtCounter = (pmtCounter + 1) & 0x0F;
+        slab.put((byte) 0x02);
+        slab.putShort((short) (0xB000 | (13 + 5 * streams)));
+        slab.putShort((short) PROGRAM_NUMBER);
+        slab.put((byte) 0xC1);
+        slab.put((byte) 0);
+        slab.put((byte) 0);
+        slab.putShort((short) (0xE000 | VIDEO_PID));
+        slab.putShort((short) 0xF000);
+        putStreamInfo(STREAM_TYPE_H264, VIDEO_PID);
+        if (!muteMic) {
+            putStreamInfo(STREAM_TYPE_AAC, AUDIO_PID);
+        }
+        endSection(start);
+    }
+
+    private void putStreamInfo(int streamType, int pid) {
+        slab.put((byte) streamType);
+        slab.putShort((short) (0xE000 | pid));
+        slab.putShort((short) 0xF000);
+    }
+
+    /**
+     * @return section在slab中的起始位置
+     */
+    private int beginSection(int pid, int counter) {
+        putPacketHeader(pid, true, false, counter);
+        //pointer_field
+        slab.put((byte) 0);
+        return slab.position();
+    }
+
+    /**
+     * 追加CRC32并用0xFF填满当前包
+     */
+    private void endSection(int start) {
+        int crc = 0xFFFFFFFF;
+        for (int i = start; i < slab.position(); i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ slab.get(i)) & 0xFF];
+        }
+        slab.putInt(crc);
+        int packetEnd = start - 5 + PACKET_SIZE;
+        while (slab.position() < packetEnd) {
+            slab.put((byte) 0xFF);
+        }
+    }
+
+    private void flush() throws IOException {
+        slab.flip();
+        while (slab.hasRemaining()) {
+            channel.write(slab);
+        }
+        slab.clear();
+    }
+
+    @Override
+    public void onVideoEncoderStop() {
+        ELog.i(TAG, "onVideoEncoderStop. trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    @Override
+    public void onAudioEncoderStop() {
+        ELog.i(TAG, "onAudioEncoderStop: trackCount=" + trackCount);
+        stopMuxer();
+    }
+
+    private void stopMuxer() {
+        synchronized (lock) {
+            trackCount--;
+            ELog.i(TAG, "stopMuxer trackCount:" + trackCount);
+            if (trackCount <= 0) {
+                release();
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        synchronized (lock) {
+            if (released) return;
+            released = true;
+            ELog.i(TAG, "start release ts muxer");
+            try {
+                if (channel != null) {
+                    flush();
+                }
+            } catch (IOException e) {
+                ELog.e(TAG, "flush ts packets failed:" + e.getMessage());
+            }
+            try {
+                if (ownedSink != null) {
+                    ownedSink.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            ELog.i(TAG, "release ts muxer success");
+        }
+    }
+}
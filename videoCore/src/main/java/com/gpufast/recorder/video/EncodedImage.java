@@ -3,12 +3,17 @@ package com.gpufast.recorder.video;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 
+import com.gpufast.recorder.buffer.BufferPool;
+import com.gpufast.recorder.buffer.PooledBuffer;
+
 import java.nio.ByteBuffer;
 import java.util.concurrent.TimeUnit;
 
 
 /**
  * 编码后的一帧数据
+ * 编码器输出的帧直接引用MediaCodec的输出buffer，只在回调内有效，回调返回后编码器调用{@link #release()}
+ * 并把buffer还给MediaCodec。需要在回调之外使用时调用{@link #retain()}
  */
 public class EncodedImage {
 
@@ -36,8 +41,16 @@ public class EncodedImage {
         }
     }
 
+    /**
+     * 帧数据，{@link #getSegments()}的最后一段
+     */
     public final ByteBuffer buffer;
 
+    /**
+     * 按顺序组成这一帧的数据段，最后一段是{@link #buffer}
+     */
+    private final ByteBuffer[] segments;
+
     /**
      * 编码视频的宽度
      */
@@ -72,10 +85,20 @@ public class EncodedImage {
 
     public int index = 0;
 
-    private EncodedImage(ByteBuffer buffer, int encodedWidth, int encodedHeight, long captureTimeNs,
+    //帧数据所在的池buffer，null表示数据属于创建者(如编码器的输出buffer)，只在回调内有效
+    private final PooledBuffer pooled;
+    private boolean released = false;
+    //回调内第一次retain时拷贝出的数据，之后的retain共用，这一帧自己持有一个引用直到release
+    private PooledBuffer retainedCopy;
+    private ByteBuffer[] retainedSegments;
+
+    private EncodedImage(ByteBuffer[] segments, int encodedWidth, int encodedHeight, long captureTimeNs,
                          FrameType frameType, int rotation, boolean completeFrame, Integer qp,
-                         MediaFormat mediaFormat, MediaCodec.BufferInfo bufferInfo , int index) {
-        this.buffer = buffer;
+                         MediaFormat mediaFormat, MediaCodec.BufferInfo bufferInfo , int index,
+                         PooledBuffer pooled) {
+        this.pooled = pooled;
+        this.segments = segments;
+        this.buffer = segments[segments.length - 1];
         this.encodedWidth = encodedWidth;
         this.encodedHeight = encodedHeight;
         this.captureTimeNs = captureTimeNs;
@@ -88,12 +111,119 @@ public class EncodedImage {
         this.index = index;
     }
 
+    /**
+     * 硬编码的H.264关键帧为[SPS/PPS, 帧数据]两段，参数集不再拷贝到帧数据前面；其它帧只有{@link #buffer}一段。
+     * 长度前缀格式的容器(MP4/FLV/MKV)本来就跳过参数集，只需要写{@link #buffer}；
+     * Annex-B格式的容器(TS)按顺序写出全部数据段。
+     * 返回内部数组，不能修改，读取各段时不要改变其position
+     */
+    public ByteBuffer[] getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return 全部数据段剩余的字节数
+     */
+    public int getSize() {
+        int size = 0;
+        for (ByteBuffer segment : segments) {
+            size += segment.remaining();
+        }
+        return size;
+    }
+
+    /**
+     * 在回调之外继续使用这一帧，用完后调用返回值的{@link #release()}。
+     * 数据不在池中时，第一次retain拷贝一次到{@link BufferPool#getDefault()}，同一帧之后的retain共用这份拷贝；
+     * 数据在池中时只增加引用计数。每次返回新的对象，buffer的position互不影响，可以交给不同的线程
+     *
+     * @return 回调之外仍然有效的帧
+     */
+    public EncodedImage retain() {
+        PooledBuffer data;
+        ByteBuffer[] source;
+        synchronized (this) {
+            //编码器的输出buffer在release之后已经还给编码器，不能再拷贝
+            if (released) {
+                throw new IllegalStateException("frame already released");
+            }
+            if (pooled != null) {
+                data = pooled;
+                source = segments;
+            } else {
+                if (retainedCopy == null) {
+                    copyToPool();
+                }
+                data = retainedCopy;
+                source = retainedSegments;
+            }
+            data.retain();
+        }
+        ByteBuffer[] views = new ByteBuffer[source.length];
+        for (int i = 0; i < source.length; i++) {
+            views[i] = source[i].duplicate();
+        }
+        MediaCodec.BufferInfo info = null;
+        if (bufferInfo != null) {
+            //编码器会复用BufferInfo
+            info = new MediaCodec.BufferInfo();
+            info.set(0, views[views.length - 1].remaining(), bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+        EncodedImage image = new EncodedImage(views, encodedWidth, encodedHeight, captureTimeNs, frameType,
+                rotation, completeFrame, qp, mediaFormat, info, index, data);
+        image.startTime = startTime;
+        return image;
+    }
+
+    /**
+     * 全部数据段连续拷贝到一个池buffer中，保持分段
+     */
+    private void copyToPool() {
+        PooledBuffer data = BufferPool.getDefault().obtain(getSize());
+        ByteBuffer target = data.buffer;
+        ByteBuffer[] copies = new ByteBuffer[segments.length];
+        for (int i = 0; i < segments.length; i++) {
+            ByteBuffer segment = segments[i];
+            int position = segment.position();
+            int start = target.position();
+            target.put(segment);
+            segment.position(position);
+            ByteBuffer copy = target.duplicate();
+            copy.limit(target.position());
+            copy.position(start);
+            copies[i] = copy.slice();
+        }
+        target.flip();
+        retainedCopy = data;
+        retainedSegments = copies;
+    }
+
+    /**
+     * 释放{@link #retain()}得到的帧；编码器在回调返回后对自己输出的帧调用，结束对拷贝数据的持有。
+     * 重复调用没有影响，释放后不能再{@link #retain()}
+     */
+    public void release() {
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (pooled != null) {
+                pooled.release();
+            } else if (retainedCopy != null) {
+                retainedCopy.release();
+                retainedCopy = null;
+                retainedSegments = null;
+            }
+        }
+    }
+
     public static Builder builder() {
         return new Builder();
     }
 
     public static class Builder {
-        private ByteBuffer buffer;
+        private ByteBuffer[] segments;
         private int encodedWidth;
         private int encodedHeight;
         private long captureTimeNs;
@@ -104,12 +234,29 @@ public class EncodedImage {
         private MediaFormat mediaFormat;
         private MediaCodec.BufferInfo bufferInfo;
         private int frameIndex = 0;
+        private PooledBuffer pooled;
 
         private Builder() {
         }
 
         public Builder setBuffer(ByteBuffer buffer) {
-            this.buffer = buffer;
+            this.segments = new ByteBuffer[]{buffer};
+            return this;
+        }
+
+        /**
+         * 设置按顺序排列的多个数据段，最后一段是帧数据，见{@link EncodedImage#getSegments()}
+         */
+        public Builder setSegments(ByteBuffer... segments) {
+            this.segments = segments;
+            return this;
+        }
+
+        /**
+         * 数据段在data中，创建的帧接管data的一个引用，由帧的{@link EncodedImage#release()}释放
+         */
+        public Builder setPooledBuffer(PooledBuffer data) {
+            this.pooled = data;
             return this;
         }
 
@@ -165,8 +312,9 @@ public class EncodedImage {
         }
 
         public EncodedImage createEncodedImage() {
-            return new EncodedImage(buffer, encodedWidth, encodedHeight, captureTimeNs, frameType,
-                    rotation, completeFrame, qp, mediaFormat, bufferInfo,frameIndex);
+            return new EncodedImage(segments != null ? segments : new ByteBuffer[]{null}, encodedWidth,
+                    encodedHeight, captureTimeNs, frameType, rotation, completeFrame, qp, mediaFormat, bufferInfo,
+                    frameIndex, pooled);
         }
     }
 
@@ -0,0 +1,174 @@
+package com.gpufast.recorder.video;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.gpufast.logger.ELog;
+
+import java.util.ArrayDeque;
+
+/**
+ * 编码前的帧调度，决定哪些帧送给编码器
+ * 1.按目标帧率把帧的时间戳对齐到均匀的时间格上，输入帧率高于目标帧率时均匀地丢帧，而不是等编码器队列满了连续丢；
+ * 2.统计编码器的处理时间(送入到输出)，只保持处理时间内需要的帧数在编码器中，编码器空闲时下一帧立即送入，不会饿死编码器；
+ * 3.编码器跟不上目标帧率时，按编码器实际的输出间隔放慢节奏，恢复后回到目标帧率。
+ * {@link #shouldSubmit(long)}和{@link #onSubmitted(long, boolean)}在编码线程调用，{@link #onEncoded(long)}在编码器输出线程调用
+ */
+final class FramePacer {
+    private static final String TAG = "FramePacer";
+
+    //HwVideoEncoder在队列中已有超过MAX_ENCODER_Q_SIZE(2)帧时丢帧，即最多容纳3帧，两处要一起修改
+    private static final int MAX_PENDING_FRAMES = 3;
+    //超过这个时间没有输出的帧认为被编码器丢掉了
+    private static final long PENDING_TIMEOUT_NS = 1000L * 1000 * 1000;
+    //编码器跟不上之后，至少保持这么久的慢节奏再尝试恢复
+    private static final long SLOW_HOLD_NS = 1000L * 1000 * 1000;
+    private static final int DEFAULT_FPS = 30;
+    //平滑系数
+    private static final double EWMA_ALPHA = 0.1;
+
+    private final Object lock = new Object();
+    private final long targetIntervalNs;
+    //已经送入编码器还没有输出的帧：{时间戳, 送入的时间}
+    private final ArrayDeque<long[]> pending = new ArrayDeque<>();
+
+    //下一帧时间格的位置，-1表示还没有送入过
+    private long nextDueNs = -1;
+    //编码器送入到输出的平均时间，0表示还没有统计
+    private double turnaroundNs;
+    //编码器输出的平均间隔
+    private double outputIntervalNs;
+    private long lastOutputNs = -1;
+    //最近一次因为编码器忙丢帧的时间，-1表示没有
+    private long lastBusyDropNs = -1;
+
+    private int submittedFrames;
+    private int pacedFrames;
+    private int busyDroppedFrames;
+
+    FramePacer(int maxFrameRate) {
+        int fps = maxFrameRate > 0 ? maxFrameRate : DEFAULT_FPS;
+        targetIntervalNs = 1000L * 1000 * 1000 / fps;
+    }
+
+    /**
+     * @param timestampNs 帧的时间戳
+     * @return true表示送入编码器，之后必须调用{@link #onSubmitted(long, boolean)}
+     */
+    boolean shouldSubmit(long timestampNs) {
+        return shouldSubmit(timestampNs, System.nanoTime());
+    }
+
+    @VisibleForTesting
+    boolean shouldSubmit(long timestampNs, long now) {
+        synchronized (lock) {
+            long interval = currentIntervalNs(now);
+            //允许时间戳有1/4帧间隔的抖动
+            if (nextDueNs >= 0 && timestampNs < nextDueNs - interval / 4) {
+                pacedFrames++;
+                return false;
+            }
+            dropStalePending(now);
+            if (pending.size() >= maxPendingFrames(interval)) {
+                //不移动时间格，编码器有空位后下一帧立即送入
+                busyDroppedFrames++;
+                lastBusyDropNs = now;
+                return false;
+            }
+            if (nextDueNs < 0 || timestampNs - nextDueNs > interval) {
+                //第一帧或者落后超过一帧，从这一帧重新对齐，不补送落后的帧
+                nextDueNs = timestampNs + interval;
+            } else {
+                nextDueNs += interval;
+            }
+            pending.addLast(new long[]{timestampNs, now});
+            submittedFrames++;
+            return true;
+        }
+    }
+
+    /**
+     * @param accepted 编码器是否接收了这一帧，没有接收时不会有输出
+     */
+    void onSubmitted(long timestampNs, boolean accepted) {
+        if (accepted) {
+            return;
+        }
+        synchronized (lock) {
+            long[] last = pending.peekLast();
+            if (last != null && last[0] == timestampNs) {
+                pending.pollLast();
+            }
+        }
+    }
+
+    /**
+     * 编码器输出了时间戳为captureTimeNs的帧
+     */
+    void onEncoded(long captureTimeNs) {
+        onEncoded(captureTimeNs, System.nanoTime());
+    }
+
+    @VisibleForTesting
+    void onEncoded(long captureTimeNs, long now) {
+        synchronized (lock) {
+            if (!containsPending(captureTimeNs)) {
+                return;
+            }
+            //编码器按送入的顺序输出，前面没有输出的帧已经被编码器丢掉
+            long[] frame = pending.pollFirst();
+            while (frame[0] != captureTimeNs) {
+                frame = pending.pollFirst();
+            }
+            turnaroundNs = smooth(turnaroundNs, now - frame[1]);
+            if (lastOutputNs >= 0) {
+                outputIntervalNs = smooth(outputIntervalNs, now - lastOutputNs);
+            }
+            lastOutputNs = now;
+        }
+    }
+
+    void logStats() {
+        synchronized (lock) {
+            ELog.i(TAG, "submitted " + submittedFrames + " paced " + pacedFrames + " busy dropped "
+                    + busyDroppedFrames + " turnaround " + (long) (turnaroundNs / 1000) + "us");
+        }
+    }
+
+    private long currentIntervalNs(long now) {
+        if (lastBusyDropNs >= 0 && now - lastBusyDropNs < SLOW_HOLD_NS) {
+            return Math.max(targetIntervalNs, (long) outputIntervalNs);
+        }
+        return targetIntervalNs;
+    }
+
+    /**
+     * 覆盖编码器处理时间需要的帧数，再多一帧保证编码器输出一帧后马上有下一帧
+     */
+    private int maxPendingFrames(long interval) {
+        if (turnaroundNs <= 0) {
+            return MAX_PENDING_FRAMES;
+        }
+        int frames = (int) Math.ceil(turnaroundNs / interval) + 1;
+        return Math.max(1, Math.min(MAX_PENDING_FRAMES, frames));
+    }
+
+    private boolean containsPending(long timestampNs) {
+        for (long[] frame : pending) {
+            if (frame[0] == timestampNs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropStalePending(long now) {
+        long[] first;
+        while ((first = pending.peekFirst()) != null && now - first[1] > PENDING_TIMEOUT_NS) {
+            pending.pollFirst();
+        }
+    }
+
+    private static double smooth(double average, long sample) {
+        return average <= 0 ? sample : average + (sample - average) * EWMA_ALPHA;
+    }
+}
@@ -1,24 +1,33 @@
 package com.gpufast.recorder.video;
 
 import android.graphics.Matrix;
+import android.media.MediaFormat;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 
 import com.gpufast.logger.ELog;
 import com.gpufast.recorder.PresentationTime;
+import com.gpufast.recorder.video.encoder.VideoCodecStatus;
 
 import java.lang.ref.WeakReference;
 
 /**
  * 转发前端传递的图像数据，交给编码前局处理部分
- * 然后送给编码器进行编码
+ * 然后经过{@link FramePacer}按目标帧率调度后送给编码器进行编码
  */
 public class VideoClient {
     private static final String TAG = "VideoClient";
     private VideoEncoderThread mEncoderThread;
     private PresentationTime pTime;
 
+    public interface Callback {
+        /**
+         * 编码器出现不可恢复的错误，已经结束视频轨道，在编码线程回调
+         */
+        void onEncoderError();
+    }
+
     public VideoClient(VideoEncoder encoder,
                        VideoEncoder.Settings settings,
                        VideoEncoder.VideoEncoderCallback callback) {
@@ -28,6 +37,10 @@ public class VideoClient {
     }
 
 
+    public void setCallback(Callback callback) {
+        mEncoderThread.mClientCallback = callback;
+    }
+
     public void start() {
         mEncoderThread.start();
         mEncoderThread.waitUntilReady();
@@ -61,13 +74,34 @@ public class VideoClient {
         private EncoderHandler mEncoderHandler;
         private VideoEncoder mVideoEncoder;
         private VideoEncoder.Settings mSettings;
+        private final FramePacer mPacer;
         VideoEncoder.VideoEncoderCallback mCallback;
+        volatile Callback mClientCallback;
+        private boolean mFailed = false;
 
         VideoEncoderThread(VideoEncoder encoder, VideoEncoder.Settings settings,
-                           VideoEncoder.VideoEncoderCallback callback) {
+                           final VideoEncoder.VideoEncoderCallback callback) {
             mVideoEncoder = encoder;
             mSettings = settings;
-            mCallback = callback;
+            mPacer = new FramePacer(settings.maxFrameRate);
+            //编码器的输出先告诉调度器，用来统计编码器的处理时间
+            mCallback = new VideoEncoder.VideoEncoderCallback() {
+                @Override
+                public void onUpdateVideoMediaFormat(MediaFormat format) {
+                    callback.onUpdateVideoMediaFormat(format);
+                }
+
+                @Override
+                public void onEncodedFrame(EncodedImage frame) {
+                    mPacer.onEncoded(frame.captureTimeNs);
+                    callback.onEncodedFrame(frame);
+                }
+
+                @Override
+                public void onVideoEncoderStop() {
+                    callback.onVideoEncoderStop();
+                }
+            };
         }
 
         boolean isReady() {
@@ -123,8 +157,18 @@ public class VideoClient {
         }
 
         void sendVideoFrame(VideoFrame frame) {
-            if (mVideoEncoder != null && mReady) {
-                mVideoEncoder.encode(frame);
+            if (mVideoEncoder != null && mReady && !mFailed && mPacer.shouldSubmit(frame.getTimestampNs())) {
+                VideoCodecStatus status = mVideoEncoder.encode(frame);
+                mPacer.onSubmitted(frame.getTimestampNs(), status == VideoCodecStatus.OK);
+                if (status != VideoCodecStatus.OK && mVideoEncoder.isFailed()) {
+                    //只通知一次，之后的帧不再送给编码器
+                    mFailed = true;
+                    ELog.e(TAG, "video encoder failed:" + status);
+                    Callback callback = mClientCallback;
+                    if (callback != null) {
+                        callback.onEncoderError();
+                    }
+                }
             }
         }
 
@@ -137,6 +181,7 @@ public class VideoClient {
             if (mVideoEncoder != null) {
                 mVideoEncoder.deInit();
                 mVideoEncoder = null;
+                mPacer.logStats();
             }
         }
     }
@@ -28,6 +28,13 @@ public interface VideoEncoder {
         return true;
     }
 
+    /**
+     * @return 编码器是否因为不可恢复的错误已经停止，停止后encode不再输出
+     */
+    default boolean isFailed() {
+        return false;
+    }
+
     //初始化编码器
     VideoCodecStatus init(Settings settings, VideoEncoderCallback encodeCallback);
 
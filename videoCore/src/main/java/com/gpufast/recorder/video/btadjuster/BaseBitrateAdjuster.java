@@ -10,7 +10,7 @@ public class BaseBitrateAdjuster implements BitrateAdjuster {
     }
 
     @Override
-    public void reportEncodedFrame(int size) {
+    public void reportEncodedFrame(int size, long presentationTimeUs) {
 
     }
 
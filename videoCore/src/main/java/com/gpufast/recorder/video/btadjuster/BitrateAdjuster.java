@@ -8,9 +8,11 @@ public interface BitrateAdjuster {
   void setTargets(int targetBitrateBps, int targetFps);
 
   /**
-   * 报告指定大小的frame已经编码完成，如果码率需要调整，则返回true
+   * 报告指定大小的frame已经编码完成
+   *
+   * @param presentationTimeUs 这一帧的显示时间，用于按时间统计实际码率
    */
-  void reportEncodedFrame(int size);
+  void reportEncodedFrame(int size, long presentationTimeUs);
 
   /** 获取当前的码率. */
   int getAdjustedBitrateBps();
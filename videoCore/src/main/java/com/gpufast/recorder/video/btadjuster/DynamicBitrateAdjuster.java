@@ -0,0 +1,120 @@
+package com.gpufast.recorder.video.btadjuster;
+
+import com.gpufast.logger.ELog;
+
+/**
+ * 根据实际编码输出动态纠正码率，很多硬件编码器的实际码率和设置的码率相差30%~50%。
+ * 用滑动窗口统计最近WINDOW_SEC秒(按帧的显示时间)内的输出字节数，换算成实际码率和目标码率比较，
+ * 偏差超过DEAD_ZONE时按比例调整设置给编码器的码率；每次调整后等窗口里全是新码率编码的帧再判断下一次。
+ * 按时间而不是按帧数统计，实际帧率低于目标帧率(暗光、24fps的源、帧调度丢帧)时不会误判为超出码率；
+ * 编码器按配置帧率分配每帧预算导致帧率低时码率不足的情况，也会在这里被纠正回来
+ */
+public class DynamicBitrateAdjuster extends BaseBitrateAdjuster {
+    private static final String TAG = "DynamicBitrateAdjuster";
+
+    //统计窗口的时长(秒)
+    private static final int WINDOW_SEC = 3;
+    private static final long WINDOW_US = WINDOW_SEC * 1000_000L;
+    //偏差在这个范围内不调整
+    private static final double DEAD_ZONE = 0.1;
+    //每次只纠正一部分偏差，避免关键帧等造成的波动引起振荡
+    private static final double ADJUSTMENT_GAIN = 0.5;
+    //设置的码率相对目标码率的范围
+    private static final double MIN_SCALE = 0.25;
+    private static final double MAX_SCALE = 4.0;
+
+    //最近一个窗口内每帧的大小和显示时间，环形数组，装不下时扩容
+    private int[] frameSizes = new int[0];
+    private long[] frameTimesUs = new long[0];
+    private int frameCount;
+    private int firstFrame;
+    private long windowBytes;
+    //设置给编码器的码率相对目标码率的比例
+    private double bitrateScale = 1.0;
+
+    @Override
+    public void setTargets(int targetBitrateBps, int targetFps) {
+        if (targetBitrateBps != this.targetBitrateBps || targetFps != this.targetFps) {
+            //目标变化后，窗口内的数据不能再用来判断偏差
+            resetWindow(Math.max(1, targetFps * WINDOW_SEC + 1));
+        }
+        super.setTargets(targetBitrateBps, targetFps);
+    }
+
+    @Override
+    public void reportEncodedFrame(int size, long presentationTimeUs) {
+        if (targetBitrateBps <= 0) {
+            return;
+        }
+        if (frameCount > 0 && presentationTimeUs < frameTimesUs[firstFrame]) {
+            //时间戳回退(编码器重启等)，重新统计
+            resetWindow(frameSizes.length);
+        }
+        if (frameCount == frameSizes.length) {
+            growWindow();
+        }
+        int last = (firstFrame + frameCount) % frameSizes.length;
+        frameSizes[last] = size;
+        frameTimesUs[last] = presentationTimeUs;
+        frameCount++;
+        windowBytes += size;
+        //保留刚好覆盖WINDOW_SEC的帧
+        while (frameCount > 2 && presentationTimeUs - frameTimesUs[(firstFrame + 1) % frameSizes.length]
+                >= WINDOW_US) {
+            windowBytes -= frameSizes[firstFrame];
+            firstFrame = (firstFrame + 1) % frameSizes.length;
+            frameCount--;
+        }
+
+        //窗口还不满一个统计时长，或者还有上一次调整之前编码的帧(调整时窗口被清空)
+        long spanUs = presentationTimeUs - frameTimesUs[firstFrame];
+        if (spanUs < WINDOW_US) {
+            return;
+        }
+        //第一帧的数据属于它之前的时间段，不计入
+        double actualBps = (windowBytes - frameSizes[firstFrame]) * 8 * 1000_000.0 / spanUs;
+        double deviation = actualBps / targetBitrateBps;
+        if (Math.abs(deviation - 1) <= DEAD_ZONE) {
+            return;
+        }
+        //偏差为deviation时，码率按1/deviation的ADJUSTMENT_GAIN次方调整
+        double scale = bitrateScale * Math.pow(1 / deviation, ADJUSTMENT_GAIN);
+        scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+        resetWindow(frameSizes.length);
+        if (scale == bitrateScale) {
+            return;
+        }
+        ELog.i(TAG, "actual bitrate " + (int) actualBps + " target " + targetBitrateBps
+                + ", scale " + bitrateScale + " -> " + scale);
+        bitrateScale = scale;
+    }
+
+    @Override
+    public int getAdjustedBitrateBps() {
+        return (int) (targetBitrateBps * bitrateScale);
+    }
+
+    private void growWindow() {
+        int length = Math.max(8, frameSizes.length * 2);
+        int[] sizes = new int[length];
+        long[] times = new long[length];
+        for (int i = 0; i < frameCount; i++) {
+            int index = (firstFrame + i) % frameSizes.length;
+            sizes[i] = frameSizes[index];
+            times[i] = frameTimesUs[index];
+        }
+        frameSizes = sizes;
+        frameTimesUs = times;
+        firstFrame = 0;
+    }
+
+    private void resetWindow(int windowFrames) {
+        if (frameSizes.length != windowFrames) {
+            frameSizes = new int[windowFrames];
+            frameTimesUs = new long[windowFrames];
+        }
+        frameCount = 0;
+        firstFrame = 0;
+        windowBytes = 0;
+    }
+}
@@ -15,10 +15,14 @@ import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
 import android.view.Surface;
 
 import com.gpufast.gles.EglCore;
 import com.gpufast.logger.ELog;
+import com.gpufast.recorder.hardware.MediaCodecCallbackThread;
 import com.gpufast.recorder.hardware.MediaCodecWrapper;
 import com.gpufast.recorder.hardware.MediaCodecWrapperFactory;
 import com.gpufast.recorder.video.EncodedImage;
@@ -33,10 +37,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingDeque;
 
 /**
  * Android hardware video encoder.
+ * 6.0及以上使用MediaCodec异步模式，编码输出在共用的{@link MediaCodecCallbackThread}上回调；
+ * 不支持时退回到输出线程轮询dequeueOutputBuffer
  */
 @TargetApi(19)
 class HwVideoEncoder implements VideoEncoder {
@@ -57,10 +64,13 @@ class HwVideoEncoder implements VideoEncoder {
     private static final int PROFILE_HEIGHT = 0x08;
     private static final int VIDEO_AVC_LEVEL_3 = 0x100;
 
+    //队列中已有超过这么多帧时丢帧，FramePacer.MAX_PENDING_FRAMES按此设为3，两处要一起修改
     private static final int MAX_ENCODER_Q_SIZE = 2;
 
     private static final int MEDIA_CODEC_RELEASE_TIMEOUT_MS = 5000;
     private static final int DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US = 100000;
+    //两次通过setParameters修改码率的最小间隔
+    private static final long MIN_BITRATE_UPDATE_INTERVAL_NS = 1000L * 1000 * 1000;
 
     private final MediaCodecWrapperFactory mediaCodecWrapperFactory;
     //编码器名称
@@ -91,7 +101,10 @@ class HwVideoEncoder implements VideoEncoder {
     private VideoEncoderCallback encoderCallback;
 
     private MediaCodecWrapper codec;
+    //轮询模式的输出线程
     private Thread outputThread;
+    //异步模式的回调Handler，轮询模式为null
+    private Handler callbackHandler;
     private EglCore mEglCore;
     private Surface textureInputSurface;
 
@@ -102,11 +115,19 @@ class HwVideoEncoder implements VideoEncoder {
     //h264配置buffer
     private ByteBuffer configBuffer;
     private int adjustedBitrate;
+    //上一次修改码率的时间(System.nanoTime)
+    private long lastBitrateUpdateNs;
     //编码器是否正在运行，Volatile，保证编码停止的时候能准确及时观察到值
     private volatile boolean running;
     // Any exception thrown during shutdown.  The output thread releases the MediaCodec and uses this
     // value to send exceptions thrown during deInit back to the encoder thread.
     private volatile Exception shutdownException;
+    //编码器报告了可恢复的错误，下一次encode时在编码线程重启
+    private volatile boolean restartRequested;
+    //重启时释放codec不结束视频轨道
+    private volatile boolean restarting;
+    //编码器出现不可恢复的错误，已经停止
+    private volatile boolean codecFailed;
     //将要编码的序列号，用来检测丢帧
     private int frameIndex = 0;
 
@@ -141,6 +162,8 @@ class HwVideoEncoder implements VideoEncoder {
     public VideoCodecStatus init(Settings settings, VideoEncoderCallback callback) {
         encodeThreadChecker.checkIsOnValidThread();
         this.encoderCallback = callback;
+        restartRequested = false;
+        codecFailed = false;
         this.width = settings.width;
         this.height = settings.height;
 
@@ -190,8 +213,10 @@ class HwVideoEncoder implements VideoEncoder {
             if (codecType == VideoCodecType.H264) {
                 String profile = params.get(VideoCodecInfo.H264_PROFILE);
                 ELog.d(TAG, "video profile =" + profile);
-                if (profile == null)
+                if (profile == null) {
+                    releaseUnstartedCodec();
                     return VideoCodecStatus.ERROR;
+                }
                 switch (profile) {
                     case VideoCodecInfo.VALUE_BASE_LINE:
                         format.setInteger(VideoCodecInfo.H264_PROFILE, PROFILE_BASELINE);
@@ -210,6 +235,8 @@ class HwVideoEncoder implements VideoEncoder {
                 }
             }
             ELog.i(TAG, " video Format: " + format);
+            //setCallback必须在configure之前调用
+            setupAsyncOutput();
             codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
             mEglCore = EglCore.create(sharedContext, EglCore.CONFIG_RECORDABLE);
             textureInputSurface = codec.createInputSurface();
@@ -218,25 +245,144 @@ class HwVideoEncoder implements VideoEncoder {
             ELog.i(TAG, "name:" + codecName + " codec.start(): ");
             frameIndex = 0;
             codec.start();
+            lastBitrateUpdateNs = System.nanoTime();
 
         } catch (IllegalStateException e) {
             ELog.e(TAG, "initEncodeInternal failed:" + e.getLocalizedMessage());
+            //running还是false，deInit不会释放这个codec
+            releaseUnstartedCodec();
             deInit();
             return VideoCodecStatus.FALLBACK_SOFTWARE;
         }
         running = true;
         outputThreadChecker.detachThread();
-        outputThread = createOutputThread();
-        outputThread.start();
+        if (callbackHandler == null) {
+            outputThread = createOutputThread(codec);
+            outputThread.start();
+        }
         return VideoCodecStatus.OK;
     }
 
+    /**
+     * 释放创建了但没有启动成功的codec
+     */
+    private void releaseUnstartedCodec() {
+        try {
+            codec.release();
+        } catch (Exception e) {
+            ELog.e(TAG, "release unstarted encoder failed:" + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * 支持时切换到异步模式，失败则保留轮询模式
+     */
+    private void setupAsyncOutput() {
+        if (!mediaCodecWrapperFactory.isCallbackSupported()) {
+            return;
+        }
+        Handler handler = MediaCodecCallbackThread.acquire();
+        try {
+            codec.setCallback(createCodecCallback(codec), handler);
+            callbackHandler = handler;
+            ELog.i(TAG, "use async output");
+        } catch (IllegalStateException e) {
+            ELog.w(TAG, "setCallback failed, fallback to polling:" + e.getLocalizedMessage());
+            MediaCodecCallbackThread.release();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private MediaCodec.Callback createCodecCallback(final MediaCodecWrapper owner) {
+        return new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec mediaCodec, int index) {
+                //输入来自surface，不会使用输入buffer
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec mediaCodec, int index, MediaCodec.BufferInfo info) {
+                //停止之后已经投递的回调不再输出，buffer直接还给编码器
+                if (!running) {
+                    try {
+                        mediaCodec.releaseOutputBuffer(index, false);
+                    } catch (IllegalStateException e) {
+                        //出错停止时codec已经释放
+                        ELog.w(TAG, "release dropped output failed:" + e.getLocalizedMessage());
+                    }
+                    return;
+                }
+                try {
+                    deliverOutputBuffer(index, info);
+                } catch (Exception e) {
+                    ELog.e(TAG, "deliver Output failed:" + e.getLocalizedMessage());
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec mediaCodec, MediaCodec.CodecException e) {
+                //重启之后旧codec迟到的错误不影响新codec
+                if (!handleCodecError(e) || !running || owner != codec) {
+                    return;
+                }
+                //不可恢复，在回调线程上释放codec并结束视频轨道，之后encode返回ERROR
+                codecFailed = true;
+                running = false;
+                releaseCodecOnOutputThread(owner);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec mediaCodec, MediaFormat format) {
+                //可能在running置为true之前回调，不访问codec，不需要判断running
+                if (encoderCallback != null) {
+                    encoderCallback.onUpdateVideoMediaFormat(format);
+                }
+            }
+        };
+    }
+
+    /**
+     * 处理异步模式下编码器报告的错误，在回调线程调用
+     *
+     * @return true表示错误不可恢复
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private boolean handleCodecError(MediaCodec.CodecException e) {
+        if (e.isTransient()) {
+            //资源暂时不可用，编码器可以继续使用
+            ELog.w(TAG, "transient encoder error:" + e.getLocalizedMessage() + " " + e.getDiagnosticInfo());
+            return false;
+        }
+        if (e.isRecoverable()) {
+            ELog.w(TAG, "recoverable encoder error:" + e.getLocalizedMessage() + " " + e.getDiagnosticInfo());
+            restartRequested = true;
+            return false;
+        }
+        ELog.e(TAG, "fatal encoder error:" + e.getLocalizedMessage() + " " + e.getDiagnosticInfo());
+        return true;
+    }
+
+    @Override
+    public boolean isFailed() {
+        return codecFailed;
+    }
+
     @Override
     public VideoCodecStatus encode(VideoFrame videoFrame) {
         encodeThreadChecker.checkIsOnValidThread();
+        if (codecFailed) {
+            return VideoCodecStatus.ERROR;
+        }
         if (codec == null) {
             return VideoCodecStatus.UNINITIALIZED;
         }
+        if (restartRequested) {
+            restartRequested = false;
+            VideoCodecStatus status = restartCodec();
+            if (status != VideoCodecStatus.OK) {
+                return status;
+            }
+        }
 
         //如果输入分辨率发生变化，则使用新分辨率重新启动编解码器
         final int frameWidth = videoFrame.getBuffer().getWidth();
@@ -314,7 +460,31 @@ class HwVideoEncoder implements VideoEncoder {
         return initEncodeInternal();
     }
 
-    private Thread createOutputThread() {
+    /**
+     * 可恢复的错误之后用原来的参数重启编码器，视频轨道不结束；重启失败按不可恢复的错误处理
+     */
+    private VideoCodecStatus restartCodec() {
+        encodeThreadChecker.checkIsOnValidThread();
+        ELog.i(TAG, "restart encoder");
+        restarting = true;
+        VideoCodecStatus releaseStatus = deInit();
+        VideoCodecStatus status = releaseStatus == VideoCodecStatus.OK ? initEncodeInternal() : releaseStatus;
+        restarting = false;
+        if (status != VideoCodecStatus.OK) {
+            ELog.e(TAG, "restart encoder failed:" + status);
+            codecFailed = true;
+            //超时的codec之后释放时会结束视频轨道
+            if (releaseStatus != VideoCodecStatus.TIMEOUT && encoderCallback != null) {
+                encoderCallback.onVideoEncoderStop();
+            }
+        }
+        return status;
+    }
+
+    /**
+     * @param outputCodec 这个线程负责释放的codec，释放超时后codec字段可能已经指向新的codec
+     */
+    private Thread createOutputThread(final MediaCodecWrapper outputCodec) {
         return new Thread() {
             @Override
             public void run() {
@@ -322,7 +492,7 @@ class HwVideoEncoder implements VideoEncoder {
                 while (running) {
                     deliverEncodedImage();
                 }
-                releaseCodecOnOutputThread();
+                releaseCodecOnOutputThread(outputCodec);
             }
         };
     }
@@ -336,48 +506,7 @@ class HwVideoEncoder implements VideoEncoder {
             MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
             int index = codec.dequeueOutputBuffer(info, DEQUEUE_OUTPUT_BUFFER_TIMEOUT_US);
             if (index >= 0) {
-                ByteBuffer outputBuffer = codec.getOutputBuffer(index);
-                outputBuffer.position(info.offset);
-                outputBuffer.limit(info.offset + info.size);
-
-                //表示该buffer是一个编码配置信息buffer
-                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    ELog.i(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
-                    configBuffer = ByteBuffer.allocateDirect(info.size);
-                    configBuffer.put(outputBuffer);
-                } else {
-                    //判断是否是关键帧
-                    final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
-                    //这个buffer必须是一个新的对象
-                    final ByteBuffer frameBuffer;
-                    if (isKeyFrame && codecType == VideoCodecType.H264) {
-                        ELog.d(TAG,
-                                "Prepending config frame of size " + configBuffer.capacity()
-                                        + " to output buffer with offset " + info.offset + ", size " + info.size);
-                        // For H.264 key frame prepend SPS and PPS NALs at the start.
-                        //分配buffer的size= keyFrame+config
-                        frameBuffer = ByteBuffer.allocateDirect(info.size + configBuffer.capacity());
-                        configBuffer.rewind();
-                        frameBuffer.put(configBuffer);
-                        frameBuffer.put(outputBuffer);
-                        frameBuffer.rewind();
-                    } else {
-                        frameBuffer = outputBuffer.slice();
-                    }
-
-                    final EncodedImage.FrameType frameType = isKeyFrame
-                            ? EncodedImage.FrameType.VideoFrameKey
-                            : EncodedImage.FrameType.VideoFrameDelta;
-                    EncodedImage.Builder builder = outputBuilders.poll();
-                    if (builder == null) return;
-                    builder.setBuffer(frameBuffer)
-                            .setBufferInfo(info)
-                            .setFrameType(frameType);
-                    if (encoderCallback != null) {
-                        encoderCallback.onEncodedFrame(builder.createEncodedImage());
-                    }
-                }
-                codec.releaseOutputBuffer(index, info.presentationTimeUs);
+                deliverOutputBuffer(index, info);
             } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                 if (encoderCallback != null) {
                     encoderCallback.onUpdateVideoMediaFormat(codec.getOutputFormat());
@@ -388,46 +517,149 @@ class HwVideoEncoder implements VideoEncoder {
         }
     }
 
-    private void releaseCodecOnOutputThread() {
+    /**
+     * 把一个输出buffer交给回调并归还给编码器，轮询模式在输出线程调用，异步模式在回调线程调用
+     */
+    private void deliverOutputBuffer(int index, MediaCodec.BufferInfo info) {
+        outputThreadChecker.checkIsOnValidThread();
+        try {
+            ByteBuffer outputBuffer = codec.getOutputBuffer(index);
+            outputBuffer.position(info.offset);
+            outputBuffer.limit(info.offset + info.size);
+
+            //表示该buffer是一个编码配置信息buffer
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                ELog.i(TAG, "Config frame generated. Offset: " + info.offset + ". Size: " + info.size);
+                configBuffer = ByteBuffer.allocateDirect(info.size);
+                configBuffer.put(outputBuffer);
+            } else {
+                //判断是否是关键帧
+                final boolean isKeyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+                //这个buffer必须是一个新的对象
+                final ByteBuffer frameBuffer = outputBuffer.slice();
+                //H.264关键帧前面带上SPS/PPS，作为单独的数据段，不拷贝帧数据
+                final ByteBuffer[] segments;
+                if (isKeyFrame && codecType == VideoCodecType.H264 && configBuffer != null) {
+                    ByteBuffer config = configBuffer.duplicate();
+                    config.rewind();
+                    segments = new ByteBuffer[]{config, frameBuffer};
+                } else {
+                    segments = new ByteBuffer[]{frameBuffer};
+                }
+
+                bitrateAdjuster.reportEncodedFrame(info.size, info.presentationTimeUs);
+                if (adjustedBitrate != bitrateAdjuster.getAdjustedBitrateBps()) {
+                    updateBitrate();
+                }
+
+                final EncodedImage.FrameType frameType = isKeyFrame
+                        ? EncodedImage.FrameType.VideoFrameKey
+                        : EncodedImage.FrameType.VideoFrameDelta;
+                EncodedImage.Builder builder = outputBuilders.poll();
+                //没有对应的builder时也要归还输出buffer，否则编码器会停止输出
+                if (builder != null && encoderCallback != null) {
+                    EncodedImage image = builder.setSegments(segments)
+                            .setBufferInfo(info)
+                            .setFrameType(frameType)
+                            .createEncodedImage();
+                    try {
+                        encoderCallback.onEncodedFrame(image);
+                    } finally {
+                        //回调中retain的消费者已经拷贝了数据，输出buffer可以还给编码器
+                        image.release();
+                    }
+                }
+            }
+        } finally {
+            //回调抛出异常也要归还，否则编码器会停止输出
+            codec.releaseOutputBuffer(index, info.presentationTimeUs);
+        }
+    }
+
+    private void releaseCodecOnOutputThread(MediaCodecWrapper releasingCodec) {
         outputThreadChecker.checkIsOnValidThread();
         ELog.d(TAG, "Releasing MediaCodec on output thread");
         try {
-            codec.stop();
+            releasingCodec.stop();
         } catch (Exception e) {
             ELog.e(TAG, "Media encoder stop failed:" + e.getLocalizedMessage());
         }
         try {
-            codec.release();
+            releasingCodec.release();
         } catch (Exception e) {
             ELog.e(TAG, "Media encoder deInit failed:" + e.getLocalizedMessage());
             shutdownException = e;
         }
-        configBuffer = null;
+        //超时后迟到的释放不能清掉新codec的参数集
+        if (codec == null || codec == releasingCodec) {
+            configBuffer = null;
+        }
         ELog.d(TAG, "Release on output thread done");
-        if (encoderCallback != null) {
+        if (encoderCallback != null && !restarting) {
             encoderCallback.onVideoEncoderStop();
         }
     }
 
-//    private VideoCodecStatus updateBitrate() {
-//        outputThreadChecker.checkIsOnValidThread();
-//        adjustedBitrate = bitrateAdjuster.getAdjustedBitrateBps();
-//        try {
-//            Bundle params = new Bundle();
-//            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, adjustedBitrate);
-//            codec.setParameters(params);
-//            return VideoCodecStatus.OK;
-//        } catch (IllegalStateException e) {
-//            ELog.e(TAG, "updateBitrate failed:" + e.getLocalizedMessage());
-//            return VideoCodecStatus.ERROR;
-//        }
-//    }
+    /**
+     * 把码率纠正算法调整后的码率设置给正在运行的编码器，限制修改的频率
+     */
+    private VideoCodecStatus updateBitrate() {
+        outputThreadChecker.checkIsOnValidThread();
+        long now = System.nanoTime();
+        if (now - lastBitrateUpdateNs < MIN_BITRATE_UPDATE_INTERVAL_NS) {
+            return VideoCodecStatus.OK;
+        }
+        lastBitrateUpdateNs = now;
+        adjustedBitrate = bitrateAdjuster.getAdjustedBitrateBps();
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, adjustedBitrate);
+            codec.setParameters(params);
+            ELog.i(TAG, "update bitrate:" + adjustedBitrate);
+            return VideoCodecStatus.OK;
+        } catch (IllegalStateException e) {
+            ELog.e(TAG, "updateBitrate failed:" + e.getLocalizedMessage());
+            return VideoCodecStatus.ERROR;
+        }
+    }
+
+    /**
+     * 异步模式下把codec的释放投递到回调线程，和还没执行的输出回调串行，等待释放完成
+     */
+    private VideoCodecStatus releaseCodecOnCallbackThread() {
+        VideoCodecStatus returnValue = VideoCodecStatus.OK;
+        //running为false说明codec没有启动成功，和轮询模式一样不需要释放
+        if (running) {
+            running = false;
+            //超时后codec字段会被置空或换成新的codec，投递的任务只释放这一个
+            final MediaCodecWrapper releasingCodec = codec;
+            final CountDownLatch released = new CountDownLatch(1);
+            callbackHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    releaseCodecOnOutputThread(releasingCodec);
+                    released.countDown();
+                }
+            });
+            if (!ThreadUtils.awaitUninterruptibly(released, MEDIA_CODEC_RELEASE_TIMEOUT_MS)) {
+                ELog.e(TAG, "Media encoder deInit timeout");
+                returnValue = VideoCodecStatus.TIMEOUT;
+            } else if (shutdownException != null) {
+                ELog.e(TAG, "Media encoder deInit exception:" + shutdownException.getLocalizedMessage());
+                returnValue = VideoCodecStatus.ERROR;
+            }
+        }
+        MediaCodecCallbackThread.release();
+        return returnValue;
+    }
 
     @Override
     public VideoCodecStatus deInit() {
         encodeThreadChecker.checkIsOnValidThread();
         final VideoCodecStatus returnValue;
-        if (outputThread == null) {
+        if (callbackHandler != null) {
+            returnValue = releaseCodecOnCallbackThread();
+        } else if (outputThread == null) {
             returnValue = VideoCodecStatus.OK;
         } else {
             // The outputThread actually stops and releases the codec once running is false.
@@ -456,6 +688,7 @@ class HwVideoEncoder implements VideoEncoder {
         outputBuilders.clear();
         codec = null;
         outputThread = null;
+        callbackHandler = null;
         // Allow changing thread after deInit.
         encodeThreadChecker.detachThread();
 
@@ -10,7 +10,7 @@ import com.gpufast.recorder.hardware.MediaCodecUtils;
 import com.gpufast.recorder.hardware.MediaCodecWrapperFactoryImpl;
 import com.gpufast.recorder.video.VideoEncoder;
 import com.gpufast.recorder.video.VideoEncoderFactory;
-import com.gpufast.recorder.video.btadjuster.FrameRateBitrateAdjuster;
+import com.gpufast.recorder.video.btadjuster.DynamicBitrateAdjuster;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -74,8 +74,8 @@ public class HwVideoEncoderFactory implements VideoEncoderFactory {
                 MediaCodecUtils.TEXTURE_COLOR_FORMATS, info.getCapabilitiesForType(mime));
 
         return new HwVideoEncoder(new MediaCodecWrapperFactoryImpl(), codecName, type,
-                surfaceColorFormat, inputCodecInfo.params, getKeyFrameIntervalSec(type),
-                new FrameRateBitrateAdjuster(),
+                surfaceColorFormat, inputCodecInfo.params, getKeyFrameIntervalSec(type, inputCodecInfo),
+                new DynamicBitrateAdjuster(),
                 sharedContext);
     }
 
@@ -83,9 +83,18 @@ public class HwVideoEncoderFactory implements VideoEncoderFactory {
      * 获取编码器的关键帧间隔
      *
      * @param type type
+     * @param codecInfo 参数中有{@link VideoCodecInfo#KEY_FRAME_INTERVAL}时优先使用
      * @return KeyFrameIntervalSec 每个多少每秒一个关键帧
      */
-    private int getKeyFrameIntervalSec(VideoCodecType type) {
+    private int getKeyFrameIntervalSec(VideoCodecType type, VideoCodecInfo codecInfo) {
+        String interval = codecInfo.params.get(VideoCodecInfo.KEY_FRAME_INTERVAL);
+        if (interval != null) {
+            try {
+                return Math.max(1, Integer.parseInt(interval));
+            } catch (NumberFormatException e) {
+                ELog.w(TAG, "invalid key frame interval:" + interval);
+            }
+        }
         switch (type) {
             case H264:
                 return 20;
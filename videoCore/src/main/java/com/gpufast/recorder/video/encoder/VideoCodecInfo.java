@@ -11,6 +11,8 @@ public class VideoCodecInfo {
     public static final String VALUE_BASE_LINE = "baseline";
     public static final String VALUE_main = "main";
     public static final String VALUE_height = "height";
+    //关键帧间隔(秒)，不设置时使用编码器工厂的默认值
+    public static final String KEY_FRAME_INTERVAL = "key-frame-interval";
 
     public enum Profile {
         BASE_LINE, MAIN, HHEIGHT
@@ -0,0 +1,42 @@
+package com.gpufast.recorder.audio;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.fail;
+
+public class EncodedAudioTest {
+
+    @Test
+    public void retainAfterReleaseThrows() {
+        //数据属于编码器，release后输出buffer已经还给编码器
+        EncodedAudio frame = codecFrame();
+        frame.release();
+        assertRetainThrows(frame);
+
+        EncodedAudio retained = codecFrame().retain();
+        retained.release();
+        assertRetainThrows(retained);
+    }
+
+    private static void assertRetainThrows(EncodedAudio frame) {
+        try {
+            frame.retain();
+            fail("retain after release");
+        } catch (IllegalStateException expected) {
+            //释放后不能再retain
+        }
+    }
+
+    private static EncodedAudio codecFrame() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.size = 4;
+        return new EncodedAudio.Builder()
+                .setBuffer(ByteBuffer.wrap(new byte[]{0x21, 0x10, 0x04, 0x60}))
+                .setBufferInfo(info)
+                .createEncodedAudio();
+    }
+}
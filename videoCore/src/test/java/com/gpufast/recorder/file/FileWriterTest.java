@@ -0,0 +1,81 @@
+package com.gpufast.recorder.file;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FileWriterTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("writer", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void writesEverythingBeforeStop() throws InterruptedException {
+        FileWriter writer = new FileWriter.Builder(file.getPath()).setRingCapacity(64 * 1024).build();
+        writer.startWrite();
+        ByteBuffer data = ByteBuffer.allocate(1000);
+        for (int i = 0; i < 1000; i++) {
+            data.clear();
+            assertTrue(writer.writeToFile(data));
+        }
+        writer.stopWrite();
+        writer.join();
+
+        assertEquals(1000 * 1000, file.length());
+        assertEquals(0, writer.getDroppedBytes());
+    }
+
+    @Test
+    public void acceptedDataIsWrittenWhenStopRacesWithProducers() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            final FileWriter writer = new FileWriter.Builder(file.getPath()).setRingCapacity(256 * 1024).build();
+            writer.startWrite();
+            final AtomicLong accepted = new AtomicLong();
+            final CountDownLatch ready = new CountDownLatch(4);
+            Thread[] producers = new Thread[4];
+            for (int i = 0; i < producers.length; i++) {
+                producers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ByteBuffer data = ByteBuffer.allocate(100);
+                        ready.countDown();
+                        for (int j = 0; j < 2000; j++) {
+                            data.clear();
+                            if (writer.offer(data)) {
+                                accepted.addAndGet(100);
+                            }
+                        }
+                    }
+                });
+                producers[i].start();
+            }
+            ready.await();
+            //生产者还在写入时停止，返回true的数据都必须写进文件
+            writer.stopWrite();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            writer.join();
+
+            assertEquals("round " + round, accepted.get(), file.length());
+        }
+    }
+}
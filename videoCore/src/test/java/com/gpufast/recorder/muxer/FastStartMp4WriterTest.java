@@ -0,0 +1,121 @@
+package com.gpufast.recorder.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FastStartMp4WriterTest {
+
+    private static final long FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 1024L * 1000000 / 44100;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("faststart", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void lateAudioKeepsItsOffsetThroughEditList() throws IOException {
+        write(0, 80000);
+
+        Mp4Verifier.Report report = Mp4Verifier.verify(file.getPath());
+        assertTrue(report.toString(), report.isValid());
+        assertEquals(80000, report.getAvOffsetUs(), 1000);
+    }
+
+    @Test
+    public void lateVideoKeepsItsOffsetThroughEditList() throws IOException {
+        write(50000, 0);
+
+        Mp4Verifier.Report report = Mp4Verifier.verify(file.getPath());
+        assertTrue(report.toString(), report.isValid());
+        assertEquals(-50000, report.getAvOffsetUs(), 1000);
+    }
+
+    @Test
+    public void mdhdDurationEqualsSttsSum() throws IOException {
+        write(0, 80000);
+
+        ByteBuffer moov = readMoov();
+        Mp4Reader reader = Mp4Reader.open(file.getPath());
+        try {
+            int trak = Mp4Reader.findBox(moov, 8, moov.limit(), Mp4Boxes.TRAK);
+            for (Mp4Reader.Track track : new Mp4Reader.Track[]{reader.videoTrack(), reader.audioTrack()}) {
+                int mdia = Mp4Reader.findBox(moov, trak + 8, trak + moov.getInt(trak), Mp4Boxes.MDIA);
+                int mdhd = Mp4Reader.findBox(moov, mdia + 8, mdia + moov.getInt(mdia), Mp4Boxes.MDHD);
+                //version 1: creation(8) modification(8) timescale(4) duration(8)
+                assertEquals(track.durationTicks(), moov.getLong(mdhd + 12 + 20));
+                trak += moov.getInt(trak);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void write(long videoStartUs, long audioStartUs) throws IOException {
+        write(file, videoStartUs, audioStartUs);
+    }
+
+    /**
+     * 写入3秒音视频，两个轨道分别从videoStartUs和audioStartUs开始
+     */
+    static void write(File file, long videoStartUs, long audioStartUs) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FileChannel channel = out.getChannel();
+        FastStartMp4Writer writer = new FastStartMp4Writer(channel, true,
+                FastStartMp4Writer.estimateMoovBytes(3000, 30, 44100, true));
+        writer.setVideoFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+        writer.setAudioFormat(TrackFormat.createAudio(null, 44100, 1));
+        long videoUs = videoStartUs;
+        long audioUs = audioStartUs;
+        int frame = 0;
+        while (videoUs < 3000000 || audioUs < 3000000) {
+            if (audioUs <= videoUs) {
+                writer.writeAudioSample(ByteBuffer.wrap(new byte[200]), audioUs);
+                audioUs += AUDIO_FRAME_US;
+            } else {
+                boolean key = frame % 30 == 0;
+                byte[] data = new byte[1000];
+                data[3] = 1;
+                data[4] = (byte) (key ? 0x65 : 0x41);
+                writer.writeVideoSample(ByteBuffer.wrap(data), videoUs, key);
+                videoUs += FRAME_US;
+                frame++;
+            }
+        }
+        writer.finish();
+        out.close();
+    }
+
+    private ByteBuffer readMoov() throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            ByteBuffer data = ByteBuffer.wrap(bytes);
+            int moov = Mp4Reader.findBox(data, 0, bytes.length, Mp4Boxes.MOOV);
+            data.position(moov);
+            data.limit(moov + data.getInt(moov));
+            return data.slice();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+
+import com.gpufast.recorder.video.EncodedImage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlvMuxerTest {
+
+    private static final int TAG_TYPE_AUDIO = 8;
+    private static final int TAG_TYPE_VIDEO = 9;
+    private static final int TAG_TYPE_SCRIPT = 18;
+
+    @Test
+    public void metadataPrecedesSequenceHeadersWhenAudioFormatArrivesFirst() throws IOException {
+        File file = File.createTempFile("flv", ".flv");
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            FlvMuxer muxer = new FlvMuxer(out.getChannel(), false);
+            muxer.setAudioTrackFormat(TrackFormat.createAudio(null, 44100, 2));
+            muxer.setVideoTrackFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                    new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+            out.close();
+
+            List<Integer> types = readTagTypes(file);
+            assertEquals(3, types.size());
+            assertEquals(TAG_TYPE_SCRIPT, (int) types.get(0));
+            assertEquals(TAG_TYPE_VIDEO, (int) types.get(1));
+            assertEquals(TAG_TYPE_AUDIO, (int) types.get(2));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void headersWaitForBothFormats() throws IOException {
+        File file = File.createTempFile("flv", ".flv");
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            FlvMuxer muxer = new FlvMuxer(out.getChannel(), false);
+            muxer.setVideoTrackFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                    new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+            out.close();
+
+            assertEquals(0, readTagTypes(file).size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void inOrderVideoStartsOnKeyFrameWithoutCompositionTime() throws IOException {
+        File file = File.createTempFile("flv", ".flv");
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            FlvMuxer muxer = createVideoMuxer(out);
+            //编码已经开始，头部之后先到达的是P帧
+            muxer.onEncodedFrame(videoFrame(960_000, false));
+            //本库编码器输出的 I P P P，帧间隔40ms
+            muxer.onEncodedFrame(videoFrame(1_000_000, true));
+            muxer.onEncodedFrame(videoFrame(1_040_000, false));
+            muxer.onEncodedFrame(videoFrame(1_080_000, false));
+            muxer.onEncodedFrame(videoFrame(1_120_000, false));
+            out.close();
+
+            List<int[]> tags = readVideoTags(file);
+            //sequence header + 4帧
+            assertEquals(5, tags.size());
+            assertEquals(0x17, tags.get(1)[0]);
+            for (int i = 0; i < 4; i++) {
+                int[] tag = tags.get(i + 1);
+                assertEquals("timestamp of frame " + i, i * 40, tag[1]);
+                assertEquals("composition time of frame " + i, 0, tag[2]);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reorderedVideoKeepsDecodeTimeIncreasing() throws IOException {
+        File file = File.createTempFile("flv", ".flv");
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            FlvMuxer muxer = createVideoMuxer(out);
+            //解码顺序 I0 P3 B1 B2 P6 B4 B5 ...，帧间隔40ms
+            int[] order = {0, 3, 1, 2, 6, 4, 5, 9, 7, 8, 12, 10, 11};
+            for (int i = 0; i < order.length; i++) {
+                muxer.onEncodedFrame(videoFrame(1_000_000 + order[i] * 40_000L, i == 0));
+            }
+            out.close();
+
+            List<int[]> tags = readVideoTags(file);
+            assertEquals(order.length + 1, tags.size());
+            int lastTimestamp = -1;
+            for (int i = 0; i < order.length; i++) {
+                int[] tag = tags.get(i + 1);
+                assertTrue("timestamp of frame " + i, tag[1] > lastTimestamp);
+                lastTimestamp = tag[1];
+                assertEquals("pts of frame " + i, order[i] * 40, tag[1] + tag[2]);
+            }
+            //重排延迟稳定之后显示时间不早于解码时间
+            for (int i = 6; i < order.length; i++) {
+                assertTrue(tags.get(i + 1)[2] >= 0);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static FlvMuxer createVideoMuxer(RandomAccessFile out) {
+        FlvMuxer muxer = new FlvMuxer(out.getChannel(), true);
+        muxer.setVideoTrackFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+        return muxer;
+    }
+
+    private static EncodedImage videoFrame(long ptsUs, boolean keyFrame) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.presentationTimeUs = ptsUs;
+        info.size = 6;
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, (byte) (keyFrame ? 0x65 : 0x41), 0x10});
+        return EncodedImage.builder()
+                .setBuffer(data)
+                .setBufferInfo(info)
+                .setFrameType(keyFrame ? EncodedImage.FrameType.VideoFrameKey
+                        : EncodedImage.FrameType.VideoFrameDelta)
+                .createEncodedImage();
+    }
+
+    /**
+     * @return 每个视频tag的{FrameType|CodecID, 时间戳, CompositionTime}
+     */
+    private static List<int[]> readVideoTags(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        in.readFully(bytes);
+        in.close();
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        data.position(13);
+        List<int[]> tags = new ArrayList<>();
+        while (data.remaining() >= 15) {
+            int start = data.position();
+            int type = data.get() & 0xff;
+            int dataSize = (data.get() & 0xff) << 16 | (data.get() & 0xff) << 8 | (data.get() & 0xff);
+            int timestamp = (data.get() & 0xff) << 16 | (data.get() & 0xff) << 8 | (data.get() & 0xff)
+                    | (data.get() & 0xff) << 24;
+            if (type == TAG_TYPE_VIDEO) {
+                int flags = data.get(start + 11) & 0xff;
+                int cts = data.get(start + 13) << 16 | (data.get(start + 14) & 0xff) << 8
+                        | (data.get(start + 15) & 0xff);
+                tags.add(new int[]{flags, timestamp, cts});
+            }
+            data.position(start + 11 + dataSize + 4);
+        }
+        return tags;
+    }
+
+    private static List<Integer> readTagTypes(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        in.readFully(bytes);
+        in.close();
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        //FLV header + PreviousTagSize0
+        data.position(13);
+        List<Integer> types = new ArrayList<>();
+        while (data.remaining() >= 15) {
+            int type = data.get() & 0xff;
+            int dataSize = (data.get() & 0xff) << 16 | (data.get() & 0xff) << 8 | (data.get() & 0xff);
+            types.add(type);
+            data.position(data.position() + 7 + dataSize + 4);
+        }
+        return types;
+    }
+}
@@ -0,0 +1,307 @@
+package com.gpufast.recorder.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4WriterTest {
+
+    private static final long FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 1024L * 1000000 / 44100;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        files.clear();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void fragmentsStartOnKeyFrames() throws IOException {
+        File file = newFile();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FragmentedMp4Writer writer = newWriter(out, 1000000);
+        //1秒一个关键帧
+        feed(writer, 0, 180, 30);
+        writer.finish();
+        out.close();
+
+        List<Fragment> fragments = parse(file);
+        assertTrue("fragments " + fragments.size(), fragments.size() >= 5);
+        for (Fragment fragment : fragments) {
+            Run video = fragment.runs.get(1);
+            assertTrue("fragment " + fragment.sequence + " starts with non-sync sample",
+                    (video.firstFlags & SAMPLE_FLAGS_SYNC) != 0);
+        }
+        assertContinuous(fragments);
+        assertEquals(180, sampleCount(fragments, 1));
+    }
+
+    @Test
+    public void longGopFallsBackToUnalignedFragments() throws IOException {
+        File file = newFile();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FragmentedMp4Writer writer = newWriter(out, 1000000);
+        //5秒一个关键帧，分片不能无限等待关键帧
+        feed(writer, 0, 300, 150);
+        writer.finish();
+        out.close();
+
+        List<Fragment> fragments = parse(file);
+        assertTrue("fragments " + fragments.size(), fragments.size() >= 4);
+        assertContinuous(fragments);
+        assertEquals(300, sampleCount(fragments, 1));
+    }
+
+    @Test
+    public void switchChannelKeepsTimelineContinuous() throws IOException {
+        File first = newFile();
+        File second = newFile();
+        RandomAccessFile firstOut = new RandomAccessFile(first, "rw");
+        RandomAccessFile secondOut = new RandomAccessFile(second, "rw");
+        FragmentedMp4Writer writer = newWriter(firstOut, 1000000);
+        feed(writer, 0, 60, 60);
+        //和HlsMuxer一样在关键帧前切换输出
+        writer.switchChannel(secondOut.getChannel(), 60 * FRAME_US);
+        feed(writer, 60, 60, 60);
+        writer.finish();
+        firstOut.close();
+        secondOut.close();
+
+        List<Fragment> fragments = parse(first);
+        Run lastOfFirst = fragments.get(fragments.size() - 1).runs.get(1);
+        //第一个文件的最后一帧结束在切换时的关键帧上，而不是使用估计的时长
+        assertEquals(60 * FRAME_US * 90000 / 1000000, lastOfFirst.baseTime + lastOfFirst.totalDuration);
+        List<Fragment> tail = parse(second);
+        assertTrue((tail.get(0).runs.get(1).firstFlags & SAMPLE_FLAGS_SYNC) != 0);
+        fragments.addAll(tail);
+        assertContinuous(fragments);
+    }
+
+    @Test
+    public void videoStartsOnFirstKeyFrame() throws IOException {
+        File file = newFile();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FragmentedMp4Writer writer = newWriter(out, 1000000);
+        //从GOP中间开始，第一个关键帧是第30帧
+        feed(writer, 5, 85, 30);
+        writer.finish();
+        out.close();
+
+        List<Fragment> fragments = parse(file);
+        //关键帧之前的音频照常写出，第一个带视频的分片从关键帧开始
+        Run firstVideo = null;
+        for (int i = 0; firstVideo == null; i++) {
+            firstVideo = fragments.get(i).runs.get(1);
+        }
+        assertTrue((firstVideo.firstFlags & SAMPLE_FLAGS_SYNC) != 0);
+        assertEquals(60, sampleCount(fragments, 1));
+    }
+
+    @Test
+    public void stagingBeforeFormatsIsBounded() throws IOException {
+        File file = newFile();
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(out.getChannel(), false, 1000000);
+        //格式未就绪，每帧100KB，暂存超过上限后丢弃，之后从下一个关键帧(第90帧)开始
+        for (int i = 0; i < 120; i++) {
+            boolean key = i % 30 == 0;
+            byte[] frame = new byte[100000];
+            frame[3] = 1;
+            frame[4] = (byte) (key ? 0x65 : 0x41);
+            writer.writeVideoSample(ByteBuffer.wrap(frame), i * FRAME_US, key);
+        }
+        writer.setVideoFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+        writer.finish();
+        out.close();
+
+        List<Fragment> fragments = parse(file);
+        Run first = fragments.get(0).runs.get(1);
+        assertTrue((first.firstFlags & SAMPLE_FLAGS_SYNC) != 0);
+        //时间零点是保留下来的第一帧
+        assertEquals(0, first.baseTime);
+        assertEquals(30, sampleCount(fragments, 1));
+    }
+
+    private File newFile() throws IOException {
+        File file = File.createTempFile("fmp4", ".mp4");
+        files.add(file);
+        return file;
+    }
+
+    private static FragmentedMp4Writer newWriter(RandomAccessFile out, long fragmentDurationUs) {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(out.getChannel(), true, fragmentDurationUs);
+        writer.setVideoFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+        writer.setAudioFormat(TrackFormat.createAudio(null, 44100, 1));
+        return writer;
+    }
+
+    /**
+     * 按时间顺序交错写入视频和音频，视频帧号从firstFrame开始，每gop帧一个关键帧
+     */
+    private static void feed(FragmentedMp4Writer writer, int firstFrame, int frames, int gop)
+            throws IOException {
+        long audioUs = (firstFrame * FRAME_US + AUDIO_FRAME_US - 1) / AUDIO_FRAME_US * AUDIO_FRAME_US;
+        for (int i = firstFrame; i < firstFrame + frames; i++) {
+            long videoUs = i * FRAME_US;
+            //这一帧时长内的音频先于视频到达
+            while (audioUs < videoUs + FRAME_US) {
+                writer.writeAudioSample(ByteBuffer.wrap(new byte[200]), audioUs);
+                audioUs += AUDIO_FRAME_US;
+            }
+            boolean key = i % gop == 0;
+            byte[] frame = new byte[1000];
+            frame[3] = 1;
+            frame[4] = (byte) (key ? 0x65 : 0x41);
+            writer.writeVideoSample(ByteBuffer.wrap(frame), videoUs, key);
+        }
+    }
+
+    /**
+     * 每个轨道下一个分片的tfdt等于上一个分片的tfdt加上trun中的时长之和
+     */
+    private static void assertContinuous(List<Fragment> fragments) {
+        long[] expected = {-1, -1, -1};
+        for (Fragment fragment : fragments) {
+            for (int trackId = 1; trackId <= 2; trackId++) {
+                Run run = fragment.runs.get(trackId);
+                if (run == null) {
+                    continue;
+                }
+                if (expected[trackId] >= 0) {
+                    assertEquals("track " + trackId + " fragment " + fragment.sequence,
+                            expected[trackId], run.baseTime);
+                }
+                expected[trackId] = run.baseTime + run.totalDuration;
+            }
+        }
+    }
+
+    private static int sampleCount(List<Fragment> fragments, int trackId) {
+        int count = 0;
+        for (Fragment fragment : fragments) {
+            Run run = fragment.runs.get(trackId);
+            count += run != null ? run.sampleCount : 0;
+        }
+        return count;
+    }
+
+    private static final class Fragment {
+        int sequence;
+        //下标为trackId
+        final List<Run> runs = new ArrayList<>();
+
+        Fragment() {
+            runs.add(null);
+            runs.add(null);
+            runs.add(null);
+        }
+    }
+
+    private static final class Run {
+        long baseTime;
+        int sampleCount;
+        long totalDuration;
+        int firstFlags;
+    }
+
+    private static List<Fragment> parse(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        in.readFully(bytes);
+        in.close();
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        List<Fragment> fragments = new ArrayList<>();
+        while (data.remaining() >= 8) {
+            int start = data.position();
+            int size = data.getInt();
+            int type = data.getInt();
+            if (type == Mp4Boxes.MOOF) {
+                fragments.add(parseMoof(data, start + size));
+            }
+            data.position(start + size);
+        }
+        return fragments;
+    }
+
+    private static Fragment parseMoof(ByteBuffer data, int end) {
+        Fragment fragment = new Fragment();
+        while (data.position() < end) {
+            int start = data.position();
+            int size = data.getInt();
+            int type = data.getInt();
+            if (type == Mp4Boxes.MFHD) {
+                data.getInt();
+                fragment.sequence = data.getInt();
+            } else if (type == Mp4Boxes.TRAF) {
+                parseTraf(data, start + size, fragment);
+            }
+            data.position(start + size);
+        }
+        return fragment;
+    }
+
+    private static void parseTraf(ByteBuffer data, int end, Fragment fragment) {
+        int trackId = 0;
+        Run run = new Run();
+        while (data.position() < end) {
+            int start = data.position();
+            int size = data.getInt();
+            int type = data.getInt();
+            int versionFlags = data.getInt();
+            if (type == Mp4Boxes.TFHD) {
+                trackId = data.getInt();
+            } else if (type == Mp4Boxes.TFDT) {
+                run.baseTime = (versionFlags >>> 24) == 1 ? data.getLong() : data.getInt() & 0xffffffffL;
+            } else if (type == Mp4Boxes.TRUN) {
+                int flags = versionFlags & 0xffffff;
+                run.sampleCount = data.getInt();
+                if ((flags & 0x000001) != 0) {
+                    data.getInt();
+                }
+                if ((flags & 0x000004) != 0) {
+                    run.firstFlags = data.getInt();
+                }
+                for (int i = 0; i < run.sampleCount; i++) {
+                    if ((flags & 0x000100) != 0) {
+                        run.totalDuration += data.getInt() & 0xffffffffL;
+                    }
+                    if ((flags & 0x000200) != 0) {
+                        data.getInt();
+                    }
+                    if ((flags & 0x000400) != 0) {
+                        int sampleFlags = data.getInt();
+                        if (i == 0) {
+                            run.firstFlags = sampleFlags;
+                        }
+                    }
+                    if ((flags & 0x000800) != 0) {
+                        data.getInt();
+                    }
+                }
+            }
+            data.position(start + size);
+        }
+        fragment.runs.set(trackId, run);
+    }
+}
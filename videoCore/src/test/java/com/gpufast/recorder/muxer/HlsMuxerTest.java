@@ -0,0 +1,96 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+
+import com.gpufast.recorder.RecordParams;
+import com.gpufast.recorder.video.EncodedImage;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HlsMuxerTest {
+
+    private static final int FRAME_RATE = 30;
+
+    @Test
+    public void targetDurationFollowsSegmentDuration() throws IOException {
+        File dir = File.createTempFile("hls", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        File playlist = new File(dir, "live.m3u8");
+        try {
+            RecordParams params = new RecordParams.Builder()
+                    .setMuxerType(MuxerType.HLS_TS)
+                    .setSavePath(playlist.getPath())
+                    .setMuteMic(true)
+                    .build();
+            //编码器的关键帧间隔跟随分段时长，而不是默认的20秒
+            int keyFrameIntervalSec = params.getKeyFrameIntervalSec();
+            assertEquals(params.getHlsSegmentDurationMs() / 1000, keyFrameIntervalSec);
+
+            HlsMuxer muxer = (HlsMuxer) MediaMuxerFactory.createMediaMuxer(params, MuxerType.HLS_TS);
+            muxer.setVideoTrackFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                    new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+            //按编码器的关键帧间隔录制12秒
+            for (int i = 0; i < 12 * FRAME_RATE; i++) {
+                muxer.onEncodedFrame(videoFrame(i * 1000000L / FRAME_RATE,
+                        i % (keyFrameIntervalSec * FRAME_RATE) == 0));
+            }
+            muxer.onVideoEncoderStop();
+
+            List<String> lines = readLines(playlist);
+            int targetDurationSec = params.getHlsSegmentDurationMs() / 1000;
+            assertTrue(lines.contains("#EXT-X-TARGETDURATION:" + targetDurationSec));
+            int segmentCount = 0;
+            for (String line : lines) {
+                if (line.startsWith("#EXTINF:")) {
+                    double durationSec = Double.parseDouble(line.substring(8, line.indexOf(',')));
+                    assertTrue(Math.round(durationSec) <= targetDurationSec);
+                    segmentCount++;
+                }
+            }
+            assertEquals(3, segmentCount);
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    private static EncodedImage videoFrame(long ptsUs, boolean keyFrame) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.presentationTimeUs = ptsUs;
+        info.size = 6;
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, (byte) (keyFrame ? 0x65 : 0x41), 0x10});
+        return EncodedImage.builder()
+                .setBuffer(data)
+                .setBufferInfo(info)
+                .setFrameType(keyFrame ? EncodedImage.FrameType.VideoFrameKey
+                        : EncodedImage.FrameType.VideoFrameDelta)
+                .createEncodedImage();
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        in.readFully(bytes);
+        in.close();
+        List<String> lines = new ArrayList<>();
+        for (String line : new String(bytes, "UTF-8").split("\n")) {
+            lines.add(line);
+        }
+        return lines;
+    }
+}
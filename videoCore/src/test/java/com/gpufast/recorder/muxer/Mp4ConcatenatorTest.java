@@ -0,0 +1,64 @@
+package com.gpufast.recorder.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4ConcatenatorTest {
+
+    private final List<File> files = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        files.clear();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void keepsAudioOffsetFromEditList() throws IOException {
+        //音频晚80ms开始，偏移只记录在编辑列表中，stts都从0开始
+        File first = newFile();
+        File second = newFile();
+        FastStartMp4WriterTest.write(first, 0, 80000);
+        FastStartMp4WriterTest.write(second, 0, 80000);
+        File output = newFile();
+
+        Mp4Concatenator.concat(Arrays.asList(first.getPath(), second.getPath()), output.getPath(), null);
+
+        Mp4Verifier.Report report = Mp4Verifier.verify(output.getPath());
+        assertTrue(report.toString(), report.isValid());
+        assertEquals(80000, report.getAvOffsetUs(), 1000);
+
+        Mp4Reader reader = Mp4Reader.open(output.getPath());
+        Mp4Reader.Track audio = reader.audioTrack();
+        Mp4Reader.Track video = reader.videoTrack();
+        //第二段的音频同样晚于视频80ms开始
+        int secondAudio = audio.sampleCount() / 2;
+        int secondVideo = video.sampleCount() / 2;
+        long gapUs = audio.movieTimeUs(audio.decodeTime(secondAudio))
+                - video.movieTimeUs(video.decodeTime(secondVideo));
+        reader.close();
+        assertEquals(80000, gapUs, 1000);
+    }
+
+    private File newFile() throws IOException {
+        File file = File.createTempFile("concat", ".mp4");
+        files.add(file);
+        return file;
+    }
+}
@@ -0,0 +1,249 @@
+package com.gpufast.recorder.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4ReaderTest {
+
+    //25fps，每帧正好3600个tick
+    private static final long FRAME_US = 40000;
+    private static final long AUDIO_FRAME_US = 1024L * 1000000 / 44100;
+    private static final TrackFormat VIDEO = TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+            new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480);
+    private static final TrackFormat AUDIO = TrackFormat.createAudio(null, 44100, 1);
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("reader", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void stscRunsExpandToSampleOffsets() throws IOException {
+        Mp4SampleTable video = videoTable(9, 3);
+        Mp4SampleTable audio = new Mp4SampleTable(false, AUDIO.timescale());
+        //3个2个sample的chunk，再2个3个sample的chunk，chunk之间隔着其他数据
+        int[] chunks = {2, 2, 2, 3, 3};
+        long[] expected = new long[12];
+        long offset = 100000;
+        int sample = 0;
+        for (int chunk : chunks) {
+            for (int i = 0; i < chunk; i++) {
+                expected[sample] = offset;
+                audio.add(offset, 10 + sample, sample * AUDIO_FRAME_US, true);
+                offset += 10 + sample;
+                sample++;
+            }
+            offset += 1000;
+        }
+        writeFile(video, audio, 0);
+
+        Mp4Reader reader = Mp4Reader.open(file.getPath());
+        try {
+            Mp4Reader.Track track = reader.audioTrack();
+            assertEquals(12, track.sampleCount());
+            for (int i = 0; i < 12; i++) {
+                assertEquals("sample " + i, expected[i], track.offset(i));
+                assertEquals(10 + i, track.size(i));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void co64OffsetsAbove4GB() throws IOException {
+        Mp4SampleTable video = videoTable(6, 3);
+        long delta = 0x100000000L;
+        writeFile(video, null, delta);
+
+        Mp4Reader reader = Mp4Reader.open(file.getPath());
+        try {
+            Mp4Reader.Track track = reader.videoTrack();
+            assertNull(reader.audioTrack());
+            for (int i = 0; i < 6; i++) {
+                assertEquals(delta + i * 1000L, track.offset(i));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void compositionOffsetsGivePresentationTime() throws IOException {
+        Mp4SampleTable video = new Mp4SampleTable(true, VIDEO.timescale());
+        //I P B B：显示顺序 0 3 1 2
+        long[] offsetsUs = {0, 2 * FRAME_US, -FRAME_US, -FRAME_US};
+        for (int i = 0; i < offsetsUs.length; i++) {
+            video.add(i * 1000L, 1000, i * FRAME_US, offsetsUs[i], i == 0);
+        }
+        writeFile(video, null, 0);
+
+        Mp4Reader reader = Mp4Reader.open(file.getPath());
+        try {
+            Mp4Reader.Track track = reader.videoTrack();
+            assertTrue(track.hasCompositionOffsets());
+            long tick = FRAME_US * VIDEO.timescale() / 1000000;
+            assertEquals(0, track.presentationTime(0));
+            assertEquals(3 * tick, track.presentationTime(1));
+            assertEquals(tick, track.presentationTime(2));
+            assertEquals(2 * tick, track.presentationTime(3));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void syncSamplesAndSeek() throws IOException {
+        Mp4SampleTable video = videoTable(10, 4);
+        writeFile(video, null, 0);
+
+        Mp4Reader reader = Mp4Reader.open(file.getPath());
+        try {
+            Mp4Reader.Track track = reader.videoTrack();
+            for (int i = 0; i < 10; i++) {
+                assertEquals("sample " + i, i % 4 == 0, track.isSync(i));
+            }
+            assertEquals(0, track.syncSampleAt(0));
+            assertEquals(0, track.syncSampleAt(3 * FRAME_US));
+            assertEquals(4, track.syncSampleAt(4 * FRAME_US));
+            assertEquals(8, track.syncSampleAt(100 * FRAME_US));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void editListGivesTrackStart() throws IOException {
+        Mp4SampleTable video = videoTable(30, 30);
+        Mp4SampleTable audio = new Mp4SampleTable(false, AUDIO.timescale());
+        for (int i = 0; i < 40; i++) {
+            audio.add(100000 + i * 200L, 200, 80000 + i * AUDIO_FRAME_US, true);
+        }
+        writeFile(video, audio, 0);
+
+        Mp4Reader reader = Mp4Reader.open(file.getPath());
+        try {
+            Mp4Reader.Track track = reader.audioTrack();
+            //stts从0开始，开始位置只记录在编辑列表中
+            assertEquals(0, track.decodeTime(0));
+            assertEquals(80000, track.startUs(), 1000);
+            assertEquals(80000, track.movieTimeUs(track.decodeTime(0)), 1000);
+            assertEquals(0, reader.videoTrack().startUs());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSizeTableThrows() throws IOException {
+        Mp4SampleTable video = new Mp4SampleTable(true, VIDEO.timescale());
+        for (int i = 0; i < 5; i++) {
+            video.add(i * 2000L, 1000 + i, i * FRAME_US, i == 0);
+        }
+        byte[] bytes = writeFile(video, null, 0);
+        //stsz中的sample数比表中的项多
+        int stsz = boxAt(bytes, Mp4Boxes.STSZ);
+        ByteBuffer.wrap(bytes).putInt(stsz + 16, 6);
+        rewrite(bytes);
+
+        Mp4Reader.open(file.getPath()).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void sttsShorterThanSamplesThrows() throws IOException {
+        byte[] bytes = writeFile(videoTable(5, 5), null, 0);
+        //stts只有一个游程，覆盖的sample数改小
+        int stts = boxAt(bytes, Mp4Boxes.STTS);
+        ByteBuffer.wrap(bytes).putInt(stts + 16, 4);
+        rewrite(bytes);
+
+        Mp4Reader.open(file.getPath()).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidChildBoxSizeThrows() throws IOException {
+        byte[] bytes = writeFile(videoTable(5, 5), null, 0);
+        int stbl = boxAt(bytes, Mp4Boxes.STBL);
+        ByteBuffer.wrap(bytes).putInt(stbl + 8, 4);
+        rewrite(bytes);
+
+        Mp4Reader.open(file.getPath()).close();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFileThrows() throws IOException {
+        byte[] bytes = writeFile(videoTable(5, 5), null, 0);
+        //moov超出文件末尾
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(bytes.length - 10);
+        out.close();
+
+        Mp4Reader.open(file.getPath()).close();
+    }
+
+    /**
+     * count个连续存放、大小1000的视频帧，每gop帧一个关键帧
+     */
+    private static Mp4SampleTable videoTable(int count, int gop) {
+        Mp4SampleTable table = new Mp4SampleTable(true, VIDEO.timescale());
+        for (int i = 0; i < count; i++) {
+            table.add(i * 1000L, 1000, i * FRAME_US, i % gop == 0);
+        }
+        return table;
+    }
+
+    /**
+     * 只写ftyp和moov，读取索引不需要mdat
+     */
+    private byte[] writeFile(Mp4SampleTable video, Mp4SampleTable audio, long offsetDelta) throws IOException {
+        Mp4BoxWriter w = new Mp4BoxWriter(4096);
+        Mp4Boxes.writeFtyp(w, false);
+        ByteBuffer ftyp = w.flip();
+        byte[] head = new byte[ftyp.remaining()];
+        ftyp.get(head);
+        ByteBuffer moov = FastStartMp4Writer.buildMoov(w, VIDEO, video, audio != null ? AUDIO : null, audio,
+                offsetDelta);
+        byte[] bytes = new byte[head.length + moov.remaining()];
+        System.arraycopy(head, 0, bytes, 0, head.length);
+        moov.get(bytes, head.length, moov.remaining());
+        rewrite(bytes);
+        return bytes;
+    }
+
+    private void rewrite(byte[] bytes) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(0);
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * @return 第一个type类型box的位置
+     */
+    private static int boxAt(byte[] bytes, int type) {
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        for (int i = 4; i + 4 <= bytes.length; i++) {
+            if (b.getInt(i) == type) {
+                return i - 4;
+            }
+        }
+        throw new AssertionError(Mp4Box.typeName(type) + " not found");
+    }
+}
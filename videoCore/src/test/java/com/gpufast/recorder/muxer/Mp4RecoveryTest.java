@@ -0,0 +1,101 @@
+package com.gpufast.recorder.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4RecoveryTest {
+
+    private static final long FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 1024L * 1000000 / 44100;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("recovery", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void recoversInterruptedRecording() throws IOException {
+        File media = new File(dir, "interrupted.mp4");
+        int frames = recordWithoutFinish(media);
+
+        List<String> pending = Mp4Recovery.findPending(dir.getPath());
+        assertEquals(1, pending.size());
+        assertEquals(media.getPath(), pending.get(0));
+        assertTrue(Mp4Recovery.recover(media.getPath()));
+
+        assertFalse(Mp4Recovery.needsRecovery(media.getPath()));
+        assertTrue(Mp4Recovery.findPending(dir.getPath()).isEmpty());
+        Mp4Verifier.Report report = Mp4Verifier.verify(media.getPath());
+        assertTrue(report.toString(), report.isValid());
+        assertEquals(frames, report.getVideoSamples());
+        assertTrue(report.getAudioSamples() > 0);
+    }
+
+    @Test
+    public void journalWithoutMediaIsIgnored() throws IOException {
+        File journal = new File(SampleJournal.journalPath(new File(dir, "missing.mp4").getPath()));
+        assertTrue(journal.createNewFile());
+
+        assertTrue(Mp4Recovery.findPending(dir.getPath()).isEmpty());
+        assertTrue(Mp4Recovery.findPending(new File(dir, "none").getPath()).isEmpty());
+    }
+
+    /**
+     * 写3秒音视频后不写moov，只关闭日志，相当于录制中进程被杀
+     *
+     * @return 写入的视频帧数
+     */
+    private static int recordWithoutFinish(File media) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(media, "rw");
+        FileSink sink = new FileSink(out.getChannel());
+        FastStartMp4Writer writer = new FastStartMp4Writer(sink, true,
+                FastStartMp4Writer.estimateMoovBytes(3000, 30, 44100, true));
+        //很短的同步周期，后台线程fsync时日志继续写入
+        SampleJournal journal = new SampleJournal(SampleJournal.journalPath(media.getPath()), sink, 1);
+        writer.setJournal(journal);
+        writer.setVideoFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+        writer.setAudioFormat(TrackFormat.createAudio(null, 44100, 1));
+        long audioUs = 0;
+        int frames = 0;
+        for (long videoUs = 0; videoUs < 3000000; videoUs += FRAME_US) {
+            while (audioUs < videoUs + FRAME_US) {
+                writer.writeAudioSample(ByteBuffer.wrap(new byte[200]), audioUs);
+                audioUs += AUDIO_FRAME_US;
+            }
+            byte[] data = new byte[1000];
+            data[3] = 1;
+            data[4] = (byte) (frames % 30 == 0 ? 0x65 : 0x41);
+            writer.writeVideoSample(ByteBuffer.wrap(data), videoUs, frames % 30 == 0);
+            frames++;
+        }
+        journal.close(false);
+        sink.close();
+        return frames;
+    }
+}
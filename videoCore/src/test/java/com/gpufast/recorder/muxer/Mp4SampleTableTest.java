@@ -0,0 +1,170 @@
+package com.gpufast.recorder.muxer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4SampleTableTest {
+
+    private static final long FRAME_US = 33333;
+
+    @Test
+    public void sttsRunsAndDurationMatch() throws IOException {
+        Mp4SampleTable table = new Mp4SampleTable(true, TrackFormat.VIDEO_TIMESCALE);
+        long offset = 0;
+        for (int i = 0; i < 10; i++) {
+            table.add(offset, 100, i * 40000L, i == 0);
+            offset += 100;
+        }
+        //中间一帧间隔变长
+        for (int i = 0; i < 5; i++) {
+            table.add(offset, 100, 500000L + i * 40000L, false);
+            offset += 100;
+        }
+        ByteBuffer tables = write(table, 0);
+
+        int stts = Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.STTS);
+        assertEquals(3, tables.getInt(stts + 12));
+        assertEquals(9, tables.getInt(stts + 16));
+        assertEquals(3600, tables.getInt(stts + 20));
+        assertEquals(1, tables.getInt(stts + 24));
+        assertEquals(140000L * 90 / 1000, tables.getInt(stts + 28));
+        //最后一个sample沿用前一个sample的时长，合并进最后的游程
+        assertEquals(5, tables.getInt(stts + 32));
+        assertEquals(3600, tables.getInt(stts + 36));
+        assertEquals(sttsSum(tables, stts), table.mediaDuration());
+
+        //大小都相同时stsz只记一个值
+        int stsz = Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.STSZ);
+        assertEquals(100, tables.getInt(stsz + 12));
+        assertEquals(15, tables.getInt(stsz + 16));
+    }
+
+    @Test
+    public void mediaDurationStartsAtFirstSample() throws IOException {
+        Mp4SampleTable table = new Mp4SampleTable(false, 44100);
+        //音频比时间零点晚80ms开始
+        long firstUs = 80000;
+        long frameUs = 1024L * 1000000 / 44100;
+        for (int i = 0; i < 50; i++) {
+            table.add(i * 200L, 200, firstUs + i * frameUs, true);
+        }
+        ByteBuffer tables = write(table, 0);
+
+        int stts = Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.STTS);
+        assertEquals(sttsSum(tables, stts), table.mediaDuration());
+        assertEquals(80, table.emptyEditMs());
+        assertEquals(0, table.editMediaTime());
+    }
+
+    @Test
+    public void stscMergesChunksWithSameSampleCount() throws IOException {
+        Mp4SampleTable table = new Mp4SampleTable(false, 44100);
+        long offset = 0;
+        int sample = 0;
+        //3个2个sample的chunk，再2个3个sample的chunk，chunk之间有其他轨道的数据
+        int[] chunks = {2, 2, 2, 3, 3};
+        for (int chunk : chunks) {
+            for (int i = 0; i < chunk; i++) {
+                table.add(offset, 10, sample++ * 23220L, true);
+                offset += 10;
+            }
+            offset += 1000;
+        }
+        ByteBuffer tables = write(table, 0);
+
+        int stsc = Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.STSC);
+        assertEquals(2, tables.getInt(stsc + 12));
+        assertEquals(1, tables.getInt(stsc + 16));
+        assertEquals(2, tables.getInt(stsc + 20));
+        assertEquals(4, tables.getInt(stsc + 28));
+        assertEquals(3, tables.getInt(stsc + 32));
+
+        int stco = Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.STCO);
+        assertEquals(5, tables.getInt(stco + 12));
+        assertEquals(0, tables.getInt(stco + 16));
+        assertEquals(1020, tables.getInt(stco + 20));
+    }
+
+    @Test
+    public void largeOffsetsUseCo64() throws IOException {
+        Mp4SampleTable table = new Mp4SampleTable(false, 44100);
+        table.add(0, 10, 0, true);
+        table.add(100, 10, 23220, true);
+        long delta = 0x100000000L;
+        ByteBuffer tables = write(table, delta);
+
+        assertEquals(-1, Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.STCO));
+        int co64 = Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.CO64);
+        assertEquals(2, tables.getInt(co64 + 12));
+        assertEquals(delta, tables.getLong(co64 + 16));
+        assertEquals(delta + 100, tables.getLong(co64 + 24));
+    }
+
+    @Test
+    public void positiveCompositionOffsetsUseCttsVersion0() throws IOException {
+        Mp4SampleTable table = new Mp4SampleTable(true, TrackFormat.VIDEO_TIMESCALE);
+        for (int i = 0; i < 4; i++) {
+            table.add(i * 100L, 100, i * FRAME_US, i == 1 ? 2 * FRAME_US : 0, i == 0);
+        }
+        ByteBuffer tables = write(table, 0);
+
+        int ctts = Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.CTTS);
+        assertTrue(ctts >= 0);
+        assertEquals(0, tables.get(ctts + 8));
+        assertEquals(3, tables.getInt(ctts + 12));
+    }
+
+    @Test
+    public void negativeCompositionOffsetsUseCttsVersion1() throws IOException {
+        Mp4SampleTable table = new Mp4SampleTable(true, TrackFormat.VIDEO_TIMESCALE);
+        long[] offsetsUs = {0, 2 * FRAME_US, -FRAME_US, -FRAME_US};
+        for (int i = 0; i < offsetsUs.length; i++) {
+            table.add(i * 100L, 100, i * FRAME_US, offsetsUs[i], i == 0);
+        }
+        ByteBuffer tables = write(table, 0);
+
+        int ctts = Mp4Reader.findBox(tables, 0, tables.limit(), Mp4Boxes.CTTS);
+        assertEquals(1, tables.get(ctts + 8));
+        assertEquals(3, tables.getInt(ctts + 12));
+        assertEquals(2, tables.getInt(ctts + 32));
+        assertEquals((int) (-FRAME_US * 90 / 1000), tables.getInt(ctts + 36));
+    }
+
+    @Test
+    public void stssOnlyWrittenWhenNotAllSamplesAreSync() throws IOException {
+        Mp4SampleTable allSync = new Mp4SampleTable(true, TrackFormat.VIDEO_TIMESCALE);
+        Mp4SampleTable someSync = new Mp4SampleTable(true, TrackFormat.VIDEO_TIMESCALE);
+        for (int i = 0; i < 6; i++) {
+            allSync.add(i * 100L, 100, i * FRAME_US, true);
+            someSync.add(i * 100L, 100, i * FRAME_US, i % 3 == 0);
+        }
+        ByteBuffer all = write(allSync, 0);
+        ByteBuffer some = write(someSync, 0);
+
+        assertEquals(-1, Mp4Reader.findBox(all, 0, all.limit(), Mp4Boxes.STSS));
+        int stss = Mp4Reader.findBox(some, 0, some.limit(), Mp4Boxes.STSS);
+        assertEquals(2, some.getInt(stss + 12));
+        assertEquals(1, some.getInt(stss + 16));
+        assertEquals(4, some.getInt(stss + 20));
+    }
+
+    private static ByteBuffer write(Mp4SampleTable table, long offsetDelta) {
+        Mp4BoxWriter w = new Mp4BoxWriter(1024);
+        table.writeTables(w, offsetDelta);
+        return w.flip();
+    }
+
+    private static long sttsSum(ByteBuffer tables, int stts) {
+        long sum = 0;
+        int entries = tables.getInt(stts + 12);
+        for (int i = 0; i < entries; i++) {
+            sum += (long) tables.getInt(stts + 16 + i * 8) * tables.getInt(stts + 20 + i * 8);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,129 @@
+package com.gpufast.recorder.muxer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4VerifierTest {
+
+    private static final long FRAME_US = 33333;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("verifier", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void validRecordingPasses() throws IOException {
+        FastStartMp4WriterTest.write(file, 0, 0);
+
+        Mp4Verifier.Report report = Mp4Verifier.verify(file.getPath(), true);
+        assertTrue(report.toString(), report.isValid());
+        assertTrue(report.toString(), report.getWarnings().isEmpty());
+        assertEquals(91, report.getVideoSamples());
+        assertEquals(4, report.getKeyFrames());
+        assertTrue(report.getAudioSamples() > 0);
+        assertEquals(0, report.getAvOffsetUs(), 1000);
+    }
+
+    @Test
+    public void largeAvOffsetIsWarning() throws IOException {
+        FastStartMp4WriterTest.write(file, 0, 300000);
+
+        Mp4Verifier.Report report = Mp4Verifier.verify(file.getPath());
+        assertTrue(report.toString(), report.isValid());
+        assertEquals(300000, report.getAvOffsetUs(), 1000);
+        assertTrue(report.toString(), hasIssue(report, "a/v"));
+    }
+
+    @Test
+    public void syncSampleWithoutIdrIsError() throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FastStartMp4Writer writer = new FastStartMp4Writer(out.getChannel(), false,
+                FastStartMp4Writer.estimateMoovBytes(1000, 30, 0, false));
+        writer.setVideoFormat(TrackFormat.createVideo(new byte[]{0x67, 0x42, (byte) 0xc0, 0x1f},
+                new byte[]{0x68, (byte) 0xce, 0x3c, (byte) 0x80}, 640, 480));
+        for (int i = 0; i < 30; i++) {
+            //标记为关键帧，但数据是非IDR的slice
+            writer.writeVideoSample(ByteBuffer.wrap(nonIdrFrame()), i * FRAME_US, i % 10 == 0);
+        }
+        writer.finish();
+        out.close();
+
+        Mp4Verifier.Report report = Mp4Verifier.verify(file.getPath());
+        assertFalse(report.isValid());
+        assertTrue(report.toString(), hasIssue(report, "key frame"));
+    }
+
+    @Test
+    public void truncatedFileIsError() throws IOException {
+        FastStartMp4WriterTest.write(file, 0, 0);
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.setLength(out.length() - 1000);
+        out.close();
+
+        Mp4Verifier.Report report = Mp4Verifier.verify(file.getPath());
+        assertFalse(report.isValid());
+        assertTrue(report.toString(), hasIssue(report, "box"));
+    }
+
+    @Test
+    public void deepModeChecksNalLengths() throws IOException {
+        FastStartMp4WriterTest.write(file, 0, 0);
+        long offset;
+        Mp4Reader reader = Mp4Reader.open(file.getPath());
+        try {
+            //第二帧不是关键帧，默认模式不读它的数据
+            assertFalse(reader.videoTrack().isSync(1));
+            offset = reader.videoTrack().offset(1);
+        } finally {
+            reader.close();
+        }
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        out.seek(offset);
+        out.writeInt(0x7fffffff);
+        out.close();
+
+        assertTrue(Mp4Verifier.verify(file.getPath()).isValid());
+        Mp4Verifier.Report report = Mp4Verifier.verify(file.getPath(), true);
+        assertFalse(report.isValid());
+        assertTrue(report.toString(), hasIssue(report, "nal"));
+    }
+
+    private static byte[] nonIdrFrame() {
+        byte[] data = new byte[1000];
+        data[3] = 1;
+        data[4] = 0x41;
+        return data;
+    }
+
+    private static boolean hasIssue(Mp4Verifier.Report report, String check) {
+        for (String line : report.getErrors()) {
+            if (line.startsWith(check + ": ")) {
+                return true;
+            }
+        }
+        for (String line : report.getWarnings()) {
+            if (line.startsWith(check + ": ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,109 @@
+package com.gpufast.recorder.muxer;
+
+import android.media.MediaCodec;
+
+import com.gpufast.recorder.video.EncodedImage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TsMuxerTest {
+
+    private static final int PACKET_SIZE = 188;
+    private static final int VIDEO_PID = 0x0100;
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    @Test
+    public void audStaysFirstWhenConfigIsInserted() throws IOException {
+        //帧自带AUD，参数集作为单独的数据段
+        List<Integer> types = muxKeyFrame(new byte[]{0, 0, 0, 1, 0x09, 0x10, 0, 0, 0, 1, 0x65, 0x11, 0x22});
+        assertEquals(listOf(9, 7, 8, 5), types);
+    }
+
+    @Test
+    public void audIsGeneratedWhenFrameHasNone() throws IOException {
+        List<Integer> types = muxKeyFrame(new byte[]{0, 0, 0, 1, 0x65, 0x11, 0x22});
+        assertEquals(listOf(9, 7, 8, 5), types);
+    }
+
+    /**
+     * 写入一个关键帧，返回视频PES负载中NAL的类型
+     */
+    private static List<Integer> muxKeyFrame(byte[] frame) throws IOException {
+        File file = File.createTempFile("mpegts", ".ts");
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            TsMuxer muxer = new TsMuxer(out.getChannel(), true);
+            muxer.setVideoTrackFormat(TrackFormat.createVideo(SPS, PPS, 640, 480));
+            ByteBuffer config = ByteBuffer.allocate(16);
+            config.put(new byte[]{0, 0, 0, 1}).put(SPS).put(new byte[]{0, 0, 0, 1}).put(PPS);
+            config.flip();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            info.presentationTimeUs = 0;
+            info.size = frame.length;
+            muxer.onEncodedFrame(EncodedImage.builder()
+                    .setSegments(config, ByteBuffer.wrap(frame))
+                    .setBufferInfo(info)
+                    .setFrameType(EncodedImage.FrameType.VideoFrameKey)
+                    .createEncodedImage());
+            muxer.release();
+            out.close();
+            return nalTypes(videoPayload(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static ByteBuffer videoPayload(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        byte[] bytes = new byte[(int) in.length()];
+        in.readFully(bytes);
+        in.close();
+        ByteArrayOutputStream pes = new ByteArrayOutputStream();
+        for (int offset = 0; offset + PACKET_SIZE <= bytes.length; offset += PACKET_SIZE) {
+            int pid = (bytes[offset + 1] & 0x1f) << 8 | (bytes[offset + 2] & 0xff);
+            if (pid != VIDEO_PID) {
+                continue;
+            }
+            int start = offset + 4;
+            if ((bytes[offset + 3] & 0x20) != 0) {
+                start += 1 + (bytes[offset + 4] & 0xff);
+            }
+            pes.write(bytes, start, offset + PACKET_SIZE - start);
+        }
+        byte[] data = pes.toByteArray();
+        //跳过PES头部
+        int headerLength = 9 + (data[8] & 0xff);
+        return ByteBuffer.wrap(data, headerLength, data.length - headerLength);
+    }
+
+    private static List<Integer> nalTypes(ByteBuffer data) {
+        List<Integer> types = new ArrayList<>();
+        int limit = data.limit();
+        int index = NalUnits.findStartCode(data, data.position(), limit);
+        while (index < limit) {
+            int nalStart = index + NalUnits.startCodeLength(data, index);
+            types.add(NalUnits.nalType(data, nalStart));
+            index = NalUnits.findStartCode(data, nalStart, limit);
+        }
+        return types;
+    }
+
+    private static List<Integer> listOf(int... values) {
+        List<Integer> list = new ArrayList<>();
+        for (int value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,54 @@
+package com.gpufast.recorder.video;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class EncodedImageTest {
+
+    @Test
+    public void retainCopiesCodecOwnedFrame() {
+        EncodedImage frame = codecFrame();
+        EncodedImage retained = frame.retain();
+        frame.release();
+        //拷贝不受原buffer归还的影响
+        assertEquals(0x65, retained.buffer.get(retained.buffer.position() + 4));
+        retained.release();
+    }
+
+    @Test
+    public void retainAfterReleaseThrows() {
+        //数据属于编码器，release后输出buffer已经还给编码器
+        EncodedImage frame = codecFrame();
+        frame.release();
+        assertRetainThrows(frame);
+
+        EncodedImage retained = codecFrame().retain();
+        retained.release();
+        assertRetainThrows(retained);
+    }
+
+    private static void assertRetainThrows(EncodedImage frame) {
+        try {
+            frame.retain();
+            fail("retain after release");
+        } catch (IllegalStateException expected) {
+            //释放后不能再retain
+        }
+    }
+
+    private static EncodedImage codecFrame() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.size = 6;
+        return EncodedImage.builder()
+                .setBuffer(ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x65, 0x10}))
+                .setBufferInfo(info)
+                .setFrameType(EncodedImage.FrameType.VideoFrameKey)
+                .createEncodedImage();
+    }
+}
@@ -0,0 +1,117 @@
+package com.gpufast.recorder.video;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FramePacerTest {
+
+    private static final long MS = 1000L * 1000;
+    private static final long SECOND = 1000 * MS;
+
+    @Test
+    public void sixtyFpsSourceIsThinnedEvenlyToThirty() {
+        FramePacer pacer = new FramePacer(30);
+        SimulatedEncoder encoder = new SimulatedEncoder(pacer, 5 * MS);
+        long frameNs = SECOND / 60;
+        for (int i = 0; i < 120; i++) {
+            long now = i * frameNs;
+            encoder.drain(now);
+            //每隔一帧送入一帧，不会连续送入或连续丢弃
+            assertEquals("frame " + i, i % 2 == 0, encoder.offer(now));
+        }
+    }
+
+    @Test
+    public void slowEncoderIsPacedAndRecoversAfterHold() {
+        FramePacer pacer = new FramePacer(30);
+        SimulatedEncoder encoder = new SimulatedEncoder(pacer, 100 * MS);
+        long frameNs = SECOND / 30;
+        long now = 0;
+        //编码器每帧需要100ms，只能输出10fps
+        int slowSubmitted = 0;
+        for (int i = 0; i < 90; i++, now += frameNs) {
+            encoder.drain(now);
+            if (encoder.offer(now) && i >= 30) {
+                slowSubmitted++;
+            }
+        }
+        assertTrue("slow submitted " + slowSubmitted, slowSubmitted >= 16 && slowSubmitted <= 24);
+
+        //编码器恢复，慢节奏还要保持一段时间
+        encoder.serviceNs = 5 * MS;
+        int holdSubmitted = 0;
+        for (int i = 0; i < 15; i++, now += frameNs) {
+            encoder.drain(now);
+            if (encoder.offer(now)) {
+                holdSubmitted++;
+            }
+        }
+        assertTrue("hold submitted " + holdSubmitted, holdSubmitted < 10);
+
+        //保持时间过后回到目标帧率，每一帧都送入
+        for (int i = 0; i < 45; i++, now += frameNs) {
+            encoder.drain(now);
+            encoder.offer(now);
+        }
+        for (int i = 0; i < 30; i++, now += frameNs) {
+            encoder.drain(now);
+            assertTrue("frame " + i, encoder.offer(now));
+        }
+    }
+
+    @Test
+    public void rejectedFramesDoNotOccupyEncoderSlots() {
+        long frameNs = SECOND / 30;
+        FramePacer accepted = new FramePacer(30);
+        FramePacer rejected = new FramePacer(30);
+        for (int i = 0; i < 3; i++) {
+            long timestampNs = i * frameNs;
+            assertTrue(accepted.shouldSubmit(timestampNs, timestampNs));
+            accepted.onSubmitted(timestampNs, true);
+            assertTrue(rejected.shouldSubmit(timestampNs, timestampNs));
+            rejected.onSubmitted(timestampNs, false);
+        }
+        //编码器中已经有3帧没有输出
+        assertFalse(accepted.shouldSubmit(3 * frameNs, 3 * frameNs));
+        //编码器没有接收的帧已经回滚
+        assertTrue(rejected.shouldSubmit(3 * frameNs, 3 * frameNs));
+    }
+
+    /**
+     * 按送入顺序逐帧编码，每帧需要serviceNs的编码器
+     */
+    private static class SimulatedEncoder {
+        private final FramePacer pacer;
+        //{时间戳, 输出时间}
+        private final ArrayDeque<long[]> queue = new ArrayDeque<>();
+        private long lastDoneNs;
+        long serviceNs;
+
+        SimulatedEncoder(FramePacer pacer, long serviceNs) {
+            this.pacer = pacer;
+            this.serviceNs = serviceNs;
+        }
+
+        boolean offer(long now) {
+            if (!pacer.shouldSubmit(now, now)) {
+                return false;
+            }
+            pacer.onSubmitted(now, true);
+            lastDoneNs = Math.max(now, lastDoneNs) + serviceNs;
+            queue.addLast(new long[]{now, lastDoneNs});
+            return true;
+        }
+
+        void drain(long now) {
+            while (!queue.isEmpty() && queue.peekFirst()[1] <= now) {
+                long[] frame = queue.pollFirst();
+                pacer.onEncoded(frame[0], frame[1]);
+            }
+        }
+    }
+}
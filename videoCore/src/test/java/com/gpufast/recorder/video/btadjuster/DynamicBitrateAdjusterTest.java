@@ -0,0 +1,55 @@
+package com.gpufast.recorder.video.btadjuster;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DynamicBitrateAdjusterTest {
+
+    private static final int TARGET_BPS = 2000_000;
+    private static final int TARGET_FPS = 30;
+
+    @Test
+    public void lowFrameRateOnTargetBitrateIsNotTreatedAsOvershoot() {
+        DynamicBitrateAdjuster adjuster = new DynamicBitrateAdjuster();
+        adjuster.setTargets(TARGET_BPS, TARGET_FPS);
+        //15fps，每帧的字节数是30fps时的两倍，码率正好等于目标
+        encode(adjuster, 15, 1.0, 60);
+        assertEquals(TARGET_BPS, adjuster.getAdjustedBitrateBps());
+    }
+
+    @Test
+    public void overshootLowersBitrate() {
+        DynamicBitrateAdjuster adjuster = new DynamicBitrateAdjuster();
+        adjuster.setTargets(TARGET_BPS, TARGET_FPS);
+        //编码器的实际码率是设置值的1.5倍
+        encode(adjuster, TARGET_FPS, 1.5, 60);
+        int adjusted = adjuster.getAdjustedBitrateBps();
+        assertTrue("adjusted " + adjusted, adjusted < TARGET_BPS);
+        //收敛后实际输出回到目标附近
+        double actual = adjusted * 1.5;
+        assertEquals(TARGET_BPS, actual, TARGET_BPS * 0.1);
+    }
+
+    @Test
+    public void perFrameBudgetAtLowFrameRateRaisesBitrate() {
+        DynamicBitrateAdjuster adjuster = new DynamicBitrateAdjuster();
+        adjuster.setTargets(TARGET_BPS, TARGET_FPS);
+        //编码器按配置的30fps分配每帧预算，实际只有15fps，输出码率只有一半
+        encode(adjuster, 15, 0.5, 60);
+        double actual = adjuster.getAdjustedBitrateBps() * 0.5;
+        assertEquals(TARGET_BPS, actual, TARGET_BPS * 0.1);
+    }
+
+    /**
+     * 模拟实际码率为设置码率ratio倍的编码器，输出seconds秒
+     */
+    private static void encode(DynamicBitrateAdjuster adjuster, int fps, double ratio, int seconds) {
+        long frameUs = 1000_000L / fps;
+        for (int i = 0; i < fps * seconds; i++) {
+            int size = (int) (adjuster.getAdjustedBitrateBps() * ratio / 8 / fps);
+            adjuster.reportEncodedFrame(size, i * frameUs);
+        }
+    }
+}